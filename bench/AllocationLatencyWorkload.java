@@ -0,0 +1,90 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import benchmarks.AllocationLatencyBenchmark;
+
+/**
+ * 分配延迟的场景：按给定占用率占用分配器后，每次被测操作分配并立即释放给定数量的存储块
+ * 两种分配器使用同一组空闲块
+ */
+class AllocationLatencyWorkload implements AllocationLatencyBenchmark.Allocator {
+    // 分配器管理的存储块数（按4 KB的块为1 GB）
+    static final int TOTAL_BLOCKS = 1 << 18;
+
+    private final BlockAllocator extents;
+    private final BlockAllocator.Policy policy;
+    private final LinearScanAllocator scan;
+    private final int blocks;
+
+    /**
+     * @param allocator scan为线性扫描分配器，其余为BlockAllocator的分配策略（best、next）
+     * @param fill 占用率（百分比）
+     * @param scattered 为true时随机占用，否则占用前部连续的存储块
+     * @param blocks 每次分配的块数
+     */
+    AllocationLatencyWorkload(String allocator, int fill, boolean scattered, int blocks) {
+        this.blocks = blocks;
+        List<Integer> free = freeBlocks(fill, scattered);
+        if (allocator.equals("scan")) {
+            scan = new LinearScanAllocator(TOTAL_BLOCKS);
+            scan.allocate(TOTAL_BLOCKS);
+            for (int index : free) {
+                scan.free(index);
+            }
+            extents = null;
+            policy = null;
+        } else {
+            policy = BlockAllocator.Policy.forLabel(allocator);
+            if (policy == null) {
+                throw new IllegalArgumentException("Unknown allocator: " + allocator);
+            }
+            extents = new BlockAllocator(TOTAL_BLOCKS);
+            extents.allocate(TOTAL_BLOCKS);
+            for (int index : free) {
+                extents.free(index);
+            }
+            scan = null;
+        }
+    }
+
+    /**
+     * 选出要释放的存储块，使占用率为给定值
+     * @param fill 占用率（百分比）
+     * @param scattered 为true时随机选择，否则选择末尾的存储块
+     */
+    private static List<Integer> freeBlocks(int fill, boolean scattered) {
+        ArrayList<Integer> all = new ArrayList<>(TOTAL_BLOCKS);
+        for (int i = 0; i < TOTAL_BLOCKS; i++) {
+            all.add(i);
+        }
+        if (scattered) {
+            Collections.shuffle(all, new Random(42));
+        } else {
+            Collections.reverse(all);
+        }
+        return all.subList(0, TOTAL_BLOCKS - (int) ((long) TOTAL_BLOCKS * fill / 100));
+    }
+
+    @Override
+    public Object allocateAndFree() {
+        ArrayList<Integer> allocated;
+        if (scan != null) {
+            allocated = scan.allocate(blocks);
+            for (int index : allocated) {
+                scan.free(index);
+            }
+        } else {
+            allocated = extents.allocate(blocks, policy, -1, -1);
+            for (int index : allocated) {
+                extents.free(index);
+            }
+        }
+        return allocated;
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,54 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
+import benchmarks.AllocatorBenchmark;
+
+/**
+ * 存储块分配的场景：按给定的占用率随机占用存储设备，每次被测操作分配并立即释放给定数量的存储块
+ */
+class AllocatorWorkload implements AllocatorBenchmark.Device {
+    // 存储设备的块数和块大小
+    static final int DISK_SIZE = 16384;
+    static final int BLOCK_SIZE = 4096;
+
+    private final StorageDevice device;
+    private final int blocks;
+
+    /**
+     * @param fill 占用率（百分比）
+     * @param blocks 每次分配的块数
+     */
+    AllocatorWorkload(int fill, int blocks) {
+        this.blocks = blocks;
+        device = new StorageDevice("bench", "bench-alloc.disk", DISK_SIZE, BLOCK_SIZE);
+        occupy(device, fill);
+    }
+
+    /**
+     * 分配设备上的全部存储块，再随机释放其中一部分，使占用率为给定值，空闲块分散在整个设备上
+     * @param device 空的存储设备
+     * @param fill 占用率（百分比）
+     * @return 仍被占用的存储块
+     */
+    static ArrayList<Integer> occupy(StorageDevice device, int fill) {
+        ArrayList<Integer> used = device.diskAlloc(device.getDiskSize());
+        Collections.shuffle(used, new Random(42));
+        int free = used.size() - (int) ((long) used.size() * fill / 100);
+        ArrayList<Integer> released = new ArrayList<>(used.subList(0, free));
+        device.diskFree(released);
+        return new ArrayList<>(used.subList(free, used.size()));
+    }
+
+    @Override
+    public Object allocateAndFree() {
+        ArrayList<Integer> allocated = device.diskAlloc(blocks);
+        device.diskFree(allocated);
+        return allocated;
+    }
+
+    @Override
+    public void close() {
+        device.close();
+    }
+}
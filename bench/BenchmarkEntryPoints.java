@@ -0,0 +1,66 @@
+import benchmarks.AllocationLatencyBenchmark;
+import benchmarks.AllocatorBenchmark;
+import benchmarks.CdBenchmark;
+import benchmarks.DedupWriteBenchmark;
+import benchmarks.FileOpenBenchmark;
+import benchmarks.FileSystemEntryPoints;
+import benchmarks.PathResolverBenchmark;
+import benchmarks.PersistenceBenchmark;
+import benchmarks.SequentialReadBenchmark;
+import benchmarks.SessionScalingBenchmark;
+import benchmarks.StartupBenchmark;
+
+/**
+ * 基准测试进入文件系统的入口，每个方法创建一个基准测试的场景
+ */
+public class BenchmarkEntryPoints implements FileSystemEntryPoints {
+    @Override
+    public AllocationLatencyBenchmark.Allocator allocator(String allocator, int fill, boolean scattered, int blocks) {
+        return new AllocationLatencyWorkload(allocator, fill, scattered, blocks);
+    }
+
+    @Override
+    public StartupBenchmark.Image image(int entries) {
+        return new StartupWorkload(entries);
+    }
+
+    @Override
+    public SessionScalingBenchmark.Sessions sessions(int sessions) {
+        return new SessionScalingWorkload(sessions);
+    }
+
+    @Override
+    public PathResolverBenchmark.DirectoryChains directoryChains(int depth, boolean cached) {
+        return new PathResolverWorkload(depth, cached);
+    }
+
+    @Override
+    public AllocatorBenchmark.Device device(int fill, int blocks) {
+        return new AllocatorWorkload(fill, blocks);
+    }
+
+    @Override
+    public FileOpenBenchmark.StoredFile storedFile(int fileSize) {
+        return new FileOpenWorkload(fileSize);
+    }
+
+    @Override
+    public CdBenchmark.DirectoryChain directoryChain(int depth, int width) {
+        return new CdWorkload(depth, width);
+    }
+
+    @Override
+    public PersistenceBenchmark.GeneratedTree generatedTree(int depth) {
+        return new PersistenceWorkload(depth);
+    }
+
+    @Override
+    public DedupWriteBenchmark.TemplatedFiles templatedFiles(int fileSize, boolean dedup, boolean duplicate) {
+        return new DedupWriteWorkload(fileSize, dedup, duplicate);
+    }
+
+    @Override
+    public SequentialReadBenchmark.LargeFile largeFile(boolean readAhead, int readSize) {
+        return new SequentialReadWorkload(readAhead, readSize);
+    }
+}
@@ -0,0 +1,60 @@
+import java.io.InputStream;
+import java.util.List;
+
+import benchmarks.CdBenchmark;
+
+/**
+ * cd命令的场景：一条给定深度的目录链，链上每一级目录另有若干个兄弟目录；
+ * 每次被测操作在批处理会话中切换到最深的目录再切换回根目录
+ */
+class CdWorkload implements CdBenchmark.DirectoryChain {
+    private final FileSystemService service;
+    private final ChiikaFileSystemCore session;
+    private final List<String> cdDeep;
+    private final List<String> cdRoot;
+
+    /**
+     * 打开文件系统服务并建立目录链
+     * @param depth 目录链的深度
+     * @param width 每一级的目录数（含链上的目录）
+     */
+    CdWorkload(int depth, int width) {
+        service = new FileSystemService();
+        service.setDeferredCommit(true);
+        FileSystemFolder folder = service.getRoot();
+        StringBuilder path = new StringBuilder();
+        for (int level = 0; level < depth; level++) {
+            for (int sibling = 1; sibling < width; sibling++) {
+                service.createNode(folder, "s" + sibling, true);
+            }
+            folder = (FileSystemFolder) service.createNode(folder, "d" + level, true);
+            path.append("/d").append(level);
+        }
+        service.commit();
+        service.setDeferredCommit(false);
+        session = new ChiikaFileSystemCore(service, InputStream.nullInputStream(), true);
+        cdDeep = List.of("cd", path.toString());
+        cdRoot = List.of("cd", "/");
+    }
+
+    @Override
+    public Object cdDeepAndBack() {
+        service.beginOperation();
+        try {
+            session.execute(cdDeep);
+            boolean failed = session.hasFailed();
+            session.execute(cdRoot);
+            if (failed || session.hasFailed()) {
+                throw new IllegalStateException("cd failed");
+            }
+            return session;
+        } finally {
+            service.endOperation();
+        }
+    }
+
+    @Override
+    public void close() {
+        service.close();
+    }
+}
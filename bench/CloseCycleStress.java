@@ -0,0 +1,315 @@
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import benchmarks.BenchmarkScratch;
+
+/**
+ * 打开、追加、关闭循环的压力测试
+ * 多个线程共用一组文件，每个循环对随机选中的文件加写锁、打开、在末尾追加一段内容并读回校验，
+ * 文件超过上限时截断到随机的较小大小，最后关闭并记入日志；每隔REPORT_INTERVAL次循环生成一次检查点。
+ * 文件内容只取决于字节位置，不同文件相同位置的存储块内容相同，开启去重时这些存储块被共享，
+ * 之后的追加和截断会经过写时复制和引用计数的释放。
+ *
+ * 结束后检查：已分配的存储块正好是各文件引用的存储块，总引用数等于已分配块数加共享引用数，
+ * 已分配块数不超过文件内容所需的块数；再不生成检查点，从最近的检查点和日志重新打开文件系统并逐字节校验全部文件，
+ * 关闭记录大多只记录改变的部分，重放时在上一次的映射上修改。
+ *
+ * 最后在新的文件系统上用一个会话执行打开、追加、关闭命令，并不时让提交失败：失败的sync和关闭报告错误，
+ * 关闭失败的文件保持打开，再次关闭成功，会话一直执行下去；重新打开文件系统后校验全部追加的内容。
+ *
+ * 用法：java CloseCycleStress [循环数] [线程数]，默认1000000次循环、4个线程；
+ * 必须在基准测试的工作目录中运行（gradle stress），会删除其中的文件系统文件
+ */
+public class CloseCycleStress {
+    // 共用的文件数
+    private static final int FILES = 32;
+    // 每次追加的字节数，不是块大小的整数倍，使追加经常落在块的中间
+    private static final int CHUNK = 1500;
+    // 文件大小超过此值时截断
+    private static final int MAX_FILE_SIZE = 48 * 1024;
+    // 每个线程每隔多少次循环提交一次日志
+    private static final int COMMIT_INTERVAL = 256;
+    // 每隔多少次循环输出一次进度
+    private static final long REPORT_INTERVAL = 100_000;
+    // 提交失败阶段的文件数和轮数，每隔FAILURE_INTERVAL轮让提交失败
+    private static final int FAILING_FILES = 8;
+    private static final int FAILING_ROUNDS = 140;
+    private static final int FAILURE_INTERVAL = 7;
+
+    private final FileSystemService service;
+    private final List<FileSystemDocument> files;
+    private final AtomicLong completed;
+    private final long cycles;
+
+    private CloseCycleStress(FileSystemService service, List<FileSystemDocument> files, long cycles) {
+        this.service = service;
+        this.files = files;
+        this.completed = new AtomicLong();
+        this.cycles = cycles;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        long cycles = args.length > 0 ? Long.parseLong(args[0]) : 1_000_000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        BenchmarkScratch.reset();
+
+        FileSystemService service = new FileSystemService();
+        service.setDeduplication(true);
+        FileSystemFolder folder = (FileSystemFolder) service.createNode(service.getRoot(), "stress", true);
+        List<FileSystemDocument> files = new ArrayList<>();
+        for (int i = 0; i < FILES; i++) {
+            files.add((FileSystemDocument) service.createNode(folder, "f" + i, false));
+        }
+
+        CloseCycleStress stress = new CloseCycleStress(service, files, cycles);
+        long start = System.nanoTime();
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            long seed = i;
+            Thread worker = new Thread(() -> stress.runWorker(seed), "stress-" + i);
+            workers.add(worker);
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        WorkloadGenerator.report("打开-追加-关闭", cycles, System.nanoTime() - start);
+
+        service.commit();
+        int[] sizes = stress.checkBlocks(service, files);
+        int usedBlocks = service.getDevice().getUsedBlockCount();
+        service.close();
+
+        FileSystemService reopened = new FileSystemService();
+        List<FileSystemDocument> restored = new ArrayList<>();
+        for (int i = 0; i < FILES; i++) {
+            restored.add((FileSystemDocument) reopened.getResolver().lookup("/stress/f" + i));
+        }
+        for (int i = 0; i < FILES; i++) {
+            VirtualFileContent content = restored.get(i).file;
+            if (content.getContentSize() != sizes[i]) {
+                throw new IllegalStateException("Restored size of f" + i + " is " + content.getContentSize() + ", expected " + sizes[i]);
+            }
+            verify(content, 0, sizes[i], reopened.getCache());
+        }
+        if (reopened.getDevice().getUsedBlockCount() != usedBlocks) {
+            throw new IllegalStateException("Restored device uses " + reopened.getDevice().getUsedBlockCount()
+                    + " blocks, expected " + usedBlocks);
+        }
+        stress.checkBlocks(reopened, restored);
+        reopened.close();
+        checkFailingCommits();
+        System.out.println("检查通过");
+    }
+
+    /**
+     * 提交失败阶段：失败的提交由sync和关闭报告，会话继续执行，未提交的修改在之后的提交中落盘
+     */
+    private static void checkFailingCommits() {
+        BenchmarkScratch.reset();
+        FileSystemService service = new FileSystemService();
+        // 延迟提交，注入的失败只由本线程的提交消耗
+        service.setDeferredCommit(true);
+        ChiikaFileSystemCore session = new ChiikaFileSystemCore(service, InputStream.nullInputStream(), true);
+        expect(service, session, true, "mkdir", "/fail");
+        expect(service, session, true, "cd", "/fail");
+        StringBuilder[] expected = new StringBuilder[FAILING_FILES];
+        for (int i = 0; i < FAILING_FILES; i++) {
+            expect(service, session, true, "create", "g" + i);
+            expected[i] = new StringBuilder();
+        }
+        int failures = 0;
+        for (int round = 0; round < FAILING_ROUNDS; round++) {
+            String name = "g" + round % FAILING_FILES;
+            String text = "round" + round + ";";
+            expect(service, session, true, "open", name);
+            expect(service, session, true, "write", name, text, "a");
+            expected[round % FAILING_FILES].append(text);
+            if (round % FAILURE_INTERVAL != FAILURE_INTERVAL - 1) {
+                expect(service, session, true, "close", name);
+                continue;
+            }
+            // 后台提交失败后关闭报告失败，文件保持打开，再次关闭成功
+            service.injectCommitFailures(1);
+            if (service.getFlusher().tryCommit()) {
+                throw new IllegalStateException("Injected commit failure did not fail in round " + round);
+            }
+            expect(service, session, false, "close", name);
+            // 描述符仍然登记着，可以继续写入
+            expect(service, session, true, "write", name, "retry" + round + ";", "a");
+            expected[round % FAILING_FILES].append("retry" + round + ";");
+            expect(service, session, true, "close", name);
+            // sync本身的提交失败时报告失败，下一次sync成功
+            service.injectCommitFailures(1);
+            expect(service, session, false, "sync");
+            expect(service, session, true, "sync");
+            failures += 2;
+        }
+        service.setDeferredCommit(false);
+        service.close();
+
+        FileSystemService reopened = new FileSystemService();
+        for (int i = 0; i < FAILING_FILES; i++) {
+            FileSystemDocument file = (FileSystemDocument) reopened.getResolver().lookup("/fail/g" + i);
+            byte[] want = expected[i].toString().getBytes(StandardCharsets.UTF_8);
+            byte[] data = new byte[want.length];
+            if (file.file.getContentSize() != want.length
+                    || file.file.read(0, data, 0, want.length, reopened.getCache()) != want.length
+                    || !Arrays.equals(data, want)) {
+                throw new IllegalStateException("Restored content of g" + i + " does not match after failed commits");
+            }
+        }
+        reopened.close();
+        System.out.println("提交失败 " + failures + " 次，会话执行了全部 " + FAILING_ROUNDS + " 轮");
+    }
+
+    /**
+     * 在会话中执行一条命令并检查是否失败
+     * @param succeed 命令应当成功时为true
+     */
+    private static void expect(FileSystemService service, ChiikaFileSystemCore session, boolean succeed, String... words) {
+        service.beginOperation();
+        try {
+            session.execute(List.of(words));
+        } finally {
+            service.endOperation();
+        }
+        if (session.hasFailed() == succeed) {
+            throw new IllegalStateException("Command " + String.join(" ", words) + (succeed ? " failed" : " did not fail"));
+        }
+    }
+
+    /**
+     * 工作线程：循环直到完成的总循环数达到目标
+     */
+    private void runWorker(long seed) {
+        Random random = new Random(seed);
+        service.setDeferredCommit(true);
+        BufferCache cache = service.getCache();
+        byte[] chunk = new byte[CHUNK];
+        byte[] readBack = new byte[CHUNK];
+        int sinceCommit = 0;
+        while (true) {
+            long done = completed.incrementAndGet();
+            if (done > cycles) {
+                break;
+            }
+            FileSystemDocument file = files.get(random.nextInt(files.size()));
+            service.beginOperation();
+            file.getLock().writeLock().lock();
+            try {
+                service.getCloner().preserve(file);
+                if (!file.open(cache)) {
+                    throw new IllegalStateException(file.getPath() + " was unlinked");
+                }
+                try {
+                    VirtualFileContent content = file.file;
+                    int size = content.getOpenSize();
+                    if (size > MAX_FILE_SIZE) {
+                        size = random.nextInt(MAX_FILE_SIZE / 2);
+                        content.truncate(size, cache);
+                    }
+                    fill(chunk, size);
+                    if (!content.write(size, chunk, 0, CHUNK, cache)) {
+                        throw new IllegalStateException("Storage device is full after " + done + " cycles");
+                    }
+                    if (content.read(size, readBack, 0, CHUNK, cache) != CHUNK) {
+                        throw new IllegalStateException("Short read back from " + file.getPath());
+                    }
+                    for (int i = 0; i < CHUNK; i++) {
+                        if (readBack[i] != chunk[i]) {
+                            throw new IllegalStateException("Read back mismatch in " + file.getPath() + " at " + (size + i));
+                        }
+                    }
+                } finally {
+                    service.closeAndLog(file);
+                }
+            } finally {
+                file.getLock().writeLock().unlock();
+                service.endOperation();
+            }
+            if (++sinceCommit >= COMMIT_INTERVAL) {
+                service.commit();
+                sinceCommit = 0;
+            }
+            if (done % REPORT_INTERVAL == 0) {
+                // 检查点清空日志，日志文件不会随循环次数无限增长
+                service.persistFileSystem(StorageConstants.SERIALIZE_PATH);
+                System.out.println(done + " 次循环, 已分配 " + service.getDevice().getUsedBlockCount() + " 块");
+            }
+        }
+        service.commit();
+        service.setDeferredCommit(false);
+    }
+
+    /**
+     * 按字节位置生成文件内容
+     * @param dest 目标数组
+     * @param position 第一个字节在文件中的位置
+     */
+    private static void fill(byte[] dest, int position) {
+        for (int i = 0; i < dest.length; i++) {
+            dest[i] = contentAt(position + i);
+        }
+    }
+
+    private static byte contentAt(int position) {
+        return (byte) ('a' + position % 26);
+    }
+
+    /**
+     * 逐字节校验文件的一段内容
+     */
+    private static void verify(VirtualFileContent content, int offset, int length, BufferCache cache) {
+        byte[] data = new byte[length];
+        if (content.read(offset, data, 0, length, cache) != length) {
+            throw new IllegalStateException("Short read while verifying");
+        }
+        for (int i = 0; i < length; i++) {
+            if (data[i] != contentAt(offset + i)) {
+                throw new IllegalStateException("Content mismatch at " + (offset + i));
+            }
+        }
+    }
+
+    /**
+     * 检查已分配的存储块与各文件引用的存储块一致
+     * @return 各文件的大小
+     */
+    private int[] checkBlocks(FileSystemService service, List<FileSystemDocument> files) {
+        StorageDevice device = service.getDevice();
+        int blockSize = device.getBlockSize();
+        int[] sizes = new int[files.size()];
+        long references = 0;
+        long required = 0;
+        HashSet<Integer> distinct = new HashSet<>();
+        for (int i = 0; i < files.size(); i++) {
+            VirtualFileContent content = files.get(i).file;
+            sizes[i] = content.getContentSize();
+            List<Integer> blocks = content.getBlockIndices();
+            references += blocks.size();
+            distinct.addAll(blocks);
+            required += (sizes[i] + blockSize - 1) / blockSize;
+        }
+        int used = device.getUsedBlockCount();
+        System.out.println("文件引用 " + references + " 次, 不同存储块 " + distinct.size() + " 个, 已分配 " + used
+                + " 块, 共享引用 " + device.getSharedReferences() + ", 内容需要 " + required + " 块");
+        if (used != distinct.size()) {
+            throw new IllegalStateException("Allocated blocks " + used + " != referenced blocks " + distinct.size());
+        }
+        if (used + device.getSharedReferences() != references) {
+            throw new IllegalStateException("Reference counts do not add up: " + used + " + "
+                    + device.getSharedReferences() + " != " + references);
+        }
+        if (used > required) {
+            throw new IllegalStateException("Allocated blocks " + used + " exceed live data " + required);
+        }
+        return sizes;
+    }
+}
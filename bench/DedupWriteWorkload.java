@@ -0,0 +1,85 @@
+import java.util.Random;
+
+import benchmarks.DedupWriteBenchmark;
+
+/**
+ * 块去重下写入的场景：存储设备上有FILES个文件，每次被测操作轮流选一个文件，打开、改写全部内容再关闭
+ * 写入内容来自同一个模板（模拟大量由模板生成的文件），关闭时对修改过的块去重；
+ * 内容各不相同时在每个块的开头写入递增的序号，去重只有计算指纹的开销而没有可共享的块
+ */
+class DedupWriteWorkload implements DedupWriteBenchmark.TemplatedFiles {
+    // 轮流改写的文件数
+    private static final int FILES = 16;
+
+    private final StorageDevice device;
+    private final BufferCache cache;
+    private final VirtualFileContent[] files;
+    private final byte[] data;
+    private final boolean duplicate;
+    private long sequence;
+    private int next;
+
+    /**
+     * 在新的存储设备上按模板写入全部文件
+     * @param fileSize 文件大小（字节）
+     * @param dedup 是否开启块去重
+     * @param duplicate 写入内容是否与模板相同
+     */
+    DedupWriteWorkload(int fileSize, boolean dedup, boolean duplicate) {
+        this.duplicate = duplicate;
+        device = new StorageDevice("bench", "bench-dedup.disk", StorageConstants.DISK_SIZE, StorageConstants.BLOCK_SIZE);
+        device.setDeduplication(dedup);
+        cache = new BufferCache(device, StorageConstants.CACHE_SIZE);
+        data = new byte[fileSize];
+        new Random(42).nextBytes(data);
+        files = new VirtualFileContent[FILES];
+        for (int i = 0; i < FILES; i++) {
+            files[i] = new VirtualFileContent();
+            write(files[i]);
+        }
+    }
+
+    @Override
+    public Object rewriteNext() {
+        VirtualFileContent content = files[next];
+        next = (next + 1) % FILES;
+        write(content);
+        return content;
+    }
+
+    /**
+     * 打开文件、从头改写全部内容并关闭
+     */
+    private void write(VirtualFileContent content) {
+        if (!duplicate) {
+            stamp();
+        }
+        content.setOpen(true, cache);
+        try {
+            if (!content.write(0, data, 0, data.length, cache)) {
+                throw new IllegalStateException("Storage device is full");
+            }
+        } finally {
+            content.setOpen(false, cache);
+        }
+    }
+
+    /**
+     * 在每个块的开头写入新的序号，使各块内容与此前写入的块都不相同
+     */
+    private void stamp() {
+        sequence++;
+        for (int offset = 0; offset + Long.BYTES <= data.length; offset += cache.getBlockSize()) {
+            long value = sequence;
+            for (int i = 0; i < Long.BYTES; i++) {
+                data[offset + i] = (byte) value;
+                value >>>= 8;
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        device.close();
+    }
+}
@@ -0,0 +1,53 @@
+import java.util.Random;
+
+import benchmarks.FileOpenBenchmark;
+
+/**
+ * 文件打开、改写和关闭（setOpen）的场景：存储设备上有一个给定大小的文件，内容为伪随机字节
+ */
+class FileOpenWorkload implements FileOpenBenchmark.StoredFile {
+    private final StorageDevice device;
+    private final BufferCache cache;
+    private final VirtualFileContent content;
+    private final byte[] data;
+
+    /**
+     * 在新的存储设备上写入文件
+     * @param fileSize 文件大小（字节）
+     */
+    FileOpenWorkload(int fileSize) {
+        device = new StorageDevice("bench", "bench-open.disk", StorageConstants.DISK_SIZE, StorageConstants.BLOCK_SIZE);
+        cache = new BufferCache(device, StorageConstants.CACHE_SIZE);
+        data = new byte[fileSize];
+        new Random(42).nextBytes(data);
+        content = new VirtualFileContent();
+        content.setOpen(true, cache);
+        content.write(0, data, 0, data.length, cache);
+        content.setOpen(false, cache);
+    }
+
+    @Override
+    public Object openRewriteClose(int length) {
+        content.setOpen(true, cache);
+        if (length > 0) {
+            content.write(0, data, 0, length, cache);
+        }
+        content.setOpen(false, cache);
+        return content;
+    }
+
+    @Override
+    public int size() {
+        return data.length;
+    }
+
+    @Override
+    public int blockSize() {
+        return cache.getBlockSize();
+    }
+
+    @Override
+    public void close() {
+        device.close();
+    }
+}
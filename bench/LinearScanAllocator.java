@@ -0,0 +1,44 @@
+import java.util.ArrayList;
+
+/**
+ * 线性扫描分配器，作为分配延迟基准测试的对照
+ * 与改用BlockAllocator之前的StorageDevice.diskAlloc相同：每次从0号块开始逐块扫描分配状态表，取最先找到的空闲块
+ */
+public class LinearScanAllocator {
+    // 存储块分配状态表 (0=空闲, 1=已分配)
+    private final int[] allocationMap;
+
+    /**
+     * 创建全部空闲的分配器
+     * @param totalBlocks 存储块总数
+     */
+    public LinearScanAllocator(int totalBlocks) {
+        this.allocationMap = new int[totalBlocks];
+    }
+
+    /**
+     * 分配指定数量的存储块
+     * @param blockCount 需要分配的存储块数量
+     * @return 分配的存储块索引列表，空间不足时只包含可分配的部分
+     */
+    public ArrayList<Integer> allocate(int blockCount) {
+        ArrayList<Integer> allocatedBlocks = new ArrayList<>();
+        int allocated = 0;
+        for (int j = 0; j < allocationMap.length && allocated < blockCount; j++) {
+            if (allocationMap[j] == 0) {
+                allocatedBlocks.add(j);
+                allocationMap[j] = 1;
+                allocated++;
+            }
+        }
+        return allocatedBlocks;
+    }
+
+    /**
+     * 释放单个存储块
+     * @param index 存储块索引
+     */
+    public void free(int index) {
+        allocationMap[index] = 0;
+    }
+}
@@ -0,0 +1,52 @@
+import benchmarks.PathResolverBenchmark;
+
+/**
+ * 路径查找的场景：根目录下两条给定深度的目录链，只在内存中建立，不经过存储设备
+ * 有缓存时使用容量足够的路径解析器；无缓存时使用容量为1的路径解析器，
+ * 两条路径交替查找，每次都在缓存中找不到而逐级访问目录，之后替换唯一的缓存条目
+ */
+class PathResolverWorkload implements PathResolverBenchmark.DirectoryChains {
+    private final PathResolver resolver;
+    private final String first;
+    private final String second;
+
+    /**
+     * @param depth 目录链的深度
+     * @param cached 是否使用目录项缓存
+     */
+    PathResolverWorkload(int depth, boolean cached) {
+        FileSystemFolder root = new FileSystemFolder("/", true, null);
+        first = createChain(root, "a", depth);
+        second = createChain(root, "b", depth);
+        resolver = new PathResolver(root, cached ? 16 : 1);
+    }
+
+    /**
+     * 在根目录下创建一条目录链
+     * @return 最深的目录的路径
+     */
+    private static String createChain(FileSystemFolder root, String prefix, int depth) {
+        FileSystemFolder folder = root;
+        StringBuilder path = new StringBuilder();
+        for (int level = 0; level < depth; level++) {
+            FileSystemFolder child = new FileSystemFolder(prefix + level, true, folder);
+            folder.addEntry(child.getName(), child);
+            folder = child;
+            path.append('/').append(prefix).append(level);
+        }
+        return path.toString();
+    }
+
+    @Override
+    public Object lookupBoth() {
+        FileSystemNode node = resolver.lookup(first);
+        if (node == null || resolver.lookup(second) == null) {
+            throw new IllegalStateException("Lookup failed");
+        }
+        return node;
+    }
+
+    @Override
+    public void close() {
+    }
+}
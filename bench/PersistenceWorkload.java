@@ -0,0 +1,68 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+import benchmarks.PersistenceBenchmark;
+
+/**
+ * 检查点和恢复的场景：用负载生成器生成每级10个子目录、每个目录9个空文件的目录树，并生成检查点
+ * 目录树深度为2、3、4层时分别约1千、1万、10万个条目
+ */
+class PersistenceWorkload implements PersistenceBenchmark.GeneratedTree {
+    private final String deepPath;
+    // 生成目录树时打开的文件系统，第一次恢复前关闭
+    private FileSystemService service;
+
+    /**
+     * @param depth 目录树深度
+     */
+    PersistenceWorkload(int depth) {
+        service = new FileSystemService();
+        // 负载生成器输出各阶段耗时，不计入基准测试的输出
+        PrintStream stdout = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        service.setDeferredCommit(true);
+        try {
+            new WorkloadGenerator(service, 42, depth, 10, 9, 0).run(service.getRoot(), "/");
+            service.commit();
+        } finally {
+            service.setDeferredCommit(false);
+            System.setOut(stdout);
+        }
+        service.persistFileSystem(StorageConstants.SERIALIZE_PATH);
+        deepPath = "/d0".repeat(depth) + "/f0";
+    }
+
+    @Override
+    public Object persist() {
+        if (service == null) {
+            throw new IllegalStateException("File system was closed by restore");
+        }
+        service.persistFileSystem(StorageConstants.SERIALIZE_PATH);
+        return service;
+    }
+
+    @Override
+    public Object restore() {
+        if (service != null) {
+            service.close();
+            service = null;
+        }
+        FileSystemService restored = new FileSystemService();
+        try {
+            FileSystemNode node = restored.getResolver().lookup(deepPath);
+            if (node == null) {
+                throw new IllegalStateException("Restored tree is missing " + deepPath);
+            }
+            return node;
+        } finally {
+            restored.close();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (service != null) {
+            service.close();
+        }
+    }
+}
@@ -0,0 +1,64 @@
+import java.util.Random;
+
+import benchmarks.SequentialReadBenchmark;
+
+/**
+ * 顺序读取的场景：存储设备上有一个比缓冲区缓存大得多的文件，每次被测操作按给定的读取大小从头到尾读一遍，
+ * 每次读取前像read命令一样调用ReadAhead.onRead，缓冲区缓存装不下整个文件，每一遍都要从设备加载存储块
+ * 预读只把设备文件的页面读入内存：设备文件的页面已在操作系统的页缓存中时，结果主要反映预读的额外开销
+ */
+class SequentialReadWorkload implements SequentialReadBenchmark.LargeFile {
+    // 文件大小（字节）
+    static final int FILE_SIZE = 32 * 1024 * 1024;
+    // 缓冲区缓存大小（字节）
+    private static final int CACHE_SIZE = 1024 * 1024;
+
+    private final StorageDevice device;
+    private final BufferCache cache;
+    private final Prefetcher prefetcher;
+    private final VirtualFileContent content;
+    private final byte[] buffer;
+
+    /**
+     * 在新的存储设备上写入文件，写回后重新打开
+     * @param readAhead 是否预读
+     * @param readSize 每次读取的字节数
+     */
+    SequentialReadWorkload(boolean readAhead, int readSize) {
+        device = new StorageDevice("bench", "bench-scan.disk", StorageConstants.DISK_SIZE, StorageConstants.BLOCK_SIZE);
+        cache = new BufferCache(device, CACHE_SIZE);
+        prefetcher = new Prefetcher(readAhead);
+        byte[] data = new byte[FILE_SIZE];
+        new Random(42).nextBytes(data);
+        content = new VirtualFileContent();
+        content.setOpen(true, cache);
+        if (!content.write(0, data, 0, data.length, cache)) {
+            throw new IllegalStateException("Storage device is full");
+        }
+        content.setOpen(false, cache);
+        cache.flushAll();
+        content.setOpen(true, cache);
+        buffer = new byte[readSize];
+    }
+
+    @Override
+    public Object scan() {
+        // 每一遍使用新的预读状态，与重新打开文件后顺序读取相同
+        ReadAhead readAhead = new ReadAhead(prefetcher);
+        long sum = 0;
+        for (int offset = 0; offset < FILE_SIZE; offset += buffer.length) {
+            readAhead.onRead(content, offset, buffer.length, cache);
+            int length = content.read(offset, buffer, 0, buffer.length, cache);
+            sum += buffer[length - 1];
+        }
+        return sum;
+    }
+
+    @Override
+    public void close() {
+        // 停止预读线程并等待它结束，之后不再访问已关闭的设备
+        prefetcher.shutdown();
+        content.setOpen(false, cache);
+        device.close();
+    }
+}
@@ -0,0 +1,138 @@
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import benchmarks.SessionScalingBenchmark;
+
+/**
+ * 多会话并发的场景：给定数量的批处理会话共享一个文件系统服务，每个会话在自己的线程中执行命令，
+ * 按写入、读取、建立并删除目录、切换目录的顺序循环
+ */
+class SessionScalingWorkload implements SessionScalingBenchmark.Sessions {
+    // 每个会话每执行多少条命令提交一次日志，与批处理模式相同
+    private static final int COMMIT_INTERVAL = 64;
+
+    private final FileSystemService service;
+    private final List<ChiikaFileSystemCore> sessions;
+    private final ExecutorService executor;
+    private final PrintStream stdout;
+
+    /**
+     * 打开文件系统服务，为每个会话建立主目录并打开其中的文件
+     * @param count 会话数
+     */
+    SessionScalingWorkload(int count) {
+        // read命令输出文件内容，测量期间丢弃会话的输出
+        stdout = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        service = new FileSystemService();
+        sessions = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            ChiikaFileSystemCore session = new ChiikaFileSystemCore(service, InputStream.nullInputStream(), true);
+            String home = "/s" + i;
+            execute(session, "mkdir", home);
+            execute(session, "mkdir", home + "/a");
+            execute(session, "mkdir", home + "/a/b");
+            execute(session, "create", home + "/f");
+            execute(session, "open", home + "/f");
+            sessions.add(session);
+        }
+        executor = Executors.newFixedThreadPool(count);
+    }
+
+    @Override
+    public Object runMixed(int operations) {
+        List<Callable<Integer>> tasks = new ArrayList<>();
+        int share = operations / sessions.size();
+        for (int i = 0; i < sessions.size(); i++) {
+            ChiikaFileSystemCore session = sessions.get(i);
+            String home = "/s" + i;
+            tasks.add(() -> runSession(session, home, share));
+        }
+        int failures = 0;
+        try {
+            for (Future<Integer> result : executor.invokeAll(tasks)) {
+                failures += result.get();
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException("Failed to run sessions: " + e.getMessage(), e);
+        }
+        if (failures > 0) {
+            throw new IllegalStateException(failures + " commands failed");
+        }
+        return failures;
+    }
+
+    /**
+     * 在一个会话中执行给定条数的命令
+     * @return 失败的命令数
+     */
+    private int runSession(ChiikaFileSystemCore session, String home, int operations) {
+        service.setDeferredCommit(true);
+        int failures = 0;
+        try {
+            for (int i = 0; i < operations; i++) {
+                switch (i % 4) {
+                    case 0:
+                        failures += execute(session, "seek", "0", "0");
+                        failures += execute(session, "write", "0", "session " + home + " line " + i, "w");
+                        break;
+                    case 1:
+                        failures += execute(session, "read", "0");
+                        break;
+                    case 2:
+                        failures += execute(session, "mkdir", home + "/t");
+                        failures += execute(session, "rmdir", home + "/t");
+                        break;
+                    default:
+                        failures += execute(session, "cd", home + "/a/b");
+                        failures += execute(session, "cd", "/");
+                        break;
+                }
+                if ((i + 1) % COMMIT_INTERVAL == 0) {
+                    service.commit();
+                }
+            }
+            service.commit();
+        } finally {
+            service.setDeferredCommit(false);
+        }
+        return failures;
+    }
+
+    /**
+     * 在会话中执行一条命令
+     * @return 命令失败时返回1，否则返回0
+     */
+    private int execute(ChiikaFileSystemCore session, String... words) {
+        service.beginOperation();
+        try {
+            session.execute(List.of(words));
+            return session.hasFailed() ? 1 : 0;
+        } finally {
+            service.endOperation();
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+        for (ChiikaFileSystemCore session : sessions) {
+            service.beginOperation();
+            try {
+                session.closeAllDescriptors();
+            } finally {
+                service.endOperation();
+            }
+        }
+        service.close();
+        System.setOut(stdout);
+    }
+}
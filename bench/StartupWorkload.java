@@ -0,0 +1,53 @@
+import java.io.IOException;
+
+import benchmarks.StartupBenchmark;
+
+/**
+ * 启动耗时的场景：检查点镜像中有给定数量的条目（每个目录1000个空文件），
+ * 每次被测操作打开镜像并找到最后一个目录中的最后一个文件
+ */
+class StartupWorkload implements StartupBenchmark.Image {
+    // 每个目录的文件数
+    private static final int FILES_PER_FOLDER = 1000;
+
+    private final String folderName;
+    private final String fileName;
+
+    /**
+     * 写出镜像
+     * @param entries 镜像中的条目数
+     */
+    StartupWorkload(int entries) {
+        int folders = Math.max(1, entries / (FILES_PER_FOLDER + 1));
+        FileSystemFolder root = new FileSystemFolder("/", true, null);
+        for (int i = 0; i < folders; i++) {
+            FileSystemFolder folder = new FileSystemFolder("d" + i, true, root);
+            root.addEntry(folder.getName(), folder);
+            for (int j = 0; j < FILES_PER_FOLDER; j++) {
+                folder.addEntry("f" + j, new FileSystemDocument("f" + j, false, folder));
+            }
+        }
+        try {
+            FileSystemImage.write(StorageConstants.SERIALIZE_PATH, 1, root);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to write benchmark image: " + e.getMessage(), e);
+        }
+        folderName = "d" + (folders - 1);
+        fileName = "f" + (FILES_PER_FOLDER - 1);
+    }
+
+    @Override
+    public Object openAndLookup() {
+        FileSystemFolder root = FileSystemImage.open(StorageConstants.SERIALIZE_PATH).loadRoot();
+        FileSystemNode folder = root.getEntry(folderName);
+        FileSystemNode node = folder instanceof FileSystemFolder ? ((FileSystemFolder) folder).getEntry(fileName) : null;
+        if (node == null) {
+            throw new IllegalStateException("Image is missing /" + folderName + "/" + fileName);
+        }
+        return node;
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,53 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+
+/**
+ * 分配延迟的分布（SampleTime给出百分位数）：空闲区段分配器的各分配策略与线性扫描对照，随占用率和占用的分布变化
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class AllocationLatencyBenchmark extends FileSystemState<AllocationLatencyBenchmark.Allocator> {
+    /**
+     * 按给定占用率占用的分配器，只测分配器本身，不经过存储设备
+     */
+    public interface Allocator extends Workload {
+        /**
+         * 分配给定数量的存储块并立即释放
+         * @return 分配到的存储块
+         */
+        Object allocateAndFree();
+    }
+
+    // 占用率（百分比）
+    @Param({"10", "50", "95"})
+    public int fill;
+
+    // 每次分配的块数
+    @Param({"1", "16"})
+    public int blocks;
+
+    // 占用的分布：packed为设备前部连续占用，scattered为随机占用
+    @Param({"packed", "scattered"})
+    public String layout;
+
+    // 分配器：scan为线性扫描，best、next为BlockAllocator的最佳适配和循环首次适配策略
+    @Param({"scan", "best", "next"})
+    public String allocator;
+
+    @Override
+    protected Allocator create(FileSystemEntryPoints entryPoints) {
+        return entryPoints.allocator(allocator, fill, layout.equals("scattered"), blocks);
+    }
+
+    @Benchmark
+    public Object allocate() {
+        return workload.allocateAndFree();
+    }
+}
@@ -0,0 +1,45 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+
+/**
+ * 存储块分配（diskAlloc + diskFree）的耗时，随设备占用率和每次分配的块数变化
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class AllocatorBenchmark extends FileSystemState<AllocatorBenchmark.Device> {
+    /**
+     * 按给定占用率随机占用的存储设备，空闲块分散在整个设备上
+     */
+    public interface Device extends Workload {
+        /**
+         * 分配给定数量的存储块并立即释放
+         * @return 分配到的存储块
+         */
+        Object allocateAndFree();
+    }
+
+    // 设备占用率（百分比）
+    @Param({"10", "50", "95"})
+    public int fill;
+
+    // 每次分配的块数
+    @Param({"1", "16", "256"})
+    public int blocks;
+
+    @Override
+    protected Device create(FileSystemEntryPoints entryPoints) {
+        return entryPoints.device(fill, blocks);
+    }
+
+    @Benchmark
+    public Object allocFree() {
+        return workload.allocateAndFree();
+    }
+}
@@ -0,0 +1,38 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * 基准测试的工作目录
+ * 文件系统使用当前目录下的fileSystem.*文件，场景另外创建的文件以bench-开头；基准测试在构建脚本准备的临时目录（build/jmh）中运行，
+ * 每次试验开始和结束时由FileSystemState清空这些文件。为避免误删，只在带有标记文件的目录中删除
+ */
+public class BenchmarkScratch {
+    // 标记文件，由构建脚本的jmh任务创建
+    private static final String MARKER = ".benchmark-scratch";
+
+    private BenchmarkScratch() {
+    }
+
+    /**
+     * 删除当前目录下的文件系统文件（fileSystem.*）和场景创建的文件（bench-*）
+     * @throws IllegalStateException 当前目录不是基准测试的工作目录
+     */
+    public static void reset() {
+        Path directory = Paths.get("").toAbsolutePath();
+        if (!Files.exists(directory.resolve(MARKER))) {
+            throw new IllegalStateException("Not a benchmark scratch directory: " + directory);
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "{fileSystem.*,bench-*}")) {
+            for (Path path : stream) {
+                Files.deleteIfExists(path);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to reset benchmark directory: " + e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+
+/**
+ * cd命令的耗时（切换到深层目录再回到根目录），随目录深度和每级目录数变化
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CdBenchmark extends FileSystemState<CdBenchmark.DirectoryChain> {
+    /**
+     * 一条目录链，链上每一级目录另有若干个兄弟目录，以及在其上执行命令的会话
+     */
+    public interface DirectoryChain extends Workload {
+        /**
+         * 在会话中切换到最深的目录再切换回根目录
+         * @return 会话
+         */
+        Object cdDeepAndBack();
+    }
+
+    // 目录深度
+    @Param({"1", "8", "32"})
+    public int depth;
+
+    // 每一级的目录数
+    @Param({"1", "100"})
+    public int width;
+
+    @Override
+    protected DirectoryChain create(FileSystemEntryPoints entryPoints) {
+        return entryPoints.directoryChain(depth, width);
+    }
+
+    @Benchmark
+    public Object cd() {
+        return workload.cdDeepAndBack();
+    }
+}
@@ -0,0 +1,49 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+
+/**
+ * 改写整个文件（打开、写入、关闭）的吞吐量，比较块去重开启与关闭，写入内容与模板相同或各不相同
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class DedupWriteBenchmark extends FileSystemState<DedupWriteBenchmark.TemplatedFiles> {
+    /**
+     * 存储设备上一组由同一个模板写入的文件
+     */
+    public interface TemplatedFiles extends Workload {
+        /**
+         * 轮流选一个文件，打开、从头改写全部内容再关闭
+         * @return 改写的文件
+         */
+        Object rewriteNext();
+    }
+
+    // 文件大小（字节）
+    @Param({"65536", "1048576"})
+    public int fileSize;
+
+    // 是否开启块去重
+    @Param({"true", "false"})
+    public boolean dedup;
+
+    // 写入内容是否与模板相同
+    @Param({"true", "false"})
+    public boolean duplicate;
+
+    @Override
+    protected TemplatedFiles create(FileSystemEntryPoints entryPoints) {
+        return entryPoints.templatedFiles(fileSize, dedup, duplicate);
+    }
+
+    @Benchmark
+    public Object rewrite() {
+        return workload.rewriteNext();
+    }
+}
@@ -0,0 +1,62 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+
+/**
+ * 打开和关闭文件（setOpen）的耗时：只打开关闭、改写一个块、改写全部内容，随文件大小变化
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FileOpenBenchmark extends FileSystemState<FileOpenBenchmark.StoredFile> {
+    /**
+     * 存储设备上一个给定大小的文件
+     */
+    public interface StoredFile extends Workload {
+        /**
+         * 打开文件，改写开头的给定长度（为0时不改写）后关闭
+         * @param length 改写的长度，不超过文件大小
+         * @return 文件内容
+         */
+        Object openRewriteClose(int length);
+
+        /**
+         * @return 文件大小
+         */
+        int size();
+
+        /**
+         * @return 存储块的大小
+         */
+        int blockSize();
+    }
+
+    // 文件大小
+    @Param({"4096", "65536", "1048576"})
+    public int fileSize;
+
+    @Override
+    protected StoredFile create(FileSystemEntryPoints entryPoints) {
+        return entryPoints.storedFile(fileSize);
+    }
+
+    @Benchmark
+    public Object openClose() {
+        return workload.openRewriteClose(0);
+    }
+
+    @Benchmark
+    public Object rewriteBlock() {
+        return workload.openRewriteClose(Math.min(workload.size(), workload.blockSize()));
+    }
+
+    @Benchmark
+    public Object rewriteAll() {
+        return workload.openRewriteClose(workload.size());
+    }
+}
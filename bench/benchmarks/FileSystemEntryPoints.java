@@ -0,0 +1,93 @@
+package benchmarks;
+
+import java.util.Iterator;
+import java.util.ServiceLoader;
+
+/**
+ * 基准测试进入文件系统的入口：每个基准测试一个方法，按参数准备该基准测试的场景
+ * JMH不接受默认包中的基准测试类，而命名包中的类不能引用文件系统（默认包）的类，
+ * 因此由默认包中的BenchmarkEntryPoints实现本接口，在META-INF/services中登记，通过ServiceLoader取得
+ */
+public interface FileSystemEntryPoints {
+    /**
+     * 分配延迟的场景，见AllocationLatencyBenchmark
+     * @param allocator 分配器：scan为线性扫描，best、next为BlockAllocator的分配策略
+     * @param fill 占用率（百分比）
+     * @param scattered 为true时随机占用，否则占用设备前部连续的存储块
+     * @param blocks 每次分配的块数
+     */
+    AllocationLatencyBenchmark.Allocator allocator(String allocator, int fill, boolean scattered, int blocks);
+
+    /**
+     * 启动耗时的场景，见StartupBenchmark
+     * @param entries 镜像中的条目数
+     */
+    StartupBenchmark.Image image(int entries);
+
+    /**
+     * 多会话并发的场景，见SessionScalingBenchmark
+     * @param sessions 会话数
+     */
+    SessionScalingBenchmark.Sessions sessions(int sessions);
+
+    /**
+     * 路径查找的场景，见PathResolverBenchmark
+     * @param depth 目录链的深度
+     * @param cached 是否使用目录项缓存
+     */
+    PathResolverBenchmark.DirectoryChains directoryChains(int depth, boolean cached);
+
+    /**
+     * 存储块分配的场景，见AllocatorBenchmark
+     * @param fill 设备占用率（百分比）
+     * @param blocks 每次分配的块数
+     */
+    AllocatorBenchmark.Device device(int fill, int blocks);
+
+    /**
+     * 打开和关闭文件的场景，见FileOpenBenchmark
+     * @param fileSize 文件大小
+     */
+    FileOpenBenchmark.StoredFile storedFile(int fileSize);
+
+    /**
+     * cd命令的场景，见CdBenchmark
+     * @param depth 目录链的深度
+     * @param width 每一级的目录数（含链上的目录）
+     */
+    CdBenchmark.DirectoryChain directoryChain(int depth, int width);
+
+    /**
+     * 检查点和恢复的场景，见PersistenceBenchmark
+     * @param depth 目录树深度
+     */
+    PersistenceBenchmark.GeneratedTree generatedTree(int depth);
+
+    /**
+     * 块去重下写入的场景，见DedupWriteBenchmark
+     * @param fileSize 文件大小
+     * @param dedup 是否开启块去重
+     * @param duplicate 写入内容是否与模板相同
+     */
+    DedupWriteBenchmark.TemplatedFiles templatedFiles(int fileSize, boolean dedup, boolean duplicate);
+
+    /**
+     * 顺序读取的场景，见SequentialReadBenchmark
+     * @param readAhead 是否预读
+     * @param readSize 每次读取的字节数
+     */
+    SequentialReadBenchmark.LargeFile largeFile(boolean readAhead, int readSize);
+
+    /**
+     * 取得登记的实现
+     * @return 文件系统的入口
+     * @throws IllegalStateException 类路径上没有登记的实现
+     */
+    static FileSystemEntryPoints get() {
+        Iterator<FileSystemEntryPoints> implementations = ServiceLoader.load(FileSystemEntryPoints.class).iterator();
+        if (!implementations.hasNext()) {
+            throw new IllegalStateException("No FileSystemEntryPoints registered in META-INF/services");
+        }
+        return implementations.next();
+    }
+}
@@ -0,0 +1,46 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 基准测试的公共部分：每次试验开始时清空工作目录并通过FileSystemEntryPoints准备场景，结束时关闭场景再清空工作目录
+ * 子类声明参数、实现create并在基准测试方法中调用场景的被测操作；默认预热3次、测量5次，各1秒，1个进程
+ * @param <W> 场景类型
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public abstract class FileSystemState<W extends Workload> {
+    // 本次试验的场景
+    protected W workload;
+
+    /**
+     * 按参数准备场景
+     * @param entryPoints 文件系统的入口
+     * @return 场景
+     */
+    protected abstract W create(FileSystemEntryPoints entryPoints);
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        BenchmarkScratch.reset();
+        workload = create(FileSystemEntryPoints.get());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        try {
+            workload.close();
+        } finally {
+            BenchmarkScratch.reset();
+        }
+    }
+}
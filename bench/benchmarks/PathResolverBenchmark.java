@@ -0,0 +1,49 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+
+/**
+ * 单次路径查找的耗时，比较目录项缓存命中与逐级访问目录，随路径深度变化
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PathResolverBenchmark extends FileSystemState<PathResolverBenchmark.DirectoryChains> {
+    /**
+     * 两条给定深度的目录链
+     * 有缓存时两次查找都命中；无缓存时两条路径交替查找，每次都逐级访问目录
+     */
+    public interface DirectoryChains extends Workload {
+        /**
+         * 依次查找两条链最深的目录
+         * @return 第一条链最深的目录
+         */
+        Object lookupBoth();
+    }
+
+    // 路径深度
+    @Param({"1", "10", "50"})
+    public int depth;
+
+    // 是否使用目录项缓存
+    @Param({"true", "false"})
+    public boolean cached;
+
+    @Override
+    protected DirectoryChains create(FileSystemEntryPoints entryPoints) {
+        return entryPoints.directoryChains(depth, cached);
+    }
+
+    // 每次调用查找两条路径
+    @Benchmark
+    @OperationsPerInvocation(2)
+    public Object lookup() {
+        return workload.lookupBoth();
+    }
+}
@@ -0,0 +1,54 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+
+/**
+ * 生成检查点（persistFileSystem）和从检查点恢复（打开文件系统并查找一个深层文件）的耗时，随目录树规模变化
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class PersistenceBenchmark extends FileSystemState<PersistenceBenchmark.GeneratedTree> {
+    /**
+     * 负载生成器生成的目录树（每级10个子目录、每个目录9个空文件），已生成检查点
+     */
+    public interface GeneratedTree extends Workload {
+        /**
+         * 生成一次检查点
+         * @return 文件系统服务
+         */
+        Object persist();
+
+        /**
+         * 打开文件系统、查找最深的一个文件再关闭；第一次调用前先关闭生成目录树时打开的文件系统，之后不能再调用persist
+         * @return 找到的文件
+         */
+        Object restore();
+    }
+
+    // 目录树深度：2、3、4层分别约1千、1万、10万个条目
+    @Param({"2", "3", "4"})
+    public int depth;
+
+    @Override
+    protected GeneratedTree create(FileSystemEntryPoints entryPoints) {
+        return entryPoints.generatedTree(depth);
+    }
+
+    @Benchmark
+    public Object persist() {
+        return workload.persist();
+    }
+
+    @Benchmark
+    public Object restore() {
+        return workload.restore();
+    }
+}
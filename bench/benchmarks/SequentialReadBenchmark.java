@@ -0,0 +1,47 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+
+/**
+ * 从头到尾顺序读取一个32 MiB文件的耗时，比较预读开启与关闭，随每次读取的大小变化
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx1g")
+public class SequentialReadBenchmark extends FileSystemState<SequentialReadBenchmark.LargeFile> {
+    /**
+     * 存储设备上一个比缓冲区缓存大得多的打开的文件
+     */
+    public interface LargeFile extends Workload {
+        /**
+         * 按给定的读取大小从头到尾读一遍，每一遍使用新的预读状态
+         * @return 读到的部分字节之和
+         */
+        Object scan();
+    }
+
+    // 是否预读
+    @Param({"true", "false"})
+    public boolean readAhead;
+
+    // 每次读取的字节数
+    @Param({"4096", "65536"})
+    public int readSize;
+
+    @Override
+    protected LargeFile create(FileSystemEntryPoints entryPoints) {
+        return entryPoints.largeFile(readAhead, readSize);
+    }
+
+    @Benchmark
+    public Object scan() {
+        return workload.scan();
+    }
+}
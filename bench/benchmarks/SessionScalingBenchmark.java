@@ -0,0 +1,48 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+
+/**
+ * 多会话并发的命令吞吐量（写入、读取、建立并删除目录、切换目录混合），随会话数变化；
+ * 每次调用执行的命令总数固定，由各会话在各自的线程中平分
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SessionScalingBenchmark extends FileSystemState<SessionScalingBenchmark.Sessions> {
+    // 每次调用执行的命令总数
+    public static final int OPERATIONS = 1024;
+
+    /**
+     * 共享一个文件系统服务的一组批处理会话，每个会话有自己的目录和一个打开的文件
+     */
+    public interface Sessions extends Workload {
+        /**
+         * 各会话在各自的线程中平分执行给定条数的命令，全部结束后返回
+         * @param operations 命令总数
+         * @return 执行的命令数
+         */
+        Object runMixed(int operations);
+    }
+
+    // 并发的会话数
+    @Param({"1", "2", "4", "8"})
+    public int sessions;
+
+    @Override
+    protected Sessions create(FileSystemEntryPoints entryPoints) {
+        return entryPoints.sessions(sessions);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(OPERATIONS)
+    public Object mixedCommands() {
+        return workload.runMixed(OPERATIONS);
+    }
+}
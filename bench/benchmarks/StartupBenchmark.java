@@ -0,0 +1,43 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+
+/**
+ * 启动耗时：打开检查点镜像并找到一个文件，随镜像中的条目数变化；按需加载时应与条目总数基本无关
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class StartupBenchmark extends FileSystemState<StartupBenchmark.Image> {
+    /**
+     * 写好的检查点镜像，每个目录1000个空文件
+     */
+    public interface Image extends Workload {
+        /**
+         * 打开镜像并按路径找到最后一个目录中的最后一个文件
+         * @return 找到的文件
+         */
+        Object openAndLookup();
+    }
+
+    // 镜像中的条目数
+    @Param({"10000", "100000", "1000000"})
+    public int entries;
+
+    @Override
+    protected Image create(FileSystemEntryPoints entryPoints) {
+        return entryPoints.image(entries);
+    }
+
+    @Benchmark
+    public Object openImage() {
+        return workload.openAndLookup();
+    }
+}
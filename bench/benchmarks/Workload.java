@@ -0,0 +1,14 @@
+package benchmarks;
+
+/**
+ * 基准测试的被测场景
+ * 场景在创建时准备好文件系统状态，每个基准测试在自己的子接口中声明被测操作；
+ * 关闭时释放场景占用的存储设备、日志和线程，场景创建的文件由FileSystemState删除
+ */
+public interface Workload extends AutoCloseable {
+    /**
+     * 释放场景占用的资源
+     */
+    @Override
+    void close();
+}
@@ -0,0 +1,198 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * 批处理执行器
+ * 从脚本文件或标准输入中逐行读取命令，在一个批处理模式的会话中非交互地执行：
+ * 不输出各命令的状态信息，只输出错误（带脚本行号）和命令本身的结果（ls、read等）；
+ * 非空目录需要用rmdir -r删除。
+ *
+ * 读取和分词在单独的线程中进行，通过有界队列交给执行线程，读取下一批命令与执行当前命令重叠；
+ * 元数据日志按组提交，每执行一定条数的命令才同步一次存储设备和日志。
+ * 结束时输出命令总数、失败数、总耗时以及各命令的次数和耗时
+ */
+public class BatchRunner {
+    // 读取线程与执行线程之间的队列容量（命令条数）
+    private static final int QUEUE_CAPACITY = 1024;
+
+    /**
+     * 已分词的一条脚本命令
+     */
+    private static class Command {
+        final long line;
+        final List<String> words;
+        final String error;
+
+        Command(long line, List<String> words, String error) {
+            this.line = line;
+            this.words = words;
+            this.error = error;
+        }
+    }
+
+    // 输入结束标记
+    private static final Command END = new Command(0, null, null);
+
+    // 文件系统服务
+    private final FileSystemService service;
+    // 执行命令的批处理会话
+    private final ChiikaFileSystemCore session;
+    // 每执行多少条命令提交一次日志
+    private final int commitInterval;
+    // 读取线程交给执行线程的命令
+    private final BlockingQueue<Command> queue;
+
+    // 统计：命令名 -> {次数, 耗时（纳秒）}
+    private final Map<String, long[]> commandStats;
+    private long commands;
+    private long failures;
+    private long commits;
+
+    /**
+     * 创建批处理执行器
+     * @param service 文件系统服务
+     * @param commitInterval 每执行多少条命令提交一次日志
+     */
+    public BatchRunner(FileSystemService service, int commitInterval) {
+        this.service = service;
+        this.session = new ChiikaFileSystemCore(service, InputStream.nullInputStream(), true);
+        this.commitInterval = Math.max(1, commitInterval);
+        this.queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        this.commandStats = new TreeMap<>();
+    }
+
+    /**
+     * 执行脚本中的全部命令，遇到exit或输入结束时停止，最后生成检查点
+     * @param script 脚本输入
+     */
+    public void run(BufferedReader script) {
+        Thread reader = new Thread(() -> readScript(script), "batch-reader");
+        reader.setDaemon(true);
+        reader.start();
+
+        service.setDeferredCommit(true);
+        long start = System.nanoTime();
+        try {
+            executeAll();
+            service.beginOperation();
+            try {
+                session.closeAllDescriptors();
+            } finally {
+                service.endOperation();
+            }
+        } finally {
+            service.setDeferredCommit(false);
+            reader.interrupt();
+        }
+        service.getDefragmenter().shutdown();
+        service.commit();
+        commits++;
+        service.persistFileSystem(StorageConstants.SERIALIZE_PATH);
+        report(System.nanoTime() - start);
+    }
+
+    /**
+     * 读取线程：逐行读取并分词，放入队列
+     * @param script 脚本输入
+     */
+    private void readScript(BufferedReader script) {
+        try {
+            long lineNumber = 0;
+            String line;
+            while ((line = script.readLine()) != null) {
+                lineNumber++;
+                List<String> words;
+                try {
+                    words = CommandTokenizer.tokenize(line);
+                } catch (IllegalArgumentException e) {
+                    queue.put(new Command(lineNumber, null, "Failed: " + e.getMessage() + "."));
+                    continue;
+                }
+                if (!words.isEmpty()) {
+                    queue.put(new Command(lineNumber, words, null));
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("错误：读取脚本失败: " + e.getMessage());
+        } catch (InterruptedException e) {
+            // 执行线程已停止，不再需要后续命令
+            return;
+        }
+        try {
+            queue.put(END);
+        } catch (InterruptedException e) {
+            // 执行线程已停止
+        }
+    }
+
+    /**
+     * 执行线程：从队列中取出命令依次执行，每commitInterval条命令提交一次日志
+     */
+    private void executeAll() {
+        long sinceCommit = 0;
+        while (true) {
+            Command command;
+            try {
+                command = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (command == END) {
+                return;
+            }
+            commands++;
+            session.setErrorPrefix("第" + command.line + "行: ");
+            if (command.error != null) {
+                System.out.println("第" + command.line + "行: " + command.error);
+                failures++;
+                continue;
+            }
+
+            boolean running;
+            long begin = System.nanoTime();
+            service.beginOperation();
+            try {
+                running = session.execute(command.words);
+            } finally {
+                service.endOperation();
+            }
+            if (session.wasDispatched()) {
+                long[] stats = commandStats.computeIfAbsent(command.words.get(0), k -> new long[2]);
+                stats[0]++;
+                stats[1] += System.nanoTime() - begin;
+            }
+            if (session.hasFailed()) {
+                failures++;
+            }
+            if (!running) {
+                return;
+            }
+            if (++sinceCommit >= commitInterval) {
+                // 提交失败由写回器记下并在下一次sync或关闭文件时报告，批处理继续执行
+                if (service.getFlusher().tryCommit()) {
+                    commits++;
+                }
+                sinceCommit = 0;
+            }
+        }
+    }
+
+    /**
+     * 输出批处理的汇总统计
+     * @param nanos 总耗时（纳秒）
+     */
+    private void report(long nanos) {
+        System.out.println("批处理完成: " + commands + " 条命令, " + failures + " 条失败, 日志提交 " + commits + " 次");
+        WorkloadGenerator.report("总计", commands, nanos);
+        for (Map.Entry<String, long[]> entry : commandStats.entrySet()) {
+            WorkloadGenerator.report(entry.getKey(), entry.getValue()[0], entry.getValue()[1]);
+        }
+    }
+}
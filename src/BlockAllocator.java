@@ -0,0 +1,369 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * 存储块分配器
+ * 使用long[]位图记录存储块的分配状态，并维护空闲区段索引，
+ * 使分配和释放的代价为O(log n)，且尽可能返回连续的存储块
+ *
+ * 分配时先尝试紧接文件原有内容继续分配，其余部分按分配策略选择空闲区段：
+ * - BEST_FIT：能容纳全部剩余请求的最短区段；
+ * - NEXT_FIT：从上次分配结束处向后第一个足够长的区段，分配位置在设备上轮转；
+ * - GROUP：设备按GROUP_BLOCKS划分为分配组，从文件所在目录的分配组起点向后第一个足够长的区段，
+ *   同一目录的文件聚集在一起。
+ * 向后查找最多检查MAX_SCAN个区段，找不到时退回BEST_FIT；没有足够长的区段时从最长的区段依次切分
+ */
+public class BlockAllocator {
+    /**
+     * 分配策略
+     */
+    public enum Policy {
+        BEST_FIT("best"), NEXT_FIT("next"), GROUP("group");
+
+        // 命令中使用的名称
+        private final String label;
+
+        Policy(String label) {
+            this.label = label;
+        }
+
+        /**
+         * 获取命令中使用的名称
+         * @return 策略名称
+         */
+        public String getLabel() {
+            return label;
+        }
+
+        /**
+         * 按名称查找分配策略
+         * @param label 策略名称
+         * @return 分配策略，名称无效时返回null
+         */
+        public static Policy forLabel(String label) {
+            for (Policy policy : values()) {
+                if (policy.label.equals(label)) {
+                    return policy;
+                }
+            }
+            return null;
+        }
+    }
+
+    // 每个分配组包含的存储块数
+    public static final int GROUP_BLOCKS = 1024;
+    // 向后查找足够长的区段时最多检查的区段数
+    private static final int MAX_SCAN = 256;
+
+    // 可管理的存储块总数
+    private final int totalBlocks;
+    // 分配位图，每一位表示一个存储块 (0=空闲, 1=已分配)
+    private final long[] bitmap;
+    // 当前空闲的存储块数量
+    private int freeBlockCount;
+    // 空闲区段索引：起始块号 -> 区段长度
+    private final TreeMap<Integer, Integer> extentsByStart;
+    // 空闲区段长度索引：(长度 << 32 | 起始块号)，用于按长度查找最佳区段
+    private final TreeSet<Long> extentsByLength;
+    // NEXT_FIT策略下一次开始查找的位置
+    private int cursor;
+
+    /**
+     * 创建一个全部空闲的分配器
+     * @param totalBlocks 存储块总数
+     */
+    public BlockAllocator(int totalBlocks) {
+        this.totalBlocks = totalBlocks;
+        this.bitmap = new long[(totalBlocks + 63) >>> 6];
+        this.freeBlockCount = totalBlocks;
+        this.extentsByStart = new TreeMap<>();
+        this.extentsByLength = new TreeSet<>();
+        if (totalBlocks > 0) {
+            addExtent(0, totalBlocks);
+        }
+    }
+
+    /**
+     * 根据已有的分配位图重建分配器
+     * @param totalBlocks 存储块总数
+     * @param bitmap 分配位图，长度应为(totalBlocks + 63) / 64
+     */
+    public BlockAllocator(int totalBlocks, long[] bitmap) {
+        this.totalBlocks = totalBlocks;
+        this.bitmap = bitmap.clone();
+        this.freeBlockCount = 0;
+        this.extentsByStart = new TreeMap<>();
+        this.extentsByLength = new TreeSet<>();
+        int runStart = -1;
+        for (int i = 0; i < totalBlocks; i++) {
+            if (isAllocated(i)) {
+                if (runStart >= 0) {
+                    addExtent(runStart, i - runStart);
+                    runStart = -1;
+                }
+            } else {
+                freeBlockCount++;
+                if (runStart < 0) {
+                    runStart = i;
+                }
+            }
+        }
+        if (runStart >= 0) {
+            addExtent(runStart, totalBlocks - runStart);
+        }
+    }
+
+    /**
+     * 获取位图中的一个字（64个存储块的分配状态）
+     * @param wordIndex 字索引，即存储块索引除以64
+     * @return 位图字
+     */
+    public long getBitmapWord(int wordIndex) {
+        return bitmap[wordIndex];
+    }
+
+    /**
+     * 获取位图的字数
+     * @return 位图长度
+     */
+    public int getBitmapLength() {
+        return bitmap.length;
+    }
+
+    /**
+     * 将区段加入两个索引
+     */
+    private void addExtent(int start, int length) {
+        extentsByStart.put(start, length);
+        extentsByLength.add(lengthKey(start, length));
+    }
+
+    /**
+     * 将区段从两个索引中移除
+     */
+    private void removeExtent(int start, int length) {
+        extentsByStart.remove(start);
+        extentsByLength.remove(lengthKey(start, length));
+    }
+
+    private static long lengthKey(int start, int length) {
+        return ((long) length << 32) | (start & 0xFFFFFFFFL);
+    }
+
+    private void setBit(int index) {
+        bitmap[index >>> 6] |= 1L << index;
+    }
+
+    private void clearBit(int index) {
+        bitmap[index >>> 6] &= ~(1L << index);
+    }
+
+    /**
+     * 检查存储块是否已被分配
+     * @param index 存储块索引
+     * @return 如果已分配则返回true，否则返回false
+     */
+    public boolean isAllocated(int index) {
+        return (bitmap[index >>> 6] & (1L << index)) != 0;
+    }
+
+    /**
+     * 获取空闲存储块数量
+     * @return 空闲存储块数量
+     */
+    public int getFreeBlockCount() {
+        return freeBlockCount;
+    }
+
+    /**
+     * 获取已使用的存储块数量
+     * @return 已使用的存储块数量
+     */
+    public int getUsedBlockCount() {
+        return totalBlocks - freeBlockCount;
+    }
+
+    /**
+     * 获取空闲区段数量
+     * @return 空闲区段数量
+     */
+    public int getFreeExtentCount() {
+        return extentsByStart.size();
+    }
+
+    /**
+     * 获取最长的空闲区段的长度
+     * @return 存储块数，没有空闲块时返回0
+     */
+    public int getLargestFreeExtent() {
+        return extentsByLength.isEmpty() ? 0 : (int) (extentsByLength.last() >>> 32);
+    }
+
+    /**
+     * 获取分配组数量
+     * @return 分配组数量，至少为1
+     */
+    public int getGroupCount() {
+        return Math.max(1, totalBlocks / GROUP_BLOCKS);
+    }
+
+    /**
+     * 按BEST_FIT策略分配指定数量的存储块
+     * @param blockCount 需要分配的存储块数量
+     * @return 分配的存储块索引列表，空间不足时只包含可分配的部分
+     */
+    public ArrayList<Integer> allocate(int blockCount) {
+        return allocate(blockCount, Policy.BEST_FIT, -1, -1);
+    }
+
+    /**
+     * 分配指定数量的存储块
+     * 目标块空闲时先从目标块开始连续分配，其余部分按分配策略选择空闲区段
+     *
+     * @param blockCount 需要分配的存储块数量
+     * @param policy 分配策略
+     * @param goal 目标块（通常紧接文件的最后一个存储块），-1表示没有
+     * @param group 分配组编号，-1表示没有
+     * @return 分配的存储块索引列表，空间不足时只包含可分配的部分
+     */
+    public ArrayList<Integer> allocate(int blockCount, Policy policy, int goal, int group) {
+        ArrayList<Integer> allocatedBlocks = new ArrayList<>(Math.max(0, Math.min(blockCount, freeBlockCount)));
+        int remaining = blockCount;
+        while (remaining > 0 && freeBlockCount > 0) {
+            int start;
+            int length;
+            int from;
+            if (goal >= 0 && goal < totalBlocks && !isAllocated(goal)) {
+                Map.Entry<Integer, Integer> containing = extentsByStart.floorEntry(goal);
+                start = containing.getKey();
+                length = containing.getValue();
+                from = goal;
+            } else {
+                long key = chooseExtent(remaining, policy, goal >= 0 ? goal : group * GROUP_BLOCKS);
+                start = (int) (key & 0xFFFFFFFFL);
+                length = (int) (key >>> 32);
+                from = start;
+            }
+            int taken = Math.min(start + length - from, remaining);
+
+            removeExtent(start, length);
+            if (from > start) {
+                addExtent(start, from - start);
+            }
+            if (from + taken < start + length) {
+                addExtent(from + taken, start + length - from - taken);
+            }
+            for (int i = from; i < from + taken; i++) {
+                setBit(i);
+                allocatedBlocks.add(i);
+            }
+            freeBlockCount -= taken;
+            remaining -= taken;
+            goal = from + taken;
+            cursor = goal;
+        }
+        return allocatedBlocks;
+    }
+
+    /**
+     * 分配一段连续的存储块，选择能容纳全部请求的最短空闲区段
+     * @param blockCount 需要分配的存储块数量
+     * @return 分配的存储块索引列表；没有足够长的空闲区段时返回空列表
+     */
+    public ArrayList<Integer> allocateContiguous(int blockCount) {
+        if (blockCount <= 0 || extentsByLength.ceiling(lengthKey(0, blockCount)) == null) {
+            return new ArrayList<>();
+        }
+        return allocate(blockCount);
+    }
+
+    /**
+     * 按分配策略选择一个空闲区段
+     * @param remaining 剩余需要分配的存储块数量
+     * @param policy 分配策略
+     * @param hint GROUP策略开始查找的位置，小于0时表示没有
+     * @return 区段的长度索引键
+     */
+    private long chooseExtent(int remaining, Policy policy, int hint) {
+        Long key = null;
+        if (policy == Policy.NEXT_FIT) {
+            key = firstFit(cursor, remaining);
+        } else if (policy == Policy.GROUP) {
+            key = firstFit(hint >= 0 ? hint : cursor, remaining);
+        }
+        if (key == null) {
+            key = extentsByLength.ceiling(lengthKey(0, remaining));
+        }
+        return key != null ? key : extentsByLength.last();
+    }
+
+    /**
+     * 从指定位置向后（到设备末尾后回绕）查找第一个长度不小于remaining的空闲区段
+     * @return 区段的长度索引键，检查MAX_SCAN个区段后仍未找到时返回null
+     */
+    private Long firstFit(int from, int remaining) {
+        Integer first = extentsByStart.floorKey(from);
+        int origin = first != null ? first : 0;
+        // 先扫描origin之后的区段，到末尾后回绕扫描origin之前的区段；直接遍历两个视图，不创建中间集合
+        Iterator<Map.Entry<Integer, Integer>> extents = extentsByStart.tailMap(origin, true).entrySet().iterator();
+        boolean wrapped = false;
+        int scanned = 0;
+        while (true) {
+            if (!extents.hasNext()) {
+                if (wrapped) {
+                    return null;
+                }
+                extents = extentsByStart.headMap(origin, false).entrySet().iterator();
+                wrapped = true;
+                continue;
+            }
+            Map.Entry<Integer, Integer> extent = extents.next();
+            if (extent.getValue() >= remaining) {
+                return lengthKey(extent.getKey(), extent.getValue());
+            }
+            if (++scanned >= MAX_SCAN) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * 释放单个存储块，并与相邻的空闲区段合并
+     * @param index 存储块索引
+     */
+    public void free(int index) {
+        if (index < 0 || index >= totalBlocks || !isAllocated(index)) {
+            return;
+        }
+        clearBit(index);
+        freeBlockCount++;
+
+        int start = index;
+        int length = 1;
+        Map.Entry<Integer, Integer> before = extentsByStart.lowerEntry(index);
+        if (before != null && before.getKey() + before.getValue() == index) {
+            removeExtent(before.getKey(), before.getValue());
+            start = before.getKey();
+            length += before.getValue();
+        }
+        Integer afterLength = extentsByStart.get(index + 1);
+        if (afterLength != null) {
+            removeExtent(index + 1, afterLength);
+            length += afterLength;
+        }
+        addExtent(start, length);
+    }
+
+    @Override
+    public String toString() {
+        return "BlockAllocator{" +
+                "totalBlocks=" + totalBlocks +
+                ", freeBlockCount=" + freeBlockCount +
+                ", cursor=" + cursor +
+                ", freeExtents=" + extentsByStart +
+                '}';
+    }
+}
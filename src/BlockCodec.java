@@ -0,0 +1,138 @@
+/**
+ * 存储块压缩编解码器
+ * 文件内容按压缩单元（BlockMap.UNIT_BLOCKS个逻辑块）压缩，压缩后的字节依次保存在若干存储块中。
+ * 压缩后的单元以一个头部开始：[编解码器编号, 1字节] [原始字节数, 4字节]，之后是编解码器输出的字节，
+ * 读取时由头部中的编号选择编解码器，因此改变文件的压缩策略不影响已有内容的读取。
+ *
+ * 编解码器没有状态，可以被多个线程同时使用。新的编解码器在CODECS中登记，编号一经使用不能改变
+ */
+public abstract class BlockCodec {
+    // 压缩单元头部的字节数
+    public static final int HEADER_BYTES = 5;
+
+    // 不压缩
+    public static final BlockCodec NONE = new NullCodec();
+    // LZ4风格的快速压缩
+    public static final BlockCodec LZ = new LzCodec();
+
+    // 已登记的编解码器，下标为编号
+    private static final BlockCodec[] CODECS = {NONE, LZ};
+
+    /**
+     * 获取编解码器编号，保存在压缩单元的头部中
+     * @return 编号
+     */
+    public abstract int getId();
+
+    /**
+     * 获取编解码器名称，用于压缩策略
+     * @return 名称
+     */
+    public abstract String getName();
+
+    /**
+     * 压缩内容
+     * @param src 原始内容
+     * @param length 原始字节数
+     * @param dest 输出数组
+     * @param destOffset 输出的起始位置
+     * @param destLimit 输出不能超过的位置
+     * @return 输出的字节数；输出超过destLimit时返回-1，此时dest中的内容无意义
+     */
+    public abstract int compress(byte[] src, int length, byte[] dest, int destOffset, int destLimit);
+
+    /**
+     * 解压内容
+     * @param src 压缩后的内容
+     * @param srcOffset 压缩内容的起始位置
+     * @param srcLength 压缩内容的字节数
+     * @param dest 输出数组
+     * @param destLength 原始字节数，即输出的字节数
+     * @throws IllegalStateException 压缩内容已损坏
+     */
+    public abstract void decompress(byte[] src, int srcOffset, int srcLength, byte[] dest, int destLength);
+
+    /**
+     * 按名称查找编解码器
+     * @param name 名称
+     * @return 编解码器，名称不存在时返回null
+     */
+    public static BlockCodec forName(String name) {
+        for (BlockCodec codec : CODECS) {
+            if (codec.getName().equals(name)) {
+                return codec;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 按编号查找编解码器
+     * @param id 编号
+     * @return 编解码器
+     * @throws IllegalStateException 编号不存在
+     */
+    public static BlockCodec forId(int id) {
+        if (id < 0 || id >= CODECS.length) {
+            throw new IllegalStateException("Unknown block codec " + id);
+        }
+        return CODECS[id];
+    }
+
+    /**
+     * 把一个压缩单元的原始内容压缩为带头部的压缩单元
+     * @param codec 编解码器
+     * @param raw 原始内容
+     * @param rawLength 原始字节数
+     * @param dest 输出数组
+     * @param limit 压缩单元不能超过的字节数，不超过dest的长度
+     * @return 压缩单元的字节数；超过limit时返回-1，调用者应按原样保存内容
+     */
+    public static int pack(BlockCodec codec, byte[] raw, int rawLength, byte[] dest, int limit) {
+        FileSystemMetrics metrics = FileSystemMetrics.get();
+        long start = metrics.start();
+        int length = -1;
+        if (limit > HEADER_BYTES) {
+            length = codec.compress(raw, rawLength, dest, HEADER_BYTES, limit);
+        }
+        if (length >= 0) {
+            length += HEADER_BYTES;
+            dest[0] = (byte) codec.getId();
+            dest[1] = (byte) (rawLength >>> 24);
+            dest[2] = (byte) (rawLength >>> 16);
+            dest[3] = (byte) (rawLength >>> 8);
+            dest[4] = (byte) rawLength;
+        }
+        metrics.recordPack(start, rawLength, length < 0 ? rawLength : length);
+        return length;
+    }
+
+    /**
+     * 获取压缩单元的原始字节数
+     * @param packed 压缩单元
+     * @return 原始字节数
+     */
+    public static int rawLength(byte[] packed) {
+        return (packed[1] & 0xFF) << 24 | (packed[2] & 0xFF) << 16 | (packed[3] & 0xFF) << 8 | (packed[4] & 0xFF);
+    }
+
+    /**
+     * 解压带头部的压缩单元
+     * @param packed 压缩单元
+     * @param packedLength 压缩单元的字节数
+     * @param dest 输出数组，长度不小于原始字节数
+     * @return 原始字节数
+     * @throws IllegalStateException 压缩单元已损坏
+     */
+    public static int unpack(byte[] packed, int packedLength, byte[] dest) {
+        FileSystemMetrics metrics = FileSystemMetrics.get();
+        long start = metrics.start();
+        int rawLength = rawLength(packed);
+        if (packedLength < HEADER_BYTES || rawLength < 0 || rawLength > dest.length) {
+            throw new IllegalStateException("Corrupted compressed unit");
+        }
+        forId(packed[0] & 0xFF).decompress(packed, HEADER_BYTES, packedLength - HEADER_BYTES, dest, rawLength);
+        metrics.recordUnpack(start, rawLength);
+        return rawLength;
+    }
+}
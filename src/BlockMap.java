@@ -0,0 +1,375 @@
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * 文件块映射表
+ * 以区段列表（物理起始块, 长度）保存逻辑块到物理块的映射，逻辑块从0开始连续编号。
+ * 连续分配的文件只需要一个区段，查找时对区段的逻辑起始位置做二分查找，
+ * 不再为每个逻辑块保存装箱的Integer和哈希表节点
+ *
+ * 逻辑块每UNIT_BLOCKS个为一个压缩单元。压缩过的单元只占用保存压缩后内容所需的前几个逻辑块位置，
+ * 其余位置是不对应物理块的空洞（HOLE），单元压缩后的字节数记录在本表中；
+ * 未压缩的单元中逻辑块与物理块一一对应。没有压缩单元的文件不保存单元信息
+ */
+public class BlockMap implements Serializable {
+    // 序列化版本号：本类作为VirtualFileContent的字段随之序列化，字段布局改变时递增
+    private static final long serialVersionUID = 1L;
+    // 压缩单元的逻辑块数
+    public static final int UNIT_BLOCKS = 16;
+    // 空洞：不对应物理块的逻辑块
+    public static final int HOLE = -1;
+    // 初始区段容量
+    private static final int INITIAL_CAPACITY = 2;
+
+    // 各区段的物理起始块
+    private int[] physicalStarts;
+    // 各区段的长度
+    private int[] lengths;
+    // 各区段的逻辑起始块
+    private int[] logicalStarts;
+    // 区段数量
+    private int extentCount;
+    // 已映射的逻辑块数量
+    private int blockCount;
+    // 各压缩单元压缩后的字节数，0表示未压缩；没有压缩单元时为null
+    private int[] packedLengths;
+
+    /**
+     * 创建一个空的块映射表
+     */
+    public BlockMap() {
+        this.physicalStarts = new int[INITIAL_CAPACITY];
+        this.lengths = new int[INITIAL_CAPACITY];
+        this.logicalStarts = new int[INITIAL_CAPACITY];
+        this.extentCount = 0;
+        this.blockCount = 0;
+    }
+
+    /**
+     * 获取已映射的逻辑块数量
+     * @return 逻辑块数量
+     */
+    public int size() {
+        return blockCount;
+    }
+
+    /**
+     * 获取物理块分成的连续区段数量，空洞不计，空洞两侧物理上相邻的区段算作一个
+     * @return 区段数量
+     */
+    public int getExtentCount() {
+        int count = 0;
+        int next = HOLE;
+        for (int extent = 0; extent < extentCount; extent++) {
+            if (physicalStarts[extent] == HOLE) {
+                continue;
+            }
+            if (physicalStarts[extent] != next) {
+                count++;
+            }
+            next = physicalStarts[extent] + lengths[extent];
+        }
+        return count;
+    }
+
+    /**
+     * 检查逻辑块是否已映射
+     * @param logicalBlock 逻辑块号
+     * @return 如果已映射则返回true，否则返回false
+     */
+    public boolean contains(int logicalBlock) {
+        return logicalBlock >= 0 && logicalBlock < blockCount;
+    }
+
+    /**
+     * 查找包含指定逻辑块的区段
+     */
+    private int findExtent(int logicalBlock) {
+        int low = 0;
+        int high = extentCount - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (logicalStarts[mid] <= logicalBlock) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * 获取逻辑块对应的物理块
+     * @param logicalBlock 逻辑块号
+     * @return 物理块索引，未映射或是空洞时返回-1
+     */
+    public int get(int logicalBlock) {
+        if (!contains(logicalBlock)) {
+            return HOLE;
+        }
+        int extent = findExtent(logicalBlock);
+        if (physicalStarts[extent] == HOLE) {
+            return HOLE;
+        }
+        return physicalStarts[extent] + (logicalBlock - logicalStarts[extent]);
+    }
+
+    /**
+     * 检查区段的下一个逻辑块是否可以是指定的物理块（空洞之后还是空洞，物理块之后是相邻的物理块）
+     */
+    private boolean continues(int extent, int physicalBlock) {
+        if (physicalStarts[extent] == HOLE || physicalBlock == HOLE) {
+            return physicalStarts[extent] == physicalBlock;
+        }
+        return physicalStarts[extent] + lengths[extent] == physicalBlock;
+    }
+
+    /**
+     * 在映射表末尾追加一个物理块或空洞，与最后一个区段相邻时直接延长该区段
+     * @param physicalBlock 物理块索引或HOLE
+     */
+    public void append(int physicalBlock) {
+        if (extentCount > 0) {
+            int last = extentCount - 1;
+            if (continues(last, physicalBlock)) {
+                lengths[last]++;
+                blockCount++;
+                return;
+            }
+        }
+        ensureCapacity(extentCount + 1);
+        physicalStarts[extentCount] = physicalBlock;
+        lengths[extentCount] = 1;
+        logicalStarts[extentCount] = blockCount;
+        extentCount++;
+        blockCount++;
+    }
+
+    /**
+     * 修改已映射逻辑块对应的物理块，必要时拆分所在区段
+     * @param logicalBlock 逻辑块号，必须已映射
+     * @param physicalBlock 新的物理块索引或HOLE
+     */
+    public void set(int logicalBlock, int physicalBlock) {
+        if (!contains(logicalBlock)) {
+            throw new IndexOutOfBoundsException("Logical block " + logicalBlock + " is not mapped");
+        }
+        int extent = findExtent(logicalBlock);
+        int offset = logicalBlock - logicalStarts[extent];
+        if (get(logicalBlock) == physicalBlock) {
+            return;
+        }
+        int start = physicalStarts[extent];
+        int length = lengths[extent];
+        // 把原区段拆成[前段][新块][后段]，空段不保留
+        int pieces = (offset > 0 ? 1 : 0) + 1 + (offset < length - 1 ? 1 : 0);
+        ensureCapacity(extentCount + pieces - 1);
+        System.arraycopy(physicalStarts, extent + 1, physicalStarts, extent + pieces, extentCount - extent - 1);
+        System.arraycopy(lengths, extent + 1, lengths, extent + pieces, extentCount - extent - 1);
+        System.arraycopy(logicalStarts, extent + 1, logicalStarts, extent + pieces, extentCount - extent - 1);
+        int slot = extent;
+        if (offset > 0) {
+            lengths[slot] = offset;
+            slot++;
+        }
+        physicalStarts[slot] = physicalBlock;
+        lengths[slot] = 1;
+        logicalStarts[slot] = logicalBlock;
+        if (offset < length - 1) {
+            physicalStarts[slot + 1] = start == HOLE ? HOLE : start + offset + 1;
+            lengths[slot + 1] = length - offset - 1;
+            logicalStarts[slot + 1] = logicalBlock + 1;
+        }
+        extentCount += pieces - 1;
+    }
+
+    /**
+     * 截断映射表，只保留前newSize个逻辑块；完全被截去的压缩单元的单元信息一并清除
+     * 截断位置不能落在压缩过的单元中间，调用者应先把该单元改为未压缩
+     * @param newSize 保留的逻辑块数量
+     * @return 被移除的物理块索引（不含空洞）
+     */
+    public ArrayList<Integer> truncate(int newSize) {
+        ArrayList<Integer> removed = new ArrayList<>(Math.max(0, blockCount - newSize));
+        if (newSize >= blockCount) {
+            return removed;
+        }
+        for (int logicalBlock = newSize; logicalBlock < blockCount; logicalBlock++) {
+            int physicalBlock = get(logicalBlock);
+            if (physicalBlock != HOLE) {
+                removed.add(physicalBlock);
+            }
+        }
+        if (packedLengths != null) {
+            int keptUnits = (newSize + UNIT_BLOCKS - 1) / UNIT_BLOCKS;
+            Arrays.fill(packedLengths, Math.min(keptUnits, packedLengths.length), packedLengths.length, 0);
+        }
+        if (newSize == 0) {
+            extentCount = 0;
+        } else {
+            int extent = findExtent(newSize - 1);
+            lengths[extent] = newSize - logicalStarts[extent];
+            extentCount = extent + 1;
+        }
+        blockCount = newSize;
+        return removed;
+    }
+
+    /**
+     * 清空映射表
+     */
+    public void clear() {
+        extentCount = 0;
+        blockCount = 0;
+        packedLengths = null;
+    }
+
+    /**
+     * 合并逐块修改后相邻的区段，映射和单元信息不变
+     */
+    public void compact() {
+        ArrayList<Integer> mapping = toMapping(blockCount);
+        int[] packed = packedLengths;
+        clear();
+        for (int block : mapping) {
+            append(block);
+        }
+        packedLengths = packed;
+    }
+
+    /**
+     * 按逻辑块顺序列出前count个逻辑块对应的物理块，空洞不列出
+     * @param count 逻辑块数量
+     * @return 物理块索引列表
+     */
+    public ArrayList<Integer> toList(int count) {
+        int limit = Math.min(count, blockCount);
+        ArrayList<Integer> blocks = new ArrayList<>(limit);
+        for (int extent = 0; extent < extentCount && logicalStarts[extent] < limit; extent++) {
+            if (physicalStarts[extent] == HOLE) {
+                continue;
+            }
+            int length = Math.min(lengths[extent], limit - logicalStarts[extent]);
+            for (int i = 0; i < length; i++) {
+                blocks.add(physicalStarts[extent] + i);
+            }
+        }
+        return blocks;
+    }
+
+    /**
+     * 按逻辑块顺序列出前count个逻辑块的映射，空洞列为HOLE，用于保存到日志和镜像
+     * @param count 逻辑块数量
+     * @return 每个逻辑块对应的物理块索引或HOLE
+     */
+    public ArrayList<Integer> toMapping(int count) {
+        int limit = Math.min(count, blockCount);
+        ArrayList<Integer> mapping = new ArrayList<>(limit);
+        for (int extent = 0; extent < extentCount && mapping.size() < limit; extent++) {
+            for (int i = 0; i < lengths[extent] && mapping.size() < limit; i++) {
+                mapping.add(physicalStarts[extent] == HOLE ? HOLE : physicalStarts[extent] + i);
+            }
+        }
+        return mapping;
+    }
+
+    /**
+     * 获取压缩单元压缩后的字节数
+     * @param unit 单元号
+     * @return 字节数，未压缩的单元返回0
+     */
+    public int getPackedLength(int unit) {
+        return packedLengths != null && unit < packedLengths.length ? packedLengths[unit] : 0;
+    }
+
+    /**
+     * 设置压缩单元压缩后的字节数，调用者同时修改单元中的映射
+     * @param unit 单元号
+     * @param length 字节数，0表示未压缩
+     */
+    public void setPackedLength(int unit, int length) {
+        if (packedLengths == null || unit >= packedLengths.length) {
+            if (length == 0) {
+                return;
+            }
+            int units = Math.max(unit + 1, (blockCount + UNIT_BLOCKS - 1) / UNIT_BLOCKS);
+            packedLengths = packedLengths == null ? new int[units] : Arrays.copyOf(packedLengths, units);
+        }
+        packedLengths[unit] = length;
+    }
+
+    /**
+     * 检查是否有压缩过的单元
+     * @return 如果有则返回true
+     */
+    public boolean hasPackedUnits() {
+        if (packedLengths != null) {
+            for (int length : packedLengths) {
+                if (length > 0) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 列出各压缩单元压缩后的字节数，用于保存到日志和镜像
+     * @return 各单元的字节数（0表示未压缩），没有压缩过的单元时为空列表
+     */
+    public ArrayList<Integer> getPackedLengths() {
+        ArrayList<Integer> lengths = new ArrayList<>();
+        if (hasPackedUnits()) {
+            int units = (blockCount + UNIT_BLOCKS - 1) / UNIT_BLOCKS;
+            for (int unit = 0; unit < units; unit++) {
+                lengths.add(getPackedLength(unit));
+            }
+        }
+        return lengths;
+    }
+
+    /**
+     * 列出压缩过的单元保存压缩内容的物理块
+     * @param unit 单元号
+     * @return 物理块索引列表
+     */
+    public ArrayList<Integer> getUnitBlocks(int unit) {
+        ArrayList<Integer> blocks = new ArrayList<>();
+        int end = Math.min(blockCount, (unit + 1) * UNIT_BLOCKS);
+        for (int logicalBlock = unit * UNIT_BLOCKS; logicalBlock < end; logicalBlock++) {
+            int physicalBlock = get(logicalBlock);
+            if (physicalBlock == HOLE) {
+                break;
+            }
+            blocks.add(physicalBlock);
+        }
+        return blocks;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > physicalStarts.length) {
+            int newCapacity = Math.max(capacity, physicalStarts.length * 2);
+            physicalStarts = Arrays.copyOf(physicalStarts, newCapacity);
+            lengths = Arrays.copyOf(lengths, newCapacity);
+            logicalStarts = Arrays.copyOf(logicalStarts, newCapacity);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder("BlockMap{");
+        for (int extent = 0; extent < extentCount; extent++) {
+            if (extent > 0) {
+                result.append(", ");
+            }
+            if (physicalStarts[extent] == HOLE) {
+                result.append("hole");
+            } else {
+                result.append(physicalStarts[extent]);
+            }
+            result.append('+').append(lengths[extent]);
+        }
+        return result.append('}').toString();
+    }
+}
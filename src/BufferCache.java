@@ -0,0 +1,483 @@
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * 存储块缓冲区缓存
+ * 位于VirtualFileContent和StorageDevice之间，每个存储设备一个，由该设备上的所有文件共享，
+ * 在固定的字节预算内按CLOCK算法淘汰存储块，被修改的块在淘汰时或文件关闭后提交时写回存储设备。
+ * 每个槽位是一个预先分配的块大小的字节数组，读写时在调用者的数组与槽位之间直接复制，不创建中间对象。
+ *
+ * 压缩过的单元解压后按逻辑块放入槽位，以"单元的第一个物理块 + 块在单元中的序号"为键，与存储块的键互不重叠。
+ * 压缩单元的物理块只在单元解压或改为未压缩时整体读取，不进入缓存；单元一经写入就不再修改，
+ * 解压出的槽位只读，在单元的第一个物理块被丢弃（invalidate）时一并丢弃
+ *
+ * 键到槽位的索引是开放定址（线性探查）的long[]/int[]数组，大小固定为不小于槽位数两倍的2的幂，
+ * 查找不创建装箱对象；删除时把后续的项前移，不留墓碑
+ */
+public class BufferCache {
+    // 空槽位的键
+    private static final long EMPTY = Long.MIN_VALUE;
+    // 散列键使用的常数
+    private static final long KEY_MIX = 0x9E3779B97F4A7C15L;
+
+    // 底层存储设备
+    private final StorageDevice device;
+    // 每个缓存槽位占用的字节数，即设备的块大小
+    private final int slotBytes;
+    // 缓存槽位数
+    private final int capacity;
+    // 各槽位的键：存储块索引，或由unitKey得到的解压块键（负数）；EMPTY表示空槽位
+    private final long[] slotKeys;
+    // 各槽位缓存的块内容
+    private final byte[][] slotData;
+    // 各槽位中块内容的有效字节数
+    private final int[] slotLength;
+    // CLOCK算法的访问位
+    private final boolean[] referenced;
+    // 槽位内容是否被修改且尚未写回
+    private final boolean[] dirty;
+    // 索引：各位置的键（EMPTY表示空位置）和对应的槽位
+    private final long[] indexKeys;
+    private final int[] indexSlots;
+    // 索引中的键数，即已使用的槽位数
+    private int indexSize;
+    // CLOCK指针
+    private int clockHand;
+    // 解压块占用的槽位数，为0时丢弃存储块无需查找解压块
+    private int unpackedSlots;
+    // 读取和解压压缩单元用的缓冲区，第一次使用时分配
+    private byte[] packedBuffer;
+    private byte[] unpackedBuffer;
+
+    // 统计计数
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long writeBacks;
+
+    /**
+     * 创建缓冲区缓存
+     * @param device 底层存储设备
+     * @param byteBudget 缓存可使用的字节数
+     */
+    public BufferCache(StorageDevice device, long byteBudget) {
+        this.device = device;
+        this.slotBytes = device.getBlockSize();
+        this.capacity = (int) Math.max(1, Math.min(Integer.MAX_VALUE, byteBudget / slotBytes));
+        this.slotKeys = new long[capacity];
+        this.slotData = new byte[capacity][slotBytes];
+        this.slotLength = new int[capacity];
+        this.referenced = new boolean[capacity];
+        this.dirty = new boolean[capacity];
+        int indexLength = Integer.highestOneBit(Math.max(1, capacity - 1)) << 2;
+        this.indexKeys = new long[indexLength];
+        this.indexSlots = new int[indexLength];
+        this.clockHand = 0;
+        Arrays.fill(slotKeys, EMPTY);
+        Arrays.fill(indexKeys, EMPTY);
+    }
+
+    /**
+     * 获取压缩单元中一个逻辑块解压后的槽位键
+     * @param firstBlock 单元的第一个物理块
+     * @param unitOffset 逻辑块在单元中的序号
+     */
+    private static long unitKey(int firstBlock, int unitOffset) {
+        return -1 - ((long) firstBlock * BlockMap.UNIT_BLOCKS + unitOffset);
+    }
+
+    /**
+     * 获取键在索引中的起始位置
+     */
+    private int home(long key) {
+        long hash = key * KEY_MIX;
+        return (int) (hash ^ (hash >>> 32)) & (indexKeys.length - 1);
+    }
+
+    /**
+     * 查找键所在的槽位
+     * @return 槽位，键不在缓存中时返回-1
+     */
+    private int slotOf(long key) {
+        int mask = indexKeys.length - 1;
+        for (int position = home(key); indexKeys[position] != EMPTY; position = (position + 1) & mask) {
+            if (indexKeys[position] == key) {
+                return indexSlots[position];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 在索引中记录键所在的槽位，键不能已在索引中
+     */
+    private void indexPut(long key, int slot) {
+        int mask = indexKeys.length - 1;
+        int position = home(key);
+        while (indexKeys[position] != EMPTY) {
+            position = (position + 1) & mask;
+        }
+        indexKeys[position] = key;
+        indexSlots[position] = slot;
+        indexSize++;
+    }
+
+    /**
+     * 从索引中删除键
+     * @return 键所在的槽位，键不在索引中时返回-1
+     */
+    private int indexRemove(long key) {
+        int mask = indexKeys.length - 1;
+        int position = home(key);
+        while (indexKeys[position] != key) {
+            if (indexKeys[position] == EMPTY) {
+                return -1;
+            }
+            position = (position + 1) & mask;
+        }
+        int slot = indexSlots[position];
+        // 把探查链上后续的项前移到空出的位置，保持每项都能从其起始位置找到
+        int hole = position;
+        for (int next = (hole + 1) & mask; indexKeys[next] != EMPTY; next = (next + 1) & mask) {
+            int wanted = home(indexKeys[next]);
+            if (((next - wanted) & mask) >= ((next - hole) & mask)) {
+                indexKeys[hole] = indexKeys[next];
+                indexSlots[hole] = indexSlots[next];
+                hole = next;
+            }
+        }
+        indexKeys[hole] = EMPTY;
+        indexSize--;
+        return slot;
+    }
+
+    /**
+     * 获取底层存储设备
+     * @return 存储设备实例
+     */
+    public StorageDevice getDevice() {
+        return device;
+    }
+
+    /**
+     * 获取底层存储设备的块大小
+     * @return 块大小（字节）
+     */
+    public int getBlockSize() {
+        return slotBytes;
+    }
+
+    /**
+     * 从存储块中复制内容，未命中时从存储设备加载
+     * @param blockIndex 存储块索引
+     * @param offset 块内起始位置
+     * @param dest 目标数组
+     * @param destOffset 目标数组中的起始位置
+     * @param length 最多复制的字节数
+     * @return 实际复制的字节数，不超过块的有效长度
+     */
+    public synchronized int read(int blockIndex, int offset, byte[] dest, int destOffset, int length) {
+        int slot = load(blockIndex);
+        int count = Math.max(0, Math.min(length, slotLength[slot] - offset));
+        System.arraycopy(slotData[slot], offset, dest, destOffset, count);
+        return count;
+    }
+
+    /**
+     * 把内容写入存储块的指定位置，只修改缓存并标记为脏块，内容未变化时不标记
+     * @param blockIndex 存储块索引
+     * @param valid 块中属于文件当前内容的字节数，之后的字节视为不存在；为0时不从存储设备加载
+     * @param offset 块内写入位置，不超过valid
+     * @param src 要写入的内容
+     * @param srcOffset 内容在src中的起始位置
+     * @param length 要写入的字节数，offset + length不超过块大小
+     */
+    public synchronized void write(int blockIndex, int valid, int offset, byte[] src, int srcOffset, int length) {
+        int slot;
+        if (valid > 0) {
+            slot = load(blockIndex);
+        } else {
+            slot = slotOf(blockIndex);
+            if (slot < 0) {
+                slot = install(blockIndex);
+            }
+            referenced[slot] = true;
+        }
+        int newLength = Math.max(Math.min(slotLength[slot], valid), offset + length);
+        if (newLength == slotLength[slot]
+                && Arrays.equals(slotData[slot], offset, offset + length, src, srcOffset, srcOffset + length)) {
+            return;
+        }
+        System.arraycopy(src, srcOffset, slotData[slot], offset, length);
+        slotLength[slot] = newLength;
+        dirty[slot] = true;
+    }
+
+    /**
+     * 查找存储块所在的槽位，未命中时从存储设备加载
+     */
+    private int load(int blockIndex) {
+        int cached = slotOf(blockIndex);
+        if (cached >= 0) {
+            FileSystemMetrics.get().cacheLookup(true);
+            hits++;
+            referenced[cached] = true;
+            return cached;
+        }
+        FileSystemMetrics.get().cacheLookup(false);
+        misses++;
+        int slot = install(blockIndex);
+        slotLength[slot] = device.readBlock(blockIndex, slotData[slot]);
+        return slot;
+    }
+
+    /**
+     * 为键分配一个空槽位，必要时淘汰一个槽位
+     * @param key 存储块索引或解压块键
+     */
+    private int install(long key) {
+        int slot = findVictim();
+        slotKeys[slot] = key;
+        slotLength[slot] = 0;
+        referenced[slot] = true;
+        dirty[slot] = false;
+        indexPut(key, slot);
+        if (key < 0) {
+            unpackedSlots++;
+        }
+        return slot;
+    }
+
+    /**
+     * 清空槽位
+     */
+    private void release(int slot) {
+        if (slotKeys[slot] < 0) {
+            unpackedSlots--;
+        }
+        slotKeys[slot] = EMPTY;
+        referenced[slot] = false;
+        dirty[slot] = false;
+    }
+
+    /**
+     * 按CLOCK算法选出一个可用槽位，被淘汰的脏块先写回存储设备
+     */
+    private int findVictim() {
+        while (true) {
+            int slot = clockHand;
+            clockHand = (clockHand + 1) % capacity;
+            if (slotKeys[slot] == EMPTY) {
+                return slot;
+            }
+            if (referenced[slot]) {
+                referenced[slot] = false;
+                continue;
+            }
+            if (dirty[slot]) {
+                device.writeBlock((int) slotKeys[slot], slotData[slot], slotLength[slot]);
+                writeBacks++;
+            }
+            evictions++;
+            indexRemove(slotKeys[slot]);
+            release(slot);
+            return slot;
+        }
+    }
+
+    /**
+     * 将指定存储块中的脏块写回存储设备
+     * @param blockIndices 存储块索引
+     * @return 写回的脏块数
+     */
+    public synchronized int flush(Collection<Integer> blockIndices) {
+        int count = 0;
+        for (int blockIndex : blockIndices) {
+            int slot = slotOf(blockIndex);
+            if (slot >= 0 && dirty[slot]) {
+                device.writeBlock(blockIndex, slotData[slot], slotLength[slot]);
+                dirty[slot] = false;
+                writeBacks++;
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 将缓存中的全部脏块写回存储设备
+     */
+    public synchronized void flushAll() {
+        for (int slot = 0; slot < capacity; slot++) {
+            if (slotKeys[slot] >= 0 && dirty[slot]) {
+                device.writeBlock((int) slotKeys[slot], slotData[slot], slotLength[slot]);
+                dirty[slot] = false;
+                writeBacks++;
+            }
+        }
+    }
+
+    /**
+     * 丢弃存储块的缓存内容且不写回，用于存储块被释放时；以这些存储块开始的压缩单元的解压块一并丢弃
+     * @param blockIndices 存储块索引
+     */
+    public synchronized void invalidate(Collection<Integer> blockIndices) {
+        for (int blockIndex : blockIndices) {
+            discard(blockIndex);
+            for (int offset = 0; unpackedSlots > 0 && offset < BlockMap.UNIT_BLOCKS; offset++) {
+                discard(unitKey(blockIndex, offset));
+            }
+        }
+    }
+
+    private void discard(long key) {
+        int slot = indexRemove(key);
+        if (slot >= 0) {
+            release(slot);
+        }
+    }
+
+    /**
+     * 从压缩单元解压出的逻辑块中复制内容，只查找缓存，不读取存储设备
+     * @param firstBlock 单元的第一个物理块
+     * @param unitOffset 逻辑块在单元中的序号
+     * @param offset 块内起始位置
+     * @param dest 目标数组
+     * @param destOffset 目标数组中的起始位置
+     * @param length 最多复制的字节数
+     * @return 实际复制的字节数；逻辑块不在缓存中时返回-1，调用者应改用readUnit
+     */
+    public synchronized int readUnpacked(int firstBlock, int unitOffset, int offset,
+                                         byte[] dest, int destOffset, int length) {
+        int slot = slotOf(unitKey(firstBlock, unitOffset));
+        FileSystemMetrics.get().cacheLookup(slot >= 0);
+        if (slot < 0) {
+            misses++;
+            return -1;
+        }
+        hits++;
+        referenced[slot] = true;
+        int count = Math.max(0, Math.min(length, slotLength[slot] - offset));
+        System.arraycopy(slotData[slot], offset, dest, destOffset, count);
+        return count;
+    }
+
+    /**
+     * 读取并解压整个压缩单元，把各逻辑块放入缓存，再从其中一个逻辑块中复制内容
+     * @param packedBlocks 单元保存压缩内容的物理块
+     * @param packedLength 单元压缩后的字节数
+     * @param unitOffset 要复制的逻辑块在单元中的序号
+     * @param offset 块内起始位置
+     * @param dest 目标数组
+     * @param destOffset 目标数组中的起始位置
+     * @param length 最多复制的字节数
+     * @return 实际复制的字节数
+     */
+    public synchronized int readUnit(List<Integer> packedBlocks, int packedLength, int unitOffset,
+                                     int offset, byte[] dest, int destOffset, int length) {
+        int rawLength = unpack(packedBlocks, packedLength);
+        int firstBlock = packedBlocks.get(0);
+        int blocks = (rawLength + slotBytes - 1) / slotBytes;
+        for (int i = 0; i < blocks; i++) {
+            long key = unitKey(firstBlock, i);
+            if (slotOf(key) < 0) {
+                int slot = install(key);
+                slotLength[slot] = Math.min(slotBytes, rawLength - i * slotBytes);
+                System.arraycopy(unpackedBuffer, i * slotBytes, slotData[slot], 0, slotLength[slot]);
+            }
+        }
+        int start = unitOffset * slotBytes + offset;
+        int count = Math.max(0, Math.min(length, rawLength - start));
+        System.arraycopy(unpackedBuffer, start, dest, destOffset, count);
+        return count;
+    }
+
+    /**
+     * 读取并解压整个压缩单元，不放入缓存
+     * @param packedBlocks 单元保存压缩内容的物理块
+     * @param packedLength 单元压缩后的字节数
+     * @param dest 接收原始内容的数组，长度不小于单元的块数乘以块大小
+     * @return 原始字节数
+     */
+    public synchronized int decodeUnit(List<Integer> packedBlocks, int packedLength, byte[] dest) {
+        int rawLength = unpack(packedBlocks, packedLength);
+        System.arraycopy(unpackedBuffer, 0, dest, 0, rawLength);
+        return rawLength;
+    }
+
+    /**
+     * 从存储设备读取压缩单元的全部物理块并解压到unpackedBuffer
+     * @return 原始字节数
+     */
+    private int unpack(List<Integer> packedBlocks, int packedLength) {
+        if (packedBuffer == null) {
+            packedBuffer = new byte[BlockMap.UNIT_BLOCKS * slotBytes];
+            unpackedBuffer = new byte[BlockMap.UNIT_BLOCKS * slotBytes];
+        }
+        int position = 0;
+        for (int blockIndex : packedBlocks) {
+            position += device.readBlock(blockIndex, packedBuffer, position);
+        }
+        if (position < packedLength) {
+            throw new IllegalStateException("Corrupted compressed unit");
+        }
+        return BlockCodec.unpack(packedBuffer, packedLength, unpackedBuffer);
+    }
+
+    /**
+     * 显示缓存命中、未命中和淘汰统计
+     */
+    public synchronized void cacheUsage() {
+        long lookups = hits + misses;
+        System.out.println("缓存容量: " + capacity + " 块 (" + (long) capacity * slotBytes + " 字节)");
+        System.out.println("已缓存块数: " + indexSize);
+        System.out.println("命中: " + hits + "  未命中: " + misses +
+                "  命中率: " + (lookups == 0 ? 0 : (int) (100.0 * hits / lookups)) + "%");
+        System.out.println("淘汰: " + evictions + "  写回: " + writeBacks);
+    }
+
+    /**
+     * 获取缓存命中次数
+     * @return 缓存命中次数
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * 获取缓存未命中次数
+     * @return 缓存未命中次数
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * 获取淘汰的存储块数
+     * @return 淘汰的存储块数
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * 获取写回存储设备的脏块数
+     * @return 写回存储设备的脏块数
+     */
+    public synchronized long getWriteBacks() {
+        return writeBacks;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BufferCache{" +
+                "capacity=" + capacity +
+                ", cached=" + indexSize +
+                ", hits=" + hits +
+                ", misses=" + misses +
+                ", evictions=" + evictions +
+                ", writeBacks=" + writeBacks +
+                '}';
+    }
+}
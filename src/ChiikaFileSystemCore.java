@@ -1,462 +1,1458 @@
-import java.io.*;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.locks.Lock;
 
 /**
  * Chiika文件系统核心实现类
  * 提供文件和目录管理的核心功能
+ *
+ * 每个实例是一个会话，只保存会话自己的状态（当前工作目录、文件描述符表），
+ * 目录树和存储由FileSystemService在所有会话之间共享，多个会话可以在不同线程中并发执行命令
  */
 public class ChiikaFileSystemCore {
 
-    // 文件系统根目录
-    private static FileSystemFolder rootDirectory = new FileSystemFolder("/", true, null); 
+    // 共享的文件系统服务
+    private final FileSystemService service;
     // 用户输入处理器
     private final Scanner commandScanner;           
-    // 当前工作目录
-    private FileSystemFolder workingDirectory;       
-    // 当前工作路径
+    // 当前工作路径（规范化的绝对路径）
     private String workingPath;         
-    // 存储设备实例
-    private StorageDevice storageDevice;          
+    // 路径解析器，由所有会话共享
+    private final PathResolver resolver;
+    // 分页显示的目录路径，null表示没有未显示完的列表
+    private String listPath;
+    // 分页显示的名称模式
+    private String listPattern;
+    // 分页游标：上一页最后一项的名称
+    private String listCursor;
+    // 本会话的文件描述符表，下标为描述符编号，null表示空闲
+    private final ArrayList<FileDescriptor> descriptorTable;
+    // 批处理模式：不输出状态信息，不等待用户确认
+    private final boolean batchMode;
+    // 错误信息的前缀，批处理时为当前命令所在的脚本行
+    private String errorPrefix;
+    // 当前命令是否失败
+    private boolean failed;
+    // 当前命令是否是已知的命令并被分派执行
+    private boolean dispatched;
 
     /**
      * 创建新的文件系统实例
-     * 如果存在持久化数据，则加载现有文件系统状态
+     * 从最近的检查点和日志中恢复文件系统状态，并在其上打开一个读取标准输入的会话
      */
     public ChiikaFileSystemCore() {
-        this.workingDirectory = rootDirectory;
+        this(new FileSystemService(), System.in);
+    }
+
+    /**
+     * 在共享的文件系统服务上创建一个会话
+     * @param service 文件系统服务
+     * @param input 命令输入流
+     */
+    public ChiikaFileSystemCore(FileSystemService service, InputStream input) {
+        this(service, input, false);
+    }
+
+    /**
+     * 在共享的文件系统服务上创建一个会话
+     * @param service 文件系统服务
+     * @param input 命令输入流
+     * @param batchMode 为true时以批处理模式执行命令
+     */
+    public ChiikaFileSystemCore(FileSystemService service, InputStream input, boolean batchMode) {
+        this.service = service;
+        this.commandScanner = new Scanner(input);
+        this.resolver = service.getResolver();
         this.workingPath = "/";
-        this.storageDevice = new StorageDevice("/dev/sda");
-        this.commandScanner = new Scanner(System.in);
-        
-        // 检查是否存在持久化的文件系统数据
-        File persistenceFile = new File(StorageConstants.SERIALIZE_PATH);
-        if (persistenceFile.exists()) {
-            restoreFileSystem(StorageConstants.SERIALIZE_PATH);
-            workingDirectory = rootDirectory;
-        }
+        this.descriptorTable = new ArrayList<>();
+        this.batchMode = batchMode;
+        this.errorPrefix = "";
     }
 
     /**
-     * 从持久化存储中恢复文件系统状态
-     * @param filePath 持久化文件路径
+     * 在命令执行过程中读取用户的确认输入
+     * 等待输入期间暂时结束当前命令，不阻塞检查点和其他会话
+     * @return 用户输入的一行，输入结束时返回空串
      */
-    public void restoreFileSystem(String filePath) {
+    private String nextLine() {
+        service.endOperation();
         try {
-            FileInputStream fileIn = new FileInputStream(filePath);
-            ObjectInputStream objectIn = new ObjectInputStream(fileIn);
-            this.storageDevice = (StorageDevice) objectIn.readObject();
-            rootDirectory = (FileSystemFolder) objectIn.readObject();
-            objectIn.close();
-            fileIn.close();
-        } catch (IOException | ClassNotFoundException e) {
-            throw new RuntimeException("Failed to restore file system: " + e.getMessage(), e);
+            return commandScanner.hasNextLine() ? commandScanner.nextLine().trim() : "";
+        } finally {
+            service.beginOperation();
         }
     }
 
     /**
-     * 将文件系统状态保存到持久化存储
-     * @param filePath 持久化文件路径
+     * 输出命令的状态信息，批处理模式下不输出
+     * @param message 状态信息
      */
-    public void persistFileSystem(String filePath) {
-        try {
-            FileOutputStream fileOut = new FileOutputStream(filePath);
-            ObjectOutputStream objectOut = new ObjectOutputStream(fileOut);
-            objectOut.writeObject(this.storageDevice);
-            objectOut.writeObject(rootDirectory);
-            objectOut.close();
-            fileOut.close();
-        } catch (IOException e) {
-            throw new RuntimeException("Failed to persist file system: " + e.getMessage(), e);
+    private void status(String message) {
+        if (!batchMode) {
+            System.out.println(message);
         }
     }
 
+    /**
+     * 输出错误信息并把当前命令标记为失败
+     * @param message 错误信息
+     */
+    private void fail(String message) {
+        failed = true;
+        System.out.println(errorPrefix + message);
+    }
+
     /**
      * 验证文件或目录名是否合法
      * @param name 文件或目录名
      * @return 如果名称合法返回true，否则返回false
      */
     private boolean isValidName(String name) {
-        if (name.equals(".") || name.equals("..") || name.contains("/")) {
-            System.out.println("错误：无效的名称！");
-            System.out.println("名称不能为\".\"或\"..\",且不能包含\"/\"");
+        if (name.isEmpty() || name.equals(".") || name.equals("..") || name.contains("/")) {
+            fail("错误：无效的名称！\n名称不能为\".\"或\"..\",且不能包含\"/\"");
             return false;
         }
         return true;
     }
 
+    /**
+     * 把命令参数中的路径解析为要新建或删除的目标路径
+     * 路径的最后一级必须是合法的名称
+     * @param path 绝对路径或相对于当前工作目录的路径
+     * @return 规范化的绝对路径，名称不合法时返回null
+     */
+    private String targetPath(String path) {
+        int end = path.length();
+        while (end > 1 && path.charAt(end - 1) == '/') {
+            end--;
+        }
+        if (!isValidName(path.substring(path.lastIndexOf('/', end - 1) + 1, end))) {
+            return null;
+        }
+        return PathResolver.normalize(workingPath, path);
+    }
+
+    /**
+     * 按规范化路径查找目录
+     * @param path 规范化的绝对路径
+     * @return 目录对象，不存在或不是目录时返回null
+     */
+    private FileSystemFolder lookupFolder(String path) {
+        FileSystemNode entry = resolver.lookup(path);
+        if (entry == null || !entry.isDirectory) {
+            fail("Failed: " + path + " is not existed.");
+            return null;
+        }
+        return (FileSystemFolder) entry;
+    }
+
     /**
      * 创建新目录
-     * @param directoryName 目录名称
+     * @param directoryName 目录路径
      */
     public void mkdir(String directoryName) {
-        if (!isValidName(directoryName)) {
+        String target = targetPath(directoryName);
+        if (target == null) {
             return;
         }
-        if (workingDirectory.containsEntry(directoryName)) {
-            System.out.println("错误：目录 '" + directoryName + "' 已存在");
+        FileSystemFolder parent = lookupFolder(PathResolver.parentPath(target));
+        if (parent == null) {
+            return;
+        }
+        if (service.createNode(parent, PathResolver.baseName(target), true) != null) {
+            status("目录 '" + directoryName + "' 已创建");
+        } else if (parent.isUnlinked()) {
+            fail("Failed: " + PathResolver.parentPath(target) + " is not existed.");
         } else {
-            workingDirectory.addEntry(directoryName, new FileSystemFolder(directoryName, true, workingDirectory));
-            System.out.println("目录 '" + directoryName + "' 已创建");
+            fail("错误：目录 '" + directoryName + "' 已存在");
         }
     }
 
     /**
      * 删除目录
-     * @param directoryName 目录名称
+     * @param directoryName 目录路径
+     * @param recursive 为true时不经确认删除非空目录
      */
-    public void rmdir(String directoryName) {
-        if (!workingDirectory.containsEntry(directoryName) || !workingDirectory.getEntry(directoryName).isDirectory) {
-            System.out.println("Failed: " + directoryName + " is not existed.");
+    public void rmdir(String directoryName, boolean recursive) {
+        String target = targetPath(directoryName);
+        if (target == null) {
             return;
         }
-        
-        FileSystemFolder tmpDir = (FileSystemFolder) workingDirectory.getEntry(directoryName);
-        if (tmpDir.isEmpty()) {
-            workingDirectory.removeEntry(directoryName);
-            System.out.println(directoryName + " is removed.");
-        } else {
+        FileSystemNode entry = resolver.lookup(target);
+        if (entry == null || !entry.isDirectory) {
+            fail("Failed: " + directoryName + " is not existed.");
+            return;
+        }
+        if (workingPath.equals(target) || workingPath.startsWith(target + "/")) {
+            fail("错误：不能删除当前工作目录或其上级目录");
+            return;
+        }
+
+        FileSystemFolder tmpDir = (FileSystemFolder) entry;
+        if (!recursive && !isEmptyFolder(tmpDir)) {
+            if (batchMode) {
+                fail("Failed: " + directoryName + " is not empty. Use rmdir -r to remove it.");
+                return;
+            }
             System.out.println("""
                     Failed: Current directory is not empty.
                     Do you want to remove all files and folders in this folder?
                     Enter "Y" or "y" to continue, otherwise nothing will be changed.""");
-            String answer = commandScanner.next();
-            if (answer.equals("Y") || answer.equals("y")) {
-                removeDirectoryRecursively(directoryName);
-                System.out.println(directoryName + " is removed.");
-            } else {
-                System.out.println("Nothing will be changed.");
+            String answer = nextLine();
+            if (!answer.equals("Y") && !answer.equals("y")) {
+                status("Nothing will be changed.");
+                return;
+            }
+        }
+
+        FileSystemFolder parent = tmpDir.getParentDir();
+        String name = PathResolver.baseName(target);
+        service.getCloner().preserve(parent);
+        Lock lock = parent.getLock().writeLock();
+        lock.lock();
+        try {
+            // 等待确认期间目录可能已被其他会话删除
+            if (parent.isUnlinked() || parent.getEntry(name) != tmpDir) {
+                fail("Failed: " + directoryName + " is not existed.");
+                return;
+            }
+            // 先标记再检查打开文件数，与打开文件时先计数再检查标记的顺序相对
+            tmpDir.setUnlinked(true);
+            if (tmpDir.getOpenFileCount() > 0) {
+                tmpDir.setUnlinked(false);
+                fail("错误：目录 '" + directoryName + "' 中有文件已打开，请先关闭");
+                return;
             }
+            if (service.containsMountPoint(tmpDir)) {
+                tmpDir.setUnlinked(false);
+                fail("错误：目录 '" + directoryName + "' 是挂载点或包含挂载点，请先卸载");
+                return;
+            }
+            // 摘除子树的根后目录即不可见，子树中的存储块在后台回收
+            parent.removeEntry(name);
+            service.logOperation(FileSystemJournal.OP_RMDIR, tmpDir);
+            resolver.invalidateSubtree(target);
+            service.reclaimSubtree(tmpDir);
+            status(directoryName + " is removed.");
+        } finally {
+            lock.unlock();
         }
     }
 
     /**
-     * 递归删除目录及其所有内容
-     * @param directoryName 目录名称
+     * 在目录的读锁保护下检查目录是否为空
+     * @param folder 目录
+     * @return 如果目录为空则返回true，否则返回false
      */
-    private void removeDirectoryRecursively(String directoryName) {
-        FileSystemFolder stashCurrDir = workingDirectory;
-        String stashCurrentPath = workingPath;
-        
-        if (!workingDirectory.containsEntry(directoryName) || !workingDirectory.getEntry(directoryName).isDirectory) {
-            return;
-        }
-        
-        FileSystemFolder tmpDir = (FileSystemFolder) workingDirectory.getEntry(directoryName);
-        if (tmpDir.isEmpty()) {
-            workingDirectory.removeEntry(directoryName);
-        } else {
-            cd("." + "/" + directoryName);
-            for (String fName : workingDirectory.getEntryNames()) {
-                if (workingDirectory.getEntry(fName).isDirectory) {
-                    removeDirectoryRecursively(fName);
-                } else {
-                    deleteFile(fName);
-                }
-            }
-            cd("./..");
-            workingDirectory.removeEntry(directoryName);
+    private boolean isEmptyFolder(FileSystemFolder folder) {
+        folder.getLock().readLock().lock();
+        try {
+            return folder.isEmpty();
+        } finally {
+            folder.getLock().readLock().unlock();
         }
-        
-        workingDirectory = stashCurrDir;
-        workingPath = stashCurrentPath;
     }
 
     /**
-     * 显示当前目录下所有目录项
+     * 按名称顺序显示当前目录下的第一页目录项
+     * @param pattern 名称模式，支持"*"和"?"通配符，空串表示显示全部
      */
-    public void ls() {
+    public void ls(String pattern) {
         pwd();
+        listPath = workingPath;
+        listPattern = pattern.isEmpty() ? null : pattern;
+        listCursor = null;
+        listPage();
+    }
+
+    /**
+     * 从上一次ls停止的位置继续显示下一页目录项
+     */
+    public void more() {
+        if (listPath == null) {
+            status("没有更多条目");
+            return;
+        }
+        listPage();
+    }
+
+    /**
+     * 从本会话的列表游标开始显示一页目录项，并把游标移动到本页最后一项
+     */
+    private void listPage() {
+        FileSystemFolder folder = lookupFolder(listPath);
+        if (folder == null) {
+            listPath = null;
+            return;
+        }
+        List<FileSystemNode> page;
+        folder.getLock().readLock().lock();
+        try {
+            // 多取一项用于判断是否还有下一页
+            page = folder.listEntries(listCursor, listPattern, StorageConstants.LIST_PAGE_SIZE + 1);
+        } finally {
+            folder.getLock().readLock().unlock();
+        }
+        int shown = Math.min(page.size(), StorageConstants.LIST_PAGE_SIZE);
         // 目录为紫色；文件为浅蓝色。
-        for (String name : workingDirectory.getEntryNames()) {
-            if (workingDirectory.getEntry(name).isDirectory) {
-                System.out.println("\033[35;4m" + name + "\033[0m");
+        for (int i = 0; i < shown; i++) {
+            FileSystemNode entry = page.get(i);
+            if (entry.isDirectory) {
+                System.out.println("\033[35;4m" + entry.getName() + "\033[0m");
             } else {
-                System.out.println("\033[36;4m" + name + "\033[0m");
+                System.out.println("\033[36;4m" + entry.getName() + "\033[0m");
             }
         }
+        if (page.size() > shown) {
+            listCursor = page.get(shown - 1).getName();
+            System.out.println("-- 还有更多条目，输入 more 查看下一页 --");
+        } else {
+            listPath = null;
+        }
     }
 
     /**
      * 显示当前目录地址
      */
     public void pwd() {
-        int reduceLength = 0;
-        // 对是否在根目录下进行特别判断
-        if (workingPath.length() > 1) {
-            reduceLength = 1;
-        }
-        // 输出当前路径
-        System.out.println("\033[32;4m" + "Current Path: " +
-                workingPath.substring(0, workingPath.length() - reduceLength) + "\033[0m");
+        System.out.println("\033[32;4m" + "Current Path: " + workingPath + "\033[0m");
     }
 
     /**
      * 切换当前工作目录
-     * @param path 目标路径，可以是绝对路径或相对路径
+     * @param path 目标路径，可以是绝对路径或相对路径，支持"."和".."
      */
     public void cd(String path) {
-        boolean parseFinished = true;                       // 判断解析是否全部完成
-        boolean correctCmd = false;                         // 判断输入命令是否符合格式
-        FileSystemFolder tmpCurrDir = null;                        // 临时Dir变量
-        StringBuilder tmpPath = null;                       // 临时Path变量
-        String dirName;                                     // 临时DirName变量
-        String[] directories = path.split("/");       // 地址分割成块
-        // 对返回根目录进行特判
-        if (path.equals("/")) {
-            workingDirectory = rootDirectory;
-            workingPath = "/";
-        } else {
-            // 判断是从当前目录开始还是从根目录开始解析地址
-            if (directories[0].equals(".")) {
-                correctCmd = true;
-                tmpCurrDir = workingDirectory;
-                tmpPath = new StringBuilder(workingPath);
-            } else if (directories[0].equals("")) {
-                correctCmd = true;
-                tmpCurrDir = rootDirectory;
-                tmpPath = new StringBuilder("/");
-            }
-            // 若命令格式正确则开始解析路径
-            if (correctCmd) {
-                for (int i = 1; i < directories.length; i++) {
-                    dirName = directories[i];
-                    // 文件目录项存在且类型为目录，这里利用了短路运算
-                    if (tmpCurrDir.containsEntry(dirName) && tmpCurrDir.getEntry(dirName).isDirectory) {
-                        // 访问下一层
-                        tmpCurrDir = (FileSystemFolder) tmpCurrDir.getEntry(dirName);
-                        tmpPath.append(dirName).append("/");
-                    } else if (dirName.equals("..") && tmpCurrDir.getParentDir() != null) {
-                        // 访问上一层
-                        tmpCurrDir = tmpCurrDir.getParentDir();
-                        tmpPath = new StringBuilder(tmpPath.substring(0, tmpPath.length() - workingDirectory.getName().length() - 1));
-                    } else {
-                        // 错误处理
-                        parseFinished = false;
-                        System.out.println("Failed: " + tmpPath + dirName + " is not existed");
-                        break;
-                    }
-                }
-                if (parseFinished) {
-                    workingDirectory = tmpCurrDir;
-                    workingPath = tmpPath.toString();
-                }
-            } else {
-                System.out.println("Failed: Invalid cd command.The first character should be \"/\" or \".\"");
-            }
+        String target = PathResolver.normalize(workingPath, path);
+        FileSystemNode entry = resolver.lookup(target);
+        if (entry == null || !entry.isDirectory) {
+            fail("Failed: " + target + " is not existed");
+            return;
+        }
+        workingPath = target;
+    }
 
+    /**
+     * 查找文件并获取其读锁或写锁
+     * 加锁后确认文件没有在查找之后被其他会话删除
+     * @param fileName 文件路径
+     * @param exclusive 为true时获取写锁，否则获取读锁
+     * @return 已加锁的FileSystemDocument对象，文件无效时返回null
+     */
+    private FileSystemDocument lockFile(String fileName, boolean exclusive) {
+        String target = targetPath(fileName);
+        if (target == null) {
+            return null;
         }
+        FileSystemDocument fileEntry = validateFile(resolver.lookup(target), fileName);
+        if (fileEntry == null) {
+            return null;
+        }
+        Lock lock = exclusive ? fileEntry.getLock().writeLock() : fileEntry.getLock().readLock();
+        lock.lock();
+        if (fileEntry.isUnlinked()) {
+            lock.unlock();
+            fail("错误：文件 '" + fileName + "' 不存在");
+            return null;
+        }
+        return fileEntry;
     }
 
     /**
-     * 验证文件是否存在且为有效文件
+     * 验证目录项是否存在且为有效文件
+     * @param entry 目录项
      * @param fileName 文件名
      * @return 如果文件有效返回FileSystemDocument对象，否则返回null
      */
-    private FileSystemDocument validateFile(String fileName) {
-        if (!isValidName(fileName)) {
-            return null;
-        }
-        if (!workingDirectory.containsEntry(fileName)) {
-            System.out.println("错误：文件 '" + fileName + "' 不存在");
+    private FileSystemDocument validateFile(FileSystemNode entry, String fileName) {
+        if (entry == null) {
+            fail("错误：文件 '" + fileName + "' 不存在");
             return null;
         }
-        if (workingDirectory.getEntry(fileName).isDirectory) {
-            System.out.println("错误：'" + fileName + "' 是目录而非文件");
+        if (entry.isDirectory) {
+            fail("错误：'" + fileName + "' 是目录而非文件");
             return null;
         }
-        return (FileSystemDocument) workingDirectory.getEntry(fileName);
+        return (FileSystemDocument) entry;
     }
 
     /**
      * 创建新文件
-     * @param fileName 文件名称
+     * @param fileName 文件路径
      */
     private void createFile(String fileName) {
-        if (!isValidName(fileName)) {
+        String target = targetPath(fileName);
+        if (target == null) {
+            return;
+        }
+        FileSystemFolder parent = lookupFolder(PathResolver.parentPath(target));
+        if (parent == null) {
             return;
         }
-        if (workingDirectory.containsEntry(fileName)) {
-            System.out.println("Failed: " + fileName + " is already existed.");
+        if (service.createNode(parent, PathResolver.baseName(target), false) != null) {
+            status(fileName + " is created.");
+        } else if (parent.isUnlinked()) {
+            fail("Failed: " + PathResolver.parentPath(target) + " is not existed.");
         } else {
-            workingDirectory.addEntry(fileName, new FileSystemDocument(fileName, false, workingDirectory));
-            System.out.println(fileName + " is created.");
+            fail("Failed: " + fileName + " is already existed.");
         }
     }
 
     /**
      * 删除文件
-     * @param fileName 文件名称
+     * @param fileName 文件路径
      */
     private void deleteFile(String fileName) {
-        FileSystemDocument fileEntry = validateFile(fileName);
-        if (fileEntry == null) {
+        String target = targetPath(fileName);
+        if (target == null) {
             return;
         }
-        if (fileEntry.isOpened()) {
-            System.out.println("错误：文件 '" + fileName + "' 已打开，请先关闭");
-        } else {
-            fileEntry.file.fileClear(storageDevice);
-            workingDirectory.removeEntry(fileName);
-            System.out.println("文件 '" + fileName + "' 已删除");
+        FileSystemFolder parent = lookupFolder(PathResolver.parentPath(target));
+        if (parent == null) {
+            return;
+        }
+        service.getCloner().preserve(parent);
+        Lock lock = parent.getLock().writeLock();
+        lock.lock();
+        try {
+            FileSystemDocument fileEntry = validateFile(
+                    parent.isUnlinked() ? null : parent.getEntry(PathResolver.baseName(target)), fileName);
+            if (fileEntry == null) {
+                return;
+            }
+            fileEntry.getLock().writeLock().lock();
+            try {
+                if (fileEntry.isOpened()) {
+                    fail("错误：文件 '" + fileName + "' 已打开，请先关闭");
+                } else {
+                    service.logOperation(FileSystemJournal.OP_DELETE, fileEntry);
+                    fileEntry.file.fileClear(service.getCache(fileEntry));
+                    parent.removeEntry(fileEntry.getName());
+                    fileEntry.setUnlinked(true);
+                    resolver.invalidateSubtree(target);
+                    status("文件 '" + fileName + "' 已删除");
+                }
+            } finally {
+                fileEntry.getLock().writeLock().unlock();
+            }
+        } finally {
+            lock.unlock();
         }
     }
 
     /**
-     * 打开文件
+     * 打开文件，在本会话的文件描述符表中分配编号最小的空闲描述符
      * @param fileName 文件名称
+     * @param mode 打开模式，"r"只读，"rw"读写
      */
-    private void openFile(String fileName) {
-        FileSystemDocument fileEntry = validateFile(fileName);
+    private void openFile(String fileName, String mode) {
+        if (!mode.equals(FileDescriptor.MODE_READ) && !mode.equals(FileDescriptor.MODE_READ_WRITE)) {
+            fail("Failed: Invalid mode " + mode + ".");
+            return;
+        }
+        FileSystemDocument fileEntry = lockFile(fileName, true);
         if (fileEntry == null) {
             return;
         }
-        if (fileEntry.isOpened()) {
-            System.out.println("错误：文件 '" + fileName + "' 已经处于打开状态");
-        } else {
-            fileEntry.setOpen(true);
-            System.out.println("文件 '" + fileName + "' 已打开");
+        try {
+            service.getCloner().preserve(fileEntry);
+            if (!fileEntry.open(service.getCache(fileEntry))) {
+                fail("错误：文件 '" + fileName + "' 不存在");
+                return;
+            }
+            int fd = descriptorTable.indexOf(null);
+            if (fd < 0) {
+                fd = descriptorTable.size();
+                descriptorTable.add(null);
+            }
+            descriptorTable.set(fd, new FileDescriptor(fd, fileEntry, mode, new ReadAhead(service.getPrefetcher())));
+            status("文件 '" + fileName + "' 已打开，文件描述符: " + fd);
+        } finally {
+            fileEntry.getLock().writeLock().unlock();
         }
     }
 
     /**
-     * 关闭文件
-     * @param fileName 文件名称
+     * 查找本会话的文件描述符
+     * 参数是已分配的描述符编号时直接返回对应描述符；否则作为当前目录下的文件名，
+     * 返回本会话中打开该文件的第一个描述符
+     * @param token 描述符编号或文件名
+     * @return 文件描述符，未打开时返回null
      */
-    private void closeFile(String fileName) {
-        FileSystemDocument fileEntry = validateFile(fileName);
-        if (fileEntry == null) {
+    private FileDescriptor findDescriptor(String token) {
+        try {
+            int fd = Integer.parseInt(token);
+            if (fd >= 0 && fd < descriptorTable.size() && descriptorTable.get(fd) != null) {
+                return descriptorTable.get(fd);
+            }
+        } catch (NumberFormatException e) {
+            // 不是描述符编号，按文件名查找
+        }
+        FileSystemNode entry = resolver.lookup(PathResolver.normalize(workingPath, token));
+        for (FileDescriptor descriptor : descriptorTable) {
+            if (descriptor != null && descriptor.getDocument() == entry) {
+                return descriptor;
+            }
+        }
+        fail("Failed: " + token + " is not opened.");
+        return null;
+    }
+
+    /**
+     * 关闭文件描述符，提交文件的当前内容并记入日志
+     * @param descriptor 文件描述符
+     */
+    private void closeDescriptor(FileDescriptor descriptor) {
+        FileSystemDocument fileEntry = descriptor.getDocument();
+        fileEntry.getLock().writeLock().lock();
+        try {
+            service.closeAndLog(fileEntry);
+        } finally {
+            fileEntry.getLock().writeLock().unlock();
+        }
+        descriptorTable.set(descriptor.getFd(), null);
+    }
+
+    /**
+     * 报告尚未报告的提交失败
+     * @param consequence 失败对本次命令的影响，接在失败原因之前
+     * @return 有提交失败时返回true
+     */
+    private boolean reportCommitFailure(String consequence) {
+        RuntimeException failure = service.getFlusher().takeFailure();
+        if (failure == null) {
+            return false;
+        }
+        fail("错误：后台提交失败，" + consequence + "：" + failure.getMessage());
+        return true;
+    }
+
+    /**
+     * 关闭文件；此前的提交失败时报告失败，文件保持打开，再次关闭时重试
+     * @param token 文件描述符编号或文件名称
+     */
+    private void closeFile(String token) {
+        FileDescriptor descriptor = findDescriptor(token);
+        if (descriptor == null) {
             return;
         }
-        if (!fileEntry.isOpened()) {
-            System.out.println("错误：文件 '" + fileName + "' 未打开");
-        } else {
-            fileEntry.setOpen(false);
-            System.out.println("文件 '" + fileName + "' 已关闭");
+        if (reportCommitFailure("文件 '" + descriptor.getDocument().getName() + "' 保持打开，未提交的修改将重新提交")) {
+            return;
         }
+        closeDescriptor(descriptor);
+        status("文件 '" + descriptor.getDocument().getName() + "' 已关闭");
     }
 
     /**
      * 读取文件内容
-     * @param fileName 文件名称
+     * 未指定长度时从头读取全部内容；指定长度时从描述符的当前位置读取并向后移动
+     * @param token 文件描述符编号或文件名称
+     * @param length 读取长度（字节），小于0表示读取全部内容
      * @return 文件内容，如果读取失败则返回null
      */
-    private String readFile(String fileName) {
-        FileSystemDocument tmpFile = validateFile(fileName);
-        if (tmpFile == null) {
+    private String readFile(String token, int length) {
+        FileDescriptor descriptor = findDescriptor(token);
+        if (descriptor == null) {
             return null;
         }
-        
-        System.out.println("Loading...");
-        if (tmpFile.file.isOpen()) {
-            return tmpFile.file.getContent();
-        } else {
-            System.out.println("Failed: " + fileName + " is not opened.");
-            return null;
+        VirtualFileContent content = descriptor.getDocument().file;
+        BufferCache cache = service.getCache(descriptor.getDocument());
+        descriptor.getDocument().getLock().readLock().lock();
+        try {
+            status("Loading...");
+            if (length < 0) {
+                return content.readText(0, content.getOpenSize(), cache);
+            }
+            int offset = descriptor.getOffset();
+            descriptor.getReadAhead().onRead(content, offset, length, cache);
+            String result = content.readText(offset, length, cache);
+            descriptor.setOffset(Math.max(offset, (int) Math.min(content.getOpenSize(), (long) offset + length)));
+            return result;
+        } finally {
+            descriptor.getDocument().getLock().readLock().unlock();
         }
     }
 
     /**
-     * 写入文件内容
-     * @param fileName 文件名称
+     * 移动文件描述符的读写位置
+     * @param token 文件描述符编号或文件名称
+     * @param position 新的读写位置（字节）
+     */
+    private void seekFile(String token, int position) {
+        FileDescriptor descriptor = findDescriptor(token);
+        if (descriptor == null) {
+            return;
+        }
+        if (position < 0) {
+            fail("Failed: Invalid position " + position + ".");
+            return;
+        }
+        descriptor.setOffset(position);
+    }
+
+    /**
+     * 写入文件内容，写入后描述符的读写位置移动到写入内容之后
+     * 覆盖模式从描述符的当前位置写入，并截断写入内容之后的原有内容；追加模式写在文件末尾
+     * @param token 文件描述符编号或文件名称
      * @param buf 要写入的内容
      * @param mode 写入模式 ("a"追加, "w"覆盖)
      */
-    private void writeFile(String fileName, String buf, String mode) {
-        FileSystemDocument tmpFile = validateFile(fileName);
-        if (tmpFile == null) {
+    private void writeFile(String token, String buf, String mode) {
+        FileDescriptor descriptor = findDescriptor(token);
+        if (descriptor == null) {
+            return;
+        }
+        if (!descriptor.isWritable()) {
+            fail("Failed: " + token + " is opened read-only.");
+            return;
+        }
+        VirtualFileContent content = descriptor.getDocument().file;
+        BufferCache cache = service.getCache(descriptor.getDocument());
+        descriptor.getDocument().getLock().writeLock().lock();
+        try {
+            status("Loading...");
+            if (!mode.equals("a") && !mode.equals("w")) {
+                fail("Failed: Invalid mode " + mode + ".");
+            } else {
+                int offset = mode.equals("w") ? descriptor.getOffset() : content.getOpenSize();
+                if (offset > content.getOpenSize()) {
+                    fail("Failed: Position " + offset + " is beyond the end of " + descriptor.getDocument().getName() + ".");
+                    return;
+                }
+                // 覆盖时先写入再截断，空间不足而写入失败时原有内容保持不变
+                int written = content.writeText(offset, buf, cache);
+                if (written < 0) {
+                    fail("错误：存储空间不足，文件 '" + descriptor.getDocument().getName() + "' 未被修改");
+                } else {
+                    if (mode.equals("w")) {
+                        content.truncate(offset + written, cache);
+                    }
+                    descriptor.setOffset(offset + written);
+                    status(descriptor.getDocument().getName() + " has been written.");
+                }
+            }
+        } finally {
+            descriptor.getDocument().getLock().writeLock().unlock();
+        }
+    }
+
+    /**
+     * 解析可选的整数参数
+     * @param text 参数文本，空串表示未指定
+     * @return 参数值，未指定或格式错误时返回-1
+     */
+    private int parseOptionalInt(String text) {
+        try {
+            return text.isEmpty() ? -1 : Integer.parseInt(text);
+        } catch (NumberFormatException e) {
+            fail("Failed: " + text + " is not a number.");
+            return -1;
+        }
+    }
+
+    /**
+     * 在目录下生成合成负载并输出各阶段耗时，最后计时生成一次检查点
+     * @param args 参数：目录路径 深度 宽度 每目录文件数 文件大小 [种子]
+     */
+    private void generateWorkload(List<String> args) {
+        int[] shape = new int[4];
+        long seed;
+        try {
+            for (int i = 0; i < shape.length; i++) {
+                shape[i] = Integer.parseInt(args.get(i + 1));
+                if (shape[i] < 0) {
+                    throw new NumberFormatException(args.get(i + 1));
+                }
+            }
+            seed = args.size() == 6 ? Long.parseLong(args.get(5)) : 0;
+        } catch (NumberFormatException e) {
+            fail("Failed: " + e.getMessage() + " is not a valid number.");
+            return;
+        }
+        String target = PathResolver.normalize(workingPath, args.get(0));
+        FileSystemFolder folder = lookupFolder(target);
+        if (folder == null) {
             return;
         }
-        
-        System.out.println("Loading...");
-        if (!tmpFile.file.isOpen()) {
-            System.out.println("Failed: " + fileName + " is not opened.");
-        } else if (!mode.equals("a") && !mode.equals("w")) {
-            System.out.println("Failed: Invalid mode " + mode + ".");
+        new WorkloadGenerator(service, seed, shape[0], shape[1], shape[2], shape[3]).run(folder, target);
+
+        // 检查点需要等待所有命令结束，计时期间暂时结束本命令
+        service.endOperation();
+        try {
+            long start = System.nanoTime();
+            service.persistFileSystem(StorageConstants.SERIALIZE_PATH);
+            WorkloadGenerator.report("检查点", 1, System.nanoTime() - start);
+        } finally {
+            service.beginOperation();
+        }
+    }
+
+    /**
+     * 把主机上的文件或目录树导入文件系统
+     * 目标是已存在的目录时导入到该目录下（保留源名称），否则导入为目标路径本身
+     * @param hostPath 主机路径
+     * @param path 目标路径
+     */
+    private void importHost(String hostPath, String path) {
+        Path source = Paths.get(hostPath);
+        if (!Files.exists(source) || source.getFileName() == null) {
+            fail("Failed: " + hostPath + " is not existed.");
+            return;
+        }
+        FileSystemNode entry = resolver.lookup(PathResolver.normalize(workingPath, path));
+        FileSystemFolder parent;
+        String name;
+        if (entry != null && entry.isDirectory) {
+            parent = (FileSystemFolder) entry;
+            name = source.getFileName().toString();
         } else {
-            tmpFile.file.setContent(buf, mode);
-            System.out.println(fileName + " has been written.");
+            String target = targetPath(path);
+            if (target == null) {
+                return;
+            }
+            parent = lookupFolder(PathResolver.parentPath(target));
+            if (parent == null) {
+                return;
+            }
+            name = PathResolver.baseName(target);
+        }
+        HostTransfer transfer = new HostTransfer(service, StorageConstants.TRANSFER_THREADS);
+        transfer.importTree(source, parent, name);
+        for (String error : transfer.getErrors()) {
+            fail(error);
         }
+        transfer.report("导入");
     }
 
     /**
-     * 运行文件系统命令行界面
+     * 把文件系统中的文件或目录树导出到主机
+     * 目标是主机上已存在的目录时导出到该目录下（保留源名称），否则导出为目标路径本身
+     * @param path 源路径
+     * @param hostPath 主机路径
      */
-    public void run() {
-        label:
-        while (true) {
-            System.out.print("fs> ");
-            String command = commandScanner.next();
-            String args;
-            String buf;
-            String rwMode;
-            switch (command) {
-                case "exit":
-                    // 退出文件系统
-                    System.out.println("Exiting the VirtualFile System.");
-                    persistFileSystem(StorageConstants.SERIALIZE_PATH);
-                    break label;
-                case "mkdir":
-                    // 创建目录
-                    args = commandScanner.next();
-                    mkdir(args);
-                    break;
-                case "rmdir":
-                    // 删除目录
-                    args = commandScanner.next();
-                    rmdir(args);
-                    break;
-                case "ls":
-                    // 显示当前目录下所有文件和目录
-                    ls();
-                    break;
-                case "pwd":
-                    // 显示当前路径
-                    pwd();
-                    break;
-                case "cd":
-                    // 切换路径
-                    args = commandScanner.next();
-                    cd(args);
-                    break;
-                case "create":
-                    // 新建文件
-                    args = commandScanner.next();
-                    createFile(args);
-                    break;
-                case "delete":
-                    // 删除文件
-                    args = commandScanner.next();
-                    deleteFile(args);
+    private void exportHost(String path, String hostPath) {
+        String source = PathResolver.normalize(workingPath, path);
+        FileSystemNode entry = resolver.lookup(source);
+        if (entry == null) {
+            fail("Failed: " + source + " is not existed.");
+            return;
+        }
+        Path target = Paths.get(hostPath);
+        if (Files.isDirectory(target) && !source.equals("/")) {
+            target = target.resolve(entry.getName());
+        }
+        HostTransfer transfer = new HostTransfer(service, StorageConstants.TRANSFER_THREADS);
+        transfer.exportTree(entry, target);
+        for (String error : transfer.getErrors()) {
+            fail(error);
+        }
+        transfer.report("导出");
+    }
+
+    /**
+     * 显示各操作的次数和延迟分布、存储设备读写量和缓存命中率，或清空、启用、停用统计
+     * @param action 空串表示显示，reset、on、off分别表示清空、启用、停用
+     */
+    private void showStats(String action) {
+        FileSystemMetrics metrics = FileSystemMetrics.get();
+        switch (action) {
+            case "":
+                System.out.print(metrics.getReport());
+                break;
+            case "reset":
+                metrics.reset();
+                status("统计已清空");
+                break;
+            case "on":
+            case "off":
+                metrics.setEnabled(action.equals("on"));
+                status(action.equals("on") ? "统计已启用" : "统计已停用");
+                break;
+            default:
+                fail("Failed: Usage: stats [reset|on|off]");
+        }
+    }
+
+    /**
+     * 整理目录树中的文件碎片，或启动、停止、查看后台整理
+     * 同步整理和-n分析结束后输出整理统计和各设备的使用情况
+     * @param args 参数：[-n] [目录]，或start [目录]、stop、status
+     */
+    private void defragment(List<String> args) {
+        Defragmenter defragmenter = service.getDefragmenter();
+        String action = args.isEmpty() ? "" : args.get(0);
+        switch (action) {
+            case "stop":
+                if (!defragmenter.isRunning()) {
+                    fail("Failed: 没有正在进行的碎片整理.");
+                    return;
+                }
+                defragmenter.stop();
+                status("已请求停止碎片整理");
+                return;
+            case "status":
+                System.out.println(defragmenter.getReport());
+                return;
+            default:
+                break;
+        }
+        boolean background = action.equals("start");
+        boolean analyzeOnly = action.equals("-n");
+        List<String> rest = background || analyzeOnly ? args.subList(1, args.size()) : args;
+        if (rest.size() > 1) {
+            fail("Failed: Usage: defrag [-n] [目录] | defrag start [目录] | defrag stop | defrag status");
+            return;
+        }
+        FileSystemFolder folder = lookupFolder(PathResolver.normalize(workingPath, rest.isEmpty() ? "." : rest.get(0)));
+        if (folder == null) {
+            return;
+        }
+        boolean started = background ? defragmenter.start(folder) : defragmenter.run(folder, analyzeOnly);
+        if (!started) {
+            fail("Failed: 碎片整理正在进行.");
+            return;
+        }
+        if (background) {
+            status("后台碎片整理已开始");
+            return;
+        }
+        System.out.println(defragmenter.getReport());
+        for (StorageVolume volume : service.getVolumes()) {
+            System.out.println("[" + volume.getMountPath() + "] " + volume.getDevice().getDevicePath());
+            volume.getDevice().diskUsage();
+        }
+    }
+
+    /**
+     * 显示或设置所有存储设备的分配策略
+     * @param label 策略名称，为null时只显示当前策略
+     */
+    private void setPolicy(String label) {
+        if (label == null) {
+            System.out.println("分配策略: " + service.getAllocationPolicy().getLabel());
+            return;
+        }
+        BlockAllocator.Policy policy = BlockAllocator.Policy.forLabel(label);
+        if (policy == null) {
+            fail("Failed: Usage: policy [best|next|group]");
+            return;
+        }
+        service.setAllocationPolicy(policy);
+        status("分配策略已设置为 " + policy.getLabel());
+    }
+
+    /**
+     * 显示各设备的块去重情况，或开启、关闭所有设备的块去重
+     * @param action on或off，为null时只显示
+     */
+    private void setDeduplication(String action) {
+        if (action == null) {
+            for (StorageVolume volume : service.getVolumes()) {
+                System.out.println("[" + volume.getMountPath() + "] " + volume.getDevice().getDevicePath());
+                volume.getDevice().diskUsage();
+            }
+            return;
+        }
+        if (!action.equals("on") && !action.equals("off")) {
+            fail("Failed: Usage: dedup [on|off]");
+            return;
+        }
+        service.setDeduplication(action.equals("on"));
+        status(action.equals("on") ? "块去重已开启" : "块去重已关闭");
+    }
+
+    /**
+     * 显示预读统计和本会话各描述符的预读窗口，或开启、关闭预读
+     * @param action on或off，为null时只显示
+     */
+    private void setReadAhead(String action) {
+        Prefetcher prefetcher = service.getPrefetcher();
+        if (action == null) {
+            System.out.println(prefetcher.getReport());
+            for (FileDescriptor descriptor : descriptorTable) {
+                if (descriptor != null) {
+                    System.out.println("[" + descriptor.getFd() + "] " + descriptor.getDocument().getName() + ": "
+                            + descriptor.getReadAhead().getReport());
+                }
+            }
+            return;
+        }
+        if (!action.equals("on") && !action.equals("off")) {
+            fail("Failed: Usage: readahead [on|off]");
+            return;
+        }
+        prefetcher.setEnabled(action.equals("on"));
+        status(action.equals("on") ? "预读已开启" : "预读已关闭");
+    }
+
+    /**
+     * 等待此前关闭的文件和其他修改写回并落盘，再显示后台写回统计；此前的后台提交失败时先报告失败
+     * 本次提交失败时同样报告失败，未提交的修改留给下一次提交
+     */
+    private void sync() {
+        reportCommitFailure("未提交的修改将重新提交");
+        long start = System.nanoTime();
+        if (!service.getFlusher().tryCommit()) {
+            reportCommitFailure("未提交的修改留给下一次提交");
+            return;
+        }
+        status(String.format("已同步，耗时 %.1f ms", (System.nanoTime() - start) / 1e6));
+        System.out.println(service.getFlusher().getReport());
+    }
+
+    /**
+     * 克隆文件或目录树，克隆与源共享存储块
+     * @param sourceName 源路径
+     * @param targetName 目标路径，不能已存在
+     */
+    private void cloneTree(String sourceName, String targetName) {
+        FileSystemNode source = resolver.lookup(PathResolver.normalize(workingPath, sourceName));
+        if (source == null) {
+            fail("Failed: " + sourceName + " is not existed.");
+            return;
+        }
+        String target = targetPath(targetName);
+        if (target == null) {
+            return;
+        }
+        FileSystemFolder parent = lookupFolder(PathResolver.parentPath(target));
+        if (parent == null) {
+            return;
+        }
+        if (createClone(source, parent, PathResolver.baseName(target), targetName) != null) {
+            status("'" + sourceName + "' 已克隆到 '" + targetName + "'");
+        }
+    }
+
+    /**
+     * 创建快照：把根目录（快照目录除外）克隆到快照目录下，快照目录不存在时先创建
+     * @param name 快照名称
+     */
+    private void snapshot(String name) {
+        if (!isValidName(name)) {
+            return;
+        }
+        String snapshotPath = "/" + SubtreeCloner.SNAPSHOT_DIR;
+        FileSystemNode folder = resolver.lookup(snapshotPath);
+        if (folder == null) {
+            service.createNode(service.getRoot(), SubtreeCloner.SNAPSHOT_DIR, true);
+            folder = resolver.lookup(snapshotPath);
+        }
+        if (folder == null || !folder.isDirectory) {
+            fail("Failed: " + snapshotPath + " is not a directory.");
+            return;
+        }
+        if (createClone(service.getRoot(), (FileSystemFolder) folder, name, snapshotPath + "/" + name) != null) {
+            status("快照 '" + name + "' 已创建");
+        }
+    }
+
+    /**
+     * 检查克隆的条件后创建克隆，不满足时输出原因
+     * 创建克隆需要等待所有命令结束，期间暂时结束本命令
+     * @param source 源文件或目录
+     * @param parent 目标父目录
+     * @param name 克隆在父目录中的名称
+     * @param targetName 目标路径，用于输出信息
+     * @return 克隆出的节点，失败时返回null
+     */
+    private FileSystemNode createClone(FileSystemNode source, FileSystemFolder parent, String name, String targetName) {
+        if (resolver.lookup(PathResolver.normalize(parent.getPath(), name)) != null) {
+            fail("Failed: " + targetName + " is already existed.");
+            return null;
+        }
+        if (source.isDirectory) {
+            FileSystemFolder folder = (FileSystemFolder) source;
+            if (folder.getOpenFileCount() > 0) {
+                fail("错误：目录 '" + source.getPath() + "' 中有文件已打开，请先关闭");
+                return null;
+            }
+            if (service.containsMountPoint(folder)) {
+                fail("错误：目录 '" + source.getPath() + "' 是挂载点或包含挂载点，请先卸载");
+                return null;
+            }
+            if (service.getCloner().covers(folder, parent)) {
+                fail("错误：不能克隆到源目录自身之中");
+                return null;
+            }
+        } else if (((FileSystemDocument) source).isOpened()) {
+            fail("错误：文件 '" + source.getPath() + "' 已打开，请先关闭");
+            return null;
+        }
+        if (service.getVolume(source) != service.getVolume(parent)) {
+            fail("错误：克隆的源和目标必须在同一存储设备上");
+            return null;
+        }
+        FileSystemNode clone;
+        service.endOperation();
+        try {
+            clone = service.cloneNode(source, parent, name);
+        } finally {
+            service.beginOperation();
+        }
+        if (clone == null) {
+            fail("Failed: " + targetName + " 克隆失败，源或目标已被其他会话修改");
+        }
+        return clone;
+    }
+
+    /**
+     * 显示压缩统计和压缩策略，或设置文件、目录的压缩策略
+     * @param args 参数：为空时只显示；否则为路径和编解码器名称，inherit表示改为沿用上级目录的策略
+     */
+    private void setCompression(List<String> args) {
+        if (args.isEmpty()) {
+            String report = FileSystemMetrics.get().getCompressionReport();
+            System.out.println(report.isEmpty() ? "没有压缩或解压过内容" : report);
+            System.out.println("默认压缩策略: " + StorageConstants.DEFAULT_CODEC);
+            for (Map.Entry<String, String> policy : service.getCodecPolicies().entrySet()) {
+                System.out.println(policy.getKey() + " -> " + policy.getValue());
+            }
+            for (StorageVolume volume : service.getVolumes()) {
+                System.out.println("[" + volume.getMountPath() + "] " + volume.getDevice().getDevicePath());
+                volume.getDevice().diskUsage();
+            }
+            return;
+        }
+        if (args.size() != 2) {
+            fail("Failed: Usage: compress [路径 lz|none|inherit]");
+            return;
+        }
+        BlockCodec codec = args.get(1).equals("inherit") ? null : BlockCodec.forName(args.get(1));
+        if (codec == null && !args.get(1).equals("inherit")) {
+            fail("Failed: Usage: compress [路径 lz|none|inherit]");
+            return;
+        }
+        String path = PathResolver.normalize(workingPath, args.get(0));
+        FileSystemNode entry = resolver.lookup(path);
+        if (entry == null) {
+            fail("Failed: " + path + " is not existed.");
+            return;
+        }
+        service.setCodec(entry, codec);
+        status(codec == null ? path + " 改为沿用上级目录的压缩策略" : path + " 的压缩策略已设置为 " + codec.getName());
+    }
+
+    /**
+     * 显示所有存储卷的设备文件、挂载点、几何参数和使用情况
+     */
+    private void listMounts() {
+        for (StorageVolume volume : service.getVolumes()) {
+            StorageDevice device = volume.getDevice();
+            System.out.println(device.getDevicePath() + " on " + volume.getMountPath() + ": "
+                    + device.getDiskSize() + " 块 × " + device.getBlockSize() + " 字节, 已用 "
+                    + device.getUsedBlockCount() + " 块");
+        }
+    }
+
+    /**
+     * 把存储设备挂载到空目录上
+     * 设备文件不存在或为空时按给定的几何参数（默认为根设备的默认参数）格式化；
+     * 已格式化的设备使用其头部记录的几何参数
+     * @param args 参数：设备文件 目录 [块数 块大小]
+     */
+    private void mountDevice(List<String> args) {
+        String target = PathResolver.normalize(workingPath, args.get(1));
+        FileSystemFolder folder = lookupFolder(target);
+        if (folder == null) {
+            return;
+        }
+        if (service.isMountPoint(folder)) {
+            fail("Failed: " + target + " is already a mount point.");
+            return;
+        }
+        if (!isEmptyFolder(folder)) {
+            fail("Failed: " + target + " is not empty.");
+            return;
+        }
+        Path devicePath = Paths.get(args.get(0));
+        if (service.isDeviceMounted(devicePath)) {
+            fail("Failed: " + args.get(0) + " is already mounted.");
+            return;
+        }
+        boolean formatted = StorageDevice.readGeometry(devicePath) != null;
+        if (!formatted && devicePath.toFile().length() > 0) {
+            fail("Failed: " + args.get(0) + " is not a storage device.");
+            return;
+        }
+        int diskSize = StorageConstants.DISK_SIZE;
+        int blockSize = StorageConstants.BLOCK_SIZE;
+        if (args.size() == 4) {
+            diskSize = parseOptionalInt(args.get(2));
+            blockSize = parseOptionalInt(args.get(3));
+            if (failed) {
+                return;
+            }
+        }
+
+        StorageVolume volume;
+        try {
+            volume = service.mount(folder, args.get(0), diskSize, blockSize);
+        } catch (IllegalArgumentException e) {
+            fail("Failed: 块数应大于0，块大小应在" + StorageDevice.MIN_BLOCK_SIZE + "到"
+                    + StorageDevice.MAX_BLOCK_SIZE + "字节之间.");
+            return;
+        }
+        if (volume == null) {
+            fail("Failed: " + target + " is not empty.");
+            return;
+        }
+        StorageDevice device = volume.getDevice();
+        status(args.get(0) + (formatted ? " 已挂载到 " : " 已格式化并挂载到 ") + target + ": "
+                + device.getDiskSize() + " 块 × " + device.getBlockSize() + " 字节");
+    }
+
+    /**
+     * 卸载挂载在空目录上的存储设备
+     * @param path 挂载点路径
+     */
+    private void unmountDevice(String path) {
+        String target = PathResolver.normalize(workingPath, path);
+        FileSystemFolder folder = lookupFolder(target);
+        if (folder == null) {
+            return;
+        }
+        if (folder == service.getRoot() || !service.isMountPoint(folder)) {
+            fail("Failed: " + target + " is not a mount point.");
+            return;
+        }
+        if (!service.unmount(folder)) {
+            fail("Failed: " + target + " is not empty.");
+            return;
+        }
+        status(target + " 已卸载");
+    }
+
+    /**
+     * 检查命令的参数个数
+     * @param words 命令及其参数
+     * @param min 最少参数个数
+     * @param max 最多参数个数
+     * @param usage 命令语法
+     * @return 参数个数正确返回true，否则输出语法并返回false
+     */
+    private boolean checkArgs(List<String> words, int min, int max, String usage) {
+        int count = words.size() - 1;
+        if (count < min || count > max) {
+            fail("Failed: Usage: " + usage);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 关闭本会话中仍然打开的文件描述符，提交文件的当前内容
+     * 此前的提交失败只报告一次，文件仍然全部关闭，未提交的修改由退出时的提交重新写回
+     */
+    void closeAllDescriptors() {
+        reportCommitFailure("未提交的修改将在退出时重新提交");
+        for (FileDescriptor descriptor : descriptorTable) {
+            if (descriptor != null) {
+                closeDescriptor(descriptor);
+            }
+        }
+        descriptorTable.clear();
+    }
+
+    /**
+     * 设置错误信息的前缀
+     * @param prefix 前缀，例如命令所在的脚本行
+     */
+    void setErrorPrefix(String prefix) {
+        this.errorPrefix = prefix;
+    }
+
+    /**
+     * 检查上一条命令是否失败
+     * @return 如果失败则返回true
+     */
+    boolean hasFailed() {
+        return failed;
+    }
+
+    /**
+     * 检查上一条命令是否是已知的命令并被分派执行，无效的命令不计入按命令的统计
+     * @return 如果被分派执行则返回true
+     */
+    boolean wasDispatched() {
+        return dispatched;
+    }
+
+    /**
+     * 执行一条已分词的命令，被统计的命令记录其耗时，调用者应已调用service.beginOperation()
+     * 只有FileSystemMetrics.Command中的命令被计时，与命令同名的内部操作（例如设备同步sync）不受影响
+     * @param words 命令名及其参数
+     * @return 命令是exit时返回false，否则返回true
+     */
+    boolean execute(List<String> words) {
+        FileSystemMetrics.Command command = FileSystemMetrics.Command.forName(words.get(0));
+        if (command == null) {
+            return dispatch(words);
+        }
+        FileSystemMetrics metrics = FileSystemMetrics.get();
+        long start = metrics.start();
+        try {
+            return dispatch(words);
+        } finally {
+            metrics.record(command, start, failed);
+        }
+    }
+
+    /**
+     * 按命令名分派执行一条命令
+     * @param words 命令名及其参数
+     * @return 命令是exit时返回false，否则返回true
+     */
+    private boolean dispatch(List<String> words) {
+        failed = false;
+        dispatched = true;
+        List<String> args = words.subList(1, words.size());
+        String buf;
+        switch (words.get(0)) {
+            case "exit":
+                // 退出文件系统
+                status("Exiting the VirtualFile System.");
+                return false;
+            case "mkdir":
+                // 创建目录
+                if (checkArgs(words, 1, 1, "mkdir 目录")) {
+                    mkdir(args.get(0));
+                }
+                break;
+            case "rmdir":
+                // 删除目录，-r表示不经确认删除非空目录
+                boolean recursive = !args.isEmpty() && args.get(0).equals("-r");
+                if (checkArgs(words, recursive ? 2 : 1, recursive ? 2 : 1, "rmdir [-r] 目录")) {
+                    rmdir(args.get(args.size() - 1), recursive);
+                }
+                break;
+            case "ls":
+                // 显示当前目录下的文件和目录，模式可省略
+                if (checkArgs(words, 0, 1, "ls [模式]")) {
+                    ls(args.isEmpty() ? "" : args.get(0));
+                }
+                break;
+            case "more":
+                // 显示上一次ls的下一页
+                more();
+                break;
+            case "pwd":
+                // 显示当前路径
+                pwd();
+                break;
+            case "cd":
+                // 切换路径
+                if (checkArgs(words, 1, 1, "cd 路径")) {
+                    cd(args.get(0));
+                }
+                break;
+            case "create":
+                // 新建文件
+                if (checkArgs(words, 1, 1, "create 文件")) {
+                    createFile(args.get(0));
+                }
+                break;
+            case "delete":
+                // 删除文件
+                if (checkArgs(words, 1, 1, "delete 文件")) {
+                    deleteFile(args.get(0));
+                }
+                break;
+            case "open":
+                // 打开文件，模式可省略
+                if (checkArgs(words, 1, 2, "open 文件 [r|rw]")) {
+                    openFile(args.get(0), args.size() == 2 ? args.get(1) : FileDescriptor.MODE_READ_WRITE);
+                }
+                break;
+            case "close":
+                // 关闭文件
+                if (checkArgs(words, 1, 1, "close 描述符|文件")) {
+                    closeFile(args.get(0));
+                }
+                break;
+            case "read":
+                // 读取文件
+                if (!checkArgs(words, 1, 2, "read 描述符|文件 [长度]")) {
                     break;
-                case "open":
-                    // 打开文件文件
-                    args = commandScanner.next();
-                    openFile(args);
+                }
+                int length = parseOptionalInt(args.size() == 2 ? args.get(1) : "");
+                if (failed) {
+                    // 长度不是数字时不回退到读取全部内容
                     break;
-                case "close":
-                    // 关闭文件
-                    args = commandScanner.next();
-                    closeFile(args);
+                }
+                if (args.size() == 2 && length < 0) {
+                    fail("Failed: Invalid length " + length + ".");
                     break;
-                case "read":
-                    // 读取文件
-                    args = commandScanner.next();
-                    buf = readFile(args);
-                    if (buf != null) {
-                        System.out.println(args + " contents:\n" + buf);
-                    } else {
-                        System.out.println("Failed: Read failed. Nothing will be changed.");
+                }
+                buf = readFile(args.get(0), length);
+                if (buf != null) {
+                    System.out.println(args.get(0) + " contents:\n" + buf);
+                } else {
+                    fail("Failed: Read failed. Nothing will be changed.");
+                }
+                break;
+            case "seek":
+                // 移动文件描述符的读写位置
+                if (checkArgs(words, 2, 2, "seek 描述符|文件 位置")) {
+                    int position = parseOptionalInt(args.get(1));
+                    if (!failed) {
+                        seekFile(args.get(0), position);
                     }
-                    break;
-                case "write":
-                    args = commandScanner.next();
-                    buf = commandScanner.next();
-                    rwMode = commandScanner.next();
-                    writeFile(args, buf, rwMode);
-                    break;
-                default:
-                    System.out.println("Invalid command.");
+                }
+                break;
+            case "write":
+                // 写入文件
+                if (checkArgs(words, 3, 3, "write 描述符|文件 内容 模式")) {
+                    writeFile(args.get(0), args.get(1), args.get(2));
+                }
+                break;
+            case "import":
+                // 从主机导入文件或目录树
+                if (checkArgs(words, 2, 2, "import 主机路径 目标路径")) {
+                    importHost(args.get(0), args.get(1));
+                }
+                break;
+            case "export":
+                // 导出文件或目录树到主机
+                if (checkArgs(words, 2, 2, "export 源路径 主机路径")) {
+                    exportHost(args.get(0), args.get(1));
+                }
+                break;
+            case "gen":
+                // 生成合成负载并计时
+                if (checkArgs(words, 5, 6, "gen 目录 深度 宽度 文件数 文件大小 [种子]")) {
+                    generateWorkload(args);
+                }
+                break;
+            case "cache":
+                // 显示各设备的缓冲区缓存和路径缓存统计
+                for (StorageVolume volume : service.getVolumes()) {
+                    System.out.println("[" + volume.getMountPath() + "] " + volume.getDevice().getDevicePath());
+                    volume.getCache().cacheUsage();
+                }
+                resolver.cacheUsage();
+                break;
+            case "stats":
+                // 显示或控制运行统计
+                if (checkArgs(words, 0, 1, "stats [reset|on|off]")) {
+                    showStats(args.isEmpty() ? "" : args.get(0));
+                }
+                break;
+            case "defrag":
+                // 整理文件碎片，或控制后台整理
+                if (checkArgs(words, 0, 2, "defrag [-n] [目录] | defrag start [目录] | defrag stop | defrag status")) {
+                    defragment(args);
+                }
+                break;
+            case "policy":
+                // 显示或设置存储块分配策略
+                if (checkArgs(words, 0, 1, "policy [best|next|group]")) {
+                    setPolicy(args.isEmpty() ? null : args.get(0));
+                }
+                break;
+            case "dedup":
+                // 显示或切换块去重
+                if (checkArgs(words, 0, 1, "dedup [on|off]")) {
+                    setDeduplication(args.isEmpty() ? null : args.get(0));
+                }
+                break;
+            case "snapshot":
+                // 创建整个文件系统的快照
+                if (checkArgs(words, 1, 1, "snapshot 名称")) {
+                    snapshot(args.get(0));
+                }
+                break;
+            case "clone":
+                // 克隆文件或目录树，与源共享存储块
+                if (checkArgs(words, 2, 2, "clone 源路径 目标路径")) {
+                    cloneTree(args.get(0), args.get(1));
+                }
+                break;
+            case "readahead":
+                // 显示预读统计，或开启、关闭预读
+                if (checkArgs(words, 0, 1, "readahead [on|off]")) {
+                    setReadAhead(args.isEmpty() ? null : args.get(0));
+                }
+                break;
+            case "sync":
+                // 等待已关闭文件的修改落盘
+                if (checkArgs(words, 0, 0, "sync")) {
+                    sync();
+                }
+                break;
+            case "compress":
+                // 显示压缩统计，或设置文件、目录的压缩策略
+                if (checkArgs(words, 0, 2, "compress [路径 lz|none|inherit]")) {
+                    setCompression(args);
+                }
+                break;
+            case "mount":
+                // 显示挂载的设备，或把存储设备挂载到空目录上
+                if (args.isEmpty()) {
+                    listMounts();
+                } else if (args.size() == 3) {
+                    fail("Failed: Usage: mount [设备文件 目录 [块数 块大小]]");
+                } else if (checkArgs(words, 2, 4, "mount [设备文件 目录 [块数 块大小]]")) {
+                    mountDevice(args);
+                }
+                break;
+            case "umount":
+                // 卸载挂载在空目录上的存储设备
+                if (checkArgs(words, 1, 1, "umount 目录")) {
+                    unmountDevice(args.get(0));
+                }
+                break;
+            default:
+                dispatched = false;
+                fail("Invalid command.");
+        }
+        return true;
+    }
+
+    /**
+     * 运行文件系统命令行界面
+     * 每行一条命令，参数按CommandTokenizer的规则分隔，含空白的参数用引号包围；输入结束时视为exit
+     */
+    public void run() {
+        while (true) {
+            System.out.print("fs> ");
+            if (!commandScanner.hasNextLine()) {
+                break;
             }
+            List<String> words;
+            try {
+                words = CommandTokenizer.tokenize(commandScanner.nextLine());
+            } catch (IllegalArgumentException e) {
+                fail("Failed: " + e.getMessage() + ".");
+                continue;
+            }
+            if (words.isEmpty()) {
+                continue;
+            }
+            boolean running;
+            service.beginOperation();
+            try {
+                running = execute(words);
+            } finally {
+                service.endOperation();
+            }
+            if (!running) {
+                break;
+            }
+        }
+        service.beginOperation();
+        try {
+            closeAllDescriptors();
+        } finally {
+            service.endOperation();
         }
+        service.getDefragmenter().shutdown();
+        service.persistFileSystem(StorageConstants.SERIALIZE_PATH);
     }
-}
\ No newline at end of file
+}
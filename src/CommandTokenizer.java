@@ -0,0 +1,111 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 命令行分词器
+ * 把一行命令拆分为命令名和参数，规则与常见的Unix shell相近：
+ * - 空白字符分隔参数；
+ * - 双引号内的空白保留，支持转义序列\"、\\、\n、\t；
+ * - 单引号内的内容原样保留；
+ * - 引号外的反斜杠转义下一个字符；
+ * - 相邻的引号部分和普通部分拼接为同一个参数，""表示空参数；
+ * - 引号外以#开头的参数及其后的内容是注释
+ */
+public class CommandTokenizer {
+
+    private CommandTokenizer() {
+    }
+
+    /**
+     * 拆分一行命令
+     * @param line 命令行
+     * @return 参数列表，空行和注释行返回空列表
+     * @throws IllegalArgumentException 引号未闭合或行尾是单独的反斜杠
+     */
+    public static List<String> tokenize(String line) {
+        List<String> words = new ArrayList<>();
+        StringBuilder word = new StringBuilder();
+        // 当前参数是否已开始（用于区分空参数""和没有参数）
+        boolean inWord = false;
+        int i = 0;
+        while (i < line.length()) {
+            char c = line.charAt(i);
+            if (Character.isWhitespace(c)) {
+                if (inWord) {
+                    words.add(word.toString());
+                    word.setLength(0);
+                    inWord = false;
+                }
+                i++;
+            } else if (c == '#' && !inWord) {
+                break;
+            } else if (c == '\'') {
+                int end = line.indexOf('\'', i + 1);
+                if (end < 0) {
+                    throw new IllegalArgumentException("unterminated quote");
+                }
+                word.append(line, i + 1, end);
+                inWord = true;
+                i = end + 1;
+            } else if (c == '"') {
+                i = readQuoted(line, i + 1, word);
+                inWord = true;
+            } else if (c == '\\') {
+                if (i + 1 >= line.length()) {
+                    throw new IllegalArgumentException("trailing backslash");
+                }
+                word.append(line.charAt(i + 1));
+                inWord = true;
+                i += 2;
+            } else {
+                word.append(c);
+                inWord = true;
+                i++;
+            }
+        }
+        if (inWord) {
+            words.add(word.toString());
+        }
+        return words;
+    }
+
+    /**
+     * 读取双引号内的内容并处理转义序列
+     * @param line 命令行
+     * @param start 左引号之后的位置
+     * @param word 接收内容的缓冲区
+     * @return 右引号之后的位置
+     */
+    private static int readQuoted(String line, int start, StringBuilder word) {
+        int i = start;
+        while (i < line.length()) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                return i + 1;
+            }
+            if (c == '\\' && i + 1 < line.length()) {
+                char next = line.charAt(i + 1);
+                switch (next) {
+                    case 'n':
+                        word.append('\n');
+                        break;
+                    case 't':
+                        word.append('\t');
+                        break;
+                    case '"':
+                    case '\\':
+                        word.append(next);
+                        break;
+                    default:
+                        // 不认识的转义序列原样保留
+                        word.append(c).append(next);
+                }
+                i += 2;
+            } else {
+                word.append(c);
+                i++;
+            }
+        }
+        throw new IllegalArgumentException("unterminated quote");
+    }
+}
@@ -0,0 +1,311 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * 在线碎片整理器
+ * 把内容分散在多个区段中的已关闭文件整体复制到一段连续的空闲存储块上，整理期间文件系统照常可用：
+ * 每个文件只在复制内容和切换块映射期间持有该文件的写锁。正在打开的文件、含有共享存储块的文件
+ * （移动会取消共享）和找不到足够长空闲区段的文件被跳过。
+ *
+ * 文件按批整理，每批在一个操作内进行：新存储块写入并切换块映射后记入日志，组提交之后才释放原来的存储块，
+ * 崩溃时日志和检查点中的块映射总是指向内容完整的存储块；后台整理在批之间释放操作锁，检查点可以在批之间进行。
+ * 既可以在命令中同步整理，也可以在后台线程中整理，同一时刻只有一次整理在进行
+ */
+public class Defragmenter {
+    // 每批整理的最大文件数
+    private static final int BATCH_FILES = 64;
+
+    // 文件系统服务
+    private final FileSystemService service;
+    // 是否有整理正在进行
+    private boolean running;
+    // 后台整理线程，没有后台整理时为null
+    private Thread worker;
+    // 是否请求停止正在进行的整理
+    private volatile boolean stopRequested;
+    // 当前或最近一次整理的目录
+    private String rootPath;
+
+    // 统计计数（当前或最近一次整理）
+    private long files;
+    private long fragmentedFiles;
+    private long extentsBefore;
+    private long extentsAfter;
+    private long movedFiles;
+    private long movedBlocks;
+    private long skippedFiles;
+    private long startTime;
+    private long nanos;
+
+    /**
+     * 创建碎片整理器
+     * @param service 文件系统服务
+     */
+    public Defragmenter(FileSystemService service) {
+        this.service = service;
+    }
+
+    /**
+     * 在当前线程中整理目录树中的文件，调用者应持有操作锁的读锁
+     * @param root 起始目录
+     * @param analyzeOnly 为true时只统计碎片情况，不移动任何文件
+     * @return 开始整理返回true；已有整理正在进行时返回false
+     */
+    public boolean run(FileSystemFolder root, boolean analyzeOnly) {
+        if (!begin(root)) {
+            return false;
+        }
+        try {
+            List<FileSystemDocument> documents = new ArrayList<>();
+            collectFiles(root, documents);
+            for (int i = 0; i < documents.size() && !stopRequested; i += BATCH_FILES) {
+                defragBatch(documents.subList(i, Math.min(documents.size(), i + BATCH_FILES)), analyzeOnly);
+            }
+        } finally {
+            finish();
+        }
+        return true;
+    }
+
+    /**
+     * 在后台线程中整理目录树中的文件，立即返回；每批文件在一个单独的操作内整理
+     * @param root 起始目录
+     * @return 开始整理返回true；已有整理正在进行时返回false
+     */
+    public synchronized boolean start(FileSystemFolder root) {
+        if (!begin(root)) {
+            return false;
+        }
+        worker = new Thread(() -> runWorker(root), "defragmenter");
+        worker.setDaemon(true);
+        worker.start();
+        return true;
+    }
+
+    /**
+     * 请求停止正在进行的整理，当前文件整理完成后停止，立即返回
+     */
+    public void stop() {
+        stopRequested = true;
+    }
+
+    /**
+     * 停止后台整理并等待后台线程结束，调用者不能持有操作锁
+     */
+    public void shutdown() {
+        Thread current;
+        synchronized (this) {
+            current = worker;
+        }
+        if (current == null) {
+            return;
+        }
+        stop();
+        try {
+            current.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 检查是否有整理正在进行
+     * @return 如果正在整理则返回true
+     */
+    public synchronized boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * 标记整理开始并清空统计
+     */
+    private synchronized boolean begin(FileSystemFolder root) {
+        if (running) {
+            return false;
+        }
+        running = true;
+        stopRequested = false;
+        rootPath = root.getPath();
+        files = 0;
+        fragmentedFiles = 0;
+        extentsBefore = 0;
+        extentsAfter = 0;
+        movedFiles = 0;
+        movedBlocks = 0;
+        skippedFiles = 0;
+        startTime = System.nanoTime();
+        nanos = 0;
+        return true;
+    }
+
+    /**
+     * 标记整理结束
+     */
+    private synchronized void finish() {
+        nanos = System.nanoTime() - startTime;
+        running = false;
+        worker = null;
+    }
+
+    /**
+     * 后台线程：收集文件后逐批整理
+     */
+    private void runWorker(FileSystemFolder root) {
+        try {
+            List<FileSystemDocument> documents = new ArrayList<>();
+            service.beginOperation();
+            try {
+                collectFiles(root, documents);
+            } finally {
+                service.endOperation();
+            }
+            for (int i = 0; i < documents.size() && !stopRequested; i += BATCH_FILES) {
+                service.beginOperation();
+                try {
+                    defragBatch(documents.subList(i, Math.min(documents.size(), i + BATCH_FILES)), false);
+                } finally {
+                    service.endOperation();
+                }
+            }
+        } finally {
+            finish();
+        }
+    }
+
+    /**
+     * 在目录的读锁保护下收集目录树中的所有文件
+     */
+    private void collectFiles(FileSystemFolder folder, List<FileSystemDocument> documents) {
+        List<FileSystemNode> children;
+        folder.getLock().readLock().lock();
+        try {
+            if (folder.isUnlinked()) {
+                return;
+            }
+            children = new ArrayList<>(folder.getEntries().values());
+        } finally {
+            folder.getLock().readLock().unlock();
+        }
+        for (FileSystemNode child : children) {
+            if (child.isDirectory) {
+                collectFiles((FileSystemFolder) child, documents);
+            } else {
+                documents.add((FileSystemDocument) child);
+            }
+        }
+    }
+
+    /**
+     * 整理一批文件：逐个移动后组提交日志，再释放这些文件原来的存储块
+     * @param batch 本批的文件
+     * @param analyzeOnly 为true时只统计，不移动
+     */
+    private void defragBatch(List<FileSystemDocument> batch, boolean analyzeOnly) {
+        List<StorageVolume> volumes = new ArrayList<>();
+        List<ArrayList<Integer>> released = new ArrayList<>();
+        boolean deferred = service.isDeferredCommit();
+        service.setDeferredCommit(true);
+        try {
+            for (FileSystemDocument document : batch) {
+                if (stopRequested) {
+                    break;
+                }
+                StorageVolume volume = service.getVolume(document);
+                ArrayList<Integer> previous = relocate(document, volume, analyzeOnly);
+                if (previous != null) {
+                    volumes.add(volume);
+                    released.add(previous);
+                }
+            }
+        } finally {
+            service.setDeferredCommit(deferred);
+        }
+        if (released.isEmpty()) {
+            return;
+        }
+        // 新的块映射落盘之后，原来的存储块才能被重新分配
+        service.commit();
+        for (int i = 0; i < released.size(); i++) {
+            volumes.get(i).getCache().invalidate(released.get(i));
+            volumes.get(i).getDevice().diskFree(released.get(i));
+        }
+    }
+
+    /**
+     * 在文件的写锁保护下把有碎片的已关闭文件复制到一段连续的存储块上，并把新的块映射记入日志
+     * @param document 文件
+     * @param volume 文件所在的存储卷
+     * @param analyzeOnly 为true时只统计，不移动
+     * @return 文件原来的存储块，由调用者在日志提交后释放；文件没有移动时返回null
+     */
+    private ArrayList<Integer> relocate(FileSystemDocument document, StorageVolume volume, boolean analyzeOnly) {
+        Lock lock = document.getLock().writeLock();
+        lock.lock();
+        try {
+            if (document.isUnlinked()) {
+                return null;
+            }
+            VirtualFileContent file = document.file;
+            int extents = file.getExtentCount();
+            synchronized (this) {
+                files++;
+                extentsBefore += extents;
+                extentsAfter += extents;
+                if (extents > 1) {
+                    fragmentedFiles++;
+                }
+            }
+            if (extents <= 1 || analyzeOnly) {
+                return null;
+            }
+            // 尚未展开的克隆先取得文件当前的块映射，随后与本文件共享存储块，文件因此被跳过
+            service.getCloner().preserve(document);
+            StorageDevice device = volume.getDevice();
+            ArrayList<Integer> previous = file.getBlockIndices();
+            boolean movable = !file.isOpen() && !device.hasSharedBlocks(previous);
+            ArrayList<Integer> fresh = movable ? device.diskAllocContiguous(previous.size()) : new ArrayList<>();
+            if (fresh.isEmpty()) {
+                synchronized (this) {
+                    skippedFiles++;
+                }
+                return null;
+            }
+
+            // 已关闭文件的修改可能还在等待后台写回，先写回再从设备复制；压缩单元的存储块按原样复制
+            volume.getCache().flush(previous);
+            byte[] buffer = new byte[device.getBlockSize()];
+            for (int i = 0; i < previous.size(); i++) {
+                int length = device.readBlock(previous.get(i), buffer);
+                device.writeBlock(fresh.get(i), buffer, length);
+            }
+            volume.getCache().invalidate(fresh);
+            file.replaceBlocks(fresh);
+            service.logOperation(service.closeRecord(document));
+            synchronized (this) {
+                movedFiles++;
+                movedBlocks += fresh.size();
+                extentsAfter -= extents - 1;
+            }
+            return previous;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 获取当前或最近一次整理的统计
+     * @return 统计信息，从未整理过时返回提示
+     */
+    public synchronized String getReport() {
+        if (rootPath == null) {
+            return "没有进行过碎片整理";
+        }
+        long elapsed = running ? System.nanoTime() - startTime : nanos;
+        double average = files == 0 ? 0 : (double) extentsAfter / files;
+        return String.format("%s%s: %d 个文件, %d 个有碎片; 移动 %d 个文件 (%d 块), 跳过 %d 个; "
+                        + "区段数 %d -> %d (平均每文件 %.2f), %d ms",
+                running ? "正在整理 " : "整理 ", rootPath, files, fragmentedFiles, movedFiles, movedBlocks,
+                skippedFiles, extentsBefore, extentsAfter, average, elapsed / 1_000_000);
+    }
+}
@@ -0,0 +1,103 @@
+/**
+ * 文件描述符
+ * 会话打开文件后得到的句柄，保存被打开的文件、打开模式、当前读写位置和预读状态。
+ * 通过描述符读写文件时直接访问文件节点，不再按名称查找目录项
+ */
+public class FileDescriptor {
+    // 只读模式
+    public static final String MODE_READ = "r";
+    // 读写模式
+    public static final String MODE_READ_WRITE = "rw";
+
+    // 描述符编号
+    private final int fd;
+    // 被打开的文件
+    private final FileSystemDocument document;
+    // 打开模式
+    private final String mode;
+    // 当前读写位置（字节）
+    private int offset;
+    // 顺序读取检测和预读窗口
+    private final ReadAhead readAhead;
+
+    /**
+     * 创建文件描述符
+     * @param fd 描述符编号
+     * @param document 被打开的文件
+     * @param mode 打开模式
+     * @param readAhead 预读状态
+     */
+    public FileDescriptor(int fd, FileSystemDocument document, String mode, ReadAhead readAhead) {
+        this.fd = fd;
+        this.document = document;
+        this.mode = mode;
+        this.offset = 0;
+        this.readAhead = readAhead;
+    }
+
+    /**
+     * 获取描述符编号
+     * @return 描述符编号
+     */
+    public int getFd() {
+        return fd;
+    }
+
+    /**
+     * 获取被打开的文件
+     * @return 文件对象
+     */
+    public FileSystemDocument getDocument() {
+        return document;
+    }
+
+    /**
+     * 获取打开模式
+     * @return 打开模式
+     */
+    public String getMode() {
+        return mode;
+    }
+
+    /**
+     * 检查是否可以通过此描述符写入
+     * @return 如果可写则返回true，否则返回false
+     */
+    public boolean isWritable() {
+        return MODE_READ_WRITE.equals(mode);
+    }
+
+    /**
+     * 获取当前读写位置
+     * @return 当前读写位置（字节）
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * 设置当前读写位置
+     * @param offset 新的读写位置（字节）
+     */
+    public void setOffset(int offset) {
+        this.offset = offset;
+    }
+
+    /**
+     * 获取预读状态
+     * @return 预读状态
+     */
+    public ReadAhead getReadAhead() {
+        return readAhead;
+    }
+
+    @Override
+    public String toString() {
+        return "FileDescriptor{" +
+                "fd=" + fd +
+                ", document=" + document.getName() +
+                ", mode='" + mode + '\'' +
+                ", offset=" + offset +
+                '}';
+    }
+}
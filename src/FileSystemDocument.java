@@ -26,6 +26,31 @@ public class FileSystemDocument extends FileSystemNode implements Serializable {
         this.file = new VirtualFileContent();
     }
 
+    /**
+     * 创建一个块映射保存在元数据镜像中的文件文档
+     *
+     * @param name 文件名称
+     * @param parentDir 父目录引用
+     * @param image 元数据镜像
+     * @param inode 文件在镜像中的inode编号
+     */
+    public FileSystemDocument(String name, FileSystemFolder parentDir, FileSystemImage image, int inode) {
+        super(name, false, parentDir);
+        this.file = new VirtualFileContent(image, inode);
+    }
+
+    /**
+     * 创建一个内容已确定的文件文档，用于克隆
+     *
+     * @param name 文件名称
+     * @param parentDir 父目录引用
+     * @param file 文件内容
+     */
+    public FileSystemDocument(String name, FileSystemFolder parentDir, VirtualFileContent file) {
+        super(name, false, parentDir);
+        this.file = file;
+    }
+
     /**
      * 检查文件是否处于打开状态
      * @return 如果文件已打开则返回true，否则返回false
@@ -34,10 +59,49 @@ public class FileSystemDocument extends FileSystemNode implements Serializable {
         return file.isOpen();
     }
     
+    /**
+     * 打开文件，并计入所有上级目录的打开文件数，调用者应持有该文件的写锁
+     * 先计数再检查删除标记，与删除目录时先标记再检查计数的顺序相对，
+     * 二者并发时至少有一方能看到另一方的修改
+     *
+     * @param cache 缓冲区缓存
+     * @return 打开成功返回true，文件已被删除时返回false
+     */
+    public boolean open(BufferCache cache) {
+        adjustAncestors(1);
+        if (isUnlinked()) {
+            adjustAncestors(-1);
+            return false;
+        }
+        file.setAllocationGroup(parentDir.getPath());
+        file.setOpen(true, cache);
+        return true;
+    }
+
+    /**
+     * 关闭文件并提交内容，调用者应持有该文件的写锁
+     * @param cache 缓冲区缓存
+     */
+    public void close(BufferCache cache) {
+        if (file.isOpen()) {
+            file.setOpen(false, cache);
+            adjustAncestors(-1);
+        }
+    }
+
+    /**
+     * 调整所有上级目录的打开文件数
+     */
+    private void adjustAncestors(int delta) {
+        for (FileSystemFolder folder = parentDir; folder != null; folder = folder.getParentDir()) {
+            folder.addOpenFiles(delta);
+        }
+    }
+
     /**
      * 设置文件的打开或关闭状态
      * 注意：此方法是一个简化版本，仅用于标记文件的打开状态
-     * 完整的文件打开/关闭操作应该调用VirtualFileContent.setOpen(boolean, StorageDevice)
+     * 完整的文件打开/关闭操作应该调用open(BufferCache)和close(BufferCache)
      * 
      * @param status 目标状态，true表示打开，false表示关闭
      */
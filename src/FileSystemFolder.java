@@ -1,14 +1,28 @@
 import java.io.Serializable;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * 文件系统目录类
  * 表示文件系统中的目录结构，管理子目录和文件
  */
 public class FileSystemFolder extends FileSystemNode implements Serializable {
-    // 目录内容表，存储子目录和文件的映射关系
-    private final HashMap<String, FileSystemNode> dirTable;
+    // 目录内容表，按名称排序存储子目录和文件，支持有序遍历、按游标分页和按前缀定位
+    private final TreeMap<String, FileSystemNode> dirTable;
+    // 目录内容所在的元数据镜像，为null表示目录内容已全部在内存中
+    private transient volatile FileSystemImage image;
+    // 目录在镜像中的inode编号
+    private transient int inode;
+    // 尚未展开的克隆目录所属的克隆器，为null表示目录不是待展开的克隆
+    private transient volatile SubtreeCloner cloner;
+    // 尚未展开的克隆目录的源目录
+    private transient FileSystemFolder cloneSource;
+    // 子树中处于打开状态的文件描述符数量，删除目录时据此判断而无需遍历子树
+    private final transient AtomicInteger openFileCount = new AtomicInteger();
 
     /**
      * 创建一个新的目录
@@ -19,7 +33,122 @@ public class FileSystemFolder extends FileSystemNode implements Serializable {
      */
     public FileSystemFolder(String name, boolean isDirectory, FileSystemFolder parentDir) {
         super(name, isDirectory, parentDir);
-        dirTable = new HashMap<>();
+        dirTable = new TreeMap<>();
+    }
+
+    /**
+     * 创建一个内容保存在元数据镜像中的目录，目录项在第一次访问时加载
+     *
+     * @param name 目录名称
+     * @param parentDir 父目录引用
+     * @param image 元数据镜像
+     * @param inode 目录在镜像中的inode编号
+     */
+    public FileSystemFolder(String name, FileSystemFolder parentDir, FileSystemImage image, int inode) {
+        this(name, true, parentDir);
+        this.image = image;
+        this.inode = inode;
+    }
+
+    /**
+     * 创建一个尚未展开的克隆目录，目录项在第一次访问时由克隆器从源目录复制
+     *
+     * @param name 目录名称
+     * @param parentDir 父目录引用
+     * @param cloner 克隆器
+     * @param source 源目录
+     */
+    public FileSystemFolder(String name, FileSystemFolder parentDir, SubtreeCloner cloner, FileSystemFolder source) {
+        this(name, true, parentDir);
+        this.cloneSource = source;
+        this.cloner = cloner;
+    }
+
+    /**
+     * 确保目录项已从元数据镜像中加载，或已从克隆的源目录复制
+     * 多个会话可能同时持有目录的读锁并第一次访问目录，加载过程需要互斥；
+     * 目录项全部加载完成后才清除镜像引用，其他线程看到null时目录项已完整可见
+     */
+    private void ensureLoaded() {
+        if (image != null) {
+            synchronized (this) {
+                FileSystemImage source = image;
+                if (source != null) {
+                    source.loadDirectory(this, inode);
+                    image = null;
+                }
+            }
+        }
+        SubtreeCloner pending = cloner;
+        if (pending != null) {
+            pending.expand(this);
+        }
+    }
+
+    /**
+     * 获取尚未展开的克隆目录的源目录
+     * @return 源目录，目录不是待展开的克隆时返回null
+     */
+    FileSystemFolder getCloneSource() {
+        return cloneSource;
+    }
+
+    /**
+     * 克隆器复制完目录项后调用，此后目录是普通目录
+     */
+    void finishClone() {
+        cloneSource = null;
+        cloner = null;
+    }
+
+    /**
+     * 检查目录项是否已加载到内存中
+     * @return 如果已加载则返回true，否则返回false
+     */
+    public boolean isLoaded() {
+        return image == null;
+    }
+
+    /**
+     * 获取尚未加载的目录所在的元数据镜像
+     * @return 元数据镜像，已加载时返回null
+     */
+    public FileSystemImage getImage() {
+        return image;
+    }
+
+    /**
+     * 获取目录在元数据镜像中的inode编号
+     * @return inode编号
+     */
+    public int getInode() {
+        return inode;
+    }
+
+    /**
+     * 获取子树中处于打开状态的文件描述符数量
+     * @return 打开的文件描述符数量
+     */
+    public int getOpenFileCount() {
+        return openFileCount.get();
+    }
+
+    /**
+     * 调整子树中处于打开状态的文件描述符数量
+     * @param delta 增加的数量，关闭时为负数
+     */
+    void addOpenFiles(int delta) {
+        openFileCount.addAndGet(delta);
+    }
+
+    /**
+     * 从元数据镜像加载目录项时添加条目，不触发加载
+     *
+     * @param name 条目名称
+     * @param entry 条目对象
+     */
+    void attachEntry(String name, FileSystemNode entry) {
+        dirTable.put(name, entry);
     }
 
     /**
@@ -29,6 +158,7 @@ public class FileSystemFolder extends FileSystemNode implements Serializable {
      * @return 如果存在则返回true，否则返回false
      */
     public boolean containsEntry(String name) {
+        ensureLoaded();
         return dirTable.containsKey(name);
     }
     
@@ -39,6 +169,7 @@ public class FileSystemFolder extends FileSystemNode implements Serializable {
      * @return 条目对象，如果不存在则返回null
      */
     public FileSystemNode getEntry(String name) {
+        ensureLoaded();
         return dirTable.get(name);
     }
     
@@ -49,6 +180,7 @@ public class FileSystemFolder extends FileSystemNode implements Serializable {
      * @param entry 条目对象
      */
     public void addEntry(String name, FileSystemNode entry) {
+        ensureLoaded();
         dirTable.put(name, entry);
     }
     
@@ -59,15 +191,84 @@ public class FileSystemFolder extends FileSystemNode implements Serializable {
      * @return 被移除的条目对象，如果不存在则返回null
      */
     public FileSystemNode removeEntry(String name) {
+        ensureLoaded();
         return dirTable.remove(name);
     }
     
+    /**
+     * 按名称顺序列出一页目录项
+     * 从游标之后开始，只遍历名称以模式中通配符之前的部分开头的区间，遍历量与页大小而非目录大小相关
+     *
+     * @param after 游标：只返回名称大于该值的条目，null表示从头开始
+     * @param pattern 名称模式，支持"*"和"?"通配符，null表示不过滤
+     * @param limit 最多返回的条目数
+     * @return 按名称排序的条目列表
+     */
+    public List<FileSystemNode> listEntries(String after, String pattern, int limit) {
+        ensureLoaded();
+        String prefix = pattern == null ? "" : literalPrefix(pattern);
+        NavigableMap<String, FileSystemNode> range = after != null && after.compareTo(prefix) >= 0
+                ? dirTable.tailMap(after, false)
+                : dirTable.tailMap(prefix, true);
+        List<FileSystemNode> page = new ArrayList<>(Math.min(limit, 64));
+        for (Map.Entry<String, FileSystemNode> entry : range.entrySet()) {
+            if (page.size() >= limit || !entry.getKey().startsWith(prefix)) {
+                break;
+            }
+            if (pattern == null || matches(pattern, entry.getKey())) {
+                page.add(entry.getValue());
+            }
+        }
+        return page;
+    }
+
+    /**
+     * 获取名称模式中第一个通配符之前的部分
+     */
+    private static String literalPrefix(String pattern) {
+        int end = 0;
+        while (end < pattern.length() && pattern.charAt(end) != '*' && pattern.charAt(end) != '?') {
+            end++;
+        }
+        return pattern.substring(0, end);
+    }
+
+    /**
+     * 检查名称是否匹配模式，"*"匹配任意个字符，"?"匹配一个字符
+     */
+    private static boolean matches(String pattern, String name) {
+        int p = 0;
+        int n = 0;
+        int starPattern = -1;
+        int starName = 0;
+        while (n < name.length()) {
+            if (p < pattern.length() && (pattern.charAt(p) == '?' || pattern.charAt(p) == name.charAt(n))) {
+                p++;
+                n++;
+            } else if (p < pattern.length() && pattern.charAt(p) == '*') {
+                starPattern = p++;
+                starName = n;
+            } else if (starPattern >= 0) {
+                // 回到上一个"*"，让它多匹配一个字符
+                p = starPattern + 1;
+                n = ++starName;
+            } else {
+                return false;
+            }
+        }
+        while (p < pattern.length() && pattern.charAt(p) == '*') {
+            p++;
+        }
+        return p == pattern.length();
+    }
+
     /**
      * 获取目录中所有条目的名称
      * 
-     * @return 条目名称集合
+     * @return 按名称排序的条目名称集合
      */
     public Iterable<String> getEntryNames() {
+        ensureLoaded();
         return dirTable.keySet();
     }
     
@@ -77,7 +278,8 @@ public class FileSystemFolder extends FileSystemNode implements Serializable {
      * @return 条目映射表的副本
      */
     public Map<String, FileSystemNode> getEntries() {
-        return new HashMap<>(dirTable);
+        ensureLoaded();
+        return new TreeMap<>(dirTable);
     }
     
     /**
@@ -86,6 +288,7 @@ public class FileSystemFolder extends FileSystemNode implements Serializable {
      * @return 如果目录为空则返回true，否则返回false
      */
     public boolean isEmpty() {
+        ensureLoaded();
         return dirTable.isEmpty();
     }
     
@@ -93,7 +296,7 @@ public class FileSystemFolder extends FileSystemNode implements Serializable {
     public String toString() {
         return "FileSystemFolder{" +
                 "name='" + name + '\'' +
-                "dirTable=" + dirTable +
+                "dirTable=" + (isLoaded() ? dirTable : "<not loaded>") +
                 ", isDirectory=" + isDirectory +
                 ", parentDir=" + parentDir +
                 '}';
@@ -0,0 +1,373 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 文件系统元数据镜像
+ * 以版本化的二进制格式保存检查点时刻的目录树，读取时按需加载：
+ * 目录项和文件块映射只在第一次被访问时才从镜像中解析出来
+ *
+ * 镜像布局：[超级块] [目录块与文件块映射] [inode表]
+ * 分配位图和数据块保存在存储设备文件中
+ *
+ * 目录块中的目录项按名称排序并做前缀压缩：每项只保存与前一项相同的前缀长度和不同的后缀，
+ * 大量名称相近的目录项（如file000001、file000002）只占用几个字节。版本1的镜像不做前缀压缩，仍可读取。
+ * 版本3起文件大小以字节计；更早版本的文件大小以字符计，对应旧格式的存储设备，只用于迁移。
+ * 版本4起文件块映射之后是各压缩单元压缩后的字节数：[单元数] [字节数]*，没有压缩单元的文件单元数为0；
+ * 块映射中压缩单元的空洞为BlockMap.HOLE
+ *
+ * 镜像整体映射为一个内存映射缓冲区，其中的偏移量按int访问，因此镜像不能超过MAX_IMAGE_SIZE（2 GB）：
+ * 写入时超过上限则失败，打开时拒绝更大的文件
+ */
+public class FileSystemImage {
+    // 镜像文件魔数与格式版本
+    private static final int IMAGE_MAGIC = 0x43484B49;
+    private static final int IMAGE_VERSION = 4;
+    // 没有压缩单元信息的旧版本
+    private static final int IMAGE_VERSION_UNPACKED = 3;
+    // 文件大小以字符计的旧版本
+    private static final int IMAGE_VERSION_CHARS = 2;
+    // 不做前缀压缩的旧版本
+    private static final int IMAGE_VERSION_PLAIN = 1;
+    // 超级块大小：魔数、版本、检查点编号、inode数、根inode、inode表偏移
+    private static final int SUPERBLOCK_SIZE = 32;
+    // inode记录大小：类型、父inode、大小、数据偏移、数据长度
+    private static final int INODE_SIZE = 24;
+    // inode类型
+    private static final int TYPE_DIRECTORY = 1;
+    private static final int TYPE_FILE = 2;
+    // 镜像文件的大小上限：单个内存映射缓冲区的上限
+    static final long MAX_IMAGE_SIZE = Integer.MAX_VALUE;
+
+    // 镜像文件的只读内存映射
+    private final MappedByteBuffer buffer;
+    // 镜像格式版本
+    private final int version;
+    // 镜像对应的检查点编号
+    private final long checkpointId;
+    // inode数量
+    private final int inodeCount;
+    // 根目录inode编号
+    private final int rootInode;
+    // inode表在镜像中的偏移量
+    private final long inodeTableOffset;
+
+    private FileSystemImage(MappedByteBuffer buffer) {
+        this.buffer = buffer;
+        this.version = buffer.getInt(4);
+        if (buffer.getInt(0) != IMAGE_MAGIC || version < IMAGE_VERSION_PLAIN || version > IMAGE_VERSION) {
+            throw new IllegalStateException("Unsupported file system image format");
+        }
+        this.checkpointId = buffer.getLong(8);
+        this.inodeCount = buffer.getInt(16);
+        this.rootInode = buffer.getInt(20);
+        this.inodeTableOffset = buffer.getLong(24);
+    }
+
+    /**
+     * 检查镜像中的文件大小是否以字符计（版本3之前的镜像）
+     * @return 如果是旧版本的镜像则返回true
+     */
+    public boolean hasCharSizes() {
+        return version <= IMAGE_VERSION_CHARS;
+    }
+
+    /**
+     * 打开镜像文件，只读取超级块
+     * @param filePath 镜像文件路径
+     * @return 镜像对象，文件不存在时返回null
+     */
+    public static FileSystemImage open(String filePath) {
+        Path path = Paths.get(filePath);
+        if (!Files.exists(path)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > MAX_IMAGE_SIZE) {
+                throw new IllegalStateException("File system image is larger than " + MAX_IMAGE_SIZE + " bytes");
+            }
+            return new FileSystemImage(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to open file system image: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * 获取镜像对应的检查点编号
+     * @return 检查点编号
+     */
+    public long getCheckpointId() {
+        return checkpointId;
+    }
+
+    /**
+     * 获取根目录，目录内容在第一次访问时加载
+     * @return 尚未加载内容的根目录
+     */
+    public FileSystemFolder loadRoot() {
+        return new FileSystemFolder("/", null, this, rootInode);
+    }
+
+    private int inodeBase(int inode) {
+        if (inode < 0 || inode >= inodeCount) {
+            throw new IllegalStateException("Invalid inode number " + inode);
+        }
+        return (int) (inodeTableOffset + (long) inode * INODE_SIZE);
+    }
+
+    /**
+     * 解析目录的目录块，为每个目录项创建尚未加载内容的子节点
+     * @param folder 目标目录
+     * @param inode 目录的inode编号
+     */
+    void loadDirectory(FileSystemFolder folder, int inode) {
+        List<String> names = new ArrayList<>();
+        List<Integer> inodes = new ArrayList<>();
+        readEntries(inode, names, inodes);
+        for (int i = 0; i < names.size(); i++) {
+            String name = names.get(i);
+            int childInode = inodes.get(i);
+            if (buffer.getInt(inodeBase(childInode)) == TYPE_DIRECTORY) {
+                folder.attachEntry(name, new FileSystemFolder(name, folder, this, childInode));
+            } else {
+                folder.attachEntry(name, new FileSystemDocument(name, folder, this, childInode));
+            }
+        }
+    }
+
+    /**
+     * 解码目录的目录块
+     * @param inode 目录的inode编号
+     * @param names 用于收集目录项名称的列表
+     * @param inodes 用于收集目录项inode编号的列表
+     */
+    private void readEntries(int inode, List<String> names, List<Integer> inodes) {
+        int base = inodeBase(inode);
+        int entryCount = buffer.getInt(base + 8);
+        int position = (int) buffer.getLong(base + 12);
+        byte[] previous = new byte[0];
+        for (int i = 0; i < entryCount; i++) {
+            inodes.add(buffer.getInt(position));
+            byte[] nameBytes;
+            if (version == IMAGE_VERSION_PLAIN) {
+                nameBytes = new byte[buffer.getShort(position + 4) & 0xFFFF];
+                buffer.get(position + 6, nameBytes);
+                position += 6 + nameBytes.length;
+            } else {
+                int shared = buffer.getShort(position + 4) & 0xFFFF;
+                int suffixLength = buffer.getShort(position + 6) & 0xFFFF;
+                nameBytes = new byte[shared + suffixLength];
+                System.arraycopy(previous, 0, nameBytes, 0, shared);
+                buffer.get(position + 8, nameBytes, shared, suffixLength);
+                position += 8 + suffixLength;
+            }
+            names.add(new String(nameBytes, StandardCharsets.UTF_8));
+            previous = nameBytes;
+        }
+    }
+
+    /**
+     * 解析文件的块映射
+     * @param content 目标文件内容管理器
+     * @param inode 文件的inode编号
+     */
+    void loadBlockMap(VirtualFileContent content, int inode) {
+        List<Integer> blocks = new ArrayList<>();
+        List<Integer> packedLengths = new ArrayList<>();
+        int contentSize = readBlockMap(inode, blocks, packedLengths);
+        content.restoreMapping(contentSize, blocks, packedLengths);
+    }
+
+    /**
+     * 读取文件的大小、块映射和各压缩单元压缩后的字节数
+     * @param inode 文件的inode编号
+     * @param blocks 用于收集块映射的列表
+     * @param packedLengths 用于收集各单元字节数的列表，旧版本镜像中没有
+     * @return 文件大小
+     */
+    private int readBlockMap(int inode, List<Integer> blocks, List<Integer> packedLengths) {
+        int base = inodeBase(inode);
+        int contentSize = buffer.getInt(base + 8);
+        int position = (int) buffer.getLong(base + 12);
+        int blockCount = buffer.getInt(base + 20);
+        for (int i = 0; i < blockCount; i++) {
+            blocks.add(buffer.getInt(position + i * Integer.BYTES));
+        }
+        if (version > IMAGE_VERSION_UNPACKED) {
+            position += blockCount * Integer.BYTES;
+            int unitCount = buffer.getInt(position);
+            for (int i = 0; i < unitCount; i++) {
+                packedLengths.add(buffer.getInt(position + (i + 1) * Integer.BYTES));
+            }
+        }
+        return contentSize;
+    }
+
+    /**
+     * 待写入镜像的节点：已加载的Java对象，或仍保存在旧镜像中的inode
+     */
+    private static class PendingNode {
+        final FileSystemNode node;
+        final FileSystemImage source;
+        final int sourceInode;
+        final int parentInode;
+
+        PendingNode(FileSystemNode node, FileSystemImage source, int sourceInode, int parentInode) {
+            this.node = node;
+            this.source = source;
+            this.sourceInode = sourceInode;
+            this.parentInode = parentInode;
+        }
+
+        static PendingNode of(FileSystemNode node, int parentInode) {
+            if (node.isDirectory) {
+                FileSystemFolder folder = (FileSystemFolder) node;
+                if (!folder.isLoaded()) {
+                    return new PendingNode(null, folder.getImage(), folder.getInode(), parentInode);
+                }
+            } else {
+                VirtualFileContent content = ((FileSystemDocument) node).file;
+                if (!content.isLoaded()) {
+                    return new PendingNode(null, content.getImage(), content.getInode(), parentInode);
+                }
+            }
+            return new PendingNode(node, null, -1, parentInode);
+        }
+
+        boolean isDirectory() {
+            return node != null ? node.isDirectory : source.buffer.getInt(source.inodeBase(sourceInode)) == TYPE_DIRECTORY;
+        }
+    }
+
+    /**
+     * 将目录树写入新的镜像文件
+     * 尚未加载的子树直接从其所在的旧镜像中复制，不会被实例化为Java对象
+     *
+     * @param filePath 镜像文件路径
+     * @param checkpointId 检查点编号
+     * @param root 根目录
+     * @throws IOException 写入失败，或镜像将超过MAX_IMAGE_SIZE
+     */
+    public static void write(String filePath, long checkpointId, FileSystemFolder root) throws IOException {
+        ByteArrayOutputStream inodeBytes = new ByteArrayOutputStream();
+        DataOutputStream inodeTable = new DataOutputStream(inodeBytes);
+        int nextInode = 1;
+        long position = SUPERBLOCK_SIZE;
+
+        try (FileOutputStream fileOut = new FileOutputStream(filePath);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut))) {
+            out.write(new byte[SUPERBLOCK_SIZE]);
+
+            ArrayDeque<PendingNode> queue = new ArrayDeque<>();
+            queue.add(PendingNode.of(root, 0));
+            int currentInode = 0;
+            while (!queue.isEmpty()) {
+                PendingNode pending = queue.poll();
+                long dataOffset = position;
+                int size;
+                int dataLength;
+                if (pending.isDirectory()) {
+                    List<String> names = new ArrayList<>();
+                    List<PendingNode> children = new ArrayList<>();
+                    listChildren(pending, currentInode, names, children);
+                    byte[] previous = new byte[0];
+                    for (int i = 0; i < children.size(); i++) {
+                        byte[] nameBytes = names.get(i).getBytes(StandardCharsets.UTF_8);
+                        int shared = 0;
+                        int limit = Math.min(previous.length, nameBytes.length);
+                        while (shared < limit && previous[shared] == nameBytes[shared]) {
+                            shared++;
+                        }
+                        out.writeInt(nextInode++);
+                        out.writeShort(shared);
+                        out.writeShort(nameBytes.length - shared);
+                        out.write(nameBytes, shared, nameBytes.length - shared);
+                        position += 8 + nameBytes.length - shared;
+                        queue.add(children.get(i));
+                        previous = nameBytes;
+                    }
+                    size = children.size();
+                    dataLength = (int) (position - dataOffset);
+                    inodeTable.writeInt(TYPE_DIRECTORY);
+                } else {
+                    List<Integer> blocks;
+                    List<Integer> packedLengths;
+                    if (pending.node != null) {
+                        VirtualFileContent content = ((FileSystemDocument) pending.node).file;
+                        size = content.getContentSize();
+                        blocks = content.getBlockMapping();
+                        packedLengths = content.getPackedLengths();
+                    } else {
+                        blocks = new ArrayList<>();
+                        packedLengths = new ArrayList<>();
+                        size = pending.source.readBlockMap(pending.sourceInode, blocks, packedLengths);
+                    }
+                    for (int block : blocks) {
+                        out.writeInt(block);
+                    }
+                    out.writeInt(packedLengths.size());
+                    for (int length : packedLengths) {
+                        out.writeInt(length);
+                    }
+                    position += (long) (blocks.size() + 1 + packedLengths.size()) * Integer.BYTES;
+                    dataLength = blocks.size();
+                    inodeTable.writeInt(TYPE_FILE);
+                }
+                inodeTable.writeInt(pending.parentInode);
+                inodeTable.writeInt(size);
+                inodeTable.writeLong(dataOffset);
+                inodeTable.writeInt(dataLength);
+                currentInode++;
+                if (position + (long) currentInode * INODE_SIZE > MAX_IMAGE_SIZE) {
+                    throw new IOException("File system image would exceed " + MAX_IMAGE_SIZE + " bytes");
+                }
+            }
+            inodeTable.flush();
+            inodeBytes.writeTo(out);
+            out.flush();
+            fileOut.getFD().sync();
+        }
+
+        try (RandomAccessFile superblock = new RandomAccessFile(filePath, "rw")) {
+            superblock.writeInt(IMAGE_MAGIC);
+            superblock.writeInt(IMAGE_VERSION);
+            superblock.writeLong(checkpointId);
+            superblock.writeInt(nextInode);
+            superblock.writeInt(0);
+            superblock.writeLong(position);
+            superblock.getFD().sync();
+        }
+    }
+
+    /**
+     * 列出待写入目录的子节点
+     */
+    private static void listChildren(PendingNode pending, int inode, List<String> names, List<PendingNode> children) {
+        if (pending.node != null) {
+            FileSystemFolder folder = (FileSystemFolder) pending.node;
+            for (String name : folder.getEntryNames()) {
+                names.add(name);
+                children.add(PendingNode.of(folder.getEntry(name), inode));
+            }
+            return;
+        }
+        List<Integer> inodes = new ArrayList<>();
+        pending.source.readEntries(pending.sourceInode, names, inodes);
+        for (int childInode : inodes) {
+            children.add(new PendingNode(null, pending.source, childInode, inode));
+        }
+    }
+}
@@ -0,0 +1,407 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * 文件系统预写日志
+ * 在操作发生时追加记录元数据变更（mkdir、create、close、delete、rmdir、clone），
+ * 配合定期检查点，使持久化代价与变更量而非磁盘大小成正比
+ *
+ * 日志文件布局：[检查点编号] [记录]*
+ * 每条记录：[负载长度] [CRC32] [负载: 类型, 路径, 附加数据]
+ * OP_CLOSE的附加数据：[文件大小] [块数] [块映射]* [单元数] [各压缩单元压缩后的字节数]*，
+ * 没有压缩单元时省略单元部分，因此旧版本写入的记录仍可读取。
+ * OP_CLOSE_DELTA只记录上次关闭以来改变的部分，附加数据：[文件大小] [块数] [改变的块数] ([逻辑块] [块映射])*
+ * [改变的单元数] ([单元号] [压缩后的字节数])*；重放时先把映射截断到块数，再逐个设置改变的逻辑块和单元。
+ * OP_CLONE的路径是克隆的位置，附加数据：[源路径]
+ *
+ * 记录可以延迟提交：延迟的记录先按追加顺序暂存在内存中，由下一次flush或下一条立即提交的记录
+ * 一并写入并只同步一次磁盘（组提交）。暂存的记录与其后追加的记录总是按追加顺序落盘。
+ * 每条记录有一个追加序号，flush(long)只写入序号不超过给定值的暂存记录，
+ * 提交者可以先记下序号，在不持有日志监视器的情况下同步存储设备，再只写入这些记录
+ */
+public class FileSystemJournal {
+    // 日志记录类型
+    public static final int OP_MKDIR = 1;
+    public static final int OP_RMDIR = 2;
+    public static final int OP_CREATE = 3;
+    public static final int OP_DELETE = 4;
+    public static final int OP_CLOSE = 5;
+    public static final int OP_CLONE = 6;
+    public static final int OP_CLOSE_DELTA = 7;
+
+    // 日志文件头部大小（检查点编号）
+    private static final int HEADER_SIZE = Long.BYTES;
+
+    /**
+     * 日志记录
+     * 对于OP_CLOSE记录，contentSize、blocks和packedLengths描述文件关闭后的内容映射，
+     * blocks中压缩单元的空洞为BlockMap.HOLE；对于OP_CLONE记录，sourcePath是被克隆的文件或目录。
+     * 对于OP_CLOSE_DELTA记录，blockCount是关闭后的块数，blocks和packedLengths只包含改变的逻辑块和单元，
+     * 它们的逻辑块号和单元号按顺序分别在logicalBlocks和units中
+     */
+    public static class Record {
+        public final int type;
+        public final String path;
+        public final int contentSize;
+        public final int blockCount;
+        public final List<Integer> logicalBlocks;
+        public final List<Integer> blocks;
+        public final List<Integer> units;
+        public final List<Integer> packedLengths;
+        public final String sourcePath;
+
+        public Record(int type, String path, int contentSize, List<Integer> blocks) {
+            this(type, path, contentSize, blocks, new ArrayList<>());
+        }
+
+        public Record(int type, String path, int contentSize, List<Integer> blocks, List<Integer> packedLengths) {
+            this(type, path, contentSize, blocks.size(), new ArrayList<>(), blocks, new ArrayList<>(), packedLengths);
+        }
+
+        public Record(int type, String path, int contentSize, int blockCount, List<Integer> logicalBlocks,
+                      List<Integer> blocks, List<Integer> units, List<Integer> packedLengths) {
+            this.type = type;
+            this.path = path;
+            this.contentSize = contentSize;
+            this.blockCount = blockCount;
+            this.logicalBlocks = logicalBlocks;
+            this.blocks = blocks;
+            this.units = units;
+            this.packedLengths = packedLengths;
+            this.sourcePath = null;
+        }
+
+        public Record(int type, String path, String sourcePath) {
+            this.type = type;
+            this.path = path;
+            this.contentSize = 0;
+            this.blockCount = 0;
+            this.logicalBlocks = new ArrayList<>();
+            this.blocks = new ArrayList<>();
+            this.units = new ArrayList<>();
+            this.packedLengths = new ArrayList<>();
+            this.sourcePath = sourcePath;
+        }
+    }
+
+    // 日志文件路径
+    private final Path journalPath;
+    // 日志文件通道
+    private FileChannel channel;
+    // 当前日志所基于的检查点编号
+    private long checkpointId;
+    // 自上次检查点以来追加的记录数（包括尚未提交的记录）
+    private int recordCount;
+    // 尚未写入日志文件的已编码记录，按追加顺序
+    private final ArrayDeque<byte[]> pending;
+    // 打开日志以来追加的记录总数，即最后一条记录的追加序号
+    private long sequence;
+
+    /**
+     * 打开日志文件，文件不存在时创建一个基于检查点0的空日志
+     * @param journalPath 日志文件路径
+     */
+    public FileSystemJournal(String journalPath) {
+        this.journalPath = Paths.get(journalPath);
+        try {
+            boolean exists = Files.exists(this.journalPath) && Files.size(this.journalPath) >= HEADER_SIZE;
+            this.channel = FileChannel.open(this.journalPath,
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            if (exists) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                channel.read(header, 0);
+                header.flip();
+                this.checkpointId = header.getLong();
+            } else {
+                writeHeader(0);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to open journal: " + e.getMessage(), e);
+        }
+        this.recordCount = 0;
+        this.pending = new ArrayDeque<>();
+        this.sequence = 0;
+    }
+
+    private void writeHeader(long id) throws IOException {
+        channel.truncate(0);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putLong(id);
+        header.flip();
+        channel.write(header, 0);
+        channel.force(true);
+        this.checkpointId = id;
+    }
+
+    /**
+     * 获取当前日志所基于的检查点编号
+     * @return 检查点编号
+     */
+    public synchronized long getCheckpointId() {
+        return checkpointId;
+    }
+
+    /**
+     * 获取自上次检查点以来追加的记录数
+     * @return 记录数
+     */
+    public synchronized int getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * 获取尚未提交的记录数
+     * @return 记录数
+     */
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * 获取最后一条追加的记录的序号，作为flush(long)的参数
+     * @return 追加序号，没有追加过记录时为0
+     */
+    public synchronized long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * 追加一条不带附加数据的元数据记录
+     * @param type 记录类型
+     * @param path 操作对象的绝对路径
+     */
+    public synchronized void append(int type, String path) {
+        append(new Record(type, path, 0, new ArrayList<>()));
+    }
+
+    /**
+     * 追加一条日志记录，返回前记录已写入磁盘
+     * @param record 日志记录
+     */
+    public synchronized void append(Record record) {
+        append(record, true);
+    }
+
+    /**
+     * 追加一条日志记录
+     * @param record 日志记录
+     * @param durable 为true时返回前将该记录及之前暂存的记录写入磁盘，否则只暂存在内存中
+     */
+    public synchronized void append(Record record, boolean durable) {
+        try {
+            ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream();
+            DataOutputStream payload = new DataOutputStream(payloadBytes);
+            payload.writeByte(record.type);
+            payload.writeUTF(record.path);
+            if (record.type == OP_CLOSE) {
+                payload.writeInt(record.contentSize);
+                payload.writeInt(record.blocks.size());
+                for (int block : record.blocks) {
+                    payload.writeInt(block);
+                }
+                if (!record.packedLengths.isEmpty()) {
+                    payload.writeInt(record.packedLengths.size());
+                    for (int length : record.packedLengths) {
+                        payload.writeInt(length);
+                    }
+                }
+            } else if (record.type == OP_CLOSE_DELTA) {
+                payload.writeInt(record.contentSize);
+                payload.writeInt(record.blockCount);
+                payload.writeInt(record.blocks.size());
+                for (int i = 0; i < record.blocks.size(); i++) {
+                    payload.writeInt(record.logicalBlocks.get(i));
+                    payload.writeInt(record.blocks.get(i));
+                }
+                payload.writeInt(record.packedLengths.size());
+                for (int i = 0; i < record.packedLengths.size(); i++) {
+                    payload.writeInt(record.units.get(i));
+                    payload.writeInt(record.packedLengths.get(i));
+                }
+            } else if (record.type == OP_CLONE) {
+                payload.writeUTF(record.sourcePath);
+            }
+            payload.flush();
+            byte[] data = payloadBytes.toByteArray();
+
+            CRC32 crc = new CRC32();
+            crc.update(data);
+            ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES * 2 + data.length);
+            buffer.putInt(data.length);
+            buffer.putInt((int) crc.getValue());
+            buffer.put(data);
+            pending.add(buffer.array());
+            sequence++;
+            recordCount++;
+            if (durable) {
+                flush();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to append journal record: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * 将暂存的记录写入日志文件并同步磁盘，没有暂存记录时不做任何事
+     */
+    public synchronized void flush() {
+        flush(sequence);
+    }
+
+    /**
+     * 将追加序号不超过给定值的暂存记录写入日志文件并同步磁盘，之后追加的记录继续暂存；
+     * 这些记录已被检查点清空或已写入时不做任何事
+     * @param upTo 追加序号
+     */
+    public synchronized void flush(long upTo) {
+        long count = pending.size() - (sequence - upTo);
+        if (count <= 0) {
+            return;
+        }
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            int index = 0;
+            for (byte[] record : pending) {
+                if (index++ == count) {
+                    break;
+                }
+                bytes.write(record);
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+            long position = channel.size();
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            channel.force(false);
+            for (int i = 0; i < count; i++) {
+                pending.poll();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to flush journal: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * 读取日志中的全部有效记录
+     * 遇到不完整或校验失败的记录（崩溃时写了一半）即停止
+     * @return 日志记录列表
+     */
+    public synchronized List<Record> readRecords() {
+        List<Record> records = new ArrayList<>();
+        try {
+            long size = channel.size();
+            long position = HEADER_SIZE;
+            ByteBuffer header = ByteBuffer.allocate(Integer.BYTES * 2);
+            while (position + header.capacity() <= size) {
+                header.clear();
+                channel.read(header, position);
+                header.flip();
+                int length = header.getInt();
+                int checksum = header.getInt();
+                if (length < 0 || position + header.capacity() + length > size) {
+                    break;
+                }
+                ByteBuffer data = ByteBuffer.allocate(length);
+                channel.read(data, position + header.capacity());
+                CRC32 crc = new CRC32();
+                crc.update(data.array());
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                records.add(decode(data.array()));
+                position += header.capacity() + length;
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read journal: " + e.getMessage(), e);
+        }
+        return records;
+    }
+
+    private Record decode(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        try {
+            int type = in.readByte();
+            String path = in.readUTF();
+            if (type == OP_CLONE) {
+                return new Record(type, path, in.readUTF());
+            }
+            if (type == OP_CLOSE_DELTA) {
+                int contentSize = in.readInt();
+                int blockCount = in.readInt();
+                List<Integer> logicalBlocks = new ArrayList<>();
+                List<Integer> blocks = new ArrayList<>();
+                int changedCount = in.readInt();
+                for (int i = 0; i < changedCount; i++) {
+                    logicalBlocks.add(in.readInt());
+                    blocks.add(in.readInt());
+                }
+                List<Integer> units = new ArrayList<>();
+                List<Integer> packedLengths = new ArrayList<>();
+                int unitCount = in.readInt();
+                for (int i = 0; i < unitCount; i++) {
+                    units.add(in.readInt());
+                    packedLengths.add(in.readInt());
+                }
+                return new Record(type, path, contentSize, blockCount, logicalBlocks, blocks, units, packedLengths);
+            }
+            int contentSize = 0;
+            List<Integer> blocks = new ArrayList<>();
+            List<Integer> packedLengths = new ArrayList<>();
+            if (type == OP_CLOSE) {
+                contentSize = in.readInt();
+                int blockCount = in.readInt();
+                for (int i = 0; i < blockCount; i++) {
+                    blocks.add(in.readInt());
+                }
+                if (in.available() > 0) {
+                    int unitCount = in.readInt();
+                    for (int i = 0; i < unitCount; i++) {
+                        packedLengths.add(in.readInt());
+                    }
+                }
+            }
+            return new Record(type, path, contentSize, blocks, packedLengths);
+        } catch (EOFException e) {
+            throw new IOException("Truncated journal record", e);
+        }
+    }
+
+    /**
+     * 在检查点完成后清空日志（包括尚未提交的记录，它们已包含在检查点内），并记录新的检查点编号
+     * @param newCheckpointId 新检查点编号
+     */
+    public synchronized void reset(long newCheckpointId) {
+        try {
+            writeHeader(newCheckpointId);
+            recordCount = 0;
+            pending.clear();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to reset journal: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * 关闭日志文件
+     */
+    public synchronized void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to close journal: " + e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,545 @@
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * 文件系统运行统计
+ * 为每种命令和每种内部操作分别记录次数、失败次数和延迟直方图，并统计存储设备读写的块数和字节数、缓冲区缓存的命中情况，
+ * 以及压缩单元压缩前后的字节数（压缩和解压各自作为一种操作计时，用来比较CPU耗时与节省的空间）、
+ * 顺序读取时预读的存储块数和被读者读到的预读块数（每段预读作为一种操作计时）。
+ * 进程内只有一个实例，由命令执行、检查点、恢复、日志提交和存储设备在执行时记录，
+ * 通过stats命令和JMX（chiika:type=FileSystemMetrics）查看。
+ *
+ * 记录方法只做原子加法，不分配对象、不加锁；停用时立即返回，只剩一次volatile读
+ */
+public class FileSystemMetrics implements FileSystemMetricsMBean {
+
+    /**
+     * 被统计的命令，由会话在分派执行时计时
+     */
+    public enum Command {
+        MKDIR("mkdir"), RMDIR("rmdir"), CD("cd"), LS("ls"), CREATE("create"), DELETE("delete"),
+        OPEN("open"), CLOSE("close"), READ("read"), WRITE("write"), SEEK("seek"),
+        IMPORT("import"), EXPORT("export"), DEFRAG("defrag"), SYNC("sync"),
+        SNAPSHOT("snapshot"), CLONE("clone");
+
+        // 命令名 -> 命令
+        private static final Map<String, Command> BY_NAME = new HashMap<>();
+
+        static {
+            for (Command command : values()) {
+                BY_NAME.put(command.label, command);
+            }
+        }
+
+        // 显示名称，与命令名相同
+        private final String label;
+
+        Command(String label) {
+            this.label = label;
+        }
+
+        /**
+         * 获取显示名称
+         * @return 显示名称
+         */
+        public String getLabel() {
+            return label;
+        }
+
+        /**
+         * 按命令名查找命令
+         * @param name 命令名
+         * @return 命令，不被统计的命令返回null
+         */
+        public static Command forName(String name) {
+            return BY_NAME.get(name);
+        }
+    }
+
+    /**
+     * 被统计的内部操作，由检查点、恢复、日志提交和存储设备在执行时计时，与同名的命令分开统计
+     */
+    public enum Operation {
+        PERSIST("persist"), RESTORE("restore"), COMMIT("commit"), SYNC("sync"),
+        ALLOC("alloc"), FREE("free"), PACK("pack"), UNPACK("unpack"), EXPAND("expand"), PREFETCH("prefetch");
+
+        // 显示名称 -> 操作
+        private static final Map<String, Operation> BY_NAME = new HashMap<>();
+
+        static {
+            for (Operation operation : values()) {
+                BY_NAME.put(operation.label, operation);
+            }
+        }
+
+        // 显示名称
+        private final String label;
+
+        Operation(String label) {
+            this.label = label;
+        }
+
+        /**
+         * 获取显示名称
+         * @return 显示名称
+         */
+        public String getLabel() {
+            return label;
+        }
+
+        /**
+         * 按显示名称查找操作
+         * @param name 显示名称
+         * @return 操作，不被统计的名称返回null
+         */
+        public static Operation forName(String name) {
+            return BY_NAME.get(name);
+        }
+    }
+
+    // JMX对象名
+    private static final String OBJECT_NAME = "chiika:type=FileSystemMetrics";
+    // 按名称查询时命令名的前缀，与同名的内部操作区分
+    public static final String COMMAND_PREFIX = "command:";
+    // 进程内唯一的实例
+    private static final FileSystemMetrics INSTANCE = new FileSystemMetrics();
+
+    // 是否记录统计
+    private volatile boolean enabled;
+    // 是否已注册到JMX
+    private boolean registered;
+    // 各操作的延迟直方图，下标为Operation.ordinal()
+    private final LatencyHistogram[] latencies;
+    // 各操作的失败次数
+    private final AtomicLongArray failures;
+    // 各命令的延迟直方图和失败次数，下标为Command.ordinal()
+    private final LatencyHistogram[] commandLatencies;
+    private final AtomicLongArray commandFailures;
+    // 存储设备读写统计
+    private final AtomicLong blocksRead;
+    private final AtomicLong blocksWritten;
+    private final AtomicLong bytesRead;
+    private final AtomicLong bytesWritten;
+    // 缓冲区缓存统计（所有设备合计）
+    private final AtomicLong cacheHits;
+    private final AtomicLong cacheMisses;
+    // 压缩统计：尝试压缩的原始字节数、压缩后实际保存的字节数（不值得压缩时按原始字节数计）、解压得到的字节数
+    private final AtomicLong packInputBytes;
+    private final AtomicLong packOutputBytes;
+    private final AtomicLong unpackBytes;
+    // 预读统计：提交预读的段数和存储块数、被读者读到的预读块数
+    private final AtomicLong readAheadRuns;
+    private final AtomicLong readAheadBlocks;
+    private final AtomicLong readAheadHits;
+
+    private FileSystemMetrics() {
+        Operation[] operations = Operation.values();
+        this.enabled = true;
+        this.latencies = new LatencyHistogram[operations.length];
+        this.failures = new AtomicLongArray(operations.length);
+        for (int i = 0; i < operations.length; i++) {
+            latencies[i] = new LatencyHistogram();
+        }
+        Command[] commands = Command.values();
+        this.commandLatencies = new LatencyHistogram[commands.length];
+        this.commandFailures = new AtomicLongArray(commands.length);
+        for (int i = 0; i < commands.length; i++) {
+            commandLatencies[i] = new LatencyHistogram();
+        }
+        this.blocksRead = new AtomicLong();
+        this.blocksWritten = new AtomicLong();
+        this.bytesRead = new AtomicLong();
+        this.bytesWritten = new AtomicLong();
+        this.cacheHits = new AtomicLong();
+        this.cacheMisses = new AtomicLong();
+        this.packInputBytes = new AtomicLong();
+        this.packOutputBytes = new AtomicLong();
+        this.unpackBytes = new AtomicLong();
+        this.readAheadRuns = new AtomicLong();
+        this.readAheadBlocks = new AtomicLong();
+        this.readAheadHits = new AtomicLong();
+    }
+
+    /**
+     * 获取进程内唯一的统计实例
+     * @return 统计实例
+     */
+    public static FileSystemMetrics get() {
+        return INSTANCE;
+    }
+
+    /**
+     * 把统计实例注册到平台MBean服务器，重复调用时只注册一次
+     */
+    public synchronized void registerMBean() {
+        if (registered) {
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(this, name);
+            }
+            registered = true;
+        } catch (JMException e) {
+            throw new RuntimeException("Failed to register metrics MBean: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * 获取计时起点；停用时返回0，使对应的record不做任何事
+     * @return 当前时间（纳秒）
+     */
+    public long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * 记录一次操作，耗时为从start()到现在
+     * @param operation 操作
+     * @param start start()的返回值
+     */
+    public void record(Operation operation, long start) {
+        if (enabled && start != 0) {
+            latencies[operation.ordinal()].record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * 记录一次失败的操作，耗时为从start()到现在
+     * @param operation 操作
+     * @param start start()的返回值
+     */
+    public void recordFailure(Operation operation, long start) {
+        if (enabled && start != 0) {
+            latencies[operation.ordinal()].record(System.nanoTime() - start);
+            failures.incrementAndGet(operation.ordinal());
+        }
+    }
+
+    /**
+     * 记录一条命令，耗时为从start()到现在
+     * @param command 命令
+     * @param start start()的返回值
+     * @param failed 命令是否失败
+     */
+    public void record(Command command, long start, boolean failed) {
+        if (enabled && start != 0) {
+            commandLatencies[command.ordinal()].record(System.nanoTime() - start);
+            if (failed) {
+                commandFailures.incrementAndGet(command.ordinal());
+            }
+        }
+    }
+
+    /**
+     * 记录从存储设备读取了一个存储块
+     * @param bytes 读取的字节数
+     */
+    public void blockRead(int bytes) {
+        if (enabled) {
+            blocksRead.incrementAndGet();
+            bytesRead.addAndGet(bytes);
+        }
+    }
+
+    /**
+     * 记录向存储设备写入了一个存储块
+     * @param bytes 写入的字节数
+     */
+    public void blockWritten(int bytes) {
+        if (enabled) {
+            blocksWritten.incrementAndGet();
+            bytesWritten.addAndGet(bytes);
+        }
+    }
+
+    /**
+     * 记录一次缓冲区缓存查找
+     * @param hit 是否命中
+     */
+    public void cacheLookup(boolean hit) {
+        if (enabled) {
+            (hit ? cacheHits : cacheMisses).incrementAndGet();
+        }
+    }
+
+    /**
+     * 记录一次压缩单元的压缩，耗时为从start()到现在
+     * @param start start()的返回值
+     * @param rawBytes 原始字节数
+     * @param storedBytes 实际保存的字节数，不值得压缩时等于原始字节数
+     */
+    public void recordPack(long start, int rawBytes, int storedBytes) {
+        if (enabled && start != 0) {
+            latencies[Operation.PACK.ordinal()].record(System.nanoTime() - start);
+            packInputBytes.addAndGet(rawBytes);
+            packOutputBytes.addAndGet(storedBytes);
+        }
+    }
+
+    /**
+     * 记录一次压缩单元的解压，耗时为从start()到现在
+     * @param start start()的返回值
+     * @param rawBytes 解压得到的字节数
+     */
+    public void recordUnpack(long start, int rawBytes) {
+        if (enabled && start != 0) {
+            latencies[Operation.UNPACK.ordinal()].record(System.nanoTime() - start);
+            unpackBytes.addAndGet(rawBytes);
+        }
+    }
+
+    /**
+     * 记录提交了一段预读
+     * @param blocks 段中的存储块数
+     */
+    public void readAhead(int blocks) {
+        if (enabled) {
+            readAheadRuns.incrementAndGet();
+            readAheadBlocks.addAndGet(blocks);
+        }
+    }
+
+    /**
+     * 记录读者读到了预读过的逻辑块
+     * @param blocks 逻辑块数
+     */
+    public void readAheadHits(int blocks) {
+        if (enabled) {
+            readAheadHits.addAndGet(blocks);
+        }
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    @Override
+    public String[] getOperationNames() {
+        Operation[] operations = Operation.values();
+        String[] names = new String[operations.length];
+        for (int i = 0; i < operations.length; i++) {
+            names[i] = operations[i].getLabel();
+        }
+        return names;
+    }
+
+    @Override
+    public String[] getCommandNames() {
+        Command[] commands = Command.values();
+        String[] names = new String[commands.length];
+        for (int i = 0; i < commands.length; i++) {
+            names[i] = commands[i].getLabel();
+        }
+        return names;
+    }
+
+    /**
+     * 按名称查找延迟直方图，命令加COMMAND_PREFIX前缀
+     */
+    private LatencyHistogram histogram(String name) {
+        if (name.startsWith(COMMAND_PREFIX)) {
+            Command found = Command.forName(name.substring(COMMAND_PREFIX.length()));
+            return found == null ? null : commandLatencies[found.ordinal()];
+        }
+        Operation found = Operation.forName(name);
+        return found == null ? null : latencies[found.ordinal()];
+    }
+
+    @Override
+    public long getCount(String operation) {
+        LatencyHistogram histogram = histogram(operation);
+        return histogram == null ? 0 : histogram.getCount();
+    }
+
+    @Override
+    public long getFailures(String operation) {
+        if (operation.startsWith(COMMAND_PREFIX)) {
+            Command found = Command.forName(operation.substring(COMMAND_PREFIX.length()));
+            return found == null ? 0 : commandFailures.get(found.ordinal());
+        }
+        Operation found = Operation.forName(operation);
+        return found == null ? 0 : failures.get(found.ordinal());
+    }
+
+    @Override
+    public double getMeanNanos(String operation) {
+        LatencyHistogram histogram = histogram(operation);
+        return histogram == null ? 0 : histogram.getMean();
+    }
+
+    @Override
+    public long getPercentileNanos(String operation, double percentile) {
+        LatencyHistogram histogram = histogram(operation);
+        return histogram == null ? 0 : histogram.getPercentile(percentile);
+    }
+
+    @Override
+    public long getMaxNanos(String operation) {
+        LatencyHistogram histogram = histogram(operation);
+        return histogram == null ? 0 : histogram.getMax();
+    }
+
+    @Override
+    public long getBlocksRead() {
+        return blocksRead.get();
+    }
+
+    @Override
+    public long getBlocksWritten() {
+        return blocksWritten.get();
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    @Override
+    public double getCacheHitRate() {
+        long hits = cacheHits.get();
+        long lookups = hits + cacheMisses.get();
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    @Override
+    public long getPackInputBytes() {
+        return packInputBytes.get();
+    }
+
+    @Override
+    public long getPackOutputBytes() {
+        return packOutputBytes.get();
+    }
+
+    @Override
+    public long getUnpackBytes() {
+        return unpackBytes.get();
+    }
+
+    @Override
+    public long getReadAheadBlocks() {
+        return readAheadBlocks.get();
+    }
+
+    @Override
+    public long getReadAheadHits() {
+        return readAheadHits.get();
+    }
+
+    /**
+     * 获取压缩统计：压缩前后的字节数、节省的字节数，以及压缩和解压的总耗时与吞吐率
+     * @return 统计信息，没有压缩过时返回空串
+     */
+    public String getCompressionReport() {
+        LatencyHistogram pack = latencies[Operation.PACK.ordinal()];
+        LatencyHistogram unpack = latencies[Operation.UNPACK.ordinal()];
+        if (pack.getCount() == 0 && unpack.getCount() == 0) {
+            return "";
+        }
+        long input = getPackInputBytes();
+        long saved = input - getPackOutputBytes();
+        double packSeconds = pack.getMean() * pack.getCount() / 1e9;
+        double unpackSeconds = unpack.getMean() * unpack.getCount() / 1e9;
+        return String.format("压缩: %d 单元, %d -> %d 字节, 节省 %d 字节 (%d%%), 耗时 %.1f ms (%.1f MB/s)%n"
+                        + "解压: %d 单元, %d 字节, 耗时 %.1f ms (%.1f MB/s)%n",
+                pack.getCount(), input, getPackOutputBytes(), saved, input == 0 ? 0 : (int) (100 * saved / input),
+                packSeconds * 1e3, packSeconds == 0 ? 0 : input / packSeconds / (1 << 20),
+                unpack.getCount(), getUnpackBytes(), unpackSeconds * 1e3,
+                unpackSeconds == 0 ? 0 : getUnpackBytes() / unpackSeconds / (1 << 20));
+    }
+
+    @Override
+    public String getReport() {
+        StringBuilder report = new StringBuilder();
+        appendTable(report, "命令", getCommandNames(), commandLatencies, commandFailures);
+        appendTable(report, "操作", getOperationNames(), latencies, failures);
+        report.append(String.format("设备读取: %d 块 (%d 字节)  设备写入: %d 块 (%d 字节)%n",
+                getBlocksRead(), getBytesRead(), getBlocksWritten(), getBytesWritten()));
+        report.append(String.format("缓存命中: %d  未命中: %d  命中率: %d%%%n",
+                cacheHits.get(), cacheMisses.get(), (int) (100 * getCacheHitRate())));
+        if (readAheadRuns.get() > 0) {
+            long blocks = getReadAheadBlocks();
+            report.append(String.format("预读: %d 段 (%d 块)  命中: %d 块  命中率: %d%%%n",
+                    readAheadRuns.get(), blocks, getReadAheadHits(),
+                    blocks == 0 ? 0 : (int) Math.min(100, 100 * getReadAheadHits() / blocks)));
+        }
+        report.append(getCompressionReport());
+        if (!enabled) {
+            report.append("统计已停用\n");
+        }
+        return report.toString();
+    }
+
+    /**
+     * 追加一组延迟统计表，只列出有记录的行，整组都没有记录时不追加
+     * @param report 报告
+     * @param group 组名（命令或操作），作为表头的第一列
+     * @param labels 各行的显示名称
+     * @param histograms 各行的延迟直方图
+     * @param failed 各行的失败次数
+     */
+    private static void appendTable(StringBuilder report, String group, String[] labels, LatencyHistogram[] histograms,
+                                    AtomicLongArray failed) {
+        boolean header = false;
+        for (int i = 0; i < labels.length; i++) {
+            LatencyHistogram histogram = histograms[i];
+            long count = histogram.getCount();
+            if (count == 0) {
+                continue;
+            }
+            if (!header) {
+                // 表头中每个汉字占两列，格式宽度相应减少
+                report.append(String.format("%-6s %8s %4s %8s %10s %10s %10s %8s%n",
+                        group, "次数", "失败", "平均(us)", "p50(us)", "p90(us)", "p99(us)", "最大(us)"));
+                header = true;
+            }
+            report.append(String.format("%-8s %10d %6d %10.1f %10.1f %10.1f %10.1f %10.1f%n",
+                    labels[i], count, failed.get(i), histogram.getMean() / 1e3, histogram.getPercentile(50) / 1e3,
+                    histogram.getPercentile(90) / 1e3, histogram.getPercentile(99) / 1e3, histogram.getMax() / 1e3));
+        }
+    }
+
+    @Override
+    public void reset() {
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i].reset();
+            failures.set(i, 0);
+        }
+        for (int i = 0; i < commandLatencies.length; i++) {
+            commandLatencies[i].reset();
+            commandFailures.set(i, 0);
+        }
+        blocksRead.set(0);
+        blocksWritten.set(0);
+        bytesRead.set(0);
+        bytesWritten.set(0);
+        cacheHits.set(0);
+        cacheMisses.set(0);
+        packInputBytes.set(0);
+        packOutputBytes.set(0);
+        unpackBytes.set(0);
+        readAheadRuns.set(0);
+        readAheadBlocks.set(0);
+        readAheadHits.set(0);
+    }
+}
@@ -0,0 +1,138 @@
+/**
+ * 文件系统运行统计的JMX管理接口
+ * 时间单位均为纳秒；按操作名查询的方法在操作名不存在时返回0。
+ * 命令与内部操作分开统计，按名称查询命令时在命令名前加"command:"（例如command:sync），不加前缀的sync是设备同步
+ */
+public interface FileSystemMetricsMBean {
+
+    /**
+     * 检查统计是否启用
+     * @return 如果启用则返回true
+     */
+    boolean isEnabled();
+
+    /**
+     * 启用或停用统计，停用时记录方法立即返回
+     * @param enabled 为true时启用
+     */
+    void setEnabled(boolean enabled);
+
+    /**
+     * 获取所有操作名
+     * @return 操作名数组
+     */
+    String[] getOperationNames();
+
+    /**
+     * 获取所有被统计的命令名，查询时加"command:"前缀
+     * @return 命令名数组
+     */
+    String[] getCommandNames();
+
+    /**
+     * 获取操作的执行次数
+     * @param operation 操作名
+     * @return 执行次数
+     */
+    long getCount(String operation);
+
+    /**
+     * 获取操作的失败次数
+     * @param operation 操作名
+     * @return 失败次数
+     */
+    long getFailures(String operation);
+
+    /**
+     * 获取操作的平均耗时
+     * @param operation 操作名
+     * @return 平均耗时（纳秒）
+     */
+    double getMeanNanos(String operation);
+
+    /**
+     * 获取操作耗时的百分位数
+     * @param operation 操作名
+     * @param percentile 百分位，0到100之间
+     * @return 耗时（纳秒）
+     */
+    long getPercentileNanos(String operation, double percentile);
+
+    /**
+     * 获取操作的最大耗时
+     * @param operation 操作名
+     * @return 最大耗时（纳秒）
+     */
+    long getMaxNanos(String operation);
+
+    /**
+     * 获取从存储设备读取的存储块数
+     * @return 存储块数
+     */
+    long getBlocksRead();
+
+    /**
+     * 获取写入存储设备的存储块数
+     * @return 存储块数
+     */
+    long getBlocksWritten();
+
+    /**
+     * 获取从存储设备读取的字节数
+     * @return 字节数
+     */
+    long getBytesRead();
+
+    /**
+     * 获取写入存储设备的字节数
+     * @return 字节数
+     */
+    long getBytesWritten();
+
+    /**
+     * 获取尝试压缩的原始字节数
+     * @return 字节数
+     */
+    long getPackInputBytes();
+
+    /**
+     * 获取压缩后实际保存的字节数，不值得压缩的单元按原始字节数计
+     * @return 字节数
+     */
+    long getPackOutputBytes();
+
+    /**
+     * 获取解压得到的字节数
+     * @return 字节数
+     */
+    long getUnpackBytes();
+
+    /**
+     * 获取顺序读取时提交预读的存储块数
+     * @return 存储块数
+     */
+    long getReadAheadBlocks();
+
+    /**
+     * 获取被读者读到的预读逻辑块数
+     * @return 逻辑块数
+     */
+    long getReadAheadHits();
+
+    /**
+     * 获取所有设备的缓冲区缓存命中率
+     * @return 命中率，0到1之间
+     */
+    double getCacheHitRate();
+
+    /**
+     * 获取文本格式的统计报告
+     * @return 统计报告
+     */
+    String getReport();
+
+    /**
+     * 清空全部统计
+     */
+    void reset();
+}
@@ -1,4 +1,5 @@
 import java.io.Serializable;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * 文件系统节点基类
@@ -11,6 +12,10 @@ public abstract class FileSystemNode implements Serializable {
     protected boolean isDirectory;             
     // 父目录引用
     protected FileSystemFolder parentDir;             
+    // 节点读写锁，多个会话并发访问同一节点时使用
+    private final transient ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    // 节点是否已从目录树中删除
+    private transient volatile boolean unlinked;
 
     /**
      * 创建一个新的文件系统节点
@@ -65,6 +70,50 @@ public abstract class FileSystemNode implements Serializable {
         this.parentDir = parentDir;
     }
     
+    /**
+     * 获取节点读写锁
+     * 目录的读锁保护目录项查找，写锁保护目录项增删；文件的读锁保护内容读取，写锁保护打开、关闭和修改
+     * @return 节点读写锁
+     */
+    public ReentrantReadWriteLock getLock() {
+        return lock;
+    }
+
+    /**
+     * 检查节点或其任一上级目录是否已从目录树中删除
+     * 其他会话可能在删除前已经找到该节点，加锁后应检查此标记；
+     * 递归删除目录时只标记子树的根，子树中的节点通过上级目录判断
+     * @return 如果已删除则返回true，否则返回false
+     */
+    public boolean isUnlinked() {
+        for (FileSystemNode node = this; node != null; node = node.parentDir) {
+            if (node.unlinked) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 设置节点是否已从目录树中删除，调用者应持有该节点或其父目录的写锁
+     * @param unlinked 是否已删除
+     */
+    public void setUnlinked(boolean unlinked) {
+        this.unlinked = unlinked;
+    }
+
+    /**
+     * 获取节点的绝对路径
+     * @return 以"/"开头的绝对路径，根目录返回"/"
+     */
+    public String getPath() {
+        if (parentDir == null) {
+            return "/";
+        }
+        String parentPath = parentDir.getPath();
+        return parentPath.equals("/") ? "/" + name : parentPath + "/" + name;
+    }
+
     @Override
     public String toString() {
         return "FileSystemNode{" +
@@ -0,0 +1,1048 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 文件系统服务
+ * 持有由所有会话共享的状态（目录树、存储卷、预写日志），负责恢复、
+ * 日志与检查点，可以被多个会话并发使用。
+ *
+ * 根目录上是根设备；其他存储设备可以挂载到空目录上，挂载点之下的文件内容保存在该设备上。
+ * 各设备的几何参数（块数、块大小）由设备自己的头部记录，每个设备有独立的缓冲区缓存。
+ * 目录树、日志和检查点只有一份，覆盖所有设备；挂载表单独保存，启动时在恢复目录树之后重新挂载。
+ * 文件和目录的压缩策略（编解码器）同样记录在单独保存的压缩策略表中，没有设置策略的节点沿用上级目录的策略
+ *
+ * 并发约定：
+ * - 会话执行每条命令时持有操作锁的读锁，生成检查点时持有其写锁，以获得静止的目录树；
+ * - 读取目录项时持有该目录的读锁，增删目录项时持有该目录的写锁，并在释放写锁前使路径缓存失效；
+ * - 被删除的节点在其写锁保护下标记为已删除，加锁后发现节点已删除的操作按节点不存在处理；
+ * - 读取文件内容时持有该文件的读锁，打开、关闭、写入、截断时持有其写锁；
+ * - 需要同时持有多个节点锁时总是按"目录先于其子节点"的顺序加锁；
+ * - 增删目录项、打开或删除文件、移动文件的存储块之前先调用克隆器的preserve，使尚未展开的克隆保持克隆时刻的内容；
+ *   创建克隆和快照时与检查点一样持有操作锁的写锁
+ *
+ * 日志默认每条记录立即落盘。设置了延迟提交的线程（批处理会话）追加的记录先暂存在内存中，
+ * 由commit统一同步存储设备后一次写入日志；崩溃时丢失的只是最近一次提交之后的修改，
+ * 恢复后的目录树仍然一致。关闭文件的OP_CLOSE记录总是先暂存，文件改变过的存储块登记在后台写回器中；
+ * 改变的逻辑块不到一半时改记只含改变部分的OP_CLOSE_DELTA记录，
+ * 由后台线程提交（写回），sync命令等待此前的全部修改落盘。
+ * commit在日志的监视器内取走登记的存储块并记下追加序号，随后在监视器外写回并同步存储设备，
+ * 最后只写入记下序号之前的记录；提交之间由提交锁串行化，追加记录的会话不必等待同步存储设备
+ *
+ * 存储块内容按字节保存。启动时发现旧格式（按UTF-16字符保存）的设备文件，先把它改名保留，
+ * 在新设备上按UTF-8重新写入全部文件内容并生成检查点，之后才删除旧设备文件；
+ * 迁移中途崩溃时下次启动从保留的旧设备文件重新迁移
+ */
+public class FileSystemService {
+    // 文件系统根目录
+    private volatile FileSystemFolder rootDirectory;
+    // 根设备所在的存储卷
+    private final StorageVolume rootVolume;
+    // 挂载点目录 -> 挂载在其上的存储卷（不含根设备）
+    private final Map<FileSystemFolder, StorageVolume> mounts;
+    // 元数据预写日志
+    private final FileSystemJournal journal;
+    // 操作锁：命令执行期间持有读锁，检查点持有写锁
+    private final ReentrantReadWriteLock operationLock;
+    // 路径解析器，所有会话共享同一个目录项缓存
+    private final PathResolver pathResolver;
+    // 当前线程追加的日志记录是否延迟到commit时提交
+    private final ThreadLocal<Boolean> deferredCommit;
+    // 碎片整理器
+    private final Defragmenter defragmenter;
+    // 各存储设备的分配策略，新挂载的设备也使用此策略
+    private volatile BlockAllocator.Policy allocationPolicy;
+    // 各存储设备是否开启块去重，新挂载的设备也使用此设置
+    private volatile boolean deduplication;
+    // 设置了压缩策略的文件或目录 -> 编解码器
+    private final Map<FileSystemNode, BlockCodec> codecPolicies;
+    // 子树克隆器，管理尚未展开的克隆和快照
+    private final SubtreeCloner cloner;
+    // 后台写回器，写回已关闭文件的存储块并提交日志
+    private final WriteBehindFlusher flusher;
+    // 提交锁：同一时刻只有一个提交在写回、同步存储设备和写入日志
+    private final Object commitLock;
+    // 接下来要模拟失败的提交次数，由commitLock保护，只用于压力测试
+    private int injectedCommitFailures;
+    // 预读线程，所有设备上的顺序读取共用
+    private final Prefetcher prefetcher;
+
+    /**
+     * 打开默认路径上的文件系统
+     * 从最近的检查点和日志中恢复文件系统状态
+     */
+    public FileSystemService() {
+        this.rootDirectory = new FileSystemFolder("/", true, null);
+        Path legacyPath = setAsideLegacyDevice();
+        this.rootVolume = new StorageVolume(this, "/", new StorageDevice("/dev/sda"));
+        this.mounts = new ConcurrentHashMap<>();
+        this.codecPolicies = new ConcurrentHashMap<>();
+        this.journal = new FileSystemJournal(StorageConstants.JOURNAL_PATH);
+        this.operationLock = new ReentrantReadWriteLock();
+        this.deferredCommit = ThreadLocal.withInitial(() -> false);
+        this.defragmenter = new Defragmenter(this);
+        this.cloner = new SubtreeCloner(this);
+        this.flusher = new WriteBehindFlusher(this);
+        this.commitLock = new Object();
+        this.prefetcher = new Prefetcher(StorageConstants.READ_AHEAD);
+        this.allocationPolicy = rootVolume.getDevice().getPolicy();
+        this.deduplication = StorageConstants.DEDUPLICATION;
+        rootVolume.getDevice().setDeduplication(deduplication);
+
+        FileSystemMetrics metrics = FileSystemMetrics.get();
+        metrics.registerMBean();
+        long start = metrics.start();
+        boolean charSizes = restoreFileSystem(StorageConstants.SERIALIZE_PATH, legacyPath != null);
+        metrics.record(FileSystemMetrics.Operation.RESTORE, start);
+        if (legacyPath != null) {
+            migrateLegacyDevice(legacyPath, charSizes);
+        }
+        this.pathResolver = new PathResolver(rootDirectory, StorageConstants.DENTRY_CACHE_SIZE);
+    }
+
+    /**
+     * 获取文件系统根目录
+     * @return 根目录
+     */
+    public FileSystemFolder getRoot() {
+        return rootDirectory;
+    }
+
+    /**
+     * 获取路径解析器
+     * @return 路径解析器
+     */
+    public PathResolver getResolver() {
+        return pathResolver;
+    }
+
+    /**
+     * 获取根设备
+     * @return 存储设备实例
+     */
+    public StorageDevice getDevice() {
+        return rootVolume.getDevice();
+    }
+
+    /**
+     * 获取根设备的缓冲区缓存
+     * @return 缓冲区缓存
+     */
+    public BufferCache getCache() {
+        return rootVolume.getCache();
+    }
+
+    /**
+     * 获取碎片整理器
+     * @return 碎片整理器
+     */
+    public Defragmenter getDefragmenter() {
+        return defragmenter;
+    }
+
+    /**
+     * 获取后台写回器
+     * @return 后台写回器
+     */
+    public WriteBehindFlusher getFlusher() {
+        return flusher;
+    }
+
+    /**
+     * 获取预读线程
+     * @return 预读线程
+     */
+    public Prefetcher getPrefetcher() {
+        return prefetcher;
+    }
+
+    /**
+     * 获取子树克隆器；修改节点之前应调用其preserve方法
+     * @return 子树克隆器
+     */
+    public SubtreeCloner getCloner() {
+        return cloner;
+    }
+
+    /**
+     * 获取存储设备的分配策略
+     * @return 分配策略
+     */
+    public BlockAllocator.Policy getAllocationPolicy() {
+        return allocationPolicy;
+    }
+
+    /**
+     * 设置所有存储设备（包括此后挂载的设备）的分配策略
+     * @param policy 分配策略
+     */
+    public void setAllocationPolicy(BlockAllocator.Policy policy) {
+        allocationPolicy = policy;
+        for (StorageVolume volume : getVolumes()) {
+            volume.getDevice().setPolicy(policy);
+        }
+    }
+
+    /**
+     * 检查存储设备是否开启了块去重
+     * @return 开启时返回true
+     */
+    public boolean isDeduplication() {
+        return deduplication;
+    }
+
+    /**
+     * 开启或关闭所有存储设备（包括此后挂载的设备）的块去重
+     * @param deduplication 为true时开启
+     */
+    public void setDeduplication(boolean deduplication) {
+        this.deduplication = deduplication;
+        for (StorageVolume volume : getVolumes()) {
+            volume.getDevice().setDeduplication(deduplication);
+        }
+    }
+
+    /**
+     * 获取文件关闭时使用的编解码器：从节点向上找到的第一个设置了压缩策略的节点的策略
+     * @param node 文件或目录
+     * @return 编解码器，都没有设置时为默认编解码器
+     */
+    public BlockCodec getCodec(FileSystemNode node) {
+        if (!codecPolicies.isEmpty()) {
+            for (FileSystemNode current = node; current != null; current = current.getParentDir()) {
+                BlockCodec codec = codecPolicies.get(current);
+                if (codec != null) {
+                    return codec;
+                }
+            }
+        }
+        return BlockCodec.forName(StorageConstants.DEFAULT_CODEC);
+    }
+
+    /**
+     * 设置或清除文件或目录的压缩策略，并保存压缩策略表
+     * 策略只影响此后关闭的文件中修改过的内容和此后导入的文件，已保存的内容保持原样
+     * @param node 文件或目录
+     * @param codec 编解码器，为null时清除，改为沿用上级目录的策略
+     */
+    public void setCodec(FileSystemNode node, BlockCodec codec) {
+        synchronized (codecPolicies) {
+            if (codec == null) {
+                codecPolicies.remove(node);
+            } else {
+                codecPolicies.put(node, codec);
+            }
+            saveCodecTable();
+        }
+    }
+
+    /**
+     * 列出设置了压缩策略的节点，已删除的节点不列出
+     * @return 绝对路径 -> 编解码器名称，按路径排序
+     */
+    public Map<String, String> getCodecPolicies() {
+        Map<String, String> policies = new TreeMap<>();
+        for (Map.Entry<FileSystemNode, BlockCodec> entry : codecPolicies.entrySet()) {
+            if (!isUnlinkedPath(entry.getKey())) {
+                policies.put(entry.getKey().getPath(), entry.getValue().getName());
+            }
+        }
+        return policies;
+    }
+
+    /**
+     * 把压缩策略表原子地写入文件：项数，随后每项为节点路径和编解码器名称
+     */
+    private void saveCodecTable() {
+        Path temp = Paths.get(StorageConstants.CODEC_TABLE_PATH + ".tmp");
+        Map<String, String> policies = getCodecPolicies();
+        try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(temp))) {
+            out.writeInt(policies.size());
+            for (Map.Entry<String, String> entry : policies.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeUTF(entry.getValue());
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to save codec table: " + e.getMessage(), e);
+        }
+        try {
+            Files.move(temp, Paths.get(StorageConstants.CODEC_TABLE_PATH),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to save codec table: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * 读取压缩策略表，在目录树恢复之后调用；节点已不存在或编解码器未知的项被丢弃
+     */
+    private void loadCodecTable() {
+        Path tablePath = Paths.get(StorageConstants.CODEC_TABLE_PATH);
+        if (!Files.exists(tablePath)) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(tablePath))) {
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String path = in.readUTF();
+                BlockCodec codec = BlockCodec.forName(in.readUTF());
+                FileSystemNode node = resolveNode(path);
+                if (node != null && codec != null) {
+                    codecPolicies.put(node, codec);
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to load codec table: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * 获取节点所在的存储卷：从节点向上找到的第一个挂载点，没有时为根设备
+     * @param node 文件或目录
+     * @return 存储卷
+     */
+    public StorageVolume getVolume(FileSystemNode node) {
+        if (mounts.isEmpty()) {
+            return rootVolume;
+        }
+        for (FileSystemNode current = node; current != null; current = current.getParentDir()) {
+            StorageVolume volume = current.isDirectory ? mounts.get(current) : null;
+            if (volume != null) {
+                return volume;
+            }
+        }
+        return rootVolume;
+    }
+
+    /**
+     * 获取文件所在设备的缓冲区缓存
+     * @param node 文件或目录
+     * @return 缓冲区缓存
+     */
+    public BufferCache getCache(FileSystemNode node) {
+        return getVolume(node).getCache();
+    }
+
+    /**
+     * 获取全部存储卷，根设备在最前，其余按挂载点路径排序
+     * @return 存储卷列表
+     */
+    public List<StorageVolume> getVolumes() {
+        List<StorageVolume> volumes = new ArrayList<>(mounts.values());
+        volumes.sort((a, b) -> a.getMountPath().compareTo(b.getMountPath()));
+        volumes.add(0, rootVolume);
+        return volumes;
+    }
+
+    /**
+     * 检查目录是否为挂载点
+     * @param folder 目录
+     * @return 如果有设备挂载在该目录上则返回true
+     */
+    public boolean isMountPoint(FileSystemFolder folder) {
+        return folder == rootDirectory || mounts.containsKey(folder);
+    }
+
+    /**
+     * 检查目录或其子树中是否有挂载点（根目录除外）
+     * @param folder 目录
+     * @return 如果有则返回true
+     */
+    public boolean containsMountPoint(FileSystemFolder folder) {
+        for (FileSystemFolder mountPoint : mounts.keySet()) {
+            for (FileSystemNode current = mountPoint; current != null; current = current.getParentDir()) {
+                if (current == folder) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 检查设备文件是否已被挂载（包括根设备）
+     * @param devicePath 设备文件路径
+     * @return 如果已挂载则返回true
+     */
+    public boolean isDeviceMounted(Path devicePath) {
+        for (StorageVolume volume : getVolumes()) {
+            if (volume.getDevice().getDevicePath().toAbsolutePath().normalize()
+                    .equals(devicePath.toAbsolutePath().normalize())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 把存储设备挂载到空目录上，设备文件不是已格式化的设备时按给定的几何参数格式化
+     * 挂载点原来为空，设备上原有的存储块分配全部作废。挂载前先提交暂存的日志记录，
+     * 使挂载表中的挂载点在日志或检查点中一定存在
+     * @param folder 挂载点目录，不能是根目录或已有的挂载点
+     * @param devicePath 设备文件路径
+     * @param diskSize 格式化时的存储块总数
+     * @param blockSize 格式化时的块大小（字节）
+     * @return 新的存储卷；目录已被删除或不为空时返回null
+     * @throws IllegalArgumentException 需要格式化而几何参数不合法
+     */
+    public StorageVolume mount(FileSystemFolder folder, String devicePath, int diskSize, int blockSize) {
+        // 挂载后目录的内容来自另一设备，覆盖它的克隆先按空目录展开
+        cloner.preserve(folder);
+        StorageDevice device = new StorageDevice(devicePath, devicePath, diskSize, blockSize);
+        device.rebuildAllocation(new ArrayList<>());
+        device.setPolicy(allocationPolicy);
+        device.setDeduplication(deduplication);
+        StorageVolume volume = new StorageVolume(this, folder.getPath(), device);
+        Lock lock = folder.getLock().writeLock();
+        lock.lock();
+        try {
+            // 先登记再检查上级目录是否已被删除，与删除目录时先标记再检查挂载点的顺序相对
+            if (folder.isEmpty() && mounts.putIfAbsent(folder, volume) == null) {
+                if (!isUnlinkedPath(folder)) {
+                    commit();
+                    saveMountTable();
+                    return volume;
+                }
+                mounts.remove(folder);
+            }
+        } finally {
+            lock.unlock();
+        }
+        device.close();
+        return null;
+    }
+
+    /**
+     * 卸载挂载在空目录上的存储设备，设备文件保留
+     * @param folder 挂载点目录
+     * @return 卸载成功返回true；目录不是挂载点或不为空时返回false
+     */
+    public boolean unmount(FileSystemFolder folder) {
+        Lock lock = folder.getLock().writeLock();
+        lock.lock();
+        try {
+            StorageVolume volume = mounts.get(folder);
+            if (volume == null || !folder.isEmpty()) {
+                return false;
+            }
+            // 目录为空后，设备上只剩尚未回收的已删除子树
+            volume.getReclaimer().drain();
+            flusher.forget(volume);
+            prefetcher.forget(volume.getDevice());
+            mounts.remove(folder);
+            saveMountTable();
+            volume.getDevice().close();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 检查节点或其任一上级目录是否已被删除
+     */
+    private boolean isUnlinkedPath(FileSystemNode node) {
+        for (FileSystemNode current = node; current != null; current = current.getParentDir()) {
+            if (current.isUnlinked()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 把挂载表原子地写入文件：挂载点数量，随后每项为挂载点路径和设备文件路径
+     */
+    private void saveMountTable() {
+        Path temp = Paths.get(StorageConstants.MOUNT_TABLE_PATH + ".tmp");
+        List<StorageVolume> volumes = getVolumes();
+        try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(temp))) {
+            out.writeInt(volumes.size() - 1);
+            for (StorageVolume volume : volumes.subList(1, volumes.size())) {
+                out.writeUTF(volume.getMountPath());
+                out.writeUTF(volume.getDevice().getDevicePath().toString());
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to save mount table: " + e.getMessage(), e);
+        }
+        try {
+            Files.move(temp, Paths.get(StorageConstants.MOUNT_TABLE_PATH),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to save mount table: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * 按挂载表重新挂载存储设备，在目录树恢复之后调用；挂载点已不存在的项被丢弃
+     */
+    private void loadMountTable() {
+        Path tablePath = Paths.get(StorageConstants.MOUNT_TABLE_PATH);
+        if (!Files.exists(tablePath)) {
+            return;
+        }
+        boolean dropped = false;
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(tablePath))) {
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String mountPath = in.readUTF();
+                String devicePath = in.readUTF();
+                FileSystemFolder folder = resolveFolder(mountPath);
+                if (folder == null || folder == rootDirectory || StorageDevice.readGeometry(Paths.get(devicePath)) == null) {
+                    System.out.println("警告：无法挂载 " + devicePath + " 到 " + mountPath + "，已从挂载表中移除");
+                    dropped = true;
+                    continue;
+                }
+                StorageDevice device = new StorageDevice(devicePath, devicePath, 0, 0);
+                device.setPolicy(allocationPolicy);
+                device.setDeduplication(deduplication);
+                mounts.put(folder, new StorageVolume(this, mountPath, device));
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to load mount table: " + e.getMessage(), e);
+        }
+        if (dropped) {
+            saveMountTable();
+        }
+    }
+
+    /**
+     * 在目录中新建子目录或文件并记入日志，同时使该路径的路径缓存失效
+     * @param parent 父目录
+     * @param name 条目名称
+     * @param directory 为true时新建目录，否则新建文件
+     * @return 新建的节点；父目录已被删除或同名条目已存在时返回null
+     */
+    public FileSystemNode createNode(FileSystemFolder parent, String name, boolean directory) {
+        cloner.preserve(parent);
+        Lock lock = parent.getLock().writeLock();
+        lock.lock();
+        try {
+            if (parent.isUnlinked() || parent.containsEntry(name)) {
+                return null;
+            }
+            FileSystemNode node = directory
+                    ? new FileSystemFolder(name, true, parent)
+                    : new FileSystemDocument(name, false, parent);
+            parent.addEntry(name, node);
+            logOperation(directory ? FileSystemJournal.OP_MKDIR : FileSystemJournal.OP_CREATE, node);
+            pathResolver.invalidate(node.getPath());
+            return node;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 把文件或目录树克隆到目录中，克隆与源共享存储块，此后写入任一方都只复制写到的存储块
+     * 目录只建立待展开的克隆，代价与子树大小无关；创建期间等待所有正在执行的命令结束并阻止新命令开始，
+     * 调用者不能处于命令执行中
+     * @param source 源文件或目录
+     * @param parent 目标父目录
+     * @param name 克隆在父目录中的名称
+     * @return 克隆出的节点；源或目标已被删除、同名条目已存在、源中有打开的文件或挂载点、
+     *         目标与源不在同一存储卷上或在源的子树中时返回null
+     */
+    public FileSystemNode cloneNode(FileSystemNode source, FileSystemFolder parent, String name) {
+        operationLock.writeLock().lock();
+        try {
+            if (isUnlinkedPath(source) || isUnlinkedPath(parent) || parent.containsEntry(name)
+                    || getVolume(source) != getVolume(parent)) {
+                return null;
+            }
+            if (source.isDirectory) {
+                FileSystemFolder folder = (FileSystemFolder) source;
+                if (folder.getOpenFileCount() > 0 || containsMountPoint(folder) || cloner.covers(folder, parent)) {
+                    return null;
+                }
+            } else if (((FileSystemDocument) source).isOpened()) {
+                return null;
+            }
+            FileSystemNode clone = cloner.createClone(source, parent, name);
+            logOperation(new FileSystemJournal.Record(FileSystemJournal.OP_CLONE, clone.getPath(), source.getPath()));
+            pathResolver.invalidateSubtree(clone.getPath());
+            return clone;
+        } finally {
+            operationLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 回收一棵已从目录树中摘除的子树占用的存储块，在后台进行，立即返回
+     * @param root 子树的根目录
+     */
+    public void reclaimSubtree(FileSystemFolder root) {
+        getVolume(root).getReclaimer().submit(root);
+    }
+
+    /**
+     * 开始执行一条命令，与检查点互斥
+     */
+    public void beginOperation() {
+        operationLock.readLock().lock();
+    }
+
+    /**
+     * 结束一条命令，日志累计到一定长度时生成检查点
+     */
+    public void endOperation() {
+        operationLock.readLock().unlock();
+        if (journal.getRecordCount() >= StorageConstants.CHECKPOINT_INTERVAL) {
+            persistFileSystem(StorageConstants.SERIALIZE_PATH);
+        }
+    }
+
+    /**
+     * 从持久化存储中恢复文件系统状态
+     * 先打开最近的检查点镜像，再重放基于该检查点的日志记录；
+     * 镜像中的目录和文件块映射只在第一次访问时加载，启动代价与镜像大小无关
+     * @param filePath 检查点镜像路径
+     * @param legacyDevice 是否存在待迁移的旧格式设备文件
+     * @return 恢复出的文件大小和块映射是否仍指向旧格式设备（需要迁移）
+     */
+    private boolean restoreFileSystem(String filePath, boolean legacyDevice) {
+        long checkpointId = 0;
+        FileSystemImage image = FileSystemImage.open(filePath);
+        if (image != null) {
+            checkpointId = image.getCheckpointId();
+            rootDirectory = image.loadRoot();
+        }
+        // 迁移完成时生成的检查点是新版本镜像，此前的镜像和日志都描述旧设备上的内容
+        boolean charSizes = legacyDevice && (image == null || image.hasCharSizes());
+
+        // 日志基于更早的检查点时，其中的修改已包含在检查点内
+        List<FileSystemJournal.Record> records = new ArrayList<>();
+        if (journal.getCheckpointId() != checkpointId) {
+            journal.reset(checkpointId);
+        } else {
+            records = journal.readRecords();
+        }
+        for (FileSystemJournal.Record record : records) {
+            replayRecord(record);
+        }
+        loadMountTable();
+        loadCodecTable();
+        if (records.isEmpty() || charSizes) {
+            // 分配状态由迁移重建
+            return charSizes;
+        }
+        // 上次未正常退出，按目录树回收各设备上已分配但未被引用的存储块
+        for (StorageVolume volume : getVolumes()) {
+            ArrayList<Integer> usedBlocks = new ArrayList<>();
+            FileSystemFolder mountPoint = volume == rootVolume ? rootDirectory : resolveFolder(volume.getMountPath());
+            collectBlocks(mountPoint, usedBlocks);
+            volume.getDevice().rebuildAllocation(usedBlocks);
+        }
+        persistFileSystem(filePath);
+        return false;
+    }
+
+    /**
+     * 设备文件是旧格式时把它改名保留，使新设备在原路径上重新格式化
+     * @return 保留的旧设备文件路径，没有待迁移的旧设备时返回null
+     */
+    private Path setAsideLegacyDevice() {
+        Path devicePath = Paths.get(StorageConstants.DEVICE_PATH);
+        Path legacyPath = Paths.get(StorageConstants.DEVICE_PATH + ".legacy");
+        try {
+            if (LegacyCharDevice.isLegacy(devicePath)) {
+                Files.move(devicePath, legacyPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to migrate legacy storage device: " + e.getMessage(), e);
+        }
+        return Files.exists(legacyPath) ? legacyPath : null;
+    }
+
+    /**
+     * 把旧格式设备上的文件内容按UTF-8写入新设备，生成检查点后删除旧设备文件
+     * 新设备上此前（中断的迁移）分配的存储块全部作废，迁移可以重复进行
+     * @param legacyPath 旧设备文件路径
+     * @param charSizes 目录树是否仍指向旧设备；为false时迁移已经完成，只需删除旧设备文件
+     */
+    private void migrateLegacyDevice(Path legacyPath, boolean charSizes) {
+        if (charSizes) {
+            LegacyCharDevice legacy = new LegacyCharDevice(legacyPath);
+            try {
+                getDevice().rebuildAllocation(new ArrayList<>());
+                migrateFolder(rootDirectory, legacy, new byte[getDevice().getBlockSize()]);
+            } finally {
+                legacy.close();
+            }
+            persistFileSystem(StorageConstants.SERIALIZE_PATH);
+        }
+        try {
+            Files.delete(legacyPath);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to remove legacy storage device: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * 迁移目录树中所有文件的内容
+     * @param folder 起始目录
+     * @param legacy 旧格式设备
+     * @param block 复制用的块缓冲区
+     */
+    private void migrateFolder(FileSystemFolder folder, LegacyCharDevice legacy, byte[] block) {
+        for (String name : folder.getEntryNames()) {
+            FileSystemNode entry = folder.getEntry(name);
+            if (entry.isDirectory) {
+                migrateFolder((FileSystemFolder) entry, legacy, block);
+                continue;
+            }
+            VirtualFileContent file = ((FileSystemDocument) entry).file;
+            byte[] content = legacy.readContent(file.getBlockIndices(), file.getContentSize())
+                    .getBytes(StandardCharsets.UTF_8);
+            int blockSize = block.length;
+            int blockCount = (content.length + blockSize - 1) / blockSize;
+            ArrayList<Integer> blocks = getDevice().diskAlloc(blockCount, -1, folder.getPath());
+            if (blocks.size() < blockCount) {
+                throw new RuntimeException("Failed to migrate legacy storage device: no space left for " + entry.getPath());
+            }
+            for (int i = 0; i < blockCount; i++) {
+                int start = i * blockSize;
+                int length = Math.min(blockSize, content.length - start);
+                System.arraycopy(content, start, block, 0, length);
+                getDevice().writeBlock(blocks.get(i), block, length);
+            }
+            file.restoreMapping(content.length, blocks);
+        }
+    }
+
+    /**
+     * 将一条日志记录应用到目录树上，只修改元数据，不访问存储设备
+     * @param record 日志记录
+     */
+    private void replayRecord(FileSystemJournal.Record record) {
+        int split = record.path.lastIndexOf('/');
+        FileSystemFolder parent = resolveFolder(record.path.substring(0, split));
+        String name = record.path.substring(split + 1);
+        if (parent == null || name.isEmpty()) {
+            return;
+        }
+        FileSystemNode entry = parent.getEntry(name);
+        boolean close = record.type == FileSystemJournal.OP_CLOSE || record.type == FileSystemJournal.OP_CLOSE_DELTA;
+        cloner.preserve(close && entry != null ? entry : parent);
+        switch (record.type) {
+            case FileSystemJournal.OP_MKDIR:
+                if (entry == null) {
+                    parent.addEntry(name, new FileSystemFolder(name, true, parent));
+                }
+                break;
+            case FileSystemJournal.OP_CREATE:
+                if (entry == null) {
+                    parent.addEntry(name, new FileSystemDocument(name, false, parent));
+                }
+                break;
+            case FileSystemJournal.OP_RMDIR:
+            case FileSystemJournal.OP_DELETE:
+                parent.removeEntry(name);
+                break;
+            case FileSystemJournal.OP_CLOSE:
+                if (entry != null && !entry.isDirectory) {
+                    ((FileSystemDocument) entry).file.restoreMapping(record.contentSize, record.blocks,
+                            record.packedLengths);
+                }
+                break;
+            case FileSystemJournal.OP_CLOSE_DELTA:
+                if (entry != null && !entry.isDirectory) {
+                    ((FileSystemDocument) entry).file.applyMappingChanges(record.contentSize, record.blockCount,
+                            record.logicalBlocks, record.blocks, record.units, record.packedLengths);
+                }
+                break;
+            case FileSystemJournal.OP_CLONE:
+                FileSystemNode source = resolveNode(record.sourcePath);
+                if (entry == null && source != null) {
+                    cloner.createClone(source, parent, name);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * 按绝对路径查找目录
+     * @param path 绝对路径，空串表示根目录
+     * @return 目录对象，不存在时返回null
+     */
+    private FileSystemFolder resolveFolder(String path) {
+        FileSystemFolder folder = rootDirectory;
+        for (String component : path.split("/")) {
+            if (component.isEmpty()) {
+                continue;
+            }
+            FileSystemNode entry = folder.getEntry(component);
+            if (entry == null || !entry.isDirectory) {
+                return null;
+            }
+            folder = (FileSystemFolder) entry;
+        }
+        return folder;
+    }
+
+    /**
+     * 按绝对路径查找文件或目录
+     * @param path 绝对路径
+     * @return 节点，不存在时返回null
+     */
+    private FileSystemNode resolveNode(String path) {
+        if (path.equals("/")) {
+            return rootDirectory;
+        }
+        int split = path.lastIndexOf('/');
+        FileSystemFolder parent = resolveFolder(path.substring(0, split));
+        return parent == null ? null : parent.getEntry(path.substring(split + 1));
+    }
+
+    /**
+     * 收集目录树中所有文件引用的存储块，不进入其他设备的挂载点
+     * @param folder 起始目录
+     * @param usedBlocks 用于收集存储块索引的列表
+     */
+    private void collectBlocks(FileSystemFolder folder, ArrayList<Integer> usedBlocks) {
+        for (String name : folder.getEntryNames()) {
+            FileSystemNode entry = folder.getEntry(name);
+            if (entry.isDirectory && mounts.containsKey(entry)) {
+                continue;
+            }
+            if (entry.isDirectory) {
+                collectBlocks((FileSystemFolder) entry, usedBlocks);
+            } else {
+                usedBlocks.addAll(((FileSystemDocument) entry).file.getBlockIndices());
+            }
+        }
+    }
+
+    /**
+     * 生成检查点：同步存储设备并将目录树写入新的元数据镜像，随后清空日志
+     * 镜像先写入临时文件再原子替换，任一时刻崩溃都能恢复到一致状态；
+     * 生成期间等待所有正在执行的命令结束并阻止新命令开始，尚未回收的已删除子树在此一并回收
+     * @param filePath 检查点文件路径
+     */
+    public void persistFileSystem(String filePath) {
+        operationLock.writeLock().lock();
+        FileSystemMetrics metrics = FileSystemMetrics.get();
+        long start = metrics.start();
+        try {
+            long checkpointId = journal.getCheckpointId() + 1;
+            for (StorageVolume volume : getVolumes()) {
+                volume.getReclaimer().drain();
+                volume.flush();
+            }
+            // 登记等待写回的存储块已随缓存全部写回，对应的记录包含在检查点中
+            flusher.takeQueued();
+            Path temp = Paths.get(filePath + ".tmp");
+            FileSystemImage.write(temp.toString(), checkpointId, rootDirectory);
+            Files.move(temp, Paths.get(filePath), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            journal.reset(checkpointId);
+            metrics.record(FileSystemMetrics.Operation.PERSIST, start);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to persist file system: " + e.getMessage(), e);
+        } finally {
+            operationLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 关闭文件系统：停止后台整理和预读，提交暂存的日志记录，然后关闭日志文件和所有存储设备；不生成检查点
+     * 用于在同一进程中重新打开文件系统（例如基准测试反复测量恢复），关闭后不能再使用本服务
+     */
+    public void close() {
+        defragmenter.shutdown();
+        // 预读线程在关闭设备之前结束，不会再访问设备文件的映射区域
+        prefetcher.shutdown();
+        commit();
+        journal.close();
+        for (StorageVolume volume : getVolumes()) {
+            volume.getCache().flushAll();
+            volume.getDevice().close();
+        }
+    }
+
+    /**
+     * 追加一条日志记录，调用者应持有被修改节点的写锁，以保证日志顺序与修改顺序一致
+     * 当前线程设置了延迟提交时记录只暂存，否则连同之前暂存的记录一起落盘
+     * @param record 日志记录
+     */
+    public void logOperation(FileSystemJournal.Record record) {
+        if (deferredCommit.get()) {
+            journal.append(record, false);
+            return;
+        }
+        synchronized (commitLock) {
+            synchronized (journal) {
+                if (journal.getPendingCount() == 0) {
+                    journal.append(record, true);
+                    return;
+                }
+                journal.append(record, false);
+            }
+            // 暂存的记录可能引用尚未写回和同步的存储块，与它们一起提交
+            commit();
+        }
+    }
+
+    /**
+     * 设置当前线程的日志记录是否延迟提交
+     * @param deferred 为true时当前线程追加的记录暂存到commit时再落盘
+     */
+    public void setDeferredCommit(boolean deferred) {
+        deferredCommit.set(deferred);
+    }
+
+    /**
+     * 检查当前线程的日志记录是否延迟提交
+     * @return 如果延迟提交则返回true
+     */
+    public boolean isDeferredCommit() {
+        return deferredCommit.get();
+    }
+
+    /**
+     * 组提交：写回已关闭文件登记的存储块并同步存储设备，再把此前暂存的日志记录一次写入日志文件
+     * 取走存储块和记下追加序号在日志的监视器内一起进行，写入的每条记录引用的存储块都已写回并同步；
+     * 同步期间其他会话可以继续追加记录，它们留给下一次提交。返回时调用前暂存的记录都已落盘；
+     * 失败时取走的存储块放回后台写回器，日志记录仍暂存，下一次提交时重试
+     */
+    public void commit() {
+        synchronized (commitLock) {
+            long sequence;
+            Map<StorageVolume, LinkedHashSet<Integer>> blocks;
+            synchronized (journal) {
+                if (journal.getPendingCount() == 0) {
+                    return;
+                }
+                sequence = journal.getSequence();
+                blocks = flusher.takeQueued();
+            }
+            FileSystemMetrics metrics = FileSystemMetrics.get();
+            long start = metrics.start();
+            try {
+                flusher.writeBack(blocks);
+                if (injectedCommitFailures > 0) {
+                    injectedCommitFailures--;
+                    throw new RuntimeException("Failed to commit: injected failure");
+                }
+                syncDevices();
+                journal.flush(sequence);
+            } catch (RuntimeException e) {
+                flusher.requeue(blocks);
+                throw e;
+            }
+            metrics.record(FileSystemMetrics.Operation.COMMIT, start);
+        }
+    }
+
+    /**
+     * 让接下来有日志记录要提交的若干次提交在写回之后失败，只用于压力测试
+     * @param count 失败的次数
+     */
+    void injectCommitFailures(int count) {
+        synchronized (commitLock) {
+            injectedCommitFailures += count;
+        }
+    }
+
+    /**
+     * 同步所有存储设备
+     */
+    private void syncDevices() {
+        for (StorageVolume volume : getVolumes()) {
+            volume.getDevice().sync();
+        }
+    }
+
+    /**
+     * 追加一条不带附加数据的日志记录
+     * @param type 记录类型
+     * @param node 被操作的节点
+     */
+    public void logOperation(int type, FileSystemNode node) {
+        logOperation(new FileSystemJournal.Record(type, node.getPath(), 0, new ArrayList<>()));
+    }
+
+    /**
+     * 关闭文件并将新的内容映射记入日志，调用者应持有该文件的写锁
+     * 修改过的内容按文件的压缩策略压缩；改变过的存储块留在缓冲区缓存中，与暂存的日志记录一起登记到后台写回器，
+     * 由后台线程（延迟提交时由commit）写回、同步并提交。只登记和记入改变的部分，关闭的代价与修改量而非文件大小成正比。等待提交的关闭过多时由本线程提交，
+     * 提交失败时与后台提交失败一样由写回器记下，不向调用者抛出异常
+     * @param fileEntry 文件对象
+     */
+    public void closeAndLog(FileSystemDocument fileEntry) {
+        StorageVolume volume = getVolume(fileEntry);
+        fileEntry.file.setCodec(getCodec(fileEntry));
+        fileEntry.close(volume.getCache());
+        BitSet changed = fileEntry.file.takeChangedBlocks();
+        ArrayList<Integer> blocks = new ArrayList<>(changed.cardinality());
+        for (int logicalBlock = changed.nextSetBit(0); logicalBlock >= 0; logicalBlock = changed.nextSetBit(logicalBlock + 1)) {
+            int block = fileEntry.file.getMappedBlock(logicalBlock);
+            if (block != BlockMap.HOLE) {
+                blocks.add(block);
+            }
+        }
+        // 改变的逻辑块每个记两个整数，改变的部分不到一半时才只记改变的部分
+        FileSystemJournal.Record record = changed.cardinality() * 2 < fileEntry.file.getMappedBlockCount()
+                ? closeDeltaRecord(fileEntry, changed) : closeRecord(fileEntry);
+        boolean full;
+        synchronized (journal) {
+            full = flusher.submit(volume, blocks);
+            journal.append(record, false);
+        }
+        if (full) {
+            flusher.tryCommit();
+        } else if (!deferredCommit.get()) {
+            flusher.requestCommit();
+        }
+    }
+
+    /**
+     * 创建描述文件当前内容映射的OP_CLOSE日志记录，调用者应持有该文件的锁
+     * @param fileEntry 文件对象
+     * @return 日志记录
+     */
+    public FileSystemJournal.Record closeRecord(FileSystemDocument fileEntry) {
+        return new FileSystemJournal.Record(FileSystemJournal.OP_CLOSE, fileEntry.getPath(),
+                fileEntry.file.getContentSize(), fileEntry.file.getBlockMapping(), fileEntry.file.getPackedLengths());
+    }
+
+    /**
+     * 创建只描述改变部分的OP_CLOSE_DELTA日志记录，调用者应持有该文件的锁
+     * @param fileEntry 文件对象
+     * @param changed 上次关闭以来改变的逻辑块，所在单元的压缩信息一并记入
+     * @return 日志记录
+     */
+    private FileSystemJournal.Record closeDeltaRecord(FileSystemDocument fileEntry, BitSet changed) {
+        VirtualFileContent content = fileEntry.file;
+        List<Integer> logicalBlocks = new ArrayList<>();
+        List<Integer> blocks = new ArrayList<>();
+        List<Integer> units = new ArrayList<>();
+        List<Integer> packedLengths = new ArrayList<>();
+        for (int logicalBlock = changed.nextSetBit(0); logicalBlock >= 0; logicalBlock = changed.nextSetBit(logicalBlock + 1)) {
+            logicalBlocks.add(logicalBlock);
+            blocks.add(content.getMappedBlock(logicalBlock));
+            int unit = logicalBlock / BlockMap.UNIT_BLOCKS;
+            if (units.isEmpty() || units.get(units.size() - 1) != unit) {
+                units.add(unit);
+                packedLengths.add(content.getPackedLength(unit));
+            }
+        }
+        return new FileSystemJournal.Record(FileSystemJournal.OP_CLOSE_DELTA, fileEntry.getPath(),
+                content.getContentSize(), content.getMappedBlockCount(), logicalBlocks, blocks, units, packedLengths);
+    }
+}
@@ -0,0 +1,166 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * 存储块内容指纹索引
+ * 为块去重记录"内容指纹 -> 存储块"，每个指纹只对应一个存储块。
+ * 用开放定址（线性探查）的long[]/int[]数组保存，查找和修改不创建装箱对象；删除时把后续的项前移，不留墓碑。
+ *
+ * 指纹是块内容的64位散列，不同内容可能得到相同的指纹，共享存储块之前调用者必须逐字节比较内容。
+ * 指纹0保留表示"没有指纹"。本类不加锁，由所属存储设备的监视器保护
+ */
+public class FingerprintIndex {
+    // 初始容量（必须是2的幂）
+    private static final int INITIAL_CAPACITY = 1024;
+    // 散列使用的常数
+    private static final long PRIME1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME3 = 0x165667B19E3779F9L;
+    // 按小端序从字节数组中读取long
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    // 各槽位的指纹，0表示空槽位
+    private long[] keys;
+    // 各槽位的存储块索引
+    private int[] blocks;
+    // 已使用的槽位数
+    private int size;
+
+    /**
+     * 创建一个空的指纹索引
+     */
+    public FingerprintIndex() {
+        this.keys = new long[INITIAL_CAPACITY];
+        this.blocks = new int[INITIAL_CAPACITY];
+        this.size = 0;
+    }
+
+    /**
+     * 计算块内容的指纹：每次读取8个字节混入散列状态，最后做一次雪崩混合
+     * @param data 块内容
+     * @param length 有效字节数
+     * @return 非0的64位指纹
+     */
+    public static long fingerprint(byte[] data, int length) {
+        long hash = PRIME3 ^ (length * PRIME1);
+        int i = 0;
+        for (; i + Long.BYTES <= length; i += Long.BYTES) {
+            long word = (long) LONGS.get(data, i);
+            hash = Long.rotateLeft(hash ^ (word * PRIME2), 31) * PRIME1;
+        }
+        for (; i < length; i++) {
+            hash = Long.rotateLeft(hash ^ ((data[i] & 0xFF) * PRIME3), 11) * PRIME1;
+        }
+        hash ^= hash >>> 33;
+        hash *= PRIME2;
+        hash ^= hash >>> 29;
+        hash *= PRIME3;
+        hash ^= hash >>> 32;
+        return hash == 0 ? 1 : hash;
+    }
+
+    /**
+     * 获取指纹所在的起始槽位
+     */
+    private int home(long fingerprint, int mask) {
+        return (int) (fingerprint ^ (fingerprint >>> 32)) & mask;
+    }
+
+    /**
+     * 查找具有指定指纹的存储块
+     * @param fingerprint 指纹
+     * @return 存储块索引，不存在时返回-1
+     */
+    public int get(long fingerprint) {
+        int mask = keys.length - 1;
+        for (int slot = home(fingerprint, mask); keys[slot] != 0; slot = (slot + 1) & mask) {
+            if (keys[slot] == fingerprint) {
+                return blocks[slot];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 记录指纹对应的存储块，已有的记录被替换
+     * @param fingerprint 非0的指纹
+     * @param block 存储块索引
+     */
+    public void put(long fingerprint, int block) {
+        if ((size + 1) * 2 > keys.length) {
+            resize(keys.length * 2);
+        }
+        int mask = keys.length - 1;
+        int slot = home(fingerprint, mask);
+        while (keys[slot] != 0 && keys[slot] != fingerprint) {
+            slot = (slot + 1) & mask;
+        }
+        if (keys[slot] == 0) {
+            keys[slot] = fingerprint;
+            size++;
+        }
+        blocks[slot] = block;
+    }
+
+    /**
+     * 删除指纹的记录，只有记录的存储块是给定的存储块时才删除
+     * @param fingerprint 指纹
+     * @param block 存储块索引
+     */
+    public void remove(long fingerprint, int block) {
+        int mask = keys.length - 1;
+        int slot = home(fingerprint, mask);
+        while (keys[slot] != fingerprint) {
+            if (keys[slot] == 0) {
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        if (blocks[slot] != block) {
+            return;
+        }
+        // 把探查链上后续的项前移到空出的槽位，保持每项都能从其起始槽位找到
+        int hole = slot;
+        for (int next = (hole + 1) & mask; keys[next] != 0; next = (next + 1) & mask) {
+            int wanted = home(keys[next], mask);
+            if (((next - wanted) & mask) >= ((next - hole) & mask)) {
+                keys[hole] = keys[next];
+                blocks[hole] = blocks[next];
+                hole = next;
+            }
+        }
+        keys[hole] = 0;
+        size--;
+    }
+
+    /**
+     * 清空索引
+     */
+    public void clear() {
+        keys = new long[INITIAL_CAPACITY];
+        blocks = new int[INITIAL_CAPACITY];
+        size = 0;
+    }
+
+    /**
+     * 获取记录的指纹数量
+     * @return 指纹数量
+     */
+    public int size() {
+        return size;
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        int[] oldBlocks = blocks;
+        keys = new long[capacity];
+        blocks = new int[capacity];
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) {
+                put(oldKeys[i], oldBlocks[i]);
+            }
+        }
+    }
+}
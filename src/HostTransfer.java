@@ -0,0 +1,422 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * 主机目录与虚拟文件系统之间的批量传输
+ * 先在调用线程中按层次遍历源目录树并建立目标目录和文件，再由多个工作线程并行传输各文件的内容。
+ *
+ * 导入时每个文件按主机文件的大小一次性分配存储块，用FileChannel把内容直接读入各存储块在设备文件中的
+ * 映射区域，不经过缓冲区缓存，最后归还未用到的尾部存储块（文件在读取期间变短时）；
+ * 设备开启了块去重时，内容与已有存储块相同的块改为引用已有的存储块。
+ * 目标文件的压缩策略不是none时，内容按压缩单元读入内存、压缩后写入存储块，压缩后不能少占存储块的单元按原样写入。
+ * 元数据日志按组提交：全部文件传输完成后同步一次存储设备和日志。
+ * 导出时按块经缓冲区缓存读取文件内容，用FileChannel写入主机文件。文件内容按字节原样传输。
+ *
+ * 调用者在整个传输期间应持有操作锁的读锁，工作线程的访问都包含在这一个操作内
+ */
+public class HostTransfer {
+    // 导出时每次传输的字节数
+    private static final int CHUNK_BYTES = 1 << 18;
+
+    // 文件系统服务
+    private final FileSystemService service;
+    // 并行传输文件内容的线程数
+    private final int threads;
+    // 传输中出现的错误
+    private final List<String> errors;
+
+    // 统计计数
+    private long files;
+    private long folders;
+    private long bytes;
+    private long nanos;
+
+    /**
+     * 创建批量传输
+     * @param service 文件系统服务
+     * @param threads 并行传输文件内容的线程数
+     */
+    public HostTransfer(FileSystemService service, int threads) {
+        this.service = service;
+        this.threads = Math.max(1, threads);
+        this.errors = new ArrayList<>();
+    }
+
+    /**
+     * 导入主机上的文件或目录树
+     * @param source 主机路径
+     * @param parent 目标父目录
+     * @param name 在父目录中的名称；同名目录已存在时合并到该目录中
+     */
+    public void importTree(Path source, FileSystemFolder parent, String name) {
+        long start = System.nanoTime();
+        List<Path> sources = new ArrayList<>();
+        List<FileSystemDocument> documents = new ArrayList<>();
+        boolean deferred = service.isDeferredCommit();
+        service.setDeferredCommit(true);
+        try {
+            createTree(source, parent, name, sources, documents);
+        } finally {
+            service.setDeferredCommit(deferred);
+        }
+
+        List<Future<Long>> results = new ArrayList<>();
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        try {
+            for (int i = 0; i < sources.size(); i++) {
+                Path file = sources.get(i);
+                FileSystemDocument document = documents.get(i);
+                results.add(workers.submit(() -> importFile(file, document)));
+            }
+            collect(results, sources);
+        } finally {
+            workers.shutdown();
+        }
+        // 组提交：先同步本次写入的全部存储块，再一次写入全部日志记录
+        service.commit();
+        nanos = System.nanoTime() - start;
+    }
+
+    /**
+     * 在目标位置建立与主机目录树相同的目录和空文件，记录需要传输内容的文件
+     */
+    private void createTree(Path source, FileSystemFolder parent, String name,
+                            List<Path> sources, List<FileSystemDocument> documents) {
+        String path = parent.getPath() + (parent.getParentDir() == null ? "" : "/") + name;
+        if (Files.isDirectory(source)) {
+            FileSystemNode node = service.createNode(parent, name, true);
+            if (node == null) {
+                node = existingEntry(parent, name);
+                if (node == null || !node.isDirectory) {
+                    errors.add("Failed: " + path + " is already existed.");
+                    return;
+                }
+            } else {
+                folders++;
+            }
+            try (DirectoryStream<Path> children = Files.newDirectoryStream(source)) {
+                for (Path child : children) {
+                    createTree(child, (FileSystemFolder) node, child.getFileName().toString(), sources, documents);
+                }
+            } catch (IOException e) {
+                errors.add("错误：无法读取 " + source + ": " + e.getMessage());
+            }
+        } else if (Files.isRegularFile(source)) {
+            FileSystemNode node = service.createNode(parent, name, false);
+            if (node == null) {
+                errors.add("Failed: " + path + " is already existed.");
+                return;
+            }
+            sources.add(source);
+            documents.add((FileSystemDocument) node);
+        }
+    }
+
+    /**
+     * 在目录的读锁保护下读取目录项
+     */
+    private FileSystemNode existingEntry(FileSystemFolder parent, String name) {
+        parent.getLock().readLock().lock();
+        try {
+            return parent.isUnlinked() ? null : parent.getEntry(name);
+        } finally {
+            parent.getLock().readLock().unlock();
+        }
+    }
+
+    /**
+     * 工作线程：把一个主机文件的内容写入新建的空文件
+     * @param source 主机文件
+     * @param document 目标文件
+     * @return 读取的字节数
+     */
+    private long importFile(Path source, FileSystemDocument document) throws IOException {
+        service.setDeferredCommit(true);
+        StorageDevice device = service.getVolume(document).getDevice();
+        int blockSize = device.getBlockSize();
+        try (FileChannel channel = FileChannel.open(source, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("file is too large");
+            }
+            BlockCodec codec = service.getCodec(document);
+            if (codec != BlockCodec.NONE) {
+                return importPacked(channel, document, device, codec);
+            }
+            int blockCount = (int) ((size + blockSize - 1) / blockSize);
+            ArrayList<Integer> blocks = device.diskAlloc(blockCount, -1, document.getParentDir().getPath());
+            if (blocks.size() < blockCount) {
+                device.diskFree(blocks);
+                throw new IOException("存储空间不足");
+            }
+
+            int read = 0;
+            try {
+                for (int used = 0; used < blocks.size(); used++) {
+                    int count = device.transferFrom(blocks.get(used), channel);
+                    read += count;
+                    // 除最后一块外每块都必须写满，文件在读取期间变短时不再继续
+                    if (count < blockSize) {
+                        break;
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                device.diskFree(blocks);
+                throw e;
+            }
+
+            int used = (int) ((read + (long) blockSize - 1) / blockSize);
+            ArrayList<Integer> unused = new ArrayList<>(blocks.subList(used, blocks.size()));
+            ArrayList<Integer> mapped = new ArrayList<>(blocks.subList(0, used));
+            if (!unused.isEmpty()) {
+                device.diskFree(unused);
+            }
+            if (device.isDeduplication()) {
+                mapped.replaceAll(device::deduplicate);
+            }
+            attach(document, read, mapped, new ArrayList<>(), device);
+            return read;
+        }
+    }
+
+    /**
+     * 按压缩单元读取主机文件的内容，压缩后写入新分配的存储块
+     * @param channel 主机文件
+     * @param document 目标文件
+     * @param device 目标存储设备
+     * @param codec 编解码器
+     * @return 读取的字节数
+     */
+    private long importPacked(FileChannel channel, FileSystemDocument document, StorageDevice device,
+                              BlockCodec codec) throws IOException {
+        int blockSize = device.getBlockSize();
+        String group = document.getParentDir().getPath();
+        ByteBuffer raw = ByteBuffer.allocate(BlockMap.UNIT_BLOCKS * blockSize);
+        byte[] packed = new byte[raw.capacity()];
+        ArrayList<Integer> mapping = new ArrayList<>();
+        ArrayList<Integer> packedLengths = new ArrayList<>();
+        ArrayList<Integer> allocated = new ArrayList<>();
+        int read = 0;
+        try {
+            boolean end = false;
+            while (!end) {
+                raw.clear();
+                while (raw.hasRemaining() && !end) {
+                    end = channel.read(raw) < 0;
+                }
+                int rawLength = raw.position();
+                if (rawLength == 0) {
+                    break;
+                }
+                read += rawLength;
+                int count = (rawLength + blockSize - 1) / blockSize;
+                int length = count < 2 ? -1
+                        : BlockCodec.pack(codec, raw.array(), rawLength, packed, (count - 1) * blockSize);
+                byte[] content = length < 0 ? raw.array() : packed;
+                int stored = length < 0 ? rawLength : length;
+                int storedCount = (stored + blockSize - 1) / blockSize;
+                int goal = allocated.isEmpty() ? -1 : allocated.get(allocated.size() - 1) + 1;
+                ArrayList<Integer> blocks = device.diskAlloc(storedCount, goal, group);
+                allocated.addAll(blocks);
+                if (blocks.size() < storedCount) {
+                    throw new IOException("存储空间不足");
+                }
+                for (int i = 0; i < storedCount; i++) {
+                    device.writeBlock(blocks.get(i), content, i * blockSize,
+                            Math.min(blockSize, stored - i * blockSize));
+                }
+                if (length < 0 && device.isDeduplication()) {
+                    for (int i = 0; i < storedCount; i++) {
+                        int shared = device.deduplicate(blocks.get(i));
+                        allocated.set(allocated.size() - storedCount + i, shared);
+                        blocks.set(i, shared);
+                    }
+                }
+                for (int i = 0; i < count; i++) {
+                    mapping.add(i < storedCount ? blocks.get(i) : BlockMap.HOLE);
+                }
+                packedLengths.add(Math.max(length, 0));
+            }
+        } catch (IOException | RuntimeException e) {
+            device.diskFree(allocated);
+            throw e;
+        }
+        attach(document, read, mapping, packedLengths, device);
+        return read;
+    }
+
+    /**
+     * 在文件的写锁保护下设置导入的内容并记入日志；文件已被删除、打开或写入时放弃导入的内容
+     */
+    private void attach(FileSystemDocument document, int size, ArrayList<Integer> blocks,
+                        ArrayList<Integer> packedLengths, StorageDevice device) throws IOException {
+        Lock lock = document.getLock().writeLock();
+        lock.lock();
+        try {
+            if (!document.isUnlinked() && document.file.attachBlocks(size, blocks, packedLengths)) {
+                service.logOperation(service.closeRecord(document));
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        blocks.removeIf(block -> block == BlockMap.HOLE);
+        device.diskFree(blocks);
+        throw new IOException("file was changed during import");
+    }
+
+    /**
+     * 导出文件或目录树到主机
+     * @param source 虚拟文件系统中的文件或目录
+     * @param target 主机路径
+     */
+    public void exportTree(FileSystemNode source, Path target) {
+        long start = System.nanoTime();
+        List<FileSystemDocument> documents = new ArrayList<>();
+        List<Path> targets = new ArrayList<>();
+        collectTree(source, target, documents, targets);
+
+        List<Future<Long>> results = new ArrayList<>();
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        try {
+            for (int i = 0; i < documents.size(); i++) {
+                FileSystemDocument document = documents.get(i);
+                Path file = targets.get(i);
+                results.add(workers.submit(() -> exportFile(document, file)));
+            }
+            collect(results, targets);
+        } finally {
+            workers.shutdown();
+        }
+        nanos = System.nanoTime() - start;
+    }
+
+    /**
+     * 在主机上建立与源目录树相同的目录，记录需要导出内容的文件
+     */
+    private void collectTree(FileSystemNode source, Path target,
+                             List<FileSystemDocument> documents, List<Path> targets) {
+        if (!source.isDirectory) {
+            documents.add((FileSystemDocument) source);
+            targets.add(target);
+            return;
+        }
+        try {
+            Files.createDirectories(target);
+            folders++;
+        } catch (IOException e) {
+            errors.add("错误：无法创建 " + target + ": " + e.getMessage());
+            return;
+        }
+        FileSystemFolder folder = (FileSystemFolder) source;
+        List<FileSystemNode> children;
+        folder.getLock().readLock().lock();
+        try {
+            children = new ArrayList<>(folder.getEntries().values());
+        } finally {
+            folder.getLock().readLock().unlock();
+        }
+        for (FileSystemNode child : children) {
+            collectTree(child, target.resolve(child.getName()), documents, targets);
+        }
+    }
+
+    /**
+     * 工作线程：把一个文件的内容（包括打开期间尚未关闭的修改）写入主机文件，按块顺序读取并预读
+     * @param document 源文件
+     * @param target 主机文件
+     * @return 写入的字节数
+     */
+    private long exportFile(FileSystemDocument document, Path target) throws IOException {
+        BufferCache cache = service.getCache(document);
+        Lock lock = document.getLock().readLock();
+        lock.lock();
+        try (FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            if (document.isUnlinked()) {
+                throw new IOException("file was deleted during export");
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(CHUNK_BYTES);
+            ReadAhead readAhead = new ReadAhead(service.getPrefetcher());
+            int size = document.file.getOpenSize();
+            long written = 0;
+            int position = 0;
+            while (position < size) {
+                readAhead.onRead(document.file, position, CHUNK_BYTES, cache);
+                int count = document.file.read(position, buffer.array(), 0, CHUNK_BYTES, cache);
+                if (count == 0) {
+                    break;
+                }
+                buffer.position(count);
+                written += drain(channel, buffer);
+                position += count;
+            }
+            return written;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 把输出缓冲区中的字节全部写入主机文件并清空缓冲区
+     * @return 写入的字节数
+     */
+    private long drain(FileChannel channel, ByteBuffer output) throws IOException {
+        output.flip();
+        long written = 0;
+        while (output.hasRemaining()) {
+            written += channel.write(output);
+        }
+        output.clear();
+        return written;
+    }
+
+    /**
+     * 等待所有工作线程的任务完成，汇总传输的字节数和错误
+     */
+    private void collect(List<Future<Long>> results, List<Path> paths) {
+        for (int i = 0; i < results.size(); i++) {
+            try {
+                bytes += results.get(i).get();
+                files++;
+            } catch (ExecutionException e) {
+                errors.add("错误：传输 " + paths.get(i) + " 失败: " + e.getCause().getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                errors.add("错误：传输被中断");
+                return;
+            }
+        }
+    }
+
+    /**
+     * 获取传输中出现的错误
+     * @return 错误信息列表
+     */
+    public List<String> getErrors() {
+        return errors;
+    }
+
+    /**
+     * 输出传输的文件数、字节数和吞吐率
+     * @param operation 操作名称
+     */
+    public void report(String operation) {
+        double seconds = Math.max(nanos, 1) / 1e9;
+        System.out.printf("%s: %d 个文件, %d 个目录, %d 字节, %d ms, %.2f MB/s, %.1f 文件/s%n",
+                operation, files, folders, bytes, nanos / 1_000_000,
+                bytes / seconds / (1 << 20), files / seconds);
+    }
+}
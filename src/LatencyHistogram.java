@@ -0,0 +1,138 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 延迟直方图
+ * 按对数-线性分桶记录非负数值（纳秒）：小于16的值各占一个桶，之后每个2的幂区间再均分为16个桶，
+ * 任一记录值与其所在桶的上界相差不超过6.25%，与HdrHistogram的有效数字精度相当。
+ * 桶数固定，记录时只做原子加法，不分配对象、不加锁，可以被多个线程并发记录；
+ * 读取统计时得到的是近似一致的快照
+ */
+public class LatencyHistogram {
+    // 每个2的幂区间划分的桶数的位数
+    private static final int SUB_BUCKET_BITS = 4;
+    // 每个2的幂区间划分的桶数
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // 桶总数：覆盖0到Long.MAX_VALUE
+    private static final int BUCKET_COUNT = (Long.SIZE - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    // 各桶的计数
+    private final AtomicLongArray buckets;
+    // 记录次数
+    private final LongAdder count;
+    // 记录值之和
+    private final LongAdder sum;
+    // 最大记录值
+    private final LongAccumulator max;
+
+    /**
+     * 创建空的延迟直方图
+     */
+    public LatencyHistogram() {
+        this.buckets = new AtomicLongArray(BUCKET_COUNT);
+        this.count = new LongAdder();
+        this.sum = new LongAdder();
+        this.max = new LongAccumulator(Math::max, 0);
+    }
+
+    /**
+     * 计算数值所在的桶
+     */
+    private static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * 计算桶中数值的上界（包含）
+     */
+    private static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long subBucket = bucket % SUB_BUCKETS;
+        long next = (SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS);
+        return next <= 0 ? Long.MAX_VALUE : next - 1;
+    }
+
+    /**
+     * 记录一个数值，负数按0记录
+     * @param value 数值（纳秒）
+     */
+    public void record(long value) {
+        long clamped = Math.max(0, value);
+        buckets.incrementAndGet(bucketOf(clamped));
+        count.increment();
+        sum.add(clamped);
+        max.accumulate(clamped);
+    }
+
+    /**
+     * 获取记录次数
+     * @return 记录次数
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * 获取平均值
+     * @return 平均值，没有记录时为0
+     */
+    public double getMean() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    /**
+     * 获取最大记录值
+     * @return 最大值，没有记录时为0
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * 获取百分位数的近似值：不小于该比例的记录值所在桶的上界，不超过最大记录值
+     * @param percentile 百分位，0到100之间
+     * @return 百分位数，没有记录时为0
+     */
+    public long getPercentile(double percentile) {
+        long total = 0;
+        long[] snapshot = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            snapshot[i] = buckets.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * Math.min(100, Math.max(0, percentile)) / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(upperBoundOf(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * 清空全部记录
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets.set(i, 0);
+        }
+        count.reset();
+        sum.reset();
+        max.reset();
+    }
+}
@@ -0,0 +1,96 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * 旧格式存储设备的只读访问
+ * 旧格式的存储块内容是UTF-16字符，块大小和块长度都以字符计，布局为：
+ * [头部: 魔数、块数、块大小] [分配位图] [块长度表] [数据区]
+ * 只用于把旧设备上的文件内容迁移到按字节存储的新设备
+ */
+public class LegacyCharDevice {
+    // 旧格式设备文件魔数
+    private static final int LEGACY_MAGIC = 0x43484B44;
+    // 头部大小（字节）：魔数、块数、块大小
+    private static final int HEADER_SIZE = 12;
+
+    // 设备文件通道
+    private final FileChannel channel;
+    // 设备文件的只读内存映射
+    private final MappedByteBuffer mappedBuffer;
+    // 块大小（字符）
+    private final int blockSize;
+    // 块长度表在设备文件中的偏移量
+    private final int lengthTableOffset;
+    // 数据区在设备文件中的偏移量
+    private final int dataOffset;
+
+    /**
+     * 打开旧格式的设备文件
+     * @param devicePath 设备文件路径
+     */
+    public LegacyCharDevice(Path devicePath) {
+        try {
+            this.channel = FileChannel.open(devicePath, StandardOpenOption.READ);
+            this.mappedBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to open legacy storage device: " + e.getMessage(), e);
+        }
+        int diskSize = mappedBuffer.getInt(4);
+        this.blockSize = mappedBuffer.getInt(8);
+        int bitmapWords = (diskSize + 63) >>> 6;
+        this.lengthTableOffset = HEADER_SIZE + bitmapWords * Long.BYTES;
+        this.dataOffset = lengthTableOffset + diskSize * Short.BYTES;
+    }
+
+    /**
+     * 检查设备文件是否为旧格式
+     * @param devicePath 设备文件路径
+     * @return 如果文件存在且为旧格式则返回true
+     */
+    public static boolean isLegacy(Path devicePath) {
+        if (!Files.isRegularFile(devicePath)) {
+            return false;
+        }
+        try (FileChannel file = FileChannel.open(devicePath, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(Integer.BYTES);
+            return file.read(header, 0) == Integer.BYTES && header.getInt(0) == LEGACY_MAGIC;
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read storage device header: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * 按旧格式的块映射读取文件内容
+     * @param blocks 按逻辑块顺序排列的物理存储块索引
+     * @param size 文件大小（字符数）
+     * @return 文件内容
+     */
+    public String readContent(List<Integer> blocks, int size) {
+        StringBuilder content = new StringBuilder(size);
+        for (int blockIndex : blocks) {
+            int length = mappedBuffer.getShort(lengthTableOffset + blockIndex * Short.BYTES);
+            int base = dataOffset + blockIndex * blockSize * Character.BYTES;
+            for (int i = 0; i < length && content.length() < size; i++) {
+                content.append(mappedBuffer.getChar(base + i * Character.BYTES));
+            }
+        }
+        return content.toString();
+    }
+
+    /**
+     * 关闭设备文件
+     */
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to close legacy storage device: " + e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,197 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * LZ4风格的快速压缩编解码器
+ * 输出是LZ4块格式的序列：[标记] [字面量长度扩展]* [字面量] [偏移量, 2字节小端] [匹配长度扩展]*，
+ * 标记的高4位是字面量长度，低4位是匹配长度减4，等于15时由后续字节累加（255表示继续）。
+ * 最后一个序列只有字面量。
+ *
+ * 压缩时用4字节散列表贪心查找最近的匹配，连续未找到匹配时逐渐加大步长，难以压缩的内容很快扫过；
+ * 解压只做复制，不分配对象。散列表按线程复用
+ */
+public class LzCodec extends BlockCodec {
+    // 最短匹配长度
+    private static final int MIN_MATCH = 4;
+    // 最后若干字节总是作为字面量输出
+    private static final int LAST_LITERALS = 5;
+    // 距离内容末尾不足此字节数时不再查找匹配
+    private static final int MATCH_FIND_LIMIT = 12;
+    // 最大匹配偏移量
+    private static final int MAX_OFFSET = 65535;
+    // 散列表大小的对数
+    private static final int HASH_BITS = 12;
+    // 连续未找到匹配时每隔多少字节加大一次步长（对数）
+    private static final int SKIP_STRENGTH = 6;
+    // 按小端序从字节数组中读取int
+    private static final VarHandle INTS = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
+    // 各线程的散列表：4字节内容的散列 -> 最近出现的位置
+    private static final ThreadLocal<int[]> TABLES = ThreadLocal.withInitial(() -> new int[1 << HASH_BITS]);
+
+    @Override
+    public int getId() {
+        return 1;
+    }
+
+    @Override
+    public String getName() {
+        return "lz";
+    }
+
+    private static int hash(int sequence) {
+        return (sequence * -1640531535) >>> (Integer.SIZE - HASH_BITS);
+    }
+
+    @Override
+    public int compress(byte[] src, int length, byte[] dest, int destOffset, int destLimit) {
+        int[] table = TABLES.get();
+        Arrays.fill(table, -1);
+        int anchor = 0;
+        int position = 0;
+        int output = destOffset;
+        int matchEnd = length - LAST_LITERALS;
+        int findLimit = length - MATCH_FIND_LIMIT;
+        int misses = 0;
+        while (position < findLimit) {
+            int sequence = (int) INTS.get(src, position);
+            int slot = hash(sequence);
+            int candidate = table[slot];
+            table[slot] = position;
+            if (candidate < 0 || position - candidate > MAX_OFFSET || (int) INTS.get(src, candidate) != sequence) {
+                position += 1 + (misses++ >>> SKIP_STRENGTH);
+                continue;
+            }
+            misses = 0;
+            // 向前延伸匹配，再向后延伸到不能再匹配或到达末尾的字面量区
+            while (position > anchor && candidate > 0 && src[position - 1] == src[candidate - 1]) {
+                position--;
+                candidate--;
+            }
+            int matchLength = MIN_MATCH;
+            while (position + matchLength < matchEnd && src[position + matchLength] == src[candidate + matchLength]) {
+                matchLength++;
+            }
+            output = writeSequence(src, anchor, position - anchor, position - candidate, matchLength,
+                    dest, output, destLimit);
+            if (output < 0) {
+                return -1;
+            }
+            position += matchLength;
+            anchor = position;
+        }
+        output = writeSequence(src, anchor, length - anchor, 0, 0, dest, output, destLimit);
+        return output < 0 ? -1 : output - destOffset;
+    }
+
+    /**
+     * 输出一个序列；matchLength为0时只输出字面量（最后一个序列）
+     * @return 输出后的位置，超过destLimit时返回-1
+     */
+    private static int writeSequence(byte[] src, int literalStart, int literalLength, int offset, int matchLength,
+                                     byte[] dest, int output, int destLimit) {
+        int extra = matchLength - MIN_MATCH;
+        int needed = 1 + literalLength + literalLength / 255 + 1 + (matchLength > 0 ? 2 + extra / 255 + 1 : 0);
+        if (output + needed > destLimit) {
+            return -1;
+        }
+        int token = output++;
+        int tokenValue = Math.min(literalLength, 15) << 4;
+        if (literalLength >= 15) {
+            output = writeLength(dest, output, literalLength - 15);
+        }
+        System.arraycopy(src, literalStart, dest, output, literalLength);
+        output += literalLength;
+        if (matchLength > 0) {
+            dest[output++] = (byte) offset;
+            dest[output++] = (byte) (offset >>> 8);
+            tokenValue |= Math.min(extra, 15);
+            if (extra >= 15) {
+                output = writeLength(dest, output, extra - 15);
+            }
+        }
+        dest[token] = (byte) tokenValue;
+        return output;
+    }
+
+    /**
+     * 输出长度扩展字节：每个255表示继续，最后一个字节小于255
+     */
+    private static int writeLength(byte[] dest, int output, int remaining) {
+        while (remaining >= 255) {
+            dest[output++] = (byte) 255;
+            remaining -= 255;
+        }
+        dest[output++] = (byte) remaining;
+        return output;
+    }
+
+    @Override
+    public void decompress(byte[] src, int srcOffset, int srcLength, byte[] dest, int destLength) {
+        int input = srcOffset;
+        int end = srcOffset + srcLength;
+        int output = 0;
+        while (input < end) {
+            int token = src[input++] & 0xFF;
+            int literalLength = token >>> 4;
+            if (literalLength == 15) {
+                int value;
+                do {
+                    if (input >= end) {
+                        throw corrupted();
+                    }
+                    value = src[input++] & 0xFF;
+                    literalLength += value;
+                } while (value == 255);
+            }
+            if (literalLength > end - input || literalLength > destLength - output) {
+                throw corrupted();
+            }
+            System.arraycopy(src, input, dest, output, literalLength);
+            input += literalLength;
+            output += literalLength;
+            if (input == end) {
+                break;
+            }
+            if (end - input < 2) {
+                throw corrupted();
+            }
+            int offset = (src[input] & 0xFF) | (src[input + 1] & 0xFF) << 8;
+            input += 2;
+            int matchLength = token & 0x0F;
+            if (matchLength == 15) {
+                int value;
+                do {
+                    if (input >= end) {
+                        throw corrupted();
+                    }
+                    value = src[input++] & 0xFF;
+                    matchLength += value;
+                } while (value == 255);
+            }
+            matchLength += MIN_MATCH;
+            if (offset == 0 || offset > output || matchLength > destLength - output) {
+                throw corrupted();
+            }
+            int from = output - offset;
+            if (offset >= matchLength) {
+                System.arraycopy(dest, from, dest, output, matchLength);
+                output += matchLength;
+            } else {
+                // 匹配与输出重叠（重复的短模式），逐字节复制
+                for (int i = 0; i < matchLength; i++) {
+                    dest[output++] = dest[from + i];
+                }
+            }
+        }
+        if (output != destLength) {
+            throw corrupted();
+        }
+    }
+
+    private static IllegalStateException corrupted() {
+        return new IllegalStateException("Corrupted compressed unit");
+    }
+}
@@ -1,7 +1,17 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.Scanner;
 
 public class Main {
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("batch")) {
+            runBatch(args.length > 1 ? args[1] : "-");
+            return;
+        }
         Scanner scanner = new Scanner(System.in);
         ChiikaFileSystemCore fs = null;
         System.out.println("欢迎使用简易文件系统！");
@@ -30,4 +40,19 @@ public class Main {
         }
         fs.run();
     }
-}
\ No newline at end of file
+
+    /**
+     * 以批处理模式执行脚本
+     * @param scriptPath 脚本文件路径，"-"表示从标准输入读取
+     */
+    private static void runBatch(String scriptPath) {
+        try (BufferedReader script = scriptPath.equals("-")
+                ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+                : Files.newBufferedReader(Paths.get(scriptPath), StandardCharsets.UTF_8)) {
+            new BatchRunner(new FileSystemService(), StorageConstants.BATCH_COMMIT_INTERVAL).run(script);
+        } catch (IOException e) {
+            System.out.println("错误：无法读取脚本 " + scriptPath + ": " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
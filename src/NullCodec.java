@@ -0,0 +1,33 @@
+/**
+ * 不压缩的编解码器
+ * 输出与输入相同，加上单元头部后总比原始内容大，使用此编解码器的文件内容总是按原样保存
+ */
+public class NullCodec extends BlockCodec {
+
+    @Override
+    public int getId() {
+        return 0;
+    }
+
+    @Override
+    public String getName() {
+        return "none";
+    }
+
+    @Override
+    public int compress(byte[] src, int length, byte[] dest, int destOffset, int destLimit) {
+        if (destOffset + length > destLimit) {
+            return -1;
+        }
+        System.arraycopy(src, 0, dest, destOffset, length);
+        return length;
+    }
+
+    @Override
+    public void decompress(byte[] src, int srcOffset, int srcLength, byte[] dest, int destLength) {
+        if (srcLength != destLength) {
+            throw new IllegalStateException("Corrupted compressed unit");
+        }
+        System.arraycopy(src, srcOffset, dest, 0, destLength);
+    }
+}
@@ -0,0 +1,215 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * 路径解析器
+ * 把绝对路径或相对路径规范化为不含"."、".."和多余"/"的绝对路径，并按规范化路径查找节点。
+ * 查找结果保存在有界的目录项缓存中（按最近最少使用淘汰），命中时不再逐级访问目录；
+ * 不存在的路径也会缓存为负项。
+ *
+ * 目录项增删后由调用者使缓存失效：新建节点使该路径的负项失效，删除节点使该路径及其下所有路径失效。
+ * 失效会增加缓存代数，与失效并发进行的查找不会把过期结果放入缓存
+ */
+public class PathResolver {
+    // 负项标记：路径不存在
+    private static final FileSystemNode NEGATIVE = new FileSystemFolder("", true, null);
+
+    // 文件系统根目录
+    private final FileSystemFolder root;
+    // 缓存容量（条目数）
+    private final int capacity;
+    // 规范化路径 -> 节点，按访问顺序排列以便淘汰最久未使用的条目
+    private final LinkedHashMap<String, FileSystemNode> entries;
+    // 按字典序排列的已缓存路径，用于使某一路径下的所有条目失效
+    private final TreeSet<String> sortedPaths;
+    // 缓存代数，每次失效时增加
+    private long generation;
+
+    // 统计计数
+    private long hits;
+    private long misses;
+
+    /**
+     * 创建路径解析器
+     * @param root 文件系统根目录
+     * @param capacity 目录项缓存容量（条目数）
+     */
+    public PathResolver(FileSystemFolder root, int capacity) {
+        this.root = root;
+        this.capacity = Math.max(1, capacity);
+        this.sortedPaths = new TreeSet<>();
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, FileSystemNode> eldest) {
+                if (size() > PathResolver.this.capacity) {
+                    sortedPaths.remove(eldest.getKey());
+                    return true;
+                }
+                return false;
+            }
+        };
+        this.generation = 0;
+    }
+
+    /**
+     * 规范化路径
+     * @param basePath 相对路径的起点，必须是规范化的绝对路径
+     * @param path 绝对路径（以"/"开头）或相对路径
+     * @return 规范化的绝对路径，根目录为"/"，其余路径不以"/"结尾
+     */
+    public static String normalize(String basePath, String path) {
+        StringBuilder result = new StringBuilder(basePath.length() + path.length() + 1);
+        if (!path.startsWith("/") && !basePath.equals("/")) {
+            result.append(basePath);
+        }
+        int start = 0;
+        while (start <= path.length()) {
+            int end = path.indexOf('/', start);
+            if (end < 0) {
+                end = path.length();
+            }
+            int length = end - start;
+            if (length == 2 && path.startsWith("..", start)) {
+                // 根目录的上级仍是根目录
+                result.setLength(Math.max(0, result.lastIndexOf("/")));
+            } else if (length > 0 && !(length == 1 && path.charAt(start) == '.')) {
+                result.append('/').append(path, start, end);
+            }
+            start = end + 1;
+        }
+        return result.length() == 0 ? "/" : result.toString();
+    }
+
+    /**
+     * 获取规范化路径的父目录路径
+     * @param path 规范化的绝对路径
+     * @return 父目录路径，根目录的父目录是其自身
+     */
+    public static String parentPath(String path) {
+        int split = path.lastIndexOf('/');
+        return split <= 0 ? "/" : path.substring(0, split);
+    }
+
+    /**
+     * 获取规范化路径的最后一级名称
+     * @param path 规范化的绝对路径
+     * @return 最后一级名称，根目录返回空串
+     */
+    public static String baseName(String path) {
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    /**
+     * 按规范化路径查找节点，优先使用目录项缓存
+     * @param path 规范化的绝对路径
+     * @return 节点对象，路径不存在时返回null
+     */
+    public FileSystemNode lookup(String path) {
+        long startGeneration;
+        synchronized (this) {
+            FileSystemNode cached = entries.get(path);
+            if (cached != null) {
+                hits++;
+                return cached == NEGATIVE ? null : cached;
+            }
+            misses++;
+            startGeneration = generation;
+        }
+        FileSystemNode node = walk(path);
+        synchronized (this) {
+            if (startGeneration == generation) {
+                entries.put(path, node == null ? NEGATIVE : node);
+                sortedPaths.add(path);
+            }
+        }
+        return node;
+    }
+
+    /**
+     * 从根目录开始逐级查找，每一级在目录的读锁保护下读取目录项
+     * @param path 规范化的绝对路径
+     * @return 节点对象，路径不存在时返回null
+     */
+    private FileSystemNode walk(String path) {
+        FileSystemNode node = root;
+        int start = 1;
+        while (start < path.length()) {
+            if (!node.isDirectory) {
+                return null;
+            }
+            int end = path.indexOf('/', start);
+            if (end < 0) {
+                end = path.length();
+            }
+            FileSystemFolder folder = (FileSystemFolder) node;
+            folder.getLock().readLock().lock();
+            try {
+                node = folder.getEntry(path.substring(start, end));
+            } finally {
+                folder.getLock().readLock().unlock();
+            }
+            if (node == null) {
+                return null;
+            }
+            start = end + 1;
+        }
+        return node;
+    }
+
+    /**
+     * 使单个路径的缓存条目失效，在该路径上新建节点后调用
+     * @param path 规范化的绝对路径
+     */
+    public synchronized void invalidate(String path) {
+        generation++;
+        entries.remove(path);
+        sortedPaths.remove(path);
+    }
+
+    /**
+     * 使一个路径及其下所有路径的缓存条目失效，删除或移动节点后调用
+     * @param path 规范化的绝对路径
+     */
+    public synchronized void invalidateSubtree(String path) {
+        generation++;
+        if (path.equals("/")) {
+            entries.clear();
+            sortedPaths.clear();
+            return;
+        }
+        entries.remove(path);
+        sortedPaths.remove(path);
+        // "0"紧跟在"/"之后，子区间恰好包含所有以path + "/"开头的路径
+        for (String child : sortedPaths.subSet(path + "/", path + "0")) {
+            entries.remove(child);
+        }
+        sortedPaths.subSet(path + "/", path + "0").clear();
+    }
+
+    /**
+     * 显示目录项缓存的命中统计
+     */
+    public synchronized void cacheUsage() {
+        long lookups = hits + misses;
+        System.out.println("路径缓存容量: " + capacity + "  已缓存路径数: " + entries.size());
+        System.out.println("路径命中: " + hits + "  未命中: " + misses +
+                "  命中率: " + (lookups == 0 ? 0 : (int) (100.0 * hits / lookups)) + "%");
+    }
+
+    /**
+     * 获取路径缓存命中次数
+     * @return 命中次数
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * 获取路径缓存未命中次数
+     * @return 未命中次数
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+}
@@ -0,0 +1,199 @@
+import java.util.ArrayDeque;
+
+/**
+ * 预读线程
+ * 顺序读取文件时，各文件句柄的ReadAhead把即将读到的存储块按物理上连续的段提交给本类，
+ * 后台线程把这些存储块在设备文件中的映射区域读入内存，读者随后从设备加载这些存储块时不再等待缺页。
+ * 预读只读入设备文件的页面，不修改缓冲区缓存，与读写、写回并发进行也不会使读者读到过时的内容。
+ *
+ * 等待处理的段超过MAX_PENDING时丢弃新提交的段：预读落后于读者时已没有意义
+ *
+ * 关闭存储设备前应先让预读线程放下该设备：卸载时调用forget，关闭文件系统时调用shutdown停止并等待预读线程，
+ * 预读线程不会在设备关闭之后访问它的映射区域
+ */
+public class Prefetcher {
+    // 等待处理的段的上限
+    private static final int MAX_PENDING = 256;
+
+    // 等待处理的段
+    private final ArrayDeque<Run> pending;
+    // 是否预读，可用readahead命令切换
+    private volatile boolean enabled;
+    // 后台预读线程，第一次提交时启动
+    private Thread worker;
+    // 后台线程正在预读的段，为null表示空闲
+    private Run active;
+    // 是否已停止，停止后不再接受提交
+    private boolean stopped;
+
+    // 统计计数
+    private long completedRuns;
+    private long droppedRuns;
+
+    /**
+     * 一段物理上连续的存储块
+     */
+    private static class Run {
+        final StorageDevice device;
+        final int firstBlock;
+        final int count;
+
+        Run(StorageDevice device, int firstBlock, int count) {
+            this.device = device;
+            this.firstBlock = firstBlock;
+            this.count = count;
+        }
+    }
+
+    /**
+     * 创建预读线程
+     * @param enabled 是否预读
+     */
+    public Prefetcher(boolean enabled) {
+        this.pending = new ArrayDeque<>();
+        this.enabled = enabled;
+    }
+
+    /**
+     * 检查是否预读
+     * @return 开启时返回true
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 开启或关闭预读，关闭时丢弃等待处理的段
+     * @param enabled 为true时开启
+     */
+    public synchronized void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        if (!enabled) {
+            pending.clear();
+        }
+    }
+
+    /**
+     * 提交一段物理上连续的存储块，立即返回
+     * @param device 存储设备
+     * @param firstBlock 第一个存储块
+     * @param count 存储块数
+     * @return 已提交返回true；等待处理的段过多而被丢弃时返回false
+     */
+    public synchronized boolean submit(StorageDevice device, int firstBlock, int count) {
+        if (stopped) {
+            return false;
+        }
+        if (pending.size() >= MAX_PENDING) {
+            droppedRuns++;
+            return false;
+        }
+        pending.add(new Run(device, firstBlock, count));
+        if (worker == null) {
+            worker = new Thread(this::runWorker, "prefetcher");
+            worker.setDaemon(true);
+            worker.start();
+        }
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * 丢弃一个存储设备等待处理的段，并等待正在预读该设备的段完成，用于卸载设备前
+     * @param device 存储设备
+     */
+    public synchronized void forget(StorageDevice device) {
+        pending.removeIf(run -> run.device == device);
+        while (active != null && active.device == device) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * 停止预读：丢弃等待处理的段，等待后台线程完成正在预读的段并结束，之后的提交被忽略
+     */
+    public void shutdown() {
+        Thread current;
+        synchronized (this) {
+            stopped = true;
+            pending.clear();
+            notifyAll();
+            current = worker;
+        }
+        if (current == null) {
+            return;
+        }
+        try {
+            current.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 后台线程：按提交顺序逐段预读，停止后结束
+     */
+    private void runWorker() {
+        FileSystemMetrics metrics = FileSystemMetrics.get();
+        while (true) {
+            Run run;
+            synchronized (this) {
+                while (pending.isEmpty() && !stopped) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (stopped) {
+                    return;
+                }
+                run = pending.poll();
+                active = run;
+            }
+            long start = metrics.start();
+            try {
+                run.device.prefetch(run.firstBlock, run.count);
+            } finally {
+                synchronized (this) {
+                    active = null;
+                    completedRuns++;
+                    notifyAll();
+                }
+            }
+            metrics.record(FileSystemMetrics.Operation.PREFETCH, start);
+        }
+    }
+
+    /**
+     * 获取等待处理的段数
+     * @return 段数
+     */
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * 获取预读线程的统计
+     * @return 统计信息
+     */
+    public synchronized String getReport() {
+        return String.format("预读: %s  已完成 %d 段, 丢弃 %d 段, 等待 %d 段",
+                enabled ? "开" : "关", completedRuns, droppedRuns, pending.size());
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Prefetcher{" +
+                "enabled=" + enabled +
+                ", pending=" + pending.size() +
+                ", completedRuns=" + completedRuns +
+                ", droppedRuns=" + droppedRuns +
+                '}';
+    }
+}
@@ -0,0 +1,130 @@
+import java.util.ArrayList;
+
+/**
+ * 文件句柄的预读状态
+ * 每次读取前调用onRead：读取位置紧接上一次读取的末尾时视为顺序读取，否则视为随机读取并清空预读窗口。
+ * 顺序读取时预读窗口从MIN_WINDOW块开始；读者进入上一次预读范围的后一半时预读紧接其后的一个窗口，
+ * 窗口每次翻倍，直到MAX_WINDOW块。窗口中的逻辑块按物理上连续的段分别提交给预读线程，
+ * 跨过文件的区段边界时窗口继续增长；压缩单元预读其保存压缩内容的物理块，空洞不预读。
+ *
+ * 窗口内被读者读到的逻辑块计为命中。本类不自行加锁，由持有它的文件描述符（或导出线程）独占使用
+ */
+public class ReadAhead {
+    // 顺序读取开始时的预读窗口（块数）
+    private static final int MIN_WINDOW = 4;
+    // 预读窗口的上限（块数）
+    private static final int MAX_WINDOW = 128;
+
+    // 预读线程
+    private final Prefetcher prefetcher;
+    // 下一次顺序读取的起始位置（字节）
+    private int expectedOffset;
+    // 当前预读窗口（块数），为0表示不在顺序读取中
+    private int window;
+    // 已预读的逻辑块范围 [prefetchStart, prefetchEnd)
+    private int prefetchStart;
+    private int prefetchEnd;
+    // 已计算过命中的逻辑块的上界
+    private int countedEnd;
+
+    // 统计计数
+    private long sequentialReads;
+    private long randomReads;
+    private long prefetchedBlocks;
+    private long hits;
+
+    /**
+     * 创建预读状态
+     * @param prefetcher 预读线程
+     */
+    public ReadAhead(Prefetcher prefetcher) {
+        this.prefetcher = prefetcher;
+    }
+
+    /**
+     * 在读取文件之前调用：检测顺序读取，统计命中，必要时预读下一个窗口；调用者应持有文件的锁
+     * @param file 文件内容
+     * @param offset 读取的起始位置（字节）
+     * @param length 读取的字节数
+     * @param cache 文件所在设备的缓冲区缓存
+     */
+    public void onRead(VirtualFileContent file, int offset, int length, BufferCache cache) {
+        int size = file.getOpenSize();
+        int end = (int) Math.min(size, (long) offset + length);
+        if (!prefetcher.isEnabled() || end <= offset) {
+            return;
+        }
+        int blockSize = cache.getBlockSize();
+        int first = offset / blockSize;
+        int last = (end - 1) / blockSize;
+        boolean sequential = offset == expectedOffset;
+        expectedOffset = end;
+        if (!sequential) {
+            randomReads++;
+            window = 0;
+            return;
+        }
+        sequentialReads++;
+
+        int counted = Math.max(Math.max(first, countedEnd), prefetchStart);
+        int covered = Math.min(last + 1, prefetchEnd) - counted;
+        if (window > 0 && covered > 0) {
+            hits += covered;
+            FileSystemMetrics.get().readAheadHits(covered);
+        }
+        countedEnd = Math.max(countedEnd, last + 1);
+
+        if (window == 0) {
+            window = MIN_WINDOW;
+            prefetchStart = last + 1;
+            prefetchEnd = last + 1;
+            countedEnd = last + 1;
+        } else if (last + 1 < prefetchEnd - window / 2) {
+            // 还没有读到上一次预读范围的后一半
+            return;
+        } else {
+            window = Math.min(window * 2, MAX_WINDOW);
+        }
+        int start = Math.max(prefetchEnd, last + 1);
+        int stop = (int) Math.min((long) start + window, ((long) size + blockSize - 1) / blockSize);
+        if (start >= stop) {
+            return;
+        }
+        ArrayList<int[]> runs = file.getPhysicalRuns(start, stop);
+        for (int[] run : runs) {
+            if (prefetcher.submit(cache.getDevice(), run[0], run[1])) {
+                prefetchedBlocks += run[1];
+                FileSystemMetrics.get().readAhead(run[1]);
+            }
+        }
+        prefetchEnd = stop;
+    }
+
+    /**
+     * 获取当前预读窗口
+     * @return 窗口大小（块数），不在顺序读取中时为0
+     */
+    public int getWindow() {
+        return window;
+    }
+
+    /**
+     * 获取预读统计
+     * @return 统计信息
+     */
+    public String getReport() {
+        return String.format("窗口 %d 块, 顺序读取 %d 次, 随机读取 %d 次, 预读 %d 块, 命中 %d 块",
+                window, sequentialReads, randomReads, prefetchedBlocks, hits);
+    }
+
+    @Override
+    public String toString() {
+        return "ReadAhead{" +
+                "window=" + window +
+                ", sequentialReads=" + sequentialReads +
+                ", randomReads=" + randomReads +
+                ", prefetchedBlocks=" + prefetchedBlocks +
+                ", hits=" + hits +
+                '}';
+    }
+}
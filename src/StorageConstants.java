@@ -6,11 +6,39 @@ public class StorageConstants {
     /**
      * 存储系统常量定义
      * 
-     * DISK_SIZE: 存储系统总容量（以存储块为单位）
-     * BLOCK_SIZE: 每个存储块的容量（以字符为单位）
-     * SERIALIZE_PATH: 文件系统持久化存储路径
+     * DISK_SIZE: 新格式化的根设备的容量（以存储块为单位），已格式化的设备以其头部记录的为准
+     * BLOCK_SIZE: 新格式化的根设备每个存储块的容量（以字节为单位），已格式化的设备以其头部记录的为准
+     * SERIALIZE_PATH: 文件系统元数据镜像（检查点）路径
+     * DEVICE_PATH: 根设备文件路径（存储块内容通过内存映射保存在此文件中）
+     * MOUNT_TABLE_PATH: 挂载表路径，记录挂载在目录树中的其他存储设备
+     * CODEC_TABLE_PATH: 压缩策略表路径，记录设置了压缩策略的文件和目录
+     * JOURNAL_PATH: 元数据预写日志路径
+     * CHECKPOINT_INTERVAL: 日志累计多少条记录后生成一次检查点
+     * CACHE_SIZE: 每个存储设备的缓冲区缓存可使用的字节数
+     * DENTRY_CACHE_SIZE: 路径解析的目录项缓存最多保存的路径数
+     * LIST_PAGE_SIZE: ls命令每页显示的目录项数
+     * BATCH_COMMIT_INTERVAL: 批处理模式下每执行多少条命令提交一次日志
+     * TRANSFER_THREADS: import/export命令并行传输文件内容的线程数
+     * DEDUPLICATION: 启动时是否开启块去重（可用dedup命令切换）
+     * DEFAULT_CODEC: 没有设置压缩策略的文件使用的编解码器（none表示不压缩）
+     * READ_AHEAD: 启动时是否开启顺序读取的预读（可用readahead命令切换）
+     * WRITE_BEHIND_DEPTH: 关闭文件后最多有多少次关闭等待后台写回和提交，超过时关闭文件的会话自己提交
      */
-    public static final int DISK_SIZE = 12000;
-    public static final int BLOCK_SIZE = 100;
-    public static final String SERIALIZE_PATH = "fileSystem.txt";
+    public static final int DISK_SIZE = 16384;
+    public static final int BLOCK_SIZE = 4096;
+    public static final String SERIALIZE_PATH = "fileSystem.img";
+    public static final String DEVICE_PATH = "fileSystem.disk";
+    public static final String MOUNT_TABLE_PATH = "fileSystem.mounts";
+    public static final String CODEC_TABLE_PATH = "fileSystem.codecs";
+    public static final String JOURNAL_PATH = "fileSystem.journal";
+    public static final int CHECKPOINT_INTERVAL = 256;
+    public static final long CACHE_SIZE = 4L << 20;
+    public static final int DENTRY_CACHE_SIZE = 4096;
+    public static final int LIST_PAGE_SIZE = 100;
+    public static final int BATCH_COMMIT_INTERVAL = 64;
+    public static final int TRANSFER_THREADS = 4;
+    public static final boolean DEDUPLICATION = false;
+    public static final String DEFAULT_CODEC = "none";
+    public static final int WRITE_BEHIND_DEPTH = 64;
+    public static final boolean READ_AHEAD = true;
 }
@@ -1,48 +1,392 @@
-import java.io.Serializable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 
 /**
  * 虚拟存储设备类
  * 模拟物理存储设备，管理存储块的分配和释放
+ *
+ * 存储块内容保存在一个设备文件中，通过MappedByteBuffer按偏移量读写，
+ * 不再为每个存储块创建Java对象。设备文件布局如下：
+ * [头部: 魔数、块数、块大小] [分配位图] [块长度表] [数据区] [指纹表] [引用计数表]
+ * 存储块的内容是字节，块大小和块长度都以字节计。
+ *
+ * 存储块可以被多个文件（或同一文件的多个逻辑块）共享，引用计数表记录每个存储块被引用的次数，
+ * 释放时只减少引用计数，减到0才归还给分配器。开启块去重时，文件写回的存储块按内容指纹在指纹索引中查找，
+ * 与已有存储块内容逐字节相同时改为引用已有的存储块；被共享的存储块不能原地修改，由写入者先复制。
+ * 指纹表保存各存储块登记的指纹，打开设备时据此重建指纹索引；没有这两张表的旧设备文件在打开时补上
+ *
+ * 块数和块大小（几何参数）在格式化时写入头部，打开已格式化的设备时从头部读取，
+ * 同一文件系统中的不同设备可以有不同的几何参数。块大小不超过Short.MAX_VALUE时块长度表每项2字节，否则4字节。
+ * 数据区按段分别映射，每段不超过1 GiB，设备总容量不受单个映射2 GiB的限制
  */
-public class StorageDevice implements Serializable {
+public class StorageDevice {
+    // 设备文件魔数
+    private static final int DEVICE_MAGIC = 0x43484B53;
+    // 没有指纹表和引用计数表的设备文件的魔数
+    private static final int PLAIN_DEVICE_MAGIC = 0x43484B42;
+    // 指纹表和引用计数表中每个存储块占用的字节数
+    private static final int SHARING_ENTRY_BYTES = Long.BYTES + Integer.BYTES;
+    // 头部大小（字节）：魔数、块数、块大小
+    private static final int HEADER_SIZE = 12;
+    // 数据区每段映射的最大字节数
+    private static final int SEGMENT_BYTES = 1 << 30;
+    // 格式化时允许的最小块大小（字节）
+    public static final int MIN_BLOCK_SIZE = 4096;
+    // 格式化时允许的最大块大小（字节）
+    public static final int MAX_BLOCK_SIZE = 1 << 20;
+
     // 存储设备标识符
-    public String deviceId;                 
-    // 存储块数组
-    public StorageBlock[] storageBlocks;    
-    // 存储块分配状态表 (0=空闲, 1=已分配)
-    public int[] allocationMap;             
+    public String deviceId;
+    // 设备文件路径
+    private final Path devicePath;
+    // 设备文件通道
+    private final FileChannel channel;
+    // 头部、分配位图和块长度表的内存映射
+    private final MappedByteBuffer metadataBuffer;
+    // 数据区各段的内存映射
+    private final MappedByteBuffer[] segments;
+    // 指纹表和引用计数表的内存映射
+    private final MappedByteBuffer sharingBuffer;
+    // 存储块总数
+    private final int diskSize;
+    // 存储块大小（字节）
+    private final int blockSize;
+    // 每段映射包含的存储块数
+    private final int blocksPerSegment;
+    // 块长度表每项的字节数
+    private final int lengthBytes;
+    // 存储块分配器（位图 + 空闲区段索引）
+    private BlockAllocator allocator;
+    // 分配策略
+    private BlockAllocator.Policy policy;
+    // 分配位图在设备文件中的偏移量
+    private final int bitmapOffset;
+    // 块长度表在设备文件中的偏移量
+    private final int lengthTableOffset;
+    // 数据区在设备文件中的偏移量
+    private final long dataOffset;
+    // 引用计数表在sharingBuffer中的偏移量
+    private final int refCountOffset;
+    // 内容指纹 -> 存储块
+    private final FingerprintIndex fingerprints;
+    // 是否对写回的存储块去重
+    private boolean deduplication;
+    // 各存储块超过1的引用数之和，即共享节省的存储块数
+    private long sharedReferences;
+    // 去重时读取块内容的缓冲区，第一次去重时分配
+    private byte[] dedupBuffer;
+    private byte[] candidateBuffer;
     // 存储设备空间状态
-    private boolean storageExhausted;       
+    private boolean storageExhausted;
 
     /**
-     * 创建新的存储设备实例
+     * 打开默认路径上的存储设备，设备文件不存在或格式不符时按默认几何参数格式化
      * @param deviceId 存储设备标识符
      */
     public StorageDevice(String deviceId) {
+        this(deviceId, StorageConstants.DEVICE_PATH, StorageConstants.DISK_SIZE, StorageConstants.BLOCK_SIZE);
+    }
+
+    /**
+     * 打开指定路径上的存储设备
+     * 设备文件已格式化时使用头部中的几何参数，忽略给定的参数；否则按给定的参数重新格式化
+     * @param deviceId 存储设备标识符
+     * @param devicePath 设备文件路径
+     * @param diskSize 格式化时的存储块总数
+     * @param blockSize 格式化时的块大小（字节），在MIN_BLOCK_SIZE到MAX_BLOCK_SIZE之间
+     * @throws IllegalArgumentException 需要格式化而几何参数不合法
+     */
+    public StorageDevice(String deviceId, String devicePath, int diskSize, int blockSize) {
         this.deviceId = deviceId;
-        this.storageBlocks = new StorageBlock[StorageConstants.DISK_SIZE];
-        this.allocationMap = new int[StorageConstants.DISK_SIZE];
+        this.devicePath = Paths.get(devicePath);
         this.storageExhausted = false;
-        
-        // 初始化所有存储块
-        for (int i = 0; i < StorageConstants.DISK_SIZE; i++) {
-            this.storageBlocks[i] = new StorageBlock(i);
-            this.allocationMap[i] = 0;
+        this.policy = BlockAllocator.Policy.GROUP;
+
+        int[] geometry = readGeometry(this.devicePath);
+        boolean formatted = geometry != null;
+        if (formatted) {
+            diskSize = geometry[0];
+            blockSize = geometry[1];
+        } else if (diskSize <= 0 || (long) diskSize * SHARING_ENTRY_BYTES > Integer.MAX_VALUE
+                || blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE) {
+            throw new IllegalArgumentException("Invalid device geometry: " + diskSize + " blocks of " + blockSize + " bytes");
+        }
+        this.diskSize = diskSize;
+        this.blockSize = blockSize;
+        this.blocksPerSegment = Math.max(1, SEGMENT_BYTES / blockSize);
+        this.lengthBytes = blockSize <= Short.MAX_VALUE ? Short.BYTES : Integer.BYTES;
+
+        int bitmapWords = (diskSize + 63) >>> 6;
+        this.bitmapOffset = HEADER_SIZE;
+        this.lengthTableOffset = bitmapOffset + bitmapWords * Long.BYTES;
+        this.dataOffset = lengthTableOffset + (long) diskSize * lengthBytes;
+        this.refCountOffset = diskSize * Long.BYTES;
+        this.fingerprints = new FingerprintIndex();
+
+        try {
+            this.channel = FileChannel.open(this.devicePath,
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.metadataBuffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, dataOffset);
+            this.segments = new MappedByteBuffer[(diskSize + blocksPerSegment - 1) / blocksPerSegment];
+            for (int i = 0; i < segments.length; i++) {
+                int blocks = Math.min(blocksPerSegment, diskSize - i * blocksPerSegment);
+                segments[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+                        dataOffset + (long) i * blocksPerSegment * blockSize, (long) blocks * blockSize);
+            }
+            this.sharingBuffer = channel.map(FileChannel.MapMode.READ_WRITE,
+                    dataOffset + (long) diskSize * blockSize, (long) diskSize * SHARING_ENTRY_BYTES);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to open storage device: " + e.getMessage(), e);
+        }
+
+        if (formatted) {
+            long[] bitmap = new long[bitmapWords];
+            for (int i = 0; i < bitmapWords; i++) {
+                bitmap[i] = metadataBuffer.getLong(bitmapOffset + i * Long.BYTES);
+            }
+            this.allocator = new BlockAllocator(diskSize, bitmap);
+            if (metadataBuffer.getInt(0) == PLAIN_DEVICE_MAGIC) {
+                // 此前没有共享的存储块，已分配的存储块各被引用一次
+                for (int i = 0; i < diskSize; i++) {
+                    putFingerprint(i, 0);
+                    putRefCount(i, allocator.isAllocated(i) ? 1 : 0);
+                }
+                metadataBuffer.putInt(0, DEVICE_MAGIC);
+            }
+            loadFingerprints();
+        } else {
+            this.allocator = new BlockAllocator(diskSize);
+            format(bitmapWords);
         }
     }
 
+    /**
+     * 按指纹表和引用计数表重建指纹索引和共享统计
+     */
+    private void loadFingerprints() {
+        fingerprints.clear();
+        sharedReferences = 0;
+        for (int i = 0; i < diskSize; i++) {
+            int refs = getRefCount(i);
+            if (refs == 0) {
+                continue;
+            }
+            sharedReferences += refs - 1;
+            long fingerprint = getFingerprint(i);
+            if (fingerprint != 0) {
+                fingerprints.put(fingerprint, i);
+            }
+        }
+    }
+
+    /**
+     * 读取设备文件头部中的几何参数
+     * @param devicePath 设备文件路径
+     * @return {块数, 块大小}；文件不存在或不是已格式化的存储设备时返回null
+     */
+    public static int[] readGeometry(Path devicePath) {
+        if (!Files.isRegularFile(devicePath)) {
+            return null;
+        }
+        try (FileChannel file = FileChannel.open(devicePath, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            if (file.read(header, 0) != HEADER_SIZE) {
+                return null;
+            }
+            int magic = header.getInt(0);
+            if ((magic != DEVICE_MAGIC && magic != PLAIN_DEVICE_MAGIC) || header.getInt(4) <= 0 || header.getInt(8) <= 0) {
+                return null;
+            }
+            return new int[]{header.getInt(4), header.getInt(8)};
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read storage device header: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * 格式化设备文件：写入头部，清空位图、块长度表、指纹表和引用计数表
+     */
+    private void format(int bitmapWords) {
+        for (int i = 0; i < bitmapWords; i++) {
+            metadataBuffer.putLong(bitmapOffset + i * Long.BYTES, 0L);
+        }
+        for (int i = 0; i < diskSize; i++) {
+            putLength(i, 0);
+            putFingerprint(i, 0);
+            putRefCount(i, 0);
+        }
+        metadataBuffer.putInt(4, diskSize);
+        metadataBuffer.putInt(8, blockSize);
+        metadataBuffer.putInt(0, DEVICE_MAGIC);
+    }
+
+    /**
+     * 将分配器中包含指定存储块的位图字写回设备文件
+     */
+    private void writeBitmapWord(int blockIndex) {
+        int wordIndex = blockIndex >>> 6;
+        metadataBuffer.putLong(bitmapOffset + wordIndex * Long.BYTES, allocator.getBitmapWord(wordIndex));
+    }
+
     /**
      * 获取已使用的存储块数量
      * @return 已使用的存储块数量
      */
-    private int getUsedBlockCount() {
-        int usedCount = 0;
-        for (int allocation : allocationMap) {
-            usedCount += allocation;
+    public synchronized int getUsedBlockCount() {
+        return allocator.getUsedBlockCount();
+    }
+
+    /**
+     * 获取存储块总数
+     * @return 存储块总数
+     */
+    public int getDiskSize() {
+        return diskSize;
+    }
+
+    /**
+     * 获取存储块大小
+     * @return 块大小（字节）
+     */
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * 获取设备文件路径
+     * @return 设备文件路径
+     */
+    public Path getDevicePath() {
+        return devicePath;
+    }
+
+    /**
+     * 读取块长度表中的一项
+     */
+    private int getLength(int blockIndex) {
+        int position = lengthTableOffset + blockIndex * lengthBytes;
+        return lengthBytes == Short.BYTES ? metadataBuffer.getShort(position) : metadataBuffer.getInt(position);
+    }
+
+    /**
+     * 写入块长度表中的一项
+     */
+    private void putLength(int blockIndex, int length) {
+        int position = lengthTableOffset + blockIndex * lengthBytes;
+        if (lengthBytes == Short.BYTES) {
+            metadataBuffer.putShort(position, (short) length);
+        } else {
+            metadataBuffer.putInt(position, length);
         }
-        return usedCount;
+    }
+
+    /**
+     * 获取存储块所在的数据段
+     */
+    private MappedByteBuffer segmentOf(int blockIndex) {
+        return segments[blockIndex / blocksPerSegment];
+    }
+
+    /**
+     * 获取存储块内容在所在数据段中的偏移量
+     */
+    private int blockOffset(int blockIndex) {
+        return (blockIndex % blocksPerSegment) * blockSize;
+    }
+
+    /**
+     * 读取存储块中的内容
+     * @param blockIndex 存储块索引
+     * @param dest 接收内容的缓冲区，长度不小于块大小
+     * @return 存储块中的有效字节数
+     */
+    public int readBlock(int blockIndex, byte[] dest) {
+        return readBlock(blockIndex, dest, 0);
+    }
+
+    /**
+     * 读取存储块中的内容到缓冲区的指定位置
+     * @param blockIndex 存储块索引
+     * @param dest 接收内容的缓冲区，从destOffset起不小于块大小
+     * @param destOffset 缓冲区中的起始位置
+     * @return 存储块中的有效字节数
+     */
+    public int readBlock(int blockIndex, byte[] dest, int destOffset) {
+        int length = getLength(blockIndex);
+        segmentOf(blockIndex).get(blockOffset(blockIndex), dest, destOffset, length);
+        FileSystemMetrics.get().blockRead(length);
+        return length;
+    }
+
+    /**
+     * 预读一段物理上连续的存储块：把它们在设备文件中的映射区域读入内存，之后读取这些存储块不再发生缺页
+     * 不修改任何内容，可以在任何线程中与读写并发调用
+     * @param firstBlock 第一个存储块
+     * @param count 存储块数
+     */
+    public void prefetch(int firstBlock, int count) {
+        int end = Math.min(diskSize, firstBlock + count);
+        int block = firstBlock;
+        while (block < end) {
+            // 一段不跨越数据段的映射
+            int segmentEnd = (block / blocksPerSegment + 1) * blocksPerSegment;
+            int blocks = Math.min(end, segmentEnd) - block;
+            segmentOf(block).slice(blockOffset(block), blocks * blockSize).load();
+            block += blocks;
+        }
+    }
+
+    /**
+     * 向存储块写入内容，超出块容量的部分将被截断
+     * @param blockIndex 存储块索引
+     * @param src 要写入的内容
+     * @param length 要写入的字节数
+     */
+    public void writeBlock(int blockIndex, byte[] src, int length) {
+        writeBlock(blockIndex, src, 0, length);
+    }
+
+    /**
+     * 把缓冲区中指定位置开始的内容写入存储块，超出块容量的部分将被截断
+     * @param blockIndex 存储块索引
+     * @param src 要写入的内容
+     * @param srcOffset 内容在src中的起始位置
+     * @param length 要写入的字节数
+     */
+    public void writeBlock(int blockIndex, byte[] src, int srcOffset, int length) {
+        length = Math.min(length, blockSize);
+        segmentOf(blockIndex).put(blockOffset(blockIndex), src, srcOffset, length);
+        putLength(blockIndex, length);
+        FileSystemMetrics.get().blockWritten(length);
+    }
+
+    /**
+     * 从通道中读取至多一整块内容，直接写入存储块在设备文件中的映射区域，不经过中间缓冲区
+     * @param blockIndex 存储块索引
+     * @param channel 输入通道
+     * @return 写入的字节数，通道已没有更多内容时返回0
+     * @throws IOException 读取通道失败
+     */
+    public int transferFrom(int blockIndex, ReadableByteChannel channel) throws IOException {
+        // 切片有独立的位置，多个线程可以同时写入不同的存储块
+        ByteBuffer block = segmentOf(blockIndex).slice(blockOffset(blockIndex), blockSize);
+        int count = 0;
+        while (block.hasRemaining() && count >= 0) {
+            count = channel.read(block);
+        }
+        putLength(blockIndex, block.position());
+        FileSystemMetrics.get().blockWritten(block.position());
+        return block.position();
     }
 
     /**
@@ -51,42 +395,316 @@ public class StorageDevice implements Serializable {
      * @return 分配的存储块索引列表
      */
     public ArrayList<Integer> diskAlloc(int blockCount) {
-        ArrayList<Integer> allocatedBlocks = new ArrayList<>();
-        int allocated = 0;
-        
-        for (int j = 0; j < StorageConstants.DISK_SIZE && allocated < blockCount; j++) {
-            if (allocationMap[j] == 0) {
-                allocatedBlocks.add(j);
-                allocationMap[j] = 1;
-                allocated++;
+        return diskAlloc(blockCount, -1, null);
+    }
+
+    /**
+     * 按分配策略分配指定数量的存储块
+     * @param blockCount 需要分配的存储块数量
+     * @param goal 期望的起始块（通常紧接文件的最后一个存储块），-1表示没有
+     * @param group 分配组键（文件所在目录的路径），GROUP策略下同一目录的文件优先分配在同一分配组中；null表示没有
+     * @return 分配的存储块索引列表，空间不足时只包含可分配的部分
+     */
+    public synchronized ArrayList<Integer> diskAlloc(int blockCount, int goal, String group) {
+        FileSystemMetrics metrics = FileSystemMetrics.get();
+        long start = metrics.start();
+        int groupIndex = group == null ? -1 : Math.floorMod(group.hashCode(), allocator.getGroupCount());
+        ArrayList<Integer> allocatedBlocks = allocator.allocate(blockCount, policy, goal, groupIndex);
+        markAllocated(allocatedBlocks);
+        metrics.record(FileSystemMetrics.Operation.ALLOC, start);
+        return allocatedBlocks;
+    }
+
+    /**
+     * 分配一段连续的存储块，用于碎片整理
+     * @param blockCount 需要分配的存储块数量
+     * @return 按块号递增排列的存储块索引列表；没有足够长的空闲区段时返回空列表
+     */
+    public synchronized ArrayList<Integer> diskAllocContiguous(int blockCount) {
+        FileSystemMetrics metrics = FileSystemMetrics.get();
+        long start = metrics.start();
+        ArrayList<Integer> allocatedBlocks = allocator.allocateContiguous(blockCount);
+        markAllocated(allocatedBlocks);
+        metrics.record(FileSystemMetrics.Operation.ALLOC, start);
+        return allocatedBlocks;
+    }
+
+    /**
+     * 把新分配的存储块的引用计数设为1，并将包含它们的位图字写回设备文件，相邻的存储块只写一次位图
+     */
+    private void markAllocated(ArrayList<Integer> blockIndices) {
+        int lastWord = -1;
+        for (int index : blockIndices) {
+            putRefCount(index, 1);
+            if ((index >>> 6) != lastWord) {
+                writeBitmapWord(index);
+                lastWord = index >>> 6;
             }
         }
-        return allocatedBlocks;
     }
 
     /**
-     * 释放指定的存储块
-     * @param blockIndices 要释放的存储块索引列表
+     * 获取分配策略
+     * @return 分配策略
+     */
+    public synchronized BlockAllocator.Policy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * 设置分配策略，只影响此后的分配
+     * @param policy 分配策略
+     */
+    public synchronized void setPolicy(BlockAllocator.Policy policy) {
+        this.policy = policy;
+    }
+
+    /**
+     * 释放指定的存储块：每项减少一次引用，引用减到0的存储块归还给分配器
+     * 只修改分配位图而不清除块内容：在释放被记入日志之前崩溃时，
+     * 恢复出的旧元数据仍能读到完整的旧内容
+     * @param blockIndices 要释放的存储块索引列表，同一存储块出现几次就减少几次引用
+     */
+    public synchronized void diskFree(ArrayList<Integer> blockIndices) {
+        FileSystemMetrics metrics = FileSystemMetrics.get();
+        long start = metrics.start();
+        for (int index : blockIndices) {
+            release(index);
+        }
+        metrics.record(FileSystemMetrics.Operation.FREE, start);
+    }
+
+    /**
+     * 减少存储块的一次引用，减到0时归还给分配器并移出指纹索引
+     */
+    private void release(int index) {
+        if (index < 0 || index >= diskSize) {
+            return;
+        }
+        int refs = getRefCount(index);
+        if (refs > 1) {
+            putRefCount(index, refs - 1);
+            sharedReferences--;
+            return;
+        }
+        forget(index);
+        putRefCount(index, 0);
+        allocator.free(index);
+        writeBitmapWord(index);
+    }
+
+    /**
+     * 读取指纹表中的一项
+     */
+    private long getFingerprint(int blockIndex) {
+        return sharingBuffer.getLong(blockIndex * Long.BYTES);
+    }
+
+    /**
+     * 写入指纹表中的一项
+     */
+    private void putFingerprint(int blockIndex, long fingerprint) {
+        sharingBuffer.putLong(blockIndex * Long.BYTES, fingerprint);
+    }
+
+    /**
+     * 读取引用计数表中的一项
+     */
+    private int getRefCount(int blockIndex) {
+        return sharingBuffer.getInt(refCountOffset + blockIndex * Integer.BYTES);
+    }
+
+    /**
+     * 写入引用计数表中的一项
+     */
+    private void putRefCount(int blockIndex, int refs) {
+        sharingBuffer.putInt(refCountOffset + blockIndex * Integer.BYTES, refs);
+    }
+
+    /**
+     * 把存储块移出指纹索引并清除其指纹，块内容即将改变或已被释放
+     */
+    private void forget(int blockIndex) {
+        long fingerprint = getFingerprint(blockIndex);
+        if (fingerprint != 0) {
+            fingerprints.remove(fingerprint, blockIndex);
+            putFingerprint(blockIndex, 0);
+        }
+    }
+
+    /**
+     * 准备原地修改存储块的内容
+     * 存储块被共享时不能修改，返回true，调用者应改为修改它的副本；
+     * 否则把它移出指纹索引，使其他文件在修改写回并重新登记之前不会共享它
+     * @param blockIndex 存储块索引
+     * @return 存储块被共享时返回true
+     */
+    public synchronized boolean prepareWrite(int blockIndex) {
+        if (getRefCount(blockIndex) > 1) {
+            return true;
+        }
+        forget(blockIndex);
+        return false;
+    }
+
+    /**
+     * 增加存储块的引用，用于克隆文件：克隆出的文件与原文件共享全部存储块，此后写入任一方都先复制
+     * @param blockIndices 存储块索引，同一存储块出现几次就增加几次引用
+     */
+    public synchronized void share(Collection<Integer> blockIndices) {
+        for (int index : blockIndices) {
+            putRefCount(index, getRefCount(index) + 1);
+            sharedReferences++;
+        }
+    }
+
+    /**
+     * 检查存储块中是否有被共享的存储块
+     * @param blockIndices 存储块索引
+     * @return 有任一存储块被引用多次时返回true
+     */
+    public synchronized boolean hasSharedBlocks(Collection<Integer> blockIndices) {
+        for (int index : blockIndices) {
+            if (getRefCount(index) > 1) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 对刚写回设备、只被一处引用的存储块去重
+     * 计算块内容的指纹并在指纹索引中查找，找到内容逐字节相同的其他存储块时增加该存储块的引用、
+     * 释放给定的存储块并返回找到的存储块；否则把给定的存储块登记到指纹索引中。未开启去重时不做任何事
+     * @param blockIndex 存储块索引
+     * @return 引用者此后应使用的存储块索引
+     */
+    public synchronized int deduplicate(int blockIndex) {
+        if (!deduplication || getRefCount(blockIndex) != 1) {
+            return blockIndex;
+        }
+        if (dedupBuffer == null) {
+            dedupBuffer = new byte[blockSize];
+            candidateBuffer = new byte[blockSize];
+        }
+        int length = getLength(blockIndex);
+        if (length == 0) {
+            return blockIndex;
+        }
+        segmentOf(blockIndex).get(blockOffset(blockIndex), dedupBuffer, 0, length);
+        long fingerprint = FingerprintIndex.fingerprint(dedupBuffer, length);
+        forget(blockIndex);
+
+        int candidate = fingerprints.get(fingerprint);
+        if (candidate >= 0 && candidate != blockIndex && getRefCount(candidate) > 0 && getLength(candidate) == length) {
+            segmentOf(candidate).get(blockOffset(candidate), candidateBuffer, 0, length);
+            if (Arrays.equals(dedupBuffer, 0, length, candidateBuffer, 0, length)) {
+                putRefCount(candidate, getRefCount(candidate) + 1);
+                sharedReferences++;
+                release(blockIndex);
+                return candidate;
+            }
+        }
+        // 没有相同内容的存储块，或索引中的是指纹相同而内容不同的存储块：登记给定的存储块
+        fingerprints.put(fingerprint, blockIndex);
+        putFingerprint(blockIndex, fingerprint);
+        return blockIndex;
+    }
+
+    /**
+     * 获取共享引用数：各存储块的引用数减1之和
+     * @return 共享引用数，所有存储块都只被引用一次时为0
+     */
+    public synchronized long getSharedReferences() {
+        return sharedReferences;
+    }
+
+    /**
+     * 检查是否开启了块去重
+     * @return 开启时返回true
+     */
+    public synchronized boolean isDeduplication() {
+        return deduplication;
+    }
+
+    /**
+     * 开启或关闭块去重，只影响此后写回的存储块，已共享的存储块保持共享
+     * @param deduplication 为true时开启
+     */
+    public synchronized void setDeduplication(boolean deduplication) {
+        this.deduplication = deduplication;
+    }
+
+    /**
+     * 按给定的在用存储块重建分配状态和引用计数，用于崩溃恢复后回收未被引用的存储块
+     * @param usedBlocks 仍被文件引用的存储块索引，被引用几次就出现几次
+     */
+    public synchronized void rebuildAllocation(Collection<Integer> usedBlocks) {
+        long[] bitmap = new long[allocator.getBitmapLength()];
+        int[] refs = new int[diskSize];
+        for (int index : usedBlocks) {
+            bitmap[index >>> 6] |= 1L << index;
+            refs[index]++;
+        }
+        allocator = new BlockAllocator(diskSize, bitmap);
+        for (int i = 0; i < bitmap.length; i++) {
+            metadataBuffer.putLong(bitmapOffset + i * Long.BYTES, bitmap[i]);
+        }
+        for (int i = 0; i < diskSize; i++) {
+            putRefCount(i, refs[i]);
+            if (refs[i] == 0) {
+                putFingerprint(i, 0);
+            }
+        }
+        loadFingerprints();
+    }
+
+    /**
+     * 将设备文件的修改强制写回磁盘
+     */
+    public void sync() {
+        FileSystemMetrics metrics = FileSystemMetrics.get();
+        long start = metrics.start();
+        metadataBuffer.force();
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+        sharingBuffer.force();
+        metrics.record(FileSystemMetrics.Operation.SYNC, start);
+    }
+
+    /**
+     * 同步并关闭设备文件
      */
-    public void diskFree(ArrayList<Integer> blockIndices) {
-        for (Integer index : blockIndices) {
-            storageBlocks[index].clearBlock();
-            allocationMap[index] = 0;
+    public void close() {
+        sync();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to close storage device: " + e.getMessage(), e);
         }
     }
 
     /**
-     * 显示存储设备使用情况
+     * 显示存储设备使用情况和空闲空间的碎片情况
+     * 空闲空间碎片率为不在最长空闲区段中的空闲块所占的比例，为0时全部空闲块连成一段
      */
-    public void diskUsage() {
+    public synchronized void diskUsage() {
         if (isFull()) {
             System.out.println("存储设备已完全占满。");
         } else {
             int usedCount = getUsedBlockCount();
-            int usagePercentage = (int) (100.0 * usedCount / StorageConstants.DISK_SIZE);
+            int freeCount = diskSize - usedCount;
+            int usagePercentage = (int) (100.0 * usedCount / diskSize);
+            int largest = allocator.getLargestFreeExtent();
             System.out.println("存储使用率: " + usagePercentage + "%");
             System.out.println("已分配块数: " + usedCount);
-            System.out.println("可用块数: " + (StorageConstants.DISK_SIZE - usedCount));
+            System.out.println("可用块数: " + freeCount);
+            System.out.println("空闲区段数: " + allocator.getFreeExtentCount() + "  最长空闲区段: " + largest + " 块");
+            System.out.println("空闲空间碎片率: " + (int) (100.0 * (freeCount - largest) / freeCount) + "%");
+            System.out.println("分配策略: " + policy.getLabel());
+            System.out.printf("块去重: %s  共享引用: %d 块  去重比: %.2f%n", deduplication ? "开" : "关",
+                    sharedReferences, (double) (usedCount + sharedReferences) / Math.max(1, usedCount));
         }
     }
 
@@ -94,8 +712,8 @@ public class StorageDevice implements Serializable {
      * 检查存储设备是否已满
      * @return 如果存储设备已满则返回true，否则返回false
      */
-    public boolean isFull() {
-        storageExhausted = (getUsedBlockCount() == StorageConstants.DISK_SIZE);
+    public synchronized boolean isFull() {
+        storageExhausted = (allocator.getFreeBlockCount() == 0);
         return storageExhausted;
     }
 
@@ -103,9 +721,13 @@ public class StorageDevice implements Serializable {
     public String toString() {
         return "StorageDevice{" +
                 "deviceId='" + deviceId + '\'' +
-                ", storageBlocks=" + Arrays.toString(storageBlocks) +
-                ", allocationMap=" + Arrays.toString(allocationMap) +
+                ", devicePath=" + devicePath +
+                ", diskSize=" + diskSize +
+                ", blockSize=" + blockSize +
+                ", allocator=" + allocator +
+                ", deduplication=" + deduplication +
+                ", sharedReferences=" + sharedReferences +
                 ", storageExhausted=" + storageExhausted +
                 '}';
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,77 @@
+/**
+ * 存储卷
+ * 挂载在目录树中某个目录上的一个存储设备，连同该设备专用的缓冲区缓存和子树回收器。
+ * 挂载点之下（直到下一个挂载点之前）的文件内容都保存在该设备上，块映射中的块号是该设备上的块号；
+ * 根目录上挂载的是根设备
+ */
+public class StorageVolume {
+    // 挂载点的绝对路径
+    private final String mountPath;
+    // 存储设备
+    private final StorageDevice device;
+    // 该设备的缓冲区缓存
+    private final BufferCache cache;
+    // 该设备上被删除子树的回收器
+    private final SubtreeReclaimer reclaimer;
+
+    /**
+     * 创建存储卷
+     * @param service 文件系统服务
+     * @param mountPath 挂载点的绝对路径
+     * @param device 存储设备
+     */
+    public StorageVolume(FileSystemService service, String mountPath, StorageDevice device) {
+        this.mountPath = mountPath;
+        this.device = device;
+        this.cache = new BufferCache(device, StorageConstants.CACHE_SIZE);
+        this.reclaimer = new SubtreeReclaimer(service, cache);
+    }
+
+    /**
+     * 获取挂载点的绝对路径
+     * @return 挂载点路径
+     */
+    public String getMountPath() {
+        return mountPath;
+    }
+
+    /**
+     * 获取存储设备
+     * @return 存储设备实例
+     */
+    public StorageDevice getDevice() {
+        return device;
+    }
+
+    /**
+     * 获取该设备的缓冲区缓存
+     * @return 缓冲区缓存
+     */
+    public BufferCache getCache() {
+        return cache;
+    }
+
+    /**
+     * 获取该设备的子树回收器
+     * @return 子树回收器
+     */
+    public SubtreeReclaimer getReclaimer() {
+        return reclaimer;
+    }
+
+    /**
+     * 把缓存中的脏块写回设备并同步设备文件
+     */
+    public void flush() {
+        cache.flushAll();
+        device.sync();
+    }
+
+    @Override
+    public String toString() {
+        return "StorageVolume{" +
+                "mountPath='" + mountPath + '\'' +
+                ", device=" + device +
+                '}';
+    }
+}
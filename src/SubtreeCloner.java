@@ -0,0 +1,176 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 子树克隆器
+ * 克隆目录时只建立一个尚未展开的克隆目录并登记在源目录上，创建代价与子树大小无关。
+ * 克隆目录第一次被访问时才逐层展开：复制源目录的目录项，子目录成为新的待展开克隆，
+ * 文件复制块映射并与源文件共享全部存储块（增加存储块的引用），此后写入任一方都只复制写到的存储块。
+ *
+ * 源目录在被修改之前必须先展开以它或它的上级目录为源的全部克隆（preserve），
+ * 使克隆看到的总是克隆时刻的内容；调用者在增删目录项、打开或删除文件、移动文件的存储块之前调用。
+ * 克隆只在没有文件打开的子树上创建，而打开文件前会先展开覆盖它的克隆，因此展开时读到的文件都是关闭的。
+ *
+ * 快照是根目录的克隆，保存在SNAPSHOT_DIR下；克隆根目录时不包含SNAPSHOT_DIR本身。
+ * 展开和登记都在克隆器的监视器内进行，展开不获取节点锁：被读取的源节点在展开之前不会被修改
+ */
+public class SubtreeCloner {
+    // 快照目录的名称，位于根目录下
+    public static final String SNAPSHOT_DIR = ".snapshots";
+
+    // 文件系统服务
+    private final FileSystemService service;
+    // 源目录 -> 以它为源、尚未展开的克隆目录
+    private final Map<FileSystemFolder, List<FileSystemFolder>> pending;
+    // 尚未展开的克隆目录数，为0时preserve无需查找
+    private volatile int pendingCount;
+
+    // 统计计数
+    private long expandedFolders;
+    private long copiedFiles;
+
+    /**
+     * 创建子树克隆器
+     * @param service 文件系统服务
+     */
+    public SubtreeCloner(FileSystemService service) {
+        this.service = service;
+        this.pending = new HashMap<>();
+    }
+
+    /**
+     * 在目录中建立文件或目录的克隆，调用者应保证源子树中没有打开的文件、不包含挂载点，
+     * 且目标目录与源在同一存储卷上、不在克隆覆盖的范围内
+     * 文件立即复制块映射并共享存储块；目录只建立待展开的克隆
+     * @param source 源文件或目录
+     * @param parent 目标父目录
+     * @param name 克隆在父目录中的名称
+     * @return 克隆出的节点
+     */
+    public synchronized FileSystemNode createClone(FileSystemNode source, FileSystemFolder parent, String name) {
+        preserve(parent);
+        FileSystemNode clone = copyOf(source, parent, name);
+        parent.addEntry(name, clone);
+        return clone;
+    }
+
+    /**
+     * 复制一个节点：目录成为待展开的克隆，文件复制块映射并增加存储块的引用
+     */
+    private FileSystemNode copyOf(FileSystemNode source, FileSystemFolder parent, String name) {
+        if (source.isDirectory) {
+            FileSystemFolder folder = (FileSystemFolder) source;
+            FileSystemFolder clone = new FileSystemFolder(name, parent, this, folder);
+            pending.computeIfAbsent(folder, key -> new ArrayList<>()).add(clone);
+            pendingCount++;
+            return clone;
+        }
+        VirtualFileContent content = ((FileSystemDocument) source).file.copyContent();
+        service.getVolume(source).getDevice().share(content.getBlockIndices());
+        copiedFiles++;
+        return new FileSystemDocument(name, parent, content);
+    }
+
+    /**
+     * 展开一个待展开的克隆目录：按源目录当前的目录项建立克隆目录的目录项，已展开时不做任何事
+     * 子目录的克隆先登记再注销本目录，任一时刻覆盖源子树的克隆都不会遗漏
+     * @param clone 克隆目录
+     */
+    public synchronized void expand(FileSystemFolder clone) {
+        FileSystemFolder source = clone.getCloneSource();
+        if (source == null) {
+            return;
+        }
+        FileSystemMetrics metrics = FileSystemMetrics.get();
+        long start = metrics.start();
+        for (Map.Entry<String, FileSystemNode> entry : source.getEntries().entrySet()) {
+            if (!isExcluded(source, entry.getKey())) {
+                clone.attachEntry(entry.getKey(), copyOf(entry.getValue(), clone, entry.getKey()));
+            }
+        }
+        List<FileSystemFolder> clones = pending.get(source);
+        if (clones != null && clones.remove(clone)) {
+            pendingCount--;
+            if (clones.isEmpty()) {
+                pending.remove(source);
+            }
+        }
+        clone.finishClone();
+        expandedFolders++;
+        metrics.record(FileSystemMetrics.Operation.EXPAND, start);
+    }
+
+    /**
+     * 在修改节点之前展开覆盖它的全部克隆：从根目录向下沿路径逐层展开以路径上的目录为源的克隆，
+     * 完成后节点（文件时为其所在目录）不再被任何待展开的克隆覆盖
+     * @param node 即将被修改的目录，或即将被打开、删除、移动存储块的文件
+     */
+    public void preserve(FileSystemNode node) {
+        if (pendingCount == 0) {
+            return;
+        }
+        synchronized (this) {
+            FileSystemFolder folder = node.isDirectory ? (FileSystemFolder) node : node.getParentDir();
+            ArrayDeque<FileSystemFolder> path = new ArrayDeque<>();
+            for (FileSystemFolder current = folder; current != null; current = current.getParentDir()) {
+                path.push(current);
+            }
+            while (!path.isEmpty()) {
+                FileSystemFolder current = path.pop();
+                FileSystemFolder next = path.peek();
+                List<FileSystemFolder> clones = pending.get(current);
+                // 路径上的下一级不在克隆范围内时，修改不影响以本目录为源的克隆
+                if (clones == null || next != null && isExcluded(current, next.getName())) {
+                    continue;
+                }
+                for (FileSystemFolder clone : new ArrayList<>(clones)) {
+                    expand(clone);
+                }
+            }
+        }
+    }
+
+    /**
+     * 检查节点是否在目录的克隆所覆盖的范围内（目录自身或子树中不被排除的部分）
+     * @param source 源目录
+     * @param node 节点
+     * @return 如果克隆source时会包含node则返回true
+     */
+    public boolean covers(FileSystemFolder source, FileSystemNode node) {
+        FileSystemNode child = null;
+        for (FileSystemNode current = node; current != null; current = current.getParentDir()) {
+            if (current == source) {
+                return child == null || !isExcluded(source, child.getName());
+            }
+            child = current;
+        }
+        return false;
+    }
+
+    /**
+     * 检查源目录的某个目录项是否不被克隆：根目录下的快照目录
+     */
+    private boolean isExcluded(FileSystemFolder source, String name) {
+        return source.getParentDir() == null && name.equals(SNAPSHOT_DIR);
+    }
+
+    /**
+     * 获取尚未展开的克隆目录数
+     * @return 待展开的克隆目录数
+     */
+    public int getPendingCount() {
+        return pendingCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "SubtreeCloner{" +
+                "pending=" + pendingCount +
+                ", expandedFolders=" + expandedFolders +
+                ", copiedFiles=" + copiedFiles +
+                '}';
+    }
+}
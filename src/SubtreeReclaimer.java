@@ -0,0 +1,145 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * 子树回收器
+ * 递归删除目录时，目录只需从父目录中摘除即对用户不可见，子树中各文件占用的存储块由本类在后台线程中回收。
+ * 回收时用显式栈迭代遍历子树，不改变任何会话的工作目录，也不逐个文件输出信息；
+ * 每批节点释放的存储块汇总后只调用一次缓存失效和一次位图清除。
+ *
+ * 每批回收都在一个操作内进行，生成检查点前由检查点线程回收剩余的全部节点，
+ * 保证检查点中的位图不会包含已删除文件的存储块
+ */
+public class SubtreeReclaimer {
+    // 每批回收的最大节点数
+    private static final int BATCH_NODES = 1024;
+
+    // 文件系统服务
+    private final FileSystemService service;
+    // 缓冲区缓存
+    private final BufferCache cache;
+    // 待回收的节点（目录或文件）
+    private final ArrayDeque<FileSystemNode> pending;
+    // 后台回收线程，第一次提交时启动
+    private Thread worker;
+
+    // 统计计数
+    private long reclaimedFiles;
+    private long reclaimedBlocks;
+
+    /**
+     * 创建子树回收器
+     * @param service 文件系统服务
+     * @param cache 缓冲区缓存
+     */
+    public SubtreeReclaimer(FileSystemService service, BufferCache cache) {
+        this.service = service;
+        this.cache = cache;
+        this.pending = new ArrayDeque<>();
+    }
+
+    /**
+     * 提交一棵已从目录树中摘除的子树，立即返回
+     * @param root 子树的根目录
+     */
+    public synchronized void submit(FileSystemFolder root) {
+        pending.push(root);
+        if (worker == null) {
+            worker = new Thread(this::runWorker, "subtree-reclaimer");
+            worker.setDaemon(true);
+            worker.start();
+        }
+        notifyAll();
+    }
+
+    /**
+     * 获取尚未回收的节点数
+     * @return 待回收的节点数
+     */
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * 回收全部待回收的节点，调用者应持有操作锁的写锁
+     */
+    public void drain() {
+        reclaimBatch(Integer.MAX_VALUE);
+    }
+
+    /**
+     * 后台线程：等待提交的子树并逐批回收
+     */
+    private void runWorker() {
+        while (true) {
+            synchronized (this) {
+                while (pending.isEmpty()) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+            service.beginOperation();
+            try {
+                reclaimBatch(BATCH_NODES);
+            } finally {
+                service.endOperation();
+            }
+        }
+    }
+
+    /**
+     * 回收一批节点：目录的子节点压入待回收栈，文件交出存储块，最后一次性释放本批的全部存储块
+     * @param limit 本批最多处理的节点数
+     */
+    private void reclaimBatch(int limit) {
+        ArrayList<Integer> freedBlocks = new ArrayList<>();
+        int files = 0;
+        for (int i = 0; i < limit; i++) {
+            FileSystemNode node;
+            synchronized (this) {
+                node = pending.poll();
+            }
+            if (node == null) {
+                break;
+            }
+            node.getLock().writeLock().lock();
+            try {
+                if (node.isDirectory) {
+                    // 以子树中目录为源的克隆在其存储块被回收之前展开
+                    service.getCloner().preserve(node);
+                    ArrayList<FileSystemNode> children = new ArrayList<>(((FileSystemFolder) node).getEntries().values());
+                    synchronized (this) {
+                        for (FileSystemNode child : children) {
+                            pending.push(child);
+                        }
+                    }
+                } else {
+                    freedBlocks.addAll(((FileSystemDocument) node).file.detachBlocks());
+                    files++;
+                }
+            } finally {
+                node.getLock().writeLock().unlock();
+            }
+        }
+        if (!freedBlocks.isEmpty()) {
+            cache.invalidate(freedBlocks);
+            cache.getDevice().diskFree(freedBlocks);
+        }
+        synchronized (this) {
+            reclaimedFiles += files;
+            reclaimedBlocks += freedBlocks.size();
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "SubtreeReclaimer{" +
+                "pending=" + pending.size() +
+                ", reclaimedFiles=" + reclaimedFiles +
+                ", reclaimedBlocks=" + reclaimedBlocks +
+                '}';
+    }
+}
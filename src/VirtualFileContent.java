@@ -1,29 +1,113 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.BitSet;
+import java.util.List;
 
 /**
  * 虚拟文件内容管理类
  * 负责文件内容的存储、读取和管理，实现了文件索引分配机制
+ * 文件内容是字节序列，大小和位置都以字节计；readText/writeText在其上提供UTF-8文本视图
+ * 块大小取自文件所在存储设备，由调用者传入的缓冲区缓存给出
+ * 存储块可能与其他文件共享：写入被共享的存储块前先复制一份并改为映射到副本（写时复制），
+ * 原来的存储块在关闭时才减少引用；关闭时对打开期间修改过的块去重
+ *
+ * 文件设置了压缩编解码器时，关闭时把打开期间修改过的压缩单元（BlockMap.UNIT_BLOCKS个逻辑块）压缩后
+ * 保存在更少的存储块上，至少节省一个存储块才压缩。读取压缩过的单元时整个单元解压到缓冲区缓存中；
+ * 写入压缩过的单元前先把它解压到新分配的存储块上改为未压缩，原来的存储块在关闭时才释放
+ * 关闭时记下映射或内容改变过的逻辑块，由调用者取走，只登记这些存储块的写回并只把映射改变的部分记入日志
+ * 本类不自行加锁，并发访问由所属文件节点的读写锁保护
  */
 public class VirtualFileContent implements Serializable {
-    // 文件逻辑块到物理块的映射表
-    private final HashMap<Integer, Integer> blockMapping;    
+    // 文件逻辑块到物理块的映射表（区段列表）
+    private final BlockMap blockMapping;
     // 文件当前大小（字节数）
-    private int contentSize;                                
-    // 文件是否处于打开状态
-    private boolean openStatus;                             
-    // 文件内容缓存
-    private String contentCache;                            
+    private int contentSize;
+    // 文件当前内容占用的存储块数（打开期间写入新增的块不计入），截断后保留的压缩单元整个计入
+    private int contentBlocks;
+    // 文件被打开的次数，每个文件描述符计一次（不持久化，恢复后的文件均处于关闭状态）
+    private transient int openCount;
+    // 文件打开期间的当前大小，关闭时成为contentSize
+    private transient int openSize;
+    // 块映射所在的元数据镜像，为null表示块映射已在内存中
+    private transient volatile FileSystemImage image;
+    // 文件在镜像中的inode编号
+    private transient int inode;
+    // 为文件分配新存储块时使用的分配组键（所在目录的路径），打开文件时设置
+    private transient String allocationGroup;
+    // 打开期间修改过的逻辑块，关闭时去重
+    private transient BitSet modifiedBlocks;
+    // 写时复制时被替换的共享存储块和改为未压缩的单元原来的存储块，关闭时减少引用
+    private transient ArrayList<Integer> replacedBlocks;
+    // 关闭时压缩修改过的单元所用的编解码器，为null或NONE时不压缩
+    private transient BlockCodec codec;
+    // 打开期间块映射是否被逐块改写过（单元压缩或改为未压缩），关闭时合并相邻区段
+    private transient boolean remapped;
+    // 上次取走以来关闭时映射或内容改变过的逻辑块
+    private transient BitSet changedBlocks;
+    // 截断时空间不足而整个保留的压缩单元的单元号加1，文件再次被写入之前关闭时不再尝试解压；为0表示没有
+    private transient int keptUnit;
 
     /**
      * 创建一个新的空文件内容管理器
      */
     public VirtualFileContent() {
-        this.blockMapping = new HashMap<>();
+        this.blockMapping = new BlockMap();
         this.contentSize = 0;
-        this.openStatus = false;
-        this.contentCache = "";
+        this.openCount = 0;
+    }
+
+    /**
+     * 创建一个块映射保存在元数据镜像中的文件内容管理器，块映射在第一次访问时加载
+     * @param image 元数据镜像
+     * @param inode 文件在镜像中的inode编号
+     */
+    public VirtualFileContent(FileSystemImage image, int inode) {
+        this();
+        this.image = image;
+        this.inode = inode;
+    }
+
+    /**
+     * 确保块映射已从元数据镜像中加载
+     * 多个会话可能同时持有文件的读锁并第一次访问文件，加载过程需要互斥
+     */
+    private void ensureLoaded() {
+        if (image != null) {
+            synchronized (this) {
+                FileSystemImage source = image;
+                if (source != null) {
+                    source.loadBlockMap(this, inode);
+                }
+            }
+        }
+    }
+
+    /**
+     * 检查块映射是否已加载到内存中
+     * @return 如果已加载则返回true，否则返回false
+     */
+    public boolean isLoaded() {
+        return image == null;
+    }
+
+    /**
+     * 获取尚未加载的块映射所在的元数据镜像
+     * @return 元数据镜像，已加载时返回null
+     */
+    public FileSystemImage getImage() {
+        return image;
+    }
+
+    /**
+     * 获取文件在元数据镜像中的inode编号
+     * @return inode编号
+     */
+    public int getInode() {
+        return inode;
     }
 
     /**
@@ -31,110 +115,793 @@ public class VirtualFileContent implements Serializable {
      * @return 如果文件已打开则返回true，否则返回false
      */
     public boolean isOpen() {
-        return openStatus;
+        return openCount > 0;
+    }
+
+    /**
+     * 设置为文件分配新存储块时使用的分配组键
+     * @param group 分配组键，通常是文件所在目录的路径
+     */
+    public void setAllocationGroup(String group) {
+        this.allocationGroup = group;
+    }
+
+    /**
+     * 设置关闭时压缩修改过的单元所用的编解码器
+     * @param codec 编解码器，为null或NONE时不压缩
+     */
+    public void setCodec(BlockCodec codec) {
+        this.codec = codec;
+    }
+
+    /**
+     * 获取文件内容在存储设备上分成的连续区段数，1表示内容完全连续
+     * @return 区段数，空文件返回0
+     */
+    public int getExtentCount() {
+        ensureLoaded();
+        return blockMapping.getExtentCount();
+    }
+
+    /**
+     * 获取文件当前被打开的次数
+     * @return 打开该文件的文件描述符数量
+     */
+    public int getOpenCount() {
+        return openCount;
     }
     
     /**
      * 设置文件的打开状态（仅用于标记，不涉及实际的内容加载/保存）
-     * 注意：此方法仅用于简化实现，完整操作应使用setOpen(boolean, StorageDevice)
+     * 注意：此方法仅用于简化实现，完整操作应使用setOpen(boolean, BufferCache)
      * 
      * @param status 目标状态，true表示打开，false表示关闭
      */
     public void setOpenStatus(boolean status) {
-        this.openStatus = status;
+        this.openCount = status ? Math.max(1, openCount) : 0;
+    }
+
+    /**
+     * 获取文件当前大小
+     * @return 文件大小（字节数）
+     */
+    public int getContentSize() {
+        ensureLoaded();
+        return contentSize;
+    }
+
+    /**
+     * 按逻辑块顺序获取文件占用的物理存储块，压缩单元中的空洞不列出
+     * @return 物理存储块索引列表
+     */
+    public ArrayList<Integer> getBlockIndices() {
+        ensureLoaded();
+        return blockMapping.toList(contentBlocks);
+    }
+
+    /**
+     * 获取文件当前内容占用的逻辑块数，包括压缩单元中的空洞
+     * @return 逻辑块数
+     */
+    public int getMappedBlockCount() {
+        ensureLoaded();
+        return contentBlocks;
+    }
+
+    /**
+     * 获取逻辑块映射到的物理存储块
+     * @param logicalBlock 逻辑块号，小于getMappedBlockCount()
+     * @return 物理存储块索引，压缩单元中的空洞为BlockMap.HOLE
+     */
+    public int getMappedBlock(int logicalBlock) {
+        ensureLoaded();
+        return blockMapping.get(logicalBlock);
+    }
+
+    /**
+     * 获取压缩单元压缩后的字节数
+     * @param unit 单元号
+     * @return 字节数，未压缩的单元返回0
+     */
+    public int getPackedLength(int unit) {
+        ensureLoaded();
+        return blockMapping.getPackedLength(unit);
+    }
+
+    /**
+     * 取走上次取走以来关闭时映射或内容改变过的逻辑块，调用者应持有文件的写锁
+     * @return 改变过的逻辑块，只包含文件当前内容的逻辑块
+     */
+    public BitSet takeChangedBlocks() {
+        BitSet changed = changedBlocks == null ? new BitSet() : changedBlocks;
+        changedBlocks = null;
+        if (changed.length() > contentBlocks) {
+            changed.clear(contentBlocks, changed.length());
+        }
+        return changed;
+    }
+
+    /**
+     * 获取一段逻辑块映射到的物理存储块，按物理上连续的段给出，空洞不列出；
+     * 压缩单元的逻辑块映射到其保存压缩内容的物理块，因此给出的是这些物理块
+     * @param firstBlock 第一个逻辑块
+     * @param endBlock 最后一个逻辑块之后的逻辑块号
+     * @return 各段的 {第一个存储块, 存储块数}
+     */
+    public ArrayList<int[]> getPhysicalRuns(int firstBlock, int endBlock) {
+        ensureLoaded();
+        ArrayList<int[]> runs = new ArrayList<>();
+        int[] run = null;
+        for (int logicalBlock = firstBlock; logicalBlock < endBlock; logicalBlock++) {
+            int block = blockMapping.get(logicalBlock);
+            if (block == BlockMap.HOLE) {
+                continue;
+            }
+            if (run != null && run[0] + run[1] == block) {
+                run[1]++;
+            } else {
+                run = new int[] {block, 1};
+                runs.add(run);
+            }
+        }
+        return runs;
+    }
+
+    /**
+     * 获取文件当前内容的完整块映射，用于记入日志和镜像
+     * @return 每个逻辑块对应的物理存储块索引，压缩单元中的空洞为BlockMap.HOLE
+     */
+    public ArrayList<Integer> getBlockMapping() {
+        ensureLoaded();
+        return blockMapping.toMapping(contentBlocks);
+    }
+
+    /**
+     * 获取文件当前内容各压缩单元压缩后的字节数，用于记入日志和镜像
+     * @return 各单元的字节数（0表示未压缩），没有压缩过的单元时为空列表
+     */
+    public ArrayList<Integer> getPackedLengths() {
+        ensureLoaded();
+        ArrayList<Integer> lengths = blockMapping.getPackedLengths();
+        int units = (contentBlocks + BlockMap.UNIT_BLOCKS - 1) / BlockMap.UNIT_BLOCKS;
+        return lengths.size() > units ? new ArrayList<>(lengths.subList(0, units)) : lengths;
+    }
+
+    /**
+     * 用完整的块映射和单元信息替换块映射表
+     */
+    private void assignMapping(List<Integer> blocks, List<Integer> packedLengths) {
+        blockMapping.clear();
+        for (int block : blocks) {
+            blockMapping.append(block);
+        }
+        for (int unit = 0; unit < packedLengths.size(); unit++) {
+            blockMapping.setPackedLength(unit, packedLengths.get(unit));
+        }
+    }
+
+    /**
+     * 用日志中记录的映射恢复文件内容的索引，不访问存储设备
+     * @param size 文件大小（字节数）
+     * @param blocks 按逻辑块顺序排列的物理存储块索引
+     */
+    public synchronized void restoreMapping(int size, List<Integer> blocks) {
+        restoreMapping(size, blocks, new ArrayList<>());
+    }
+
+    /**
+     * 用日志或镜像中记录的映射恢复文件内容的索引，不访问存储设备
+     * @param size 文件大小（字节数）
+     * @param blocks 按逻辑块顺序排列的物理存储块索引，压缩单元中的空洞为BlockMap.HOLE
+     * @param packedLengths 各压缩单元压缩后的字节数，没有压缩过的单元时为空列表
+     */
+    public synchronized void restoreMapping(int size, List<Integer> blocks, List<Integer> packedLengths) {
+        assignMapping(blocks, packedLengths);
+        contentSize = size;
+        contentBlocks = blocks.size();
+        // 映射填充完成后才清除镜像引用
+        image = null;
+    }
+
+    /**
+     * 把日志中记录的映射改变应用到块映射表上，不访问存储设备
+     * 先截断或保留到给定的块数，再按顺序设置改变的逻辑块（等于当前块数时追加）和压缩单元
+     * @param size 文件大小（字节数）
+     * @param blockCount 改变后的逻辑块数
+     * @param logicalBlocks 改变的逻辑块号，递增
+     * @param blocks 改变的逻辑块对应的物理存储块索引，压缩单元中的空洞为BlockMap.HOLE
+     * @param units 改变的单元号
+     * @param packedLengths 改变的单元压缩后的字节数，0表示未压缩
+     */
+    public synchronized void applyMappingChanges(int size, int blockCount, List<Integer> logicalBlocks,
+                                                 List<Integer> blocks, List<Integer> units, List<Integer> packedLengths) {
+        ensureLoaded();
+        blockMapping.truncate(blockCount);
+        for (int i = 0; i < logicalBlocks.size(); i++) {
+            int logicalBlock = logicalBlocks.get(i);
+            if (logicalBlock < blockMapping.size()) {
+                blockMapping.set(logicalBlock, blocks.get(i));
+            } else {
+                blockMapping.append(blocks.get(i));
+            }
+        }
+        for (int i = 0; i < units.size(); i++) {
+            blockMapping.setPackedLength(units.get(i), packedLengths.get(i));
+        }
+        if (!logicalBlocks.isEmpty()) {
+            blockMapping.compact();
+        }
+        contentSize = size;
+        contentBlocks = blockCount;
+    }
+
+    /**
+     * 为空文件设置已直接写入存储设备的内容，用于批量导入，调用者应持有文件的写锁
+     * @param size 文件大小（字节数）
+     * @param blocks 按逻辑块顺序排列的物理存储块索引，压缩单元中的空洞为BlockMap.HOLE
+     * @param packedLengths 各压缩单元压缩后的字节数，没有压缩过的单元时为空列表
+     * @return 设置成功返回true；文件已打开或已有内容时返回false，存储块由调用者处理
+     */
+    public boolean attachBlocks(int size, List<Integer> blocks, List<Integer> packedLengths) {
+        ensureLoaded();
+        if (openCount > 0 || blockMapping.size() > 0) {
+            return false;
+        }
+        assignMapping(blocks, packedLengths);
+        contentSize = size;
+        contentBlocks = blocks.size();
+        return true;
+    }
+
+    /**
+     * 创建与已关闭文件内容相同的副本，用于克隆；副本与本文件共享全部存储块，由调用者增加存储块的引用
+     * @return 内容副本
+     */
+    public VirtualFileContent copyContent() {
+        ensureLoaded();
+        VirtualFileContent copy = new VirtualFileContent();
+        copy.restoreMapping(contentSize, getBlockMapping(), getPackedLengths());
+        return copy;
+    }
+
+    /**
+     * 把已关闭文件的内容改为保存在另一组存储块上，用于碎片整理，调用者应持有文件的写锁
+     * 内容由调用者事先逐块复制到新存储块，压缩单元保持原样；原来的存储块由调用者在日志提交后释放
+     * @param blocks 按逻辑块顺序排列的新存储块索引，与getBlockIndices一一对应
+     * @return 原来的存储块索引；文件已打开或块数不符时返回null，不做修改
+     */
+    public ArrayList<Integer> replaceBlocks(List<Integer> blocks) {
+        ensureLoaded();
+        ArrayList<Integer> previous = blockMapping.toList(blockMapping.size());
+        if (openCount > 0 || blocks.size() != previous.size()) {
+            return null;
+        }
+        ArrayList<Integer> mapping = blockMapping.toMapping(blockMapping.size());
+        int next = 0;
+        for (int i = 0; i < mapping.size(); i++) {
+            if (mapping.get(i) != BlockMap.HOLE) {
+                mapping.set(i, blocks.get(next++));
+            }
+        }
+        assignMapping(mapping, blockMapping.getPackedLengths());
+        return previous;
     }
 
     /**
      * 计算存储指定大小内容所需的存储块数量
      * @param size 内容大小（字节数）
+     * @param blockSize 块大小（字节）
      * @return 所需的存储块数量
      */
-    private int calculateRequiredBlocks(int size) {
-        return (int) Math.ceil(1.0 * size / StorageConstants.BLOCK_SIZE);
+    private static int calculateRequiredBlocks(int size, int blockSize) {
+        return (int) ((size + (long) blockSize - 1) / blockSize);
+    }
+
+    /**
+     * 获取文件打开期间的当前大小（包含尚未写回的修改）
+     * @return 文件大小（字节数）
+     */
+    public int getOpenSize() {
+        ensureLoaded();
+        return openCount > 0 ? openSize : contentSize;
     }
 
     /**
-     * 将内容按存储块大小分割成片段
-     * @param content 要分割的内容
-     * @return 分割后的内容片段列表
+     * 获取一个逻辑块中属于文件当前内容的字节数
+     * @param logicalBlock 逻辑块号
+     * @param blockSize 块大小（字节）
+     * @return 有效字节数，在0到块大小之间
      */
-    private ArrayList<String> fragmentContent(String content) {
-        ArrayList<String> fragments = new ArrayList<>();
-        for (int i = 0; i < content.length(); i += StorageConstants.BLOCK_SIZE) {
-            fragments.add(content.substring(i, Math.min(content.length(), i + StorageConstants.BLOCK_SIZE)));
+    private int validBytes(int logicalBlock, int blockSize) {
+        long available = getOpenSize() - (long) logicalBlock * blockSize;
+        return (int) Math.max(0, Math.min(available, blockSize));
+    }
+
+    /**
+     * 获取为从logicalBlock开始的逻辑块分配存储块时优先使用的位置：紧接前一个逻辑块的存储块
+     * @return 存储块索引，前一个逻辑块不存在或是空洞时返回-1
+     */
+    private int goalAfter(int logicalBlock) {
+        int previous = logicalBlock > 0 ? blockMapping.get(logicalBlock - 1) : BlockMap.HOLE;
+        return previous == BlockMap.HOLE ? -1 : previous + 1;
+    }
+
+    /**
+     * 为直到lastBlock为止尚未映射的逻辑块一次性分配存储块
+     * 逻辑块总是从0开始连续映射，新块只会追加在映射表末尾，并优先紧接原有的最后一个存储块分配
+     * @return 分配成功返回true；空间不足时释放已分配的部分，映射表保持不变，返回false
+     */
+    private boolean mapBlocks(int lastBlock, BufferCache cache) {
+        int missing = lastBlock + 1 - blockMapping.size();
+        if (missing <= 0) {
+            return true;
+        }
+        int goal = goalAfter(blockMapping.size());
+        ArrayList<Integer> allocatedBlocks = cache.getDevice().diskAlloc(missing, goal, allocationGroup);
+        if (allocatedBlocks.size() < missing) {
+            cache.getDevice().diskFree(allocatedBlocks);
+            return false;
         }
-        return fragments;
+        for (int block : allocatedBlocks) {
+            blockMapping.append(block);
+        }
+        return true;
     }
 
     /**
-     * 打开或关闭文件
-     * 打开时从存储设备加载内容到缓存，关闭时将缓存写回存储设备
+     * 打开或关闭文件，同一文件可以同时被多个文件描述符打开
+     * 打开时不加载任何内容，读写经由缓冲区缓存按块进行；
+     * 每次关闭都提交当前内容：修改过的块留在缓冲区缓存中，由调用者登记到后台写回器写回，原有存储块原地复用，
+     * 文件缩短后不再需要的尾部存储块归还给分配器
      * 
      * @param status 目标状态，true表示打开，false表示关闭
-     * @param storage 存储设备实例
-     */
-    public void setOpen(boolean status, StorageDevice storage) {
-        openStatus = status;
-        
-        if (openStatus) {
-            // 打开文件：从存储设备加载内容到缓存
-            contentCache = "";
-            int requiredBlocks = calculateRequiredBlocks(contentSize);
-            // 从存储设备读取内容到缓存
-            for (int i = 0; i < requiredBlocks; i++) {
-                int blockIndex = blockMapping.get(i);
-                contentCache += storage.storageBlocks[blockIndex].readBlock();
+     * @param cache 缓冲区缓存
+     */
+    public void setOpen(boolean status, BufferCache cache) {
+        ensureLoaded();
+        if (status) {
+            if (openCount == 0) {
+                openSize = contentSize;
             }
-        } else {
-            // 关闭文件：将缓存内容写回存储设备
-            contentSize = contentCache.length();
-            int requiredBlocks = calculateRequiredBlocks(contentSize);
-            // 分配存储空间
-            ArrayList<Integer> allocatedBlocks = storage.diskAlloc(requiredBlocks);
-            // 将内容分割成适合存储块大小的片段
-            ArrayList<String> contentFragments = fragmentContent(contentCache);
-            // 更新映射表并写入存储设备
-            for (int i = 0; i < requiredBlocks; i++) {
-                int blockIndex = allocatedBlocks.get(i);
-                blockMapping.put(i, blockIndex);
-                storage.storageBlocks[blockIndex].writeBlock(contentFragments.get(i));
+            openCount++;
+        } else if (openCount > 0) {
+            contentSize = openSize;
+            contentBlocks = calculateRequiredBlocks(contentSize, cache.getBlockSize());
+            if (contentBlocks < blockMapping.size() && contentBlocks % BlockMap.UNIT_BLOCKS != 0) {
+                // 截断位置落在压缩过的单元中间时，先把该单元改为未压缩；
+                // 空间不足时保留整个压缩单元，超出文件大小的内容不会被读到，之后写入该单元时再解压。
+                // 保留的单元在文件再次被写入之前不再尝试解压，反复打开关闭不会每次都解压和分配
+                int unit = contentBlocks / BlockMap.UNIT_BLOCKS;
+                if (unit + 1 == keptUnit || !unpackUnit(unit, cache)) {
+                    contentBlocks = Math.min(blockMapping.size(), (unit + 1) * BlockMap.UNIT_BLOCKS);
+                    keptUnit = unit + 1;
+                } else {
+                    keptUnit = 0;
+                }
+            }
+            if (modifiedBlocks != null && !modifiedBlocks.isEmpty()) {
+                if (changedBlocks == null) {
+                    changedBlocks = new BitSet();
+                }
+                changedBlocks.or(modifiedBlocks);
+            }
+            packModified(cache);
+            deduplicateModified(cache);
+            releaseTailBlocks(cache);
+            releaseReplacedBlocks(cache);
+            if (remapped) {
+                blockMapping.compact();
+                remapped = false;
+            }
+            openCount--;
+        }
+    }
+
+    /**
+     * 压缩打开期间修改过的未压缩单元：压缩后能少占至少一个存储块时，把压缩内容写入新分配的存储块，
+     * 单元改为映射到这些存储块，其余位置成为空洞，原来的存储块被释放；被压缩的单元不再参与去重
+     * @param cache 缓冲区缓存
+     */
+    private void packModified(BufferCache cache) {
+        if (codec == null || codec == BlockCodec.NONE || modifiedBlocks == null || modifiedBlocks.isEmpty()) {
+            return;
+        }
+        StorageDevice device = cache.getDevice();
+        int blockSize = cache.getBlockSize();
+        byte[] raw = null;
+        byte[] packed = null;
+        ArrayList<Integer> released = new ArrayList<>();
+        for (int logicalBlock = modifiedBlocks.nextSetBit(0); logicalBlock >= 0 && logicalBlock < contentBlocks;
+             logicalBlock = modifiedBlocks.nextSetBit(logicalBlock)) {
+            int unit = logicalBlock / BlockMap.UNIT_BLOCKS;
+            int first = unit * BlockMap.UNIT_BLOCKS;
+            int count = Math.min(BlockMap.UNIT_BLOCKS, contentBlocks - first);
+            // 下一次从下一个单元开始查找
+            logicalBlock = first + BlockMap.UNIT_BLOCKS;
+            if (count < 2 || blockMapping.getPackedLength(unit) > 0) {
+                continue;
+            }
+            if (raw == null) {
+                raw = new byte[BlockMap.UNIT_BLOCKS * blockSize];
+                packed = new byte[BlockMap.UNIT_BLOCKS * blockSize];
+            }
+            int rawLength = read(first * blockSize, raw, 0, count * blockSize, cache);
+            int length = BlockCodec.pack(codec, raw, rawLength, packed, (count - 1) * blockSize);
+            if (length < 0) {
+                continue;
+            }
+            int packedCount = calculateRequiredBlocks(length, blockSize);
+            ArrayList<Integer> blocks = device.diskAlloc(packedCount, goalAfter(first), allocationGroup);
+            if (blocks.size() < packedCount) {
+                // 空间不足时保持未压缩
+                device.diskFree(blocks);
+                continue;
+            }
+            for (int i = 0; i < packedCount; i++) {
+                device.writeBlock(blocks.get(i), packed, i * blockSize, Math.min(blockSize, length - i * blockSize));
+            }
+            for (int i = 0; i < count; i++) {
+                released.add(blockMapping.get(first + i));
+                blockMapping.set(first + i, i < packedCount ? blocks.get(i) : BlockMap.HOLE);
+            }
+            blockMapping.setPackedLength(unit, length);
+            modifiedBlocks.clear(first, first + count);
+            changedBlocks.set(first, first + count);
+            remapped = true;
+        }
+        if (!released.isEmpty()) {
+            cache.invalidate(released);
+            device.diskFree(released);
+        }
+    }
+
+    /**
+     * 把压缩过的单元改为未压缩：解压后写入新分配的存储块（只写入缓冲区缓存，关闭后写回），
+     * 原来的存储块在关闭时释放；单元未压缩时不做任何事
+     * @param unit 单元号
+     * @param cache 缓冲区缓存
+     * @return 单元已是未压缩的返回true；空间不足时单元保持压缩，返回false
+     */
+    private boolean unpackUnit(int unit, BufferCache cache) {
+        int packedLength = blockMapping.getPackedLength(unit);
+        if (packedLength == 0) {
+            return true;
+        }
+        int blockSize = cache.getBlockSize();
+        int first = unit * BlockMap.UNIT_BLOCKS;
+        int count = Math.min(BlockMap.UNIT_BLOCKS, blockMapping.size() - first);
+        // 先分配再解压，空间不足时不做解压
+        ArrayList<Integer> blocks = cache.getDevice().diskAlloc(count, goalAfter(first), allocationGroup);
+        if (blocks.size() < count) {
+            cache.getDevice().diskFree(blocks);
+            return false;
+        }
+        ArrayList<Integer> packedBlocks = blockMapping.getUnitBlocks(unit);
+        byte[] content = new byte[BlockMap.UNIT_BLOCKS * blockSize];
+        int rawLength = cache.decodeUnit(packedBlocks, packedLength, content);
+        if (modifiedBlocks == null) {
+            modifiedBlocks = new BitSet();
+        }
+        for (int i = 0; i < count; i++) {
+            int valid = Math.max(0, Math.min(blockSize, rawLength - i * blockSize));
+            cache.write(blocks.get(i), 0, 0, content, i * blockSize, valid);
+            blockMapping.set(first + i, blocks.get(i));
+            modifiedBlocks.set(first + i);
+        }
+        blockMapping.setPackedLength(unit, 0);
+        if (replacedBlocks == null) {
+            replacedBlocks = new ArrayList<>();
+        }
+        replacedBlocks.addAll(packedBlocks);
+        remapped = true;
+        return true;
+    }
+
+    /**
+     * 对打开期间修改过的逻辑块去重，内容与已有存储块相同的逻辑块改为映射到已有的存储块；
+     * 去重按设备上的内容计算指纹，因此开启去重时先写回这些逻辑块
+     * @param cache 缓冲区缓存
+     */
+    private void deduplicateModified(BufferCache cache) {
+        if (modifiedBlocks == null || modifiedBlocks.isEmpty()) {
+            return;
+        }
+        StorageDevice device = cache.getDevice();
+        if (device.isDeduplication()) {
+            ArrayList<Integer> modified = new ArrayList<>();
+            for (int logicalBlock = modifiedBlocks.nextSetBit(0); logicalBlock >= 0 && logicalBlock < contentBlocks;
+                 logicalBlock = modifiedBlocks.nextSetBit(logicalBlock + 1)) {
+                modified.add(blockMapping.get(logicalBlock));
+            }
+            cache.flush(modified);
+            ArrayList<Integer> released = new ArrayList<>();
+            for (int logicalBlock = modifiedBlocks.nextSetBit(0); logicalBlock >= 0 && logicalBlock < contentBlocks;
+                 logicalBlock = modifiedBlocks.nextSetBit(logicalBlock + 1)) {
+                int block = blockMapping.get(logicalBlock);
+                int shared = device.deduplicate(block);
+                if (shared != block) {
+                    blockMapping.set(logicalBlock, shared);
+                    released.add(block);
+                }
+            }
+            // 被替换的存储块已由设备释放，只需丢弃其缓存内容
+            cache.invalidate(released);
+        }
+        modifiedBlocks.clear();
+    }
+
+    /**
+     * 减少写时复制时被替换的共享存储块的引用
+     * @param cache 缓冲区缓存
+     */
+    private void releaseReplacedBlocks(BufferCache cache) {
+        if (replacedBlocks != null && !replacedBlocks.isEmpty()) {
+            cache.invalidate(replacedBlocks);
+            cache.getDevice().diskFree(replacedBlocks);
+            replacedBlocks.clear();
+        }
+    }
+
+    /**
+     * 准备写入一个已映射的逻辑块：映射到的存储块被共享时先复制到新分配的存储块并改为映射到副本
+     * 副本与原存储块内容相同，之后的写入即使没有进行，文件内容也不变
+     * @param logicalBlock 逻辑块号
+     * @param cache 缓冲区缓存
+     * @return 逻辑块可以原地写入时返回true；需要复制而空间不足时返回false，映射不变
+     */
+    private boolean prepareBlock(int logicalBlock, BufferCache cache) {
+        int block = blockMapping.get(logicalBlock);
+        if (modifiedBlocks == null) {
+            modifiedBlocks = new BitSet();
+        }
+        modifiedBlocks.set(logicalBlock);
+        StorageDevice device = cache.getDevice();
+        if (!device.prepareWrite(block)) {
+            return true;
+        }
+        ArrayList<Integer> copies = device.diskAlloc(1, goalAfter(logicalBlock), allocationGroup);
+        if (copies.isEmpty()) {
+            return false;
+        }
+        int copy = copies.get(0);
+        int valid = validBytes(logicalBlock, cache.getBlockSize());
+        byte[] content = new byte[valid];
+        cache.read(block, 0, content, 0, valid);
+        cache.write(copy, 0, 0, content, 0, valid);
+        blockMapping.set(logicalBlock, copy);
+        if (replacedBlocks == null) {
+            replacedBlocks = new ArrayList<>();
+        }
+        replacedBlocks.add(block);
+        return true;
+    }
+
+    /**
+     * 释放超出文件当前大小的逻辑块所映射的存储块
+     * @param cache 缓冲区缓存
+     */
+    private void releaseTailBlocks(BufferCache cache) {
+        ArrayList<Integer> tailBlocks = blockMapping.truncate(contentBlocks);
+        if (!tailBlocks.isEmpty()) {
+            cache.invalidate(tailBlocks);
+            cache.getDevice().diskFree(tailBlocks);
+        }
+    }
+
+    /**
+     * 从指定位置读取内容，只访问涉及的逻辑块，内容直接从缓冲区缓存复制到目标数组；
+     * 压缩过的单元不在缓存中时整个单元解压到缓存中
+     * @param offset 起始位置（字节）
+     * @param dest 目标数组
+     * @param destOffset 目标数组中的起始位置
+     * @param length 最多读取的字节数
+     * @param cache 缓冲区缓存
+     * @return 实际读取的字节数，超出文件末尾的部分被截断
+     */
+    public int read(int offset, byte[] dest, int destOffset, int length, BufferCache cache) {
+        ensureLoaded();
+        int blockSize = cache.getBlockSize();
+        int end = (int) Math.min(getOpenSize(), (long) offset + length);
+        int position = offset;
+        while (position < end) {
+            int logicalBlock = position / blockSize;
+            int from = position - logicalBlock * blockSize;
+            int count = Math.min(blockSize - from, end - position);
+            int unit = logicalBlock / BlockMap.UNIT_BLOCKS;
+            int packedLength = blockMapping.getPackedLength(unit);
+            int copied;
+            if (packedLength > 0) {
+                int unitOffset = logicalBlock - unit * BlockMap.UNIT_BLOCKS;
+                copied = cache.readUnpacked(blockMapping.get(unit * BlockMap.UNIT_BLOCKS), unitOffset, from,
+                        dest, destOffset + position - offset, count);
+                if (copied < 0) {
+                    copied = cache.readUnit(blockMapping.getUnitBlocks(unit), packedLength, unitOffset, from,
+                            dest, destOffset + position - offset, count);
+                }
+            } else {
+                int blockIndex = blockMapping.get(logicalBlock);
+                if (blockIndex < 0) {
+                    break;
+                }
+                copied = cache.read(blockIndex, from, dest, destOffset + position - offset, count);
+            }
+            position += copied;
+            if (copied < count) {
+                break;
             }
         }
+        return Math.max(0, position - offset);
     }
 
     /**
-     * 获取文件内容
-     * @return 文件的完整内容字符串
+     * 从指定位置写入内容，只修改涉及的逻辑块
+     * 新增的逻辑块在写入时一次性分配存储块，内容直接复制到缓冲区缓存的槽位中，在淘汰时或关闭文件后写回；
+     * 涉及的压缩单元先改为未压缩
+     *
+     * 复制内容之前先准备好涉及的全部存储块（改为未压缩、复制共享的存储块、分配新增的逻辑块），
+     * 这些步骤都不改变文件内容；任何一步空间不足时不写入任何内容，文件内容和大小保持不变
+     * @param offset 起始位置（字节），不能超过文件当前大小
+     * @param src 要写入的内容
+     * @param srcOffset 内容在src中的起始位置
+     * @param length 要写入的字节数
+     * @param cache 缓冲区缓存
+     * @return 写入成功返回true，存储空间不足时返回false
      */
-    public String getContent() {
-        return contentCache;
+    public boolean write(int offset, byte[] src, int srcOffset, int length, BufferCache cache) {
+        ensureLoaded();
+        if (openCount == 0) {
+            throw new IllegalStateException("File is not opened");
+        }
+        if (offset < 0 || offset > openSize) {
+            throw new IndexOutOfBoundsException("Write offset " + offset + " is beyond file size " + openSize);
+        }
+        if (length == 0) {
+            return true;
+        }
+        int blockSize = cache.getBlockSize();
+        int firstBlock = offset / blockSize;
+        int lastBlock = (offset + length - 1) / blockSize;
+        for (int unit = firstBlock / BlockMap.UNIT_BLOCKS; unit <= lastBlock / BlockMap.UNIT_BLOCKS; unit++) {
+            if (!unpackUnit(unit, cache)) {
+                return false;
+            }
+        }
+        int mappedEnd = Math.min(lastBlock + 1, blockMapping.size());
+        for (int logicalBlock = firstBlock; logicalBlock < mappedEnd; logicalBlock++) {
+            if (!prepareBlock(logicalBlock, cache)) {
+                return false;
+            }
+        }
+        if (!mapBlocks(lastBlock, cache)) {
+            return false;
+        }
+        if (modifiedBlocks == null) {
+            modifiedBlocks = new BitSet();
+        }
+        modifiedBlocks.set(firstBlock, lastBlock + 1);
+        keptUnit = 0;
+        int position = offset;
+        int consumed = 0;
+        while (consumed < length) {
+            int logicalBlock = position / blockSize;
+            int from = position - logicalBlock * blockSize;
+            int count = Math.min(blockSize - from, length - consumed);
+            cache.write(blockMapping.get(logicalBlock), validBytes(logicalBlock, blockSize), from,
+                    src, srcOffset + consumed, count);
+            position += count;
+            consumed += count;
+        }
+        openSize = Math.max(openSize, position);
+        return true;
     }
 
     /**
-     * 设置文件内容
-     * @param content 要写入的内容
-     * @param mode 写入模式："a"表示追加，"w"表示覆盖
+     * 按UTF-8读取指定范围的内容，范围边界落在多字节字符中间时该字符按替换字符解码
+     * @param offset 起始位置（字节）
+     * @param length 读取长度（字节）
+     * @param cache 缓冲区缓存
+     * @return 读取到的文本，超出文件末尾的部分被截断
      */
-    public void setContent(String content, String mode) {
-        if (mode.equals("a")) {
-            // 追加模式
-            contentCache += content;
-        } else if (mode.equals("w")) {
-            // 覆盖模式
-            contentCache = content;
+    public String readText(int offset, int length, BufferCache cache) {
+        int end = (int) Math.min(getOpenSize(), (long) offset + length);
+        byte[] buffer = new byte[Math.max(0, end - offset)];
+        int count = read(offset, buffer, 0, buffer.length, cache);
+        return new String(buffer, 0, count, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 按UTF-8写入文本
+     * @param offset 起始位置（字节），不能超过文件当前大小
+     * @param text 要写入的文本
+     * @param cache 缓冲区缓存
+     * @return 写入的字节数，存储空间不足时返回-1，文件保持不变
+     */
+    public int writeText(int offset, String text, BufferCache cache) {
+        byte[] data = text.getBytes(StandardCharsets.UTF_8);
+        return write(offset, data, 0, data.length, cache) ? data.length : -1;
+    }
+
+    /**
+     * 截断文件到指定大小
+     * 块中超出文件大小的字节不再有效，读写都以文件大小为界，关闭时释放不再需要的尾部存储块
+     * @param size 新的文件大小（字节），不能超过文件当前大小
+     * @param cache 缓冲区缓存
+     */
+    public void truncate(int size, BufferCache cache) {
+        ensureLoaded();
+        if (openCount == 0) {
+            throw new IllegalStateException("File is not opened");
         }
+        if (size < 0 || size > openSize) {
+            throw new IndexOutOfBoundsException("Truncate size " + size + " is beyond file size " + openSize);
+        }
+        openSize = size;
+    }
+
+    /**
+     * 创建从指定位置开始顺序读取文件内容的字节流
+     * @param offset 起始位置（字节）
+     * @param cache 缓冲区缓存
+     * @return 字节输入流
+     */
+    public InputStream newInputStream(int offset, BufferCache cache) {
+        return new InputStream() {
+            private int position = offset;
+
+            @Override
+            public int read() {
+                byte[] single = new byte[1];
+                return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] buffer, int off, int len) {
+                int count = VirtualFileContent.this.read(position, buffer, off, len, cache);
+                if (count == 0) {
+                    return len == 0 ? 0 : -1;
+                }
+                position += count;
+                return count;
+            }
+        };
+    }
+
+    /**
+     * 创建从指定位置开始顺序写入文件内容的字节流
+     * @param offset 起始位置（字节）
+     * @param cache 缓冲区缓存
+     * @return 字节输出流
+     */
+    public OutputStream newOutputStream(int offset, BufferCache cache) {
+        return new OutputStream() {
+            private int position = offset;
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] buffer, int off, int len) throws IOException {
+                if (!VirtualFileContent.this.write(position, buffer, off, len, cache)) {
+                    throw new IOException("Storage device is full");
+                }
+                position += len;
+            }
+        };
     }
 
     /**
      * 清空文件内容并释放占用的存储块
-     * @param storage 存储设备引用
+     * @param cache 缓冲区缓存
      * @return 操作是否成功
      */
-    public boolean fileClear(StorageDevice storage) {
+    public boolean fileClear(BufferCache cache) {
         boolean success = false;
-        if (!openStatus) {
-            ArrayList<Integer> blocksToFree = new ArrayList<>(blockMapping.values());
-            storage.diskFree(blocksToFree);
+        if (!isOpen()) {
+            ArrayList<Integer> blocksToFree = detachBlocks();
+            cache.invalidate(blocksToFree);
+            cache.getDevice().diskFree(blocksToFree);
             success = true;
         } else {
             System.out.println("错误：文件当前处于打开状态，请在删除前关闭文件。");
@@ -142,13 +909,26 @@ public class VirtualFileContent implements Serializable {
         return success;
     }
 
+    /**
+     * 清空文件内容并交出占用的存储块，不访问缓冲区缓存和存储设备
+     * 用于批量删除：调用者收集多个文件的存储块后一次性释放
+     * @return 文件原来占用的物理存储块索引
+     */
+    public ArrayList<Integer> detachBlocks() {
+        ensureLoaded();
+        ArrayList<Integer> blocks = blockMapping.toList(blockMapping.size());
+        blockMapping.clear();
+        contentSize = 0;
+        contentBlocks = 0;
+        return blocks;
+    }
+
     @Override
     public String toString() {
         return "VirtualFileContent{" +
                 "blockMapping=" + blockMapping +
                 ", contentSize=" + contentSize +
-                ", openStatus=" + openStatus +
-                ", contentCache='" + contentCache + '\'' +
+                ", openCount=" + openCount +
                 '}';
     }
 }
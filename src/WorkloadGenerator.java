@@ -0,0 +1,168 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * 合成负载生成器
+ * 按给定的深度、宽度、每目录文件数和文件大小在目标目录下生成一棵目录树，并分阶段计时：
+ * 建树（mkdir/create）、写入（open/write/close）、路径查找（冷/热目录项缓存）。
+ * 文件内容由种子决定，相同参数和种子总是生成相同的目录树，可用于比较存储相关修改前后的耗时
+ */
+public class WorkloadGenerator {
+    // 文件内容使用的字符
+    private static final String ALPHABET = "abcdefghijklmnopqrstuvwxyz0123456789";
+
+    // 文件系统服务
+    private final FileSystemService service;
+    // 伪随机数生成器
+    private final Random random;
+    // 目录树深度（目标目录之下的目录层数）
+    private final int depth;
+    // 每个目录的子目录数
+    private final int width;
+    // 每个目录的文件数
+    private final int filesPerFolder;
+    // 每个文件的大小（字节）
+    private final int fileSize;
+
+    // 生成的目录数
+    private int folderCount;
+    // 生成的文件
+    private final List<FileSystemDocument> files;
+    // 生成的文件路径
+    private final List<String> filePaths;
+
+    /**
+     * 创建负载生成器
+     * @param service 文件系统服务
+     * @param seed 随机种子
+     * @param depth 目录树深度
+     * @param width 每个目录的子目录数
+     * @param filesPerFolder 每个目录的文件数
+     * @param fileSize 每个文件的大小（字节）
+     */
+    public WorkloadGenerator(FileSystemService service, long seed, int depth, int width, int filesPerFolder, int fileSize) {
+        this.service = service;
+        this.random = new Random(seed);
+        this.depth = depth;
+        this.width = width;
+        this.filesPerFolder = filesPerFolder;
+        this.fileSize = fileSize;
+        this.files = new ArrayList<>();
+        this.filePaths = new ArrayList<>();
+    }
+
+    /**
+     * 在目标目录下生成目录树并写入文件内容，输出各阶段耗时
+     * @param target 目标目录
+     * @param targetPath 目标目录的规范化绝对路径
+     */
+    public void run(FileSystemFolder target, String targetPath) {
+        long start = System.nanoTime();
+        buildTree(target, targetPath);
+        long built = System.nanoTime();
+        writeFiles();
+        long written = System.nanoTime();
+        long coldLookup = lookupFiles();
+        long warmLookup = lookupFiles();
+
+        System.out.println("生成目录: " + folderCount + "  文件: " + files.size() +
+                "  每个文件: " + fileSize + " 字节");
+        report("建树", files.size() + folderCount, built - start);
+        report("写入", files.size(), written - built);
+        report("路径查找(冷)", filePaths.size(), coldLookup);
+        report("路径查找(热)", filePaths.size(), warmLookup);
+        service.getVolume(target).getDevice().diskUsage();
+    }
+
+    /**
+     * 按层次生成目录和文件，已存在的同名条目跳过
+     */
+    private void buildTree(FileSystemFolder target, String targetPath) {
+        ArrayDeque<FileSystemFolder> folders = new ArrayDeque<>();
+        ArrayDeque<String> paths = new ArrayDeque<>();
+        ArrayDeque<Integer> levels = new ArrayDeque<>();
+        folders.add(target);
+        paths.add(targetPath.equals("/") ? "" : targetPath);
+        levels.add(0);
+        while (!folders.isEmpty()) {
+            FileSystemFolder folder = folders.poll();
+            String path = paths.poll();
+            int level = levels.poll();
+            for (int i = 0; i < filesPerFolder; i++) {
+                FileSystemNode file = service.createNode(folder, "f" + i, false);
+                if (file != null) {
+                    files.add((FileSystemDocument) file);
+                    filePaths.add(path + "/f" + i);
+                }
+            }
+            if (level == depth) {
+                continue;
+            }
+            for (int i = 0; i < width; i++) {
+                FileSystemNode child = service.createNode(folder, "d" + i, true);
+                if (child != null) {
+                    folderCount++;
+                    folders.add((FileSystemFolder) child);
+                    paths.add(path + "/d" + i);
+                    levels.add(level + 1);
+                }
+            }
+        }
+    }
+
+    /**
+     * 为每个生成的文件写入伪随机内容并关闭，存储空间不足时停止写入
+     */
+    private void writeFiles() {
+        byte[] content = new byte[fileSize];
+        for (FileSystemDocument file : files) {
+            for (int i = 0; i < fileSize; i++) {
+                content[i] = (byte) ALPHABET.charAt(random.nextInt(ALPHABET.length()));
+            }
+            boolean written = true;
+            file.getLock().writeLock().lock();
+            try {
+                BufferCache cache = service.getCache(file);
+                service.getCloner().preserve(file);
+                if (file.open(cache)) {
+                    try {
+                        written = file.file.write(0, content, 0, content.length, cache);
+                    } finally {
+                        service.closeAndLog(file);
+                    }
+                }
+            } finally {
+                file.getLock().writeLock().unlock();
+            }
+            if (!written) {
+                System.out.println("错误：存储空间不足，停止写入");
+                return;
+            }
+        }
+    }
+
+    /**
+     * 按路径查找每个生成的文件
+     * @return 耗时（纳秒）
+     */
+    private long lookupFiles() {
+        long start = System.nanoTime();
+        for (String path : filePaths) {
+            service.getResolver().lookup(path);
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * 输出一个阶段的耗时
+     * @param phase 阶段名称
+     * @param operations 操作次数
+     * @param nanos 耗时（纳秒）
+     */
+    static void report(String phase, long operations, long nanos) {
+        System.out.println(phase + ": " + operations + " 次操作, " + nanos / 1_000_000 + " ms" +
+                (operations == 0 ? "" : ", 平均 " + nanos / operations + " ns/次"));
+    }
+}
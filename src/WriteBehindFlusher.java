@@ -0,0 +1,220 @@
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+/**
+ * 后台写回器
+ * 关闭文件时不再同步写回修改过的存储块、同步存储设备和日志：文件改变过的存储块与OP_CLOSE记录一起登记在本类中，
+ * 由后台线程调用FileSystemService.commit统一写回、同步并提交日志，关闭文件的耗时与文件大小无关。
+ * 同一存储块在提交之前被多次关闭只写回一次；脏块的内容始终在缓冲区缓存中，读取不受影响。
+ *
+ * 登记和追加日志记录在日志的监视器内一起进行，提交者在同一监视器内取走已登记的存储块并记下日志的追加序号，
+ * 因此写入日志文件的每条OP_CLOSE记录引用的存储块都已写回并同步。
+ * 等待提交的关闭次数超过StorageConstants.WRITE_BEHIND_DEPTH时，关闭文件的会话自己提交，等待写回的内容有上限
+ *
+ * 后台提交失败时后台线程输出错误并继续等待下一次请求，失败的提交取走的存储块放回等待写回的集合，
+ * 下一次提交时重新写回；失败保存在本类中，由下一次sync或关闭文件报告给会话。
+ * 关闭文件和sync也通过tryCommit提交，提交失败不会向会话抛出异常
+ */
+public class WriteBehindFlusher {
+    // 文件系统服务
+    private final FileSystemService service;
+    // 存储卷 -> 等待写回的存储块，按登记顺序
+    private Map<StorageVolume, LinkedHashSet<Integer>> queued;
+    // 登记以来尚未提交的关闭次数
+    private int queuedCloses;
+    // 是否有等待后台线程提交的关闭
+    private boolean requested;
+    // 后台提交线程，第一次请求时启动
+    private Thread worker;
+    // 尚未报告的后台提交失败，为null表示没有
+    private RuntimeException failure;
+
+    // 统计计数
+    private long submittedCloses;
+    private long submittedBlocks;
+    private long coalescedBlocks;
+    private long writtenBlocks;
+    private long backgroundCommits;
+    private long throttledCloses;
+    private long failedCommits;
+
+    /**
+     * 创建后台写回器
+     * @param service 文件系统服务
+     */
+    public WriteBehindFlusher(FileSystemService service) {
+        this.service = service;
+        this.queued = new HashMap<>();
+    }
+
+    /**
+     * 登记一个已关闭文件的存储块，调用者应在日志的监视器内登记并追加该文件的OP_CLOSE记录
+     * @param volume 文件所在的存储卷
+     * @param blocks 文件上次关闭以来改变过的存储块
+     * @return 等待提交的关闭次数超过上限时返回true，调用者应自己提交
+     */
+    public synchronized boolean submit(StorageVolume volume, Collection<Integer> blocks) {
+        LinkedHashSet<Integer> volumeBlocks = queued.computeIfAbsent(volume, key -> new LinkedHashSet<>());
+        for (int block : blocks) {
+            if (!volumeBlocks.add(block)) {
+                coalescedBlocks++;
+            }
+        }
+        submittedCloses++;
+        submittedBlocks += blocks.size();
+        if (++queuedCloses > StorageConstants.WRITE_BEHIND_DEPTH) {
+            throttledCloses++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 请求后台线程尽快提交，立即返回
+     */
+    public synchronized void requestCommit() {
+        requested = true;
+        if (worker == null) {
+            worker = new Thread(this::runWorker, "write-behind-flusher");
+            worker.setDaemon(true);
+            worker.start();
+        }
+        notifyAll();
+    }
+
+    /**
+     * 取走全部已登记的存储块，调用者应持有日志的监视器
+     * @return 存储卷 -> 等待写回的存储块
+     */
+    public synchronized Map<StorageVolume, LinkedHashSet<Integer>> takeQueued() {
+        Map<StorageVolume, LinkedHashSet<Integer>> taken = queued;
+        queued = new HashMap<>();
+        queuedCloses = 0;
+        return taken;
+    }
+
+    /**
+     * 把提交失败而未写回的存储块放回等待写回的集合，排在此后登记的存储块之前
+     * @param blocks takeQueued取走的存储块
+     */
+    public synchronized void requeue(Map<StorageVolume, LinkedHashSet<Integer>> blocks) {
+        for (Map.Entry<StorageVolume, LinkedHashSet<Integer>> entry : blocks.entrySet()) {
+            LinkedHashSet<Integer> volumeBlocks = new LinkedHashSet<>(entry.getValue());
+            LinkedHashSet<Integer> later = queued.get(entry.getKey());
+            if (later != null) {
+                volumeBlocks.addAll(later);
+            }
+            queued.put(entry.getKey(), volumeBlocks);
+        }
+    }
+
+    /**
+     * 提交并记下失败：失败时输出错误并保存失败，由下一次sync或关闭文件报告给会话，不向调用者抛出异常
+     * 失败的提交取走的存储块已由FileSystemService.commit放回，下一次提交时重新写回
+     * @return 提交成功时返回true
+     */
+    public boolean tryCommit() {
+        FileSystemMetrics metrics = FileSystemMetrics.get();
+        long start = metrics.start();
+        try {
+            service.commit();
+            return true;
+        } catch (RuntimeException e) {
+            metrics.recordFailure(FileSystemMetrics.Operation.COMMIT, start);
+            System.err.println("提交失败: " + e.getMessage());
+            synchronized (this) {
+                failedCommits++;
+                failure = e;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * 取走尚未报告的提交失败
+     * @return 最近一次提交失败的异常，没有时返回null
+     */
+    public synchronized RuntimeException takeFailure() {
+        RuntimeException taken = failure;
+        failure = null;
+        return taken;
+    }
+
+    /**
+     * 把取走的存储块中仍是脏块的写回存储设备，已被淘汰或释放的存储块不再写回
+     * @param blocks 存储卷 -> 等待写回的存储块
+     */
+    public void writeBack(Map<StorageVolume, LinkedHashSet<Integer>> blocks) {
+        long count = 0;
+        for (Map.Entry<StorageVolume, LinkedHashSet<Integer>> entry : blocks.entrySet()) {
+            count += entry.getKey().getCache().flush(entry.getValue());
+        }
+        synchronized (this) {
+            writtenBlocks += count;
+        }
+    }
+
+    /**
+     * 丢弃登记在存储卷上的存储块，用于卸载设备时：挂载点为空，这些存储块都已被释放
+     * @param volume 存储卷
+     */
+    public synchronized void forget(StorageVolume volume) {
+        queued.remove(volume);
+    }
+
+    /**
+     * 获取尚未提交的关闭次数
+     * @return 关闭次数
+     */
+    public synchronized int getQueuedCount() {
+        return queuedCloses;
+    }
+
+    /**
+     * 后台线程：等待提交请求，每次提交此前登记的全部关闭；提交期间到来的关闭由下一次一起提交
+     * 提交失败时记下失败并继续运行，后台线程不会因一次失败而退出
+     */
+    private void runWorker() {
+        while (true) {
+            synchronized (this) {
+                while (!requested) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                requested = false;
+            }
+            if (tryCommit()) {
+                synchronized (this) {
+                    backgroundCommits++;
+                }
+            }
+        }
+    }
+
+    /**
+     * 获取写回统计
+     * @return 统计信息
+     */
+    public synchronized String getReport() {
+        return String.format("后台写回: 关闭 %d 次, 登记 %d 块, 合并 %d 块, 写回 %d 块; 后台提交 %d 次, 失败 %d 次, 同步提交 %d 次; 等待提交 %d 次关闭",
+                submittedCloses, submittedBlocks, coalescedBlocks, writtenBlocks,
+                backgroundCommits, failedCommits, throttledCloses, queuedCloses);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "WriteBehindFlusher{" +
+                "queuedCloses=" + queuedCloses +
+                ", submittedCloses=" + submittedCloses +
+                ", coalescedBlocks=" + coalescedBlocks +
+                ", writtenBlocks=" + writtenBlocks +
+                ", backgroundCommits=" + backgroundCommits +
+                ", failedCommits=" + failedCommits +
+                '}';
+    }
+}